@@ -9,7 +9,6 @@ import com.lightweightDbms.audit.SimpleIpProvider;
 import com.lightweightDbms.storage.StorageConfig;
 import com.lightweightDbms.storage.QueryLogger;
 import com.lightweightDbms.repository.FileUserRepository;
-import com.lightweightDbms.db.DatabaseEngine;
 import com.lightweightDbms.db.InMemoryDatabaseEngine;
 import com.lightweightDbms.sql.SqlParser;
 import com.lightweightDbms.exception.PasswordHashException;
@@ -199,13 +198,19 @@ public class DBMSApplication {
                 }
 
                 // Initialize database engine and SQL shell
-                DatabaseEngine engine = new InMemoryDatabaseEngine(storage);
+                InMemoryDatabaseEngine engine = new InMemoryDatabaseEngine(storage);
+                engine.setRebuildListener((table, rows, done, total) ->
+                        System.out.println("Rebuilt index for '" + table + "' (" + rows + " rows) [" + done + "/" + total + "]"));
                 SqlParser parser = new SqlParser();
                 // Pass audit logger and admin flag into shell for SHOW LOGS
                 User loggedIn = authService.getUser(userId);
                 AuditLogger auditLogger = new CsvAuditLogger(storage.auditFile().getPath());
                 ConsoleShell shell = new ConsoleShell(engine, parser, scanner, auditLogger, loggedIn != null && loggedIn.isAdmin());
-                shell.startSession();
+                try {
+                    shell.startSession();
+                } finally {
+                    engine.close();
+                }
             } else {
                 System.out.println("\n[FAILED] " + result.getMessage());
                 System.out.println("Please try again.");
@@ -0,0 +1,72 @@
+package com.lightweightDbms.db;
+
+import com.lightweightDbms.sql.Query;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread that checkpoints the tables and truncates the write-ahead log, so that
+ * recovery replays a bounded amount of log however long the engine ran. A checkpoint starts when
+ * the interval elapsed or when enough log was written since the last one. Unlike
+ * {@link TableCompactor}, it does not take the engine's command lock: commands run on while
+ * pages are written back.
+ */
+final class Checkpointer {
+    private static final long POLL_MILLIS = 1000;
+
+    private final Query query;
+    private final long intervalMillis;
+    private final long logBytes;
+    private final ScheduledExecutorService executor;
+    private long lastCheckpoint = System.currentTimeMillis();
+
+    /**
+     * Starts the checkpointer.
+     * @param query query layer owning the tables and the log
+     * @param intervalMillis longest time in milliseconds between two checkpoints
+     * @param logBytes log growth in bytes that starts a checkpoint early
+     */
+    Checkpointer(Query query, long intervalMillis, long logBytes) {
+        this.query = query;
+        this.intervalMillis = intervalMillis;
+        this.logBytes = logBytes;
+        this.executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long poll = Math.min(intervalMillis, POLL_MILLIS);
+        executor.scheduleWithFixedDelay(this::checkpointIfDue, poll, poll, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checkpoints if it is due. A failed checkpoint leaves the previous redo points in place and is
+     * tried again on the next check.
+     */
+    void checkpointIfDue() {
+        long now = System.currentTimeMillis();
+        if (now - lastCheckpoint < intervalMillis && query.logBytesSinceCheckpoint() < logBytes) {
+            return;
+        }
+        try {
+            query.checkpoint();
+            lastCheckpoint = now;
+        } catch (RuntimeException e) {
+            // Retried on the next check
+        }
+    }
+
+    /**
+     * Stops the checkpointer, waiting for a checkpoint in progress to finish.
+     */
+    void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -38,6 +38,11 @@ public interface DatabaseEngine {
      * @throws IllegalArgumentException if the command is invalid for the current state
      */
     String execute(Command command);
+
+    /**
+     * Flushes pending state (such as modified indexes) to disk at the end of a session.
+     */
+    void close();
 }
 
 
@@ -1,7 +1,9 @@
 package com.lightweightDbms.db;
 
+import com.lightweightDbms.index.IndexRebuilder;
 import com.lightweightDbms.sql.Command;
 import com.lightweightDbms.sql.Query;
+import com.lightweightDbms.storage.LogRecovery;
 import com.lightweightDbms.storage.StorageConfig;
 import com.lightweightDbms.transaction.TransactionManager;
 
@@ -9,12 +11,19 @@ import java.util.Objects;
 
 /**
  * Simple in-memory database engine that supports a single database lifecycle and
- * routes parsed commands for execution.
+ * routes parsed commands for execution. Commands run one at a time; a background
+ * {@link TableCompactor} compacts tables between them, while a {@link Checkpointer} bounds the log
+ * alongside them. A command that commits waits for its commit
+ * to be durable after the next command may start, so concurrent commits share log forces.
  */
 public final class InMemoryDatabaseEngine implements DatabaseEngine {
     private String databaseName;
     private Query query;
     private TransactionManager transactionManager;
+    private IndexRebuilder.ProgressListener rebuildListener;
+    private final Object commandLock = new Object();
+    private final TableCompactor compactor;
+    private final Checkpointer checkpointer;
 
     /**
      * @param storage storage configuration for Query operations
@@ -23,7 +32,13 @@ public final class InMemoryDatabaseEngine implements DatabaseEngine {
         this.query = new Query(storage);
         this.transactionManager = new TransactionManager();
         this.query.setTransactionManager(transactionManager);
+        this.query.setCommitsDeferred(true);
         this.transactionManager.setQuery(query);
+        long interval = storage.getCompactionIntervalMillis();
+        this.compactor = interval > 0 ? new TableCompactor(query, commandLock, interval) : null;
+        long checkpointInterval = storage.getCheckpointIntervalMillis();
+        this.checkpointer = checkpointInterval > 0
+                ? new Checkpointer(query, checkpointInterval, storage.getCheckpointLogBytes()) : null;
     }
 
     /**
@@ -40,13 +55,31 @@ public final class InMemoryDatabaseEngine implements DatabaseEngine {
         return transactionManager;
     }
 
+    /**
+     * Sets the callback notified as table indexes are rebuilt when the database is opened.
+     * @param rebuildListener progress listener (nullable)
+     */
+    public void setRebuildListener(IndexRebuilder.ProgressListener rebuildListener) {
+        this.rebuildListener = rebuildListener;
+    }
+
     @Override
     public String createDatabase(String databaseName) {
         Objects.requireNonNull(databaseName, "databaseName");
         if (this.databaseName == null) {
             this.databaseName = databaseName;
             query.setCurrentDatabase(databaseName);
-            return "Database '" + databaseName + "' created.";
+            // Tables are brought up to date with the log, then indexes are rebuilt, before any command runs
+            LogRecovery.Report recovery = query.recover();
+            IndexRebuilder.Report report = query.openIndexes(rebuildListener);
+            StringBuilder message = new StringBuilder("Database '" + databaseName + "' created.");
+            if (recovery.changedTables()) {
+                message.append("\n").append(recovery);
+            }
+            if (report.getTableCount() > 0) {
+                message.append("\n").append(report);
+            }
+            return message.toString();
         }
         if (!this.databaseName.equals(databaseName)) {
             throw new IllegalStateException("Only one database is allowed. Existing: " + this.databaseName);
@@ -67,7 +100,27 @@ public final class InMemoryDatabaseEngine implements DatabaseEngine {
     @Override
     public String execute(Command command) {
         Objects.requireNonNull(command, "command");
-        return command.execute(this);
+        String result;
+        long commitLsn;
+        synchronized (commandLock) {
+            result = command.execute(this);
+            commitLsn = query.takeCommitLsn();
+        }
+        query.awaitDurable(commitLsn);
+        return result;
+    }
+
+    @Override
+    public void close() {
+        if (compactor != null) {
+            compactor.close();
+        }
+        if (checkpointer != null) {
+            checkpointer.close();
+        }
+        synchronized (commandLock) {
+            query.close();
+        }
     }
 }
 
@@ -0,0 +1,63 @@
+package com.lightweightDbms.db;
+
+import com.lightweightDbms.sql.Query;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread that periodically compacts the tables whose dead space crossed the configured
+ * threshold. Compaction rewrites a table file and rebuilds its indexes, so it runs under the
+ * engine's command lock: commands issued meanwhile wait for it.
+ */
+final class TableCompactor {
+    private final Query query;
+    private final Object commandLock;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Starts the compactor.
+     * @param query query layer owning the tables
+     * @param commandLock lock held while a command runs
+     * @param intervalMillis milliseconds between two checks
+     */
+    TableCompactor(Query query, Object commandLock, long intervalMillis) {
+        this.query = query;
+        this.commandLock = commandLock;
+        this.executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "table-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::compactDueTables, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Compacts every table that is due. A table that fails to compact stays usable as it is and is
+     * tried again on the next check.
+     */
+    void compactDueTables() {
+        synchronized (commandLock) {
+            for (String tableName : query.tablesToCompact()) {
+                try {
+                    query.compactTable(tableName);
+                } catch (RuntimeException e) {
+                    // Retried on the next check
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the compactor, waiting for a compaction in progress to finish.
+     */
+    void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
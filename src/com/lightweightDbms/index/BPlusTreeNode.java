@@ -1,134 +1,578 @@
 package com.lightweightDbms.index;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * Node in a B+ tree structure for efficient indexing.
+ * <p>
+ * Keys and values live in flat arrays sized to the tree fanout, and lookups inside a node use
+ * binary search. Keys are held in a {@link KeyColumn} of the tree's {@link KeyType}: a
+ * {@code long[]} for integer columns, byte-comparable UTF-8 for all others. Leaves store row locators as parallel primitive columns instead of one
+ * {@link IndexEntry} object per key; the table name and file path are kept once per table by
+ * {@link DatabaseIndex}.
+ * <p>
+ * Leaf keys are unique. A key with one row keeps its locator inline; a key with several rows also
+ * gets a {@link PostingList} holding all of them, and the inline columns mirror its first locator.
+ * <p>
+ * A node read from an index file starts as an unloaded stub and is paged in on first access.
+ * <p>
+ * Each node carries a version latch for optimistic lock coupling: readers take a version stamp,
+ * read without locking and validate the stamp afterwards; writers upgrade a validated stamp to an
+ * exclusive lock before modifying the node. A node unlinked from its tree is marked obsolete so that
+ * writers holding a stale path restart instead of modifying it.
  */
 public final class BPlusTreeNode {
-    private final List<String> keys;
-    private final List<IndexEntry> entries;
-    private final List<BPlusTreeNode> children;
     private boolean isLeaf;
+    private int size;
+    private KeyColumn keys;
+    // leaf columns
+    private long[] rowNumbers;
+    private long[] offsets;
+    private int[] lengths;
+    private PostingList[] postings; // null until a leaf key gets a second row
+    // internal nodes hold size + 1 children
+    private BPlusTreeNode[] children;
     private BPlusTreeNode next; // for leaf nodes
+    private volatile NodeSource source; // non-null until paged in
+    private final int address; // position in the index file, -1 for in-memory nodes
+    private final StampedLock latch = new StampedLock();
+    private volatile boolean obsolete;
+
+    /**
+     * Supplies the contents of nodes that are paged in lazily.
+     */
+    interface NodeSource {
+        /**
+         * Fills an unloaded node from its backing page.
+         * @param node node to fill
+         * @param address position of the node in the index file
+         */
+        void load(BPlusTreeNode node, int address);
+    }
 
     /**
      * Creates a new B+ tree node.
      * @param isLeaf whether this is a leaf node
+     * @param capacity key slots; a node may hold one key over the fanout until it is split
+     * @param keyType representation of the node's keys
      */
-    public BPlusTreeNode(boolean isLeaf) {
-        this.keys = new ArrayList<>();
-        this.entries = new ArrayList<>();
-        this.children = new ArrayList<>();
-        this.isLeaf = isLeaf;
-        this.next = null;
+    public BPlusTreeNode(boolean isLeaf, int capacity, KeyType keyType) {
+        this.address = -1;
+        allocate(isLeaf, capacity, keyType);
+    }
+
+    /**
+     * Creates an unloaded node backed by an index file page.
+     * @param source loader for the node contents
+     * @param address position of the node in the index file
+     */
+    BPlusTreeNode(NodeSource source, int address) {
+        this.source = source;
+        this.address = address;
+    }
+
+    private void allocate(boolean leaf, int capacity, KeyType keyType) {
+        this.isLeaf = leaf;
+        this.keys = new KeyColumn(keyType, capacity);
+        if (leaf) {
+            this.rowNumbers = new long[capacity];
+            this.offsets = new long[capacity];
+            this.lengths = new int[capacity];
+        } else {
+            this.children = new BPlusTreeNode[capacity + 1];
+        }
+    }
+
+    private void ensureLoaded() {
+        if (source == null) return;
+        synchronized (this) {
+            NodeSource s = source;
+            if (s != null) {
+                s.load(this, address);
+                source = null;
+            }
+        }
     }
 
     /**
-     * @return list of keys in this node
+     * Allocates an unloaded node while it is being paged in, without triggering a load.
+     * @param isLeaf whether this is a leaf node
+     * @param capacity key slots to allocate
+     * @param keyType representation of the node's keys
      */
-    public List<String> getKeys() { return keys; }
+    void initialize(boolean isLeaf, int capacity, KeyType keyType) {
+        allocate(isLeaf, capacity, keyType);
+    }
 
     /**
-     * @return list of entries (for leaf nodes)
+     * Takes an optimistic version stamp.
+     * @return stamp to validate after reading, or 0 if the node is being modified
      */
-    public List<IndexEntry> getEntries() { return entries; }
+    public long optimisticRead() { return latch.tryOptimisticRead(); }
 
     /**
-     * @return list of child nodes (for internal nodes)
+     * @param stamp stamp from {@link #optimisticRead()}
+     * @return true if the node has not been modified since the stamp was taken
      */
-    public List<BPlusTreeNode> getChildren() { return children; }
+    public boolean validate(long stamp) { return latch.validate(stamp); }
+
+    /**
+     * Upgrades an optimistic stamp to the exclusive write lock.
+     * @param stamp stamp from {@link #optimisticRead()}
+     * @return write stamp, or 0 if the node changed since the stamp was taken
+     */
+    public long tryUpgrade(long stamp) { return stamp == 0 ? 0 : latch.tryConvertToWriteLock(stamp); }
+
+    /**
+     * Releases the write lock, publishing the modifications under a new version.
+     * @param stamp write stamp from {@link #tryUpgrade(long)}
+     */
+    public void unlockWrite(long stamp) { latch.unlockWrite(stamp); }
+
+    /**
+     * Marks a write-locked node as unlinked from its tree.
+     */
+    public void markObsolete() { obsolete = true; }
+
+    /**
+     * @return true if the node was unlinked from its tree
+     */
+    public boolean isObsolete() { return obsolete; }
 
     /**
      * @return true if this is a leaf node
      */
-    public boolean isLeaf() { return isLeaf; }
+    public boolean isLeaf() { ensureLoaded(); return isLeaf; }
+
+    /**
+     * @return number of keys in this node
+     */
+    public int size() { ensureLoaded(); return size; }
+
+    /**
+     * @return representation of the node's keys
+     */
+    public KeyType keyType() { ensureLoaded(); return keys.type(); }
+
+    /**
+     * @param i key position
+     * @return key at the position
+     */
+    public IndexKey keyAt(int i) { ensureLoaded(); return keys.get(i); }
+
+    /**
+     * @param i key position
+     * @return key at the position as it appears in a table row
+     */
+    public String keyStringAt(int i) { ensureLoaded(); return keys.stringAt(i); }
+
+    /**
+     * @param i key position
+     * @param key key to compare with
+     * @return negative, zero or positive as the key at the position is less than, equal to or greater than {@code key}
+     */
+    public int compareKeyAt(int i, IndexKey key) { ensureLoaded(); return keys.compare(i, key); }
+
+    /**
+     * @return keys of this node, for serialization
+     */
+    KeyColumn keys() { ensureLoaded(); return keys; }
+
+    /**
+     * @param i child position (0..size)
+     * @return child node (for internal nodes)
+     */
+    public BPlusTreeNode childAt(int i) { ensureLoaded(); return children[i]; }
+
+    /**
+     * @return number of children (for internal nodes)
+     */
+    public int childCount() { ensureLoaded(); return isLeaf ? 0 : size + 1; }
+
+    /**
+     * @param i entry position
+     * @return row number of the entry (for leaf nodes)
+     */
+    public long rowNumberAt(int i) { ensureLoaded(); return rowNumbers[i]; }
+
+    /**
+     * @param i entry position
+     * @return byte offset of the entry's record (for leaf nodes)
+     */
+    public long offsetAt(int i) { ensureLoaded(); return offsets[i]; }
+
+    /**
+     * @param i entry position
+     * @return byte length of the entry's record (for leaf nodes)
+     */
+    public int lengthAt(int i) { ensureLoaded(); return lengths[i]; }
+
+    /**
+     * @param i entry position
+     * @return number of rows sharing the key at the position (for leaf nodes)
+     */
+    public int postingCount(int i) {
+        ensureLoaded();
+        PostingList list = postings == null ? null : postings[i];
+        return list == null ? 1 : list.size();
+    }
+
+    /**
+     * @param i entry position
+     * @return all locators of the key at the position, or null if it has a single row (for leaf nodes)
+     */
+    public PostingList postingAt(int i) {
+        ensureLoaded();
+        return postings == null ? null : postings[i];
+    }
 
     /**
      * @return next leaf node (for leaf nodes)
      */
-    public BPlusTreeNode getNext() { return next; }
+    public BPlusTreeNode getNext() { ensureLoaded(); return next; }
 
     /**
      * Sets the next leaf node.
      * @param next next leaf node
      */
-    public void setNext(BPlusTreeNode next) { this.next = next; }
+    public void setNext(BPlusTreeNode next) { ensureLoaded(); this.next = next; }
 
     /**
      * @return true if this node is full (has maximum capacity)
      */
     public boolean isFull(int maxKeys) {
-        return keys.size() >= maxKeys;
+        return size() >= maxKeys;
     }
 
     /**
      * @return true if this node is underflowed (below minimum capacity)
      */
     public boolean isUnderflowed(int minKeys) {
-        return keys.size() < minKeys;
+        return size() < minKeys;
+    }
+
+    /**
+     * Binary search for the first key not less than {@code key}.
+     * @param key key to look for
+     * @return position of the first key {@code >= key}, or {@link #size()} if none
+     */
+    public int lowerBound(IndexKey key) {
+        ensureLoaded();
+        return keys.lowerBound(size, key);
+    }
+
+    /**
+     * Binary search for the child subtree that may contain {@code key}.
+     * @param key key to route
+     * @return position of the first key greater than {@code key}
+     */
+    public int upperBound(IndexKey key) {
+        ensureLoaded();
+        return keys.upperBound(size, key);
     }
 
     /**
-     * Adds a key-value pair to this node.
+     * Finds the position of a key in a leaf.
+     * @param key key to search for
+     * @return position of the key, or -1 if absent
+     */
+    public int find(IndexKey key) {
+        int i = lowerBound(key);
+        return i < size && keys.compare(i, key) == 0 ? i : -1;
+    }
+
+    /**
+     * Adds a row to this leaf; a key already present gets the row added to its posting list.
      * @param key key to add
-     * @param entry entry to add
+     * @param rowNumber row number of the record
+     * @param offset byte offset of the record
+     * @param length byte length of the record
+     */
+    public void addEntry(IndexKey key, long rowNumber, long offset, int length) {
+        int i = lowerBound(key);
+        if (i < size && keys.compare(i, key) == 0) {
+            addLocator(i, rowNumber, offset, length);
+            return;
+        }
+        ensureCapacity(size + 1);
+        int tail = size - i;
+        keys.copyTo(i, keys, i + 1, tail);
+        System.arraycopy(rowNumbers, i, rowNumbers, i + 1, tail);
+        System.arraycopy(offsets, i, offsets, i + 1, tail);
+        System.arraycopy(lengths, i, lengths, i + 1, tail);
+        if (postings != null) {
+            System.arraycopy(postings, i, postings, i + 1, tail);
+            postings[i] = null;
+        }
+        keys.set(i, key);
+        rowNumbers[i] = rowNumber;
+        offsets[i] = offset;
+        lengths[i] = length;
+        size++;
+    }
+
+    /**
+     * Appends a row to a leaf being built from sorted input; a row with the same key as the last
+     * one joins its posting list.
+     * @param sortedKeys sorted keys of the input
+     * @param at position of the row's key in {@code sortedKeys}, not less than the current last key
+     * @param rowNumber row number of the record
+     * @param offset byte offset of the record
+     * @param length byte length of the record
      */
-    public void addEntry(String key, IndexEntry entry) {
-        int index = findInsertPosition(key);
-        keys.add(index, key);
-        entries.add(index, entry);
+    void appendEntry(KeyColumn sortedKeys, int at, long rowNumber, long offset, int length) {
+        if (size > 0 && keys.compare(size - 1, sortedKeys, at) == 0) {
+            addLocator(size - 1, rowNumber, offset, length);
+            return;
+        }
+        appendSlot(sortedKeys, at, rowNumber, offset, length, null);
+    }
+
+    /**
+     * Appends a key with its locators while building or paging in, without triggering a load.
+     * @param source keys to copy from
+     * @param at position of the key in {@code source}, greater than the current last key
+     * @param rowNumber row number of the first record
+     * @param offset byte offset of the first record
+     * @param length byte length of the first record
+     * @param posting all locators of the key, or null if it has a single row
+     */
+    void appendSlot(KeyColumn source, int at, long rowNumber, long offset, int length, PostingList posting) {
+        ensureCapacity(size + 1);
+        source.copyTo(at, keys, size);
+        rowNumbers[size] = rowNumber;
+        offsets[size] = offset;
+        lengths[size] = length;
+        if (posting != null) {
+            if (postings == null) postings = new PostingList[keys.capacity()];
+            postings[size] = posting;
+        }
+        size++;
     }
 
     /**
-     * Removes an entry by key.
+     * Removes a key and all of its rows.
      * @param key key to remove
      * @return true if entry was removed
      */
-    public boolean removeEntry(String key) {
-        int index = keys.indexOf(key);
-        if (index >= 0) {
-            keys.remove(index);
-            entries.remove(index);
+    public boolean removeEntry(IndexKey key) {
+        int i = find(key);
+        if (i < 0) {
+            return false;
+        }
+        removeSlot(i);
+        return true;
+    }
+
+    /**
+     * Removes one row of a key; the key goes once its last row is removed.
+     * @param key key of the row
+     * @param offset byte offset of the row's record
+     * @return true if the row was found and removed
+     */
+    public boolean removeLocator(IndexKey key, long offset) {
+        int i = find(key);
+        if (i < 0) {
+            return false;
+        }
+        PostingList list = postings == null ? null : postings[i];
+        if (list == null) {
+            if (offsets[i] != offset) return false;
+            removeSlot(i);
             return true;
         }
-        return false;
+        if (!list.remove(offset)) {
+            return false;
+        }
+        if (list.size() == 1) {
+            postings[i] = null;
+        }
+        // Keep the inline columns on the first remaining locator
+        long[] first = new long[3];
+        boolean[] seen = {false};
+        list.forEach((rowNumber, off, length) -> {
+            if (seen[0]) return;
+            seen[0] = true;
+            first[0] = rowNumber;
+            first[1] = off;
+            first[2] = length;
+        });
+        rowNumbers[i] = first[0];
+        offsets[i] = first[1];
+        lengths[i] = (int) first[2];
+        return true;
+    }
+
+    private void addLocator(int i, long rowNumber, long offset, int length) {
+        if (postings == null) postings = new PostingList[keys.capacity()];
+        PostingList list = postings[i];
+        if (list == null) {
+            postings[i] = PostingList.of(rowNumbers[i], offsets[i], lengths[i], rowNumber, offset, length);
+        } else {
+            list.add(rowNumber, offset, length);
+        }
+        if (offset < offsets[i]) {
+            rowNumbers[i] = rowNumber;
+            offsets[i] = offset;
+            lengths[i] = length;
+        }
+    }
+
+    private void removeSlot(int i) {
+        int tail = size - i - 1;
+        keys.copyTo(i + 1, keys, i, tail);
+        System.arraycopy(rowNumbers, i + 1, rowNumbers, i, tail);
+        System.arraycopy(offsets, i + 1, offsets, i, tail);
+        System.arraycopy(lengths, i + 1, lengths, i, tail);
+        if (postings != null) {
+            System.arraycopy(postings, i + 1, postings, i, tail);
+            postings[size - 1] = null;
+        }
+        keys.clear(size - 1, size);
+        size--;
     }
 
     /**
-     * Finds the position where a key should be inserted.
-     * @param key key to find position for
-     * @return insertion index
+     * Appends a child to an internal node being built from sorted input or paged in.
+     * @param source keys to copy the separator from
+     * @param at position in {@code source} of the key separating the child from the previous one;
+     *           ignored for the first child
+     * @param child child to append
      */
-    private int findInsertPosition(String key) {
-        int left = 0, right = keys.size();
-        while (left < right) {
-            int mid = (left + right) / 2;
-            if (keys.get(mid).compareTo(key) < 0) {
-                left = mid + 1;
-            } else {
-                right = mid;
-            }
+    void appendChild(KeyColumn source, int at, BPlusTreeNode child) {
+        if (children[0] == null) {
+            children[0] = child;
+            return;
         }
-        return left;
+        ensureCapacity(size + 1);
+        source.copyTo(at, keys, size);
+        children[size + 1] = child;
+        size++;
     }
 
     /**
-     * Finds an entry by key.
-     * @param key key to search for
-     * @return entry if found, null otherwise
+     * Makes a new root over two children.
+     * @param left child holding keys {@code < separator}
+     * @param separator separator key
+     * @param right child holding keys {@code >= separator}
+     */
+    void initRoot(BPlusTreeNode left, IndexKey separator, BPlusTreeNode right) {
+        children[0] = left;
+        keys.set(0, separator);
+        children[1] = right;
+        size = 1;
+    }
+
+    /**
+     * Links the next leaf while building or paging in, without triggering a load.
+     * @param next next leaf node
+     */
+    void initNext(BPlusTreeNode next) { this.next = next; }
+
+    /**
+     * Inserts a separator key at {@code i} with {@code right} as the child after it.
+     * @param i key position
+     * @param separator separator key
+     * @param right child holding keys {@code >= separator}
      */
-    public IndexEntry findEntry(String key) {
-        int index = keys.indexOf(key);
-        return index >= 0 ? entries.get(index) : null;
+    public void insertChild(int i, IndexKey separator, BPlusTreeNode right) {
+        ensureLoaded();
+        ensureCapacity(size + 1);
+        keys.copyTo(i, keys, i + 1, size - i);
+        System.arraycopy(children, i + 1, children, i + 2, size - i);
+        keys.set(i, separator);
+        children[i + 1] = right;
+        size++;
     }
 
     /**
-     * Gets all entries in this node.
-     * @return list of all entries
+     * Removes a child of an internal node together with the separator that bounds it.
+     * @param i child position
      */
-    public List<IndexEntry> getAllEntries() {
-        return new ArrayList<>(entries);
+    public void removeChild(int i) {
+        ensureLoaded();
+        int keyIndex = i == 0 ? 0 : i - 1;
+        keys.copyTo(keyIndex + 1, keys, keyIndex, size - keyIndex - 1);
+        System.arraycopy(children, i + 1, children, i, size - i);
+        keys.clear(size - 1, size);
+        children[size] = null;
+        size--;
+    }
+
+    /**
+     * Moves the upper half of a leaf into a new right sibling and links it into the leaf chain.
+     * @return new right sibling; its first key is the separator for the parent
+     */
+    public BPlusTreeNode splitLeaf() {
+        ensureLoaded();
+        BPlusTreeNode right = new BPlusTreeNode(true, keys.capacity(), keys.type());
+        int mid = size / 2;
+        int moved = size - mid;
+        keys.copyTo(mid, right.keys, 0, moved);
+        System.arraycopy(rowNumbers, mid, right.rowNumbers, 0, moved);
+        System.arraycopy(offsets, mid, right.offsets, 0, moved);
+        System.arraycopy(lengths, mid, right.lengths, 0, moved);
+        if (postings != null) {
+            right.postings = new PostingList[right.keys.capacity()];
+            System.arraycopy(postings, mid, right.postings, 0, moved);
+            Arrays.fill(postings, mid, size, null);
+        }
+        keys.clear(mid, size);
+        right.size = moved;
+        size = mid;
+        right.next = next;
+        next = right;
+        return right;
+    }
+
+    /**
+     * Moves every key of the next leaf into this empty leaf and takes over its link in the leaf
+     * chain, undoing a split. The next leaf keeps its keys and link for scans standing on it.
+     */
+    public void absorbNext() {
+        ensureLoaded();
+        BPlusTreeNode right = next;
+        right.ensureLoaded();
+        for (int i = 0; i < right.size; i++) {
+            appendSlot(right.keys, i, right.rowNumbers[i], right.offsets[i], right.lengths[i],
+                    right.postings == null ? null : right.postings[i]);
+        }
+        next = right.next;
+    }
+
+    /**
+     * Moves the upper half of an internal node into a new right sibling.
+     * The middle key moves up: it is returned through {@code separatorOut[0]} and kept in neither node.
+     * @param separatorOut receives the separator for the parent
+     * @return new right sibling
+     */
+    public BPlusTreeNode splitInternal(IndexKey[] separatorOut) {
+        ensureLoaded();
+        BPlusTreeNode right = new BPlusTreeNode(false, keys.capacity(), keys.type());
+        int mid = size / 2;
+        separatorOut[0] = keys.get(mid);
+        int movedKeys = size - mid - 1;
+        keys.copyTo(mid + 1, right.keys, 0, movedKeys);
+        System.arraycopy(children, mid + 1, right.children, 0, movedKeys + 1);
+        keys.clear(mid, size);
+        Arrays.fill(children, mid + 1, size + 1, null);
+        right.size = movedKeys;
+        size = mid;
+        return right;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= keys.capacity()) return;
+        int capacity = Math.max(needed, keys.capacity() * 2);
+        keys.resize(capacity);
+        if (isLeaf) {
+            rowNumbers = Arrays.copyOf(rowNumbers, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            if (postings != null) postings = Arrays.copyOf(postings, capacity);
+        } else {
+            children = Arrays.copyOf(children, capacity + 1);
+        }
     }
 }
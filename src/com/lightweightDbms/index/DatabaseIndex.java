@@ -1,34 +1,140 @@
 package com.lightweightDbms.index;
 
+import com.lightweightDbms.storage.BufferPool;
+
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Lightweight in-memory B+ tree index for efficient data retrieval.
- * Maintains consistency with file-based storage.
+ * Maintains consistency with file-based storage and can be persisted per table as an {@link IndexFile}.
+ * <p>
+ * Nodes hold up to {@code maxKeys} keys in flat arrays; a fanout between 64 and 512 keeps trees
+ * shallow (three or four levels for millions of rows). Each tree has a {@link KeyType}: integer
+ * columns are keyed by primitive longs in numeric order, all others by UTF-8 bytes. Keys passed in
+ * as strings are encoded once per operation. Leaves store only key and record locator
+ * per row; the table name and file path are held once per table and attached when an
+ * {@link IndexEntry} is returned.
+ * <p>
+ * Trees use optimistic lock coupling instead of a shared monitor. Readers never lock: they validate
+ * each node's version after reading it and restart the descent if a writer got in between. Writers
+ * lock only the nodes they modify, splitting full nodes on the way down so a split never has to
+ * propagate upwards. Tables are independent of each other.
  */
 public final class DatabaseIndex {
-    private final Map<String, BPlusTreeNode> tableIndexes;
+    /** Default number of keys per node. */
+    public static final int DEFAULT_FANOUT = 128;
+
+    /** Restarts of an operation that spin before it starts yielding the processor. */
+    private static final int SPINS_BEFORE_YIELD = 8;
+
+    private final Map<String, Tree> trees;
+    private final Map<String, KeyType> keyTypes;
     private final int maxKeys;
-    private final int minKeys;
+    private final BufferPool pool;
+
+    /**
+     * One table's tree.
+     */
+    private static final class Tree {
+        private final String filePath;
+        private final KeyType keyType;
+        private final IndexFile source; // file the tree pages in from, or null if built in memory
+        private volatile BPlusTreeNode root;
+        // Writers share it; save takes it exclusively so the file sees one consistent tree. Readers never touch it.
+        private final ReentrantReadWriteLock writers = new ReentrantReadWriteLock();
+
+        Tree(String filePath, BPlusTreeNode root) {
+            this(filePath, root, null);
+        }
+
+        Tree(String filePath, BPlusTreeNode root, IndexFile source) {
+            this.filePath = filePath;
+            this.keyType = root.keyType();
+            this.source = source;
+            this.root = root;
+        }
+    }
+
+    /**
+     * Leaf reached by a descent, with the parent needed to split or unlink it.
+     */
+    private static final class Cursor {
+        private final BPlusTreeNode parent;
+        private final long parentVersion;
+        private final int slot;
+        private final BPlusTreeNode leaf;
+        private final long version;
+
+        Cursor(BPlusTreeNode parent, long parentVersion, int slot, BPlusTreeNode leaf, long version) {
+            this.parent = parent;
+            this.parentVersion = parentVersion;
+            this.slot = slot;
+            this.leaf = leaf;
+            this.version = version;
+        }
+    }
 
     /**
      * Creates a new database index.
      * @param maxKeys maximum keys per node
+     * @param pool buffer pool index files are read through
      */
-    public DatabaseIndex(int maxKeys) {
-        this.tableIndexes = new ConcurrentHashMap<>();
+    public DatabaseIndex(int maxKeys, BufferPool pool) {
+        if (maxKeys < 3) {
+            throw new IllegalArgumentException("maxKeys must be at least 3: " + maxKeys);
+        }
+        this.trees = new ConcurrentHashMap<>();
+        this.keyTypes = new ConcurrentHashMap<>();
         this.maxKeys = maxKeys;
-        this.minKeys = maxKeys / 2;
+        this.pool = pool;
+    }
+
+    /**
+     * Creates a new database index reading index files through a pool of its own.
+     * @param maxKeys maximum keys per node
+     */
+    public DatabaseIndex(int maxKeys) {
+        this(maxKeys, new BufferPool());
     }
 
     /**
      * Creates a new database index with default settings.
      */
     public DatabaseIndex() {
-        this(4); // Small B+ tree for lightweight implementation
+        this(DEFAULT_FANOUT);
+    }
+
+    /**
+     * @return maximum keys per node
+     */
+    public int getMaxKeys() { return maxKeys; }
+
+    /**
+     * Sets the key type of a table's tree when it is next created by an insert.
+     * Trees that are built, installed or loaded keep the key type of their nodes.
+     * @param tableName table name
+     * @param keyType key type for new trees of the table
+     */
+    public void setKeyType(String tableName, KeyType keyType) {
+        keyTypes.put(tableName, keyType);
+    }
+
+    /**
+     * @param tableName table name
+     * @return key type of the table's tree, or of a tree that would be created for it
+     */
+    public KeyType getKeyType(String tableName) {
+        Tree tree = trees.get(tableName);
+        return tree != null ? tree.keyType : keyTypes.getOrDefault(tableName, KeyType.STRING);
     }
 
     /**
@@ -36,35 +142,91 @@ public final class DatabaseIndex {
      * @param tableName table name
      * @param key indexed key
      * @param entry index entry
+     * @throws IllegalArgumentException if the key cannot be represented in the tree's key type
      */
-    public synchronized void insert(String tableName, String key, IndexEntry entry) {
-        BPlusTreeNode root = tableIndexes.get(tableName);
-        if (root == null) {
-            root = new BPlusTreeNode(true);
-            tableIndexes.put(tableName, root);
+    public void insert(String tableName, String key, IndexEntry entry) {
+        Tree tree = trees.computeIfAbsent(tableName, t -> new Tree(entry.getFilePath(),
+                newNode(true, keyTypes.getOrDefault(t, KeyType.STRING))));
+        IndexKey probe = tree.keyType.encode(key);
+        if (probe == null) {
+            throw new IllegalArgumentException("Key '" + key + "' is not a valid " + tree.keyType
+                    + " key for index '" + tableName + "'");
         }
-        
-        BPlusTreeNode newRoot = insertRecursive(root, key, entry);
-        if (newRoot != root) {
-            tableIndexes.put(tableName, newRoot);
+        tree.writers.readLock().lock();
+        try {
+            for (int attempt = 0; ; attempt++) {
+                Cursor cursor = descend(tree, probe, true);
+                if (cursor != null) {
+                    long stamp = cursor.leaf.tryUpgrade(cursor.version);
+                    if (stamp != 0) {
+                        try {
+                            cursor.leaf.addEntry(probe, entry.getRowNumber(), entry.getOffset(), entry.getLength());
+                        } finally {
+                            cursor.leaf.unlockWrite(stamp);
+                        }
+                        return;
+                    }
+                }
+                backOff(attempt);
+            }
+        } finally {
+            tree.writers.readLock().unlock();
         }
     }
 
     /**
-     * Deletes an entry from the index.
+     * Deletes a key and all of its rows from the index.
      * @param tableName table name
      * @param key key to delete
      * @return true if entry was deleted
      */
-    public synchronized boolean delete(String tableName, String key) {
-        BPlusTreeNode root = tableIndexes.get(tableName);
-        if (root == null) return false;
-        
-        boolean deleted = deleteRecursive(root, key);
-        if (root.getKeys().isEmpty() && !root.isLeaf()) {
-            tableIndexes.put(tableName, root.getChildren().get(0));
+    public boolean delete(String tableName, String key) {
+        return remove(tableName, key, -1, true);
+    }
+
+    /**
+     * Deletes one row of a key from the index.
+     * @param tableName table name
+     * @param key key of the row
+     * @param offset locator of the row's record
+     * @return true if the row was indexed and has been deleted
+     */
+    public boolean delete(String tableName, String key, long offset) {
+        return remove(tableName, key, offset, false);
+    }
+
+    private boolean remove(String tableName, String key, long offset, boolean allRows) {
+        Tree tree = trees.get(tableName);
+        if (tree == null) return false;
+        IndexKey probe = tree.keyType.encode(key);
+        if (probe == null) return false;
+
+        tree.writers.readLock().lock();
+        try {
+            for (int attempt = 0; ; attempt++) {
+                Cursor cursor = descend(tree, probe, false);
+                if (cursor != null) {
+                    long stamp = cursor.leaf.tryUpgrade(cursor.version);
+                    if (stamp != 0) {
+                        try {
+                            boolean removed = allRows ? cursor.leaf.removeEntry(probe) : cursor.leaf.removeLocator(probe, offset);
+                            if (!removed) {
+                                return false;
+                            }
+                            if (cursor.leaf.size() == 0 && cursor.parent != null) {
+                                unlinkEmptyLeaf(tree, cursor);
+                            }
+                            return true;
+                        } finally {
+                            cursor.leaf.unlockWrite(stamp);
+                        }
+                    }
+                }
+                backOff(attempt);
+            }
+        } finally {
+            tree.writers.readLock().unlock();
         }
-        return deleted;
     }
 
     /**
@@ -74,12 +236,8 @@ public final class DatabaseIndex {
      * @param newEntry new entry
      * @return true if entry was updated
      */
-    public synchronized boolean update(String tableName, String key, IndexEntry newEntry) {
-        BPlusTreeNode root = tableIndexes.get(tableName);
-        if (root == null) return false;
-        
-        IndexEntry existing = find(root, key);
-        if (existing != null) {
+    public boolean update(String tableName, String key, IndexEntry newEntry) {
+        if (search(tableName, key) != null) {
             delete(tableName, key);
             insert(tableName, key, newEntry);
             return true;
@@ -88,15 +246,72 @@ public final class DatabaseIndex {
     }
 
     /**
-     * Searches for an entry by key.
+     * Searches for an entry by key. Never blocks on writers.
      * @param tableName table name
      * @param key key to search for
-     * @return entry if found, null otherwise
+     * @return entry if found (the first row in file order if several rows share the key), null otherwise
      */
-    public synchronized IndexEntry search(String tableName, String key) {
-        BPlusTreeNode root = tableIndexes.get(tableName);
-        if (root == null) return null;
-        return find(root, key);
+    public IndexEntry search(String tableName, String key) {
+        Tree tree = trees.get(tableName);
+        if (tree == null) return null;
+        IndexKey probe = tree.keyType.encode(key);
+        if (probe == null) return null;
+
+        for (int attempt = 0; ; attempt++) {
+            Cursor cursor = descend(tree, probe, false);
+            if (cursor != null) {
+                BPlusTreeNode leaf = cursor.leaf;
+                IndexEntry entry = null;
+                try {
+                    int i = leaf.find(probe);
+                    if (i >= 0) {
+                        entry = new IndexEntry(tableName, leaf.keyStringAt(i), leaf.rowNumberAt(i), tree.filePath,
+                                leaf.offsetAt(i), leaf.lengthAt(i));
+                    }
+                } catch (RuntimeException e) {
+                    // A torn read is only an error if nothing changed underneath it
+                    if (leaf.validate(cursor.version)) throw e;
+                }
+                if (leaf.validate(cursor.version)) {
+                    return entry;
+                }
+            }
+            backOff(attempt);
+        }
+    }
+
+    /**
+     * Finds every row with a key in one probe. Never blocks on writers.
+     * @param tableName table name
+     * @param key key to search for
+     * @return entries in file order, empty if the key is absent
+     */
+    public List<IndexEntry> searchAll(String tableName, String key) {
+        Tree tree = trees.get(tableName);
+        List<IndexEntry> result = new ArrayList<>();
+        if (tree == null) return result;
+        IndexKey probe = tree.keyType.encode(key);
+        if (probe == null) return result;
+
+        for (int attempt = 0; ; attempt++) {
+            Cursor cursor = descend(tree, probe, false);
+            if (cursor != null) {
+                BPlusTreeNode leaf = cursor.leaf;
+                result.clear();
+                try {
+                    int i = leaf.find(probe);
+                    if (i >= 0) {
+                        addEntries(tableName, tree, leaf, i, result);
+                    }
+                } catch (RuntimeException e) {
+                    if (leaf.validate(cursor.version)) throw e;
+                }
+                if (leaf.validate(cursor.version)) {
+                    return result;
+                }
+            }
+            backOff(attempt);
+        }
     }
 
     /**
@@ -104,203 +319,454 @@ public final class DatabaseIndex {
      * @param tableName table name
      * @return list of all entries
      */
-    public synchronized List<IndexEntry> getAllEntries(String tableName) {
-        BPlusTreeNode root = tableIndexes.get(tableName);
-        if (root == null) return new ArrayList<>();
-        
-        List<IndexEntry> allEntries = new ArrayList<>();
-        collectAllEntries(root, allEntries);
-        return allEntries;
+    public List<IndexEntry> getAllEntries(String tableName) {
+        return rangeSearch(tableName, null, null);
     }
 
     /**
-     * Gets entries in a range.
+     * Gets entries in a range. Descends once to the start key and walks the leaf chain until it
+     * passes the end key.
      * @param tableName table name
-     * @param startKey start key (inclusive)
-     * @param endKey end key (inclusive)
+     * @param startKey start key (inclusive), or null for no lower bound
+     * @param endKey end key (inclusive), or null for no upper bound
      * @return list of entries in range
      */
-    public synchronized List<IndexEntry> rangeSearch(String tableName, String startKey, String endKey) {
-        BPlusTreeNode root = tableIndexes.get(tableName);
-        if (root == null) return new ArrayList<>();
-        
+    public List<IndexEntry> rangeSearch(String tableName, String startKey, String endKey) {
         List<IndexEntry> result = new ArrayList<>();
-        rangeSearchRecursive(root, startKey, endKey, result);
+        rangeIterator(tableName, startKey, endKey).forEachRemaining(result::add);
         return result;
     }
 
+    /**
+     * Streams entries in a range in key order, one leaf at a time, without materializing the range.
+     * Each leaf is copied under its version stamp, so the iterator never blocks writers; entries
+     * inserted or deleted concurrently may or may not be seen.
+     * @param tableName table name
+     * @param startKey start key (inclusive), or null for no lower bound
+     * @param endKey end key (inclusive), or null for no upper bound
+     * @return iterator over the entries in range
+     * @throws IllegalArgumentException if a bound cannot be represented in the tree's key type
+     */
+    public Iterator<IndexEntry> rangeIterator(String tableName, String startKey, String endKey) {
+        Tree tree = trees.get(tableName);
+        if (tree == null) return Collections.emptyIterator();
+        return new RangeIterator(tableName, tree, encodeBound(tree, tableName, startKey), encodeBound(tree, tableName, endKey));
+    }
+
+    private static IndexKey encodeBound(Tree tree, String tableName, String bound) {
+        if (bound == null) return null;
+        IndexKey key = tree.keyType.encode(bound);
+        if (key == null) {
+            throw new IllegalArgumentException("Bound '" + bound + "' is not a valid " + tree.keyType
+                    + " key for index '" + tableName + "'");
+        }
+        return key;
+    }
+
     /**
      * Clears all indexes for a table.
      * @param tableName table name
      */
-    public synchronized void clearTable(String tableName) {
-        tableIndexes.remove(tableName);
+    public void clearTable(String tableName) {
+        release(trees.remove(tableName));
     }
 
     /**
-     * @return number of tables with indexes
+     * Closes the index file a replaced or dropped tree paged in from.
      */
-    public int getTableCount() {
-        return tableIndexes.size();
+    private static void release(Tree tree) {
+        if (tree == null || tree.source == null) return;
+        try {
+            tree.source.close();
+        } catch (IOException e) {
+            // The file was only read; nothing is lost
+        }
     }
 
-    private BPlusTreeNode insertRecursive(BPlusTreeNode node, String key, IndexEntry entry) {
-        if (node.isLeaf()) {
-            node.addEntry(key, entry);
-            if (node.isFull(maxKeys)) {
-                return splitLeaf(node);
+    /**
+     * Builds a tree bottom-up from entries already sorted by key: leaves are filled left to right
+     * and each internal level is built over the one below, without any per-key descents or splits.
+     * Runs of equal keys become one leaf key with a posting list. The tree takes the key type of
+     * {@code sortedKeys}.
+     * @param sortedKeys keys in ascending order, equal keys in file order
+     * @param rowNumbers row numbers matching {@code sortedKeys} position by position
+     * @param offsets record byte offsets matching {@code sortedKeys}
+     * @param lengths record byte lengths matching {@code sortedKeys}
+     * @param count number of entries to use from the arrays
+     * @return root of the new tree
+     */
+    BPlusTreeNode buildTree(KeyColumn sortedKeys, long[] rowNumbers, long[] offsets, int[] lengths, int count) {
+        KeyType keyType = sortedKeys.type();
+        int perNode = maxKeys - 1;
+        List<BPlusTreeNode> level = new ArrayList<>();
+        // Positions in sortedKeys of the first key under each node
+        List<Integer> firstKeys = new ArrayList<>();
+        BPlusTreeNode previous = null;
+        int row = 0;
+        while (row < count) {
+            BPlusTreeNode leaf = newNode(true, keyType);
+            int start = row;
+            // A leaf is full once it has perNode distinct keys; further rows of its last key still join it
+            while (row < count && (leaf.size() < perNode || sortedKeys.compare(row, row - 1) == 0)) {
+                leaf.appendEntry(sortedKeys, row, rowNumbers[row], offsets[row], lengths[row]);
+                row++;
             }
-            return node;
-        } else {
-            int childIndex = findChildIndex(node, key);
-            BPlusTreeNode child = node.getChildren().get(childIndex);
-            BPlusTreeNode newChild = insertRecursive(child, key, entry);
-            
-            if (newChild != child) {
-                // Child was split, need to update parent
-                node.getChildren().set(childIndex, newChild.getChildren().get(0));
-                node.getChildren().add(childIndex + 1, newChild.getChildren().get(1));
-                node.getKeys().add(childIndex, newChild.getKeys().get(0));
-                
-                if (node.isFull(maxKeys)) {
-                    return splitInternal(node);
+            if (previous != null) {
+                previous.initNext(leaf);
+            }
+            previous = leaf;
+            level.add(leaf);
+            firstKeys.add(start);
+        }
+        if (level.isEmpty()) {
+            return newNode(true, keyType);
+        }
+        int fanout = perNode + 1;
+        while (level.size() > 1) {
+            List<BPlusTreeNode> parents = new ArrayList<>();
+            List<Integer> parentFirstKeys = new ArrayList<>();
+            // Spread children evenly so no parent is left with a single child
+            int parentCount = (level.size() + fanout - 1) / fanout;
+            int base = level.size() / parentCount;
+            int extra = level.size() % parentCount;
+            int i = 0;
+            for (int p = 0; p < parentCount; p++) {
+                int end = i + base + (p < extra ? 1 : 0);
+                BPlusTreeNode parent = newNode(false, keyType);
+                for (int c = i; c < end; c++) {
+                    parent.appendChild(sortedKeys, firstKeys.get(c), level.get(c));
                 }
+                parents.add(parent);
+                parentFirstKeys.add(firstKeys.get(i));
+                i = end;
             }
-            return node;
+            level = parents;
+            firstKeys = parentFirstKeys;
+        }
+        return level.get(0);
+    }
+
+    /**
+     * Replaces a table's tree, e.g. with one produced by {@link #buildTree}.
+     * @param tableName table name
+     * @param filePath path of the indexed table file
+     * @param root root of the tree to install
+     */
+    public void install(String tableName, String filePath, BPlusTreeNode root) {
+        release(trees.put(tableName, new Tree(filePath, root)));
+    }
+
+    /**
+     * Writes a table's tree to its index file. Writers to the table wait while it is written; readers do not.
+     * @param tableName table name
+     * @param file index file to write
+     * @param filePath path of the indexed table file
+     * @param storeVersion table store version the tree reflects
+     * @param recordCount number of rows in the table
+     * @throws IOException if the file cannot be written
+     */
+    public void save(String tableName, File file, String filePath,
+                     long storeVersion, long recordCount) throws IOException {
+        Tree tree = trees.get(tableName);
+        if (tree == null) {
+            IndexFile.write(file, newNode(true, getKeyType(tableName)), tableName, filePath, storeVersion, recordCount);
+            return;
+        }
+        tree.writers.writeLock().lock();
+        try {
+            IndexFile.write(file, tree.root, tableName, filePath, storeVersion, recordCount);
+        } finally {
+            tree.writers.writeLock().unlock();
         }
     }
 
-    private boolean deleteRecursive(BPlusTreeNode node, String key) {
-        if (node.isLeaf()) {
-            return node.removeEntry(key);
+    /**
+     * Installs a table's tree from its index file. Nodes are paged in lazily on first access.
+     * @param tableName table name
+     * @param file index file to open
+     * @return opened index file describing the table version it reflects
+     * @throws IOException if the file cannot be read or does not belong to this table
+     */
+    public IndexFile load(String tableName, File file) throws IOException {
+        IndexFile indexFile = IndexFile.open(file, maxKeys + 1, pool);
+        if (!indexFile.getTableName().equals(tableName)) {
+            indexFile.close();
+            throw new IOException("Index file " + file + " belongs to table '" + indexFile.getTableName() + "'");
+        }
+        release(trees.put(tableName, new Tree(indexFile.getFilePath(), indexFile.getRoot(), indexFile)));
+        return indexFile;
+    }
+
+    /**
+     * @return number of tables with indexes
+     */
+    public int getTableCount() {
+        return trees.size();
+    }
+
+    private BPlusTreeNode newNode(boolean leaf, KeyType keyType) {
+        return new BPlusTreeNode(leaf, maxKeys + 1, keyType);
+    }
+
+    /**
+     * Expands the rows of one leaf key into entries.
+     */
+    private void addEntries(String tableName, Tree tree, BPlusTreeNode leaf, int i, List<IndexEntry> out) {
+        String key = leaf.keyStringAt(i);
+        PostingList posting = leaf.postingAt(i);
+        if (posting == null) {
+            out.add(new IndexEntry(tableName, key, leaf.rowNumberAt(i), tree.filePath, leaf.offsetAt(i), leaf.lengthAt(i)));
         } else {
-            int childIndex = findChildIndex(node, key);
-            BPlusTreeNode child = node.getChildren().get(childIndex);
-            boolean deleted = deleteRecursive(child, key);
-            
-            if (deleted && child.isUnderflowed(minKeys)) {
-                // Handle underflow
-                handleUnderflow(node, childIndex);
-            }
-            return deleted;
+            posting.forEach((rowNumber, offset, length) ->
+                    out.add(new IndexEntry(tableName, key, rowNumber, tree.filePath, offset, length)));
         }
     }
 
-    private IndexEntry find(BPlusTreeNode node, String key) {
-        if (node.isLeaf()) {
-            return node.findEntry(key);
+    /**
+     * Waits before an operation restarts: spins for the first attempts, then yields the processor.
+     * A node stays locked while its writer is descheduled, and with more threads than processors
+     * spinning on it only delays that writer further.
+     * @param attempt number of restarts so far
+     */
+    private static void backOff(int attempt) {
+        if (attempt < SPINS_BEFORE_YIELD) {
+            Thread.onSpinWait();
         } else {
-            int childIndex = findChildIndex(node, key);
-            return find(node.getChildren().get(childIndex), key);
+            Thread.yield();
         }
     }
 
-    private int findChildIndex(BPlusTreeNode node, String key) {
-        List<String> keys = node.getKeys();
-        int left = 0, right = keys.size();
-        while (left < right) {
-            int mid = (left + right) / 2;
-            if (keys.get(mid).compareTo(key) <= 0) {
-                left = mid + 1;
-            } else {
-                right = mid;
+    /**
+     * Takes a version stamp for a descent; unlinked nodes force a restart.
+     */
+    private static long readVersion(BPlusTreeNode node) {
+        long version = node.optimisticRead();
+        return node.isObsolete() ? 0 : version;
+    }
+
+    /**
+     * Descends optimistically to the leaf responsible for {@code key}. Each child's version is taken
+     * before its parent is validated, so the path is consistent link by link.
+     * @param splitFull whether full nodes on the path are split first, as inserts need
+     * @return cursor on the leaf, or null if the descent must restart
+     */
+    private Cursor descend(Tree tree, IndexKey key, boolean splitFull) {
+        BPlusTreeNode node = tree.root;
+        long version = readVersion(node);
+        if (version == 0 || node != tree.root) return null;
+
+        BPlusTreeNode parent = null;
+        long parentVersion = 0;
+        int slot = -1;
+        while (true) {
+            if (splitFull && node.size() >= maxKeys - 1) {
+                split(tree, parent, parentVersion, slot, node, version);
+                return null;
+            }
+            if (node.isLeaf()) {
+                return new Cursor(parent, parentVersion, slot, node, version);
             }
+            int childSlot;
+            BPlusTreeNode child;
+            long childVersion;
+            try {
+                childSlot = node.upperBound(key);
+                child = node.childAt(childSlot);
+                childVersion = readVersion(child);
+            } catch (RuntimeException e) {
+                if (node.validate(version)) throw e;
+                return null;
+            }
+            if (childVersion == 0 || !node.validate(version)) return null;
+            parent = node;
+            parentVersion = version;
+            slot = childSlot;
+            node = child;
+            version = childVersion;
         }
-        return left;
     }
 
-    private BPlusTreeNode splitLeaf(BPlusTreeNode leaf) {
-        BPlusTreeNode newLeaf = new BPlusTreeNode(true);
-        int mid = leaf.getKeys().size() / 2;
-        
-        // Move half the entries to new leaf
-        for (int i = mid; i < leaf.getKeys().size(); i++) {
-            newLeaf.addEntry(leaf.getKeys().get(i), leaf.getEntries().get(i));
+    /**
+     * Splits a full node under its parent's and its own write lock. The parent has room because
+     * full inner nodes are split on the way down. Gives up silently if either node changed; the
+     * caller restarts in any case.
+     */
+    private void split(Tree tree, BPlusTreeNode parent, long parentVersion, int slot,
+                       BPlusTreeNode node, long version) {
+        long parentStamp = 0;
+        if (parent != null) {
+            parentStamp = parent.tryUpgrade(parentVersion);
+            if (parentStamp == 0) return;
         }
-        
-        // Remove moved entries from original leaf
-        for (int i = leaf.getKeys().size() - 1; i >= mid; i--) {
-            leaf.getKeys().remove(i);
-            leaf.getEntries().remove(i);
+        long stamp = node.tryUpgrade(version);
+        if (stamp == 0) {
+            if (parent != null) parent.unlockWrite(parentStamp);
+            return;
         }
-        
-        // Update next pointers
-        newLeaf.setNext(leaf.getNext());
-        leaf.setNext(newLeaf);
-        
-        // Create new root
-        BPlusTreeNode newRoot = new BPlusTreeNode(false);
-        newRoot.getKeys().add(newLeaf.getKeys().get(0));
-        newRoot.getChildren().add(leaf);
-        newRoot.getChildren().add(newLeaf);
-        
-        return newRoot;
-    }
-
-    private BPlusTreeNode splitInternal(BPlusTreeNode node) {
-        BPlusTreeNode newNode = new BPlusTreeNode(false);
-        int mid = node.getKeys().size() / 2;
-        String midKey = node.getKeys().get(mid);
-        
-        // Move half the keys and children to new node
-        for (int i = mid + 1; i < node.getKeys().size(); i++) {
-            newNode.getKeys().add(node.getKeys().get(i));
+        try {
+            if (parent == null && node != tree.root) return;
+            IndexKey separator;
+            BPlusTreeNode right;
+            if (node.isLeaf()) {
+                right = node.splitLeaf();
+                separator = right.keyAt(0);
+            } else {
+                IndexKey[] midKey = new IndexKey[1];
+                right = node.splitInternal(midKey);
+                separator = midKey[0];
+            }
+            if (parent != null) {
+                parent.insertChild(slot, separator, right);
+            } else {
+                BPlusTreeNode newRoot = newNode(false, tree.keyType);
+                newRoot.initRoot(node, separator, right);
+                tree.root = newRoot;
+            }
+        } finally {
+            node.unlockWrite(stamp);
+            if (parent != null) parent.unlockWrite(parentStamp);
         }
-        for (int i = mid + 1; i < node.getChildren().size(); i++) {
-            newNode.getChildren().add(node.getChildren().get(i));
+    }
+
+    /**
+     * Removes a write-locked, now empty leaf from its parent and from the leaf chain, collapsing the
+     * root if it is left with a single child. The left sibling under the same parent takes over the
+     * leaf's key range and its link to the next leaf. A leftmost child has no such sibling, so it
+     * absorbs its right sibling's keys instead and the sibling goes. The removed leaf keeps its
+     * keys and link, so a scan standing on it carries on, and is marked obsolete so that writers
+     * holding a stale path restart. Skipped if the leaf is its parent's only child, as inner nodes
+     * are never merged, or if the parent or the sibling is busy; the leaf then stays in place,
+     * empty, for later inserts into its range.
+     */
+    private void unlinkEmptyLeaf(Tree tree, Cursor cursor) {
+        BPlusTreeNode parent = cursor.parent;
+        long parentStamp = parent.tryUpgrade(cursor.parentVersion);
+        if (parentStamp == 0) return;
+        try {
+            if (parent.childCount() <= 1) return;
+            // The parent's lock keeps the siblings from splitting, so they still link to each other
+            BPlusTreeNode left = cursor.slot == 0 ? cursor.leaf : parent.childAt(cursor.slot - 1);
+            BPlusTreeNode right = cursor.slot == 0 ? parent.childAt(1) : cursor.leaf;
+            BPlusTreeNode sibling = cursor.slot == 0 ? right : left;
+            long siblingStamp = sibling.tryUpgrade(sibling.optimisticRead());
+            if (siblingStamp == 0) return;
+            try {
+                if (left.getNext() != right) return;
+                if (cursor.slot == 0) {
+                    left.absorbNext();
+                } else {
+                    left.setNext(right.getNext());
+                }
+                parent.removeChild(cursor.slot == 0 ? 1 : cursor.slot);
+                right.markObsolete();
+            } finally {
+                sibling.unlockWrite(siblingStamp);
+            }
+            if (parent == tree.root && parent.size() == 0) {
+                tree.root = parent.childAt(0);
+                parent.markObsolete();
+            }
+        } finally {
+            parent.unlockWrite(parentStamp);
         }
-        
-        // Remove moved items from original node
-        for (int i = node.getKeys().size() - 1; i >= mid; i--) {
-            node.getKeys().remove(i);
+    }
+
+    /**
+     * Iterator over a key range that copies one leaf at a time. A leaf that changed while it was
+     * being copied is simply copied again: splits only move entries to the right, into leaves the
+     * walk has yet to visit, and unlinked leaves keep their link to the next leaf.
+     */
+    private final class RangeIterator implements Iterator<IndexEntry> {
+        private final String tableName;
+        private final Tree tree;
+        private final IndexKey startKey;
+        private final IndexKey endKey;
+        private final List<IndexEntry> buffer = new ArrayList<>();
+        private int position;
+        private BPlusTreeNode leaf;
+
+        RangeIterator(String tableName, Tree tree, IndexKey startKey, IndexKey endKey) {
+            this.tableName = tableName;
+            this.tree = tree;
+            this.startKey = startKey;
+            this.endKey = endKey;
+            this.leaf = firstLeaf(tree, startKey);
         }
-        for (int i = node.getChildren().size() - 1; i >= mid + 1; i--) {
-            node.getChildren().remove(i);
+
+        @Override
+        public boolean hasNext() {
+            while (position == buffer.size() && leaf != null) {
+                copyLeaf();
+            }
+            return position < buffer.size();
         }
-        
-        // Create new root
-        BPlusTreeNode newRoot = new BPlusTreeNode(false);
-        newRoot.getKeys().add(midKey);
-        newRoot.getChildren().add(node);
-        newRoot.getChildren().add(newNode);
-        
-        return newRoot;
-    }
-
-    private void handleUnderflow(BPlusTreeNode parent, int childIndex) {
-        // Simplified underflow handling - just remove empty nodes
-        BPlusTreeNode child = parent.getChildren().get(childIndex);
-        if (child.getKeys().isEmpty()) {
-            parent.getChildren().remove(childIndex);
-            if (childIndex > 0) {
-                parent.getKeys().remove(childIndex - 1);
+
+        @Override
+        public IndexEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+            return buffer.get(position++);
         }
-    }
 
-    private void collectAllEntries(BPlusTreeNode node, List<IndexEntry> entries) {
-        if (node.isLeaf()) {
-            entries.addAll(node.getAllEntries());
-        } else {
-            for (BPlusTreeNode child : node.getChildren()) {
-                collectAllEntries(child, entries);
+        private void copyLeaf() {
+            buffer.clear();
+            position = 0;
+            long version = leaf.optimisticRead();
+            if (version == 0) {
+                Thread.onSpinWait();
+                return;
+            }
+            BPlusTreeNode next;
+            boolean pastEnd = false;
+            try {
+                int size = leaf.size();
+                int i = startKey == null ? 0 : leaf.lowerBound(startKey);
+                for (; i < size; i++) {
+                    if (endKey != null && leaf.compareKeyAt(i, endKey) > 0) {
+                        pastEnd = true;
+                        break;
+                    }
+                    addEntries(tableName, tree, leaf, i, buffer);
+                }
+                next = leaf.getNext();
+            } catch (RuntimeException e) {
+                if (leaf.validate(version)) throw e;
+                buffer.clear();
+                return;
+            }
+            if (!leaf.validate(version)) {
+                buffer.clear();
+                return;
             }
+            leaf = pastEnd ? null : next;
         }
     }
 
-    private void rangeSearchRecursive(BPlusTreeNode node, String startKey, String endKey, List<IndexEntry> result) {
-        if (node.isLeaf()) {
-            for (int i = 0; i < node.getKeys().size(); i++) {
-                String key = node.getKeys().get(i);
-                if (key.compareTo(startKey) >= 0 && key.compareTo(endKey) <= 0) {
-                    result.add(node.getEntries().get(i));
+    /**
+     * Descends to the leftmost leaf that may hold {@code startKey}. Routing uses the first separator
+     * not less than the key, so duplicates that stayed left of an equal separator are not skipped.
+     * @param startKey lower bound, or null for the leftmost leaf
+     */
+    private BPlusTreeNode firstLeaf(Tree tree, IndexKey startKey) {
+        for (int attempt = 0; ; attempt++) {
+            BPlusTreeNode node = tree.root;
+            long version = readVersion(node);
+            if (version != 0 && node == tree.root) {
+                try {
+                    while (!node.isLeaf()) {
+                        BPlusTreeNode child = node.childAt(startKey == null ? 0 : node.lowerBound(startKey));
+                        long childVersion = readVersion(child);
+                        if (childVersion == 0 || !node.validate(version)) break;
+                        node = child;
+                        version = childVersion;
+                    }
+                } catch (RuntimeException e) {
+                    if (node.validate(version)) throw e;
                 }
+                if (node.isLeaf() && node.validate(version)) return node;
             }
-        } else {
-            for (int i = 0; i < node.getChildren().size(); i++) {
-                BPlusTreeNode child = node.getChildren().get(i);
-                rangeSearchRecursive(child, startKey, endKey, result);
-            }
+            backOff(attempt);
         }
     }
 }
@@ -0,0 +1,73 @@
+package com.lightweightDbms.index;
+
+import java.util.Objects;
+
+/**
+ * Definition of a secondary index created with {@code CREATE INDEX name ON table(column)}.
+ */
+public final class IndexDefinition {
+    private final String name;
+    private final String tableName;
+    private final String column;
+    private final int columnPosition;
+
+    /**
+     * @param name index name, unique within the database
+     * @param tableName indexed table
+     * @param column indexed column name
+     * @param columnPosition zero-based position of the column in the table rows
+     */
+    public IndexDefinition(String name, String tableName, String column, int columnPosition) {
+        this.name = Objects.requireNonNull(name, "name");
+        this.tableName = Objects.requireNonNull(tableName, "tableName");
+        this.column = Objects.requireNonNull(column, "column");
+        if (columnPosition < 0) {
+            throw new IllegalArgumentException("Column position cannot be negative: " + columnPosition);
+        }
+        this.columnPosition = columnPosition;
+    }
+
+    /**
+     * @return index name
+     */
+    public String getName() { return name; }
+
+    /**
+     * @return indexed table
+     */
+    public String getTableName() { return tableName; }
+
+    /**
+     * @return indexed column name
+     */
+    public String getColumn() { return column; }
+
+    /**
+     * @return zero-based position of the indexed column
+     */
+    public int getColumnPosition() { return columnPosition; }
+
+    /**
+     * @return name the index tree is registered under in {@link DatabaseIndex}, e.g. {@code orders.by_customer}
+     */
+    public String getTreeName() { return tableName + "." + name; }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        IndexDefinition that = (IndexDefinition) o;
+        return columnPosition == that.columnPosition && name.equals(that.name)
+                && tableName.equals(that.tableName) && column.equals(that.column);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, tableName, column, columnPosition);
+    }
+
+    @Override
+    public String toString() {
+        return name + " ON " + tableName + "(" + column + ")";
+    }
+}
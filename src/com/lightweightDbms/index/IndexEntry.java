@@ -10,18 +10,35 @@ public final class IndexEntry {
     private final String key;
     private final long rowNumber;
     private final String filePath;
+    private final long offset;
+    private final int length;
 
     /**
      * @param tableName name of the table
      * @param key indexed key value
      * @param rowNumber row number in the table file
      * @param filePath path to the table file
+     * @param offset locator of the record in the table store, or -1 if unknown
+     * @param length record length in bytes, 0 if the locator alone addresses the record, or -1 if unknown
      */
-    public IndexEntry(String tableName, String key, long rowNumber, String filePath) {
+    public IndexEntry(String tableName, String key, long rowNumber, String filePath, long offset, int length) {
         this.tableName = Objects.requireNonNull(tableName, "tableName");
         this.key = Objects.requireNonNull(key, "key");
         this.rowNumber = rowNumber;
         this.filePath = Objects.requireNonNull(filePath, "filePath");
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Creates an entry without a record locator.
+     * @param tableName name of the table
+     * @param key indexed key value
+     * @param rowNumber row number in the table file
+     * @param filePath path to the table file
+     */
+    public IndexEntry(String tableName, String key, long rowNumber, String filePath) {
+        this(tableName, key, rowNumber, filePath, -1, -1);
     }
 
     /**
@@ -44,12 +61,29 @@ public final class IndexEntry {
      */
     public String getFilePath() { return filePath; }
 
+    /**
+     * @return locator of the record in the table store, or -1 if unknown
+     */
+    public long getOffset() { return offset; }
+
+    /**
+     * @return record length in bytes, or -1 if unknown
+     */
+    public int getLength() { return length; }
+
+    /**
+     * @return true if this entry can be fetched directly from the table store
+     */
+    public boolean hasLocator() { return offset >= 0 && length >= 0; }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         IndexEntry that = (IndexEntry) o;
         return rowNumber == that.rowNumber &&
+                offset == that.offset &&
+                length == that.length &&
                 Objects.equals(tableName, that.tableName) &&
                 Objects.equals(key, that.key) &&
                 Objects.equals(filePath, that.filePath);
@@ -57,11 +91,11 @@ public final class IndexEntry {
 
     @Override
     public int hashCode() {
-        return Objects.hash(tableName, key, rowNumber, filePath);
+        return Objects.hash(tableName, key, rowNumber, filePath, offset, length);
     }
 
     @Override
     public String toString() {
-        return "IndexEntry{table='" + tableName + "', key='" + key + "', row=" + rowNumber + ", file='" + filePath + "'}";
+        return "IndexEntry{table='" + tableName + "', key='" + key + "', row=" + rowNumber + ", offset=" + offset + ", length=" + length + ", file='" + filePath + "'}";
     }
 }
@@ -0,0 +1,421 @@
+package com.lightweightDbms.index;
+
+import com.lightweightDbms.storage.BufferPool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Page-structured on-disk image of one table's B+ tree.
+ * <p>
+ * Page 0 is a header. Nodes are packed into the following pages and never straddle a page boundary
+ * unless they are larger than a page; nodes refer to each other by byte address. Opening a file only
+ * reads the header: nodes are read through the {@link BufferPool} the first time a lookup touches
+ * them, so open cost does not grow with the table. The file stays open until {@link #close()}.
+ * <p>
+ * The header records the tree's {@link KeyType} and the version and record count of the table store
+ * the tree was saved against; a tree whose version no longer matches the store is stale. LONG keys are stored as 8 bytes, STRING keys as a length and their UTF-8 bytes.
+ */
+public final class IndexFile implements Closeable {
+    /** Size of one index page in bytes. */
+    public static final int PAGE_SIZE = 4096;
+
+    private static final int MAGIC = 0x4C574958; // "LWIX"
+    private static final int VERSION = 4;
+    private static final byte LEAF = 1;
+    private static final byte INTERNAL = 0;
+
+    private final String tableName;
+    private final String filePath;
+    private final long storeVersion;
+    private final long recordCount;
+    private final BPlusTreeNode root;
+    private final FileChannel channel;
+    private final BufferPool pool;
+    private final int fileId;
+
+    private IndexFile(String tableName, String filePath, long storeVersion, long recordCount, BPlusTreeNode root,
+                      FileChannel channel, BufferPool pool, int fileId) {
+        this.tableName = tableName;
+        this.filePath = filePath;
+        this.storeVersion = storeVersion;
+        this.recordCount = recordCount;
+        this.root = root;
+        this.channel = channel;
+        this.pool = pool;
+        this.fileId = fileId;
+    }
+
+    /**
+     * @return table the index belongs to
+     */
+    public String getTableName() { return tableName; }
+
+    /**
+     * @return path of the indexed table file
+     */
+    public String getFilePath() { return filePath; }
+
+    /**
+     * @return table store version the tree was saved against
+     */
+    public long getStoreVersion() { return storeVersion; }
+
+    /**
+     * @return number of rows covered by the stored tree
+     */
+    public long getRecordCount() { return recordCount; }
+
+    /**
+     * @return root node; its contents are paged in on first access
+     */
+    BPlusTreeNode getRoot() { return root; }
+
+    /**
+     * Opens an index file and returns a handle whose tree is paged in lazily.
+     *
+     * @param file index file
+     * @param capacity key slots to allocate per paged-in node
+     * @param pool buffer pool the nodes are read through
+     * @return opened index; close it once its tree is no longer used
+     * @throws IOException if the file cannot be read or is not a valid index file
+     */
+    public static IndexFile open(File file, int capacity, BufferPool pool) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        int fileId = pool.register(channel);
+        try {
+            long size = channel.size();
+            if (size < PAGE_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid index file size: " + size);
+            }
+            ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+            pool.read(fileId, 0, header.array(), 0, PAGE_SIZE);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != PAGE_SIZE) {
+                throw new IOException("Not a compatible index file: " + file);
+            }
+            int rootAddress = header.getInt(12);
+            int fileLength = header.getInt(16);
+            if (fileLength > size || rootAddress < PAGE_SIZE || rootAddress >= fileLength) {
+                throw new IOException("Truncated index file: " + file);
+            }
+            long storeVersion = header.getLong(20);
+            long recordCount = header.getLong(28);
+            int keyTypeOrdinal = header.getInt(36);
+            if (keyTypeOrdinal < 0 || keyTypeOrdinal >= KeyType.values().length) {
+                throw new IOException("Unknown key type in index file: " + file);
+            }
+            int[] pos = {40};
+            String tableName = readString(header, pos);
+            String filePath = readString(header, pos);
+            PageLoader loader = new PageLoader(pool, fileId, fileLength, capacity, KeyType.values()[keyTypeOrdinal]);
+            return new IndexFile(tableName, filePath, storeVersion, recordCount, loader.node(rootAddress),
+                    channel, pool, fileId);
+        } catch (IOException | RuntimeException e) {
+            pool.discard(fileId);
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Drops the file's pages from the buffer pool and closes it. Nodes not paged in by then can no
+     * longer be loaded.
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        pool.discard(fileId);
+        channel.close();
+    }
+
+    /**
+     * Writes a tree to disk. The file is written to a temporary sibling and moved into place,
+     * so readers never observe a partially written index.
+     *
+     * @param file target index file
+     * @param root root of the tree to write
+     * @param tableName table name
+     * @param filePath path of the indexed table file
+     * @param storeVersion table store version the tree reflects
+     * @param recordCount number of rows the tree covers
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(File file, BPlusTreeNode root, String tableName, String filePath,
+                             long storeVersion, long recordCount) throws IOException {
+        // Assign addresses breadth-first so upper levels cluster at the front of the file
+        List<BPlusTreeNode> order = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        Map<BPlusTreeNode, Integer> addressOf = new IdentityHashMap<>();
+        KeyType keyType = root.keyType();
+        Deque<BPlusTreeNode> queue = new ArrayDeque<>();
+        queue.add(root);
+        long end = PAGE_SIZE;
+        int maxNodeSize = 0;
+        while (!queue.isEmpty()) {
+            BPlusTreeNode node = queue.poll();
+            if (addressOf.containsKey(node)) continue;
+            int size = 1 + 4 + 4 + 4;
+            KeyColumn keys = node.keys();
+            for (int i = 0; i < node.size(); i++) {
+                size += keyType == KeyType.LONG ? 8 : 4 + keys.bytesAt(i).length;
+            }
+            if (node.isLeaf()) {
+                size += node.size() * (8 + 8 + 4 + 4);
+                for (int i = 0; i < node.size(); i++) {
+                    PostingList posting = node.postingAt(i);
+                    if (posting != null) size += posting.byteLength();
+                }
+            } else {
+                size += node.childCount() * 4;
+                for (int i = 0; i < node.childCount(); i++) {
+                    queue.add(node.childAt(i));
+                }
+            }
+            int used = (int) (end % PAGE_SIZE);
+            if (used != 0 && used + size > PAGE_SIZE) {
+                end += PAGE_SIZE - used; // start a fresh page rather than straddle one
+            }
+            if (end + size > Integer.MAX_VALUE) {
+                throw new IOException("Index too large for a single index file");
+            }
+            addressOf.put(node, (int) end);
+            order.add(node);
+            sizes.add(size);
+            maxNodeSize = Math.max(maxNodeSize, size);
+            end += size;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(PAGE_SIZE).putInt(addressOf.get(root)).putInt((int) end);
+            header.putLong(storeVersion).putLong(recordCount).putInt(keyType.ordinal());
+            writeString(header, tableName);
+            writeString(header, filePath);
+            header.position(PAGE_SIZE).flip();
+            writeFully(channel, header, 0);
+
+            // Nodes are laid out in address order, so they are streamed through one reusable buffer
+            ByteBuffer buf = ByteBuffer.allocate(Math.max(1 << 18, maxNodeSize + PAGE_SIZE));
+            long bufStart = PAGE_SIZE;
+            for (int n = 0; n < order.size(); n++) {
+                BPlusTreeNode node = order.get(n);
+                long gap = addressOf.get(node) - (bufStart + buf.position());
+                if (buf.remaining() < gap + sizes.get(n)) {
+                    buf.flip();
+                    bufStart += buf.remaining();
+                    writeFully(channel, buf, bufStart - buf.remaining());
+                    buf.clear();
+                }
+                for (long i = 0; i < gap; i++) {
+                    buf.put((byte) 0);
+                }
+                buf.put(node.isLeaf() ? LEAF : INTERNAL);
+                buf.putInt(node.size());
+                if (node.isLeaf()) {
+                    BPlusTreeNode nextLeaf = node.getNext();
+                    Integer nextAddress = nextLeaf == null ? null : addressOf.get(nextLeaf);
+                    buf.putInt(nextAddress == null ? -1 : nextAddress);
+                    buf.putInt(node.size());
+                } else {
+                    buf.putInt(-1);
+                    buf.putInt(node.childCount());
+                }
+                KeyColumn keys = node.keys();
+                for (int i = 0; i < node.size(); i++) {
+                    if (keyType == KeyType.LONG) {
+                        buf.putLong(keys.longAt(i));
+                    } else {
+                        buf.putInt(keys.bytesAt(i).length).put(keys.bytesAt(i));
+                    }
+                }
+                if (node.isLeaf()) {
+                    for (int i = 0; i < node.size(); i++) {
+                        buf.putLong(node.rowNumberAt(i)).putLong(node.offsetAt(i)).putInt(node.lengthAt(i));
+                        PostingList posting = node.postingAt(i);
+                        if (posting == null) {
+                            buf.putInt(0);
+                        } else {
+                            buf.putInt(posting.byteLength());
+                            posting.copyBytes(buf.array(), buf.arrayOffset() + buf.position());
+                            buf.position(buf.position() + posting.byteLength());
+                        }
+                    }
+                } else {
+                    for (int i = 0; i < node.childCount(); i++) {
+                        buf.putInt(addressOf.get(node.childAt(i)));
+                    }
+                }
+            }
+            buf.flip();
+            writeFully(channel, buf, bufStart);
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    private static void writeString(ByteBuffer buf, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (buf.remaining() < 4 + bytes.length) {
+            throw new IOException("Index header overflow");
+        }
+        buf.putInt(bytes.length).put(bytes);
+    }
+
+    private static String readString(ByteBuffer buf, int[] pos) {
+        int len = buf.getInt(pos[0]);
+        byte[] bytes = new byte[len];
+        buf.get(pos[0] + 4, bytes);
+        pos[0] += 4 + len;
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Pages nodes in through the buffer pool. Each node materializes at most once, so the parent's
+     * child pointer and the previous leaf's next pointer resolve to the same node.
+     */
+    private static final class PageLoader implements BPlusTreeNode.NodeSource {
+        private final BufferPool pool;
+        private final int fileId;
+        private final int fileLength;
+        private final int capacity;
+        private final KeyType keyType;
+        private final Map<Integer, BPlusTreeNode> nodes = new ConcurrentHashMap<>();
+
+        PageLoader(BufferPool pool, int fileId, int fileLength, int capacity, KeyType keyType) {
+            this.pool = pool;
+            this.fileId = fileId;
+            this.fileLength = fileLength;
+            this.capacity = capacity;
+            this.keyType = keyType;
+        }
+
+        BPlusTreeNode node(int address) {
+            return nodes.computeIfAbsent(address, a -> new BPlusTreeNode(this, a));
+        }
+
+        @Override
+        public void load(BPlusTreeNode node, int address) {
+            NodeBytes buffer = new NodeBytes(pool, fileId, fileLength);
+            int[] pos = {address};
+            boolean leaf = buffer.get(pos[0]) == LEAF;
+            int keyCount = buffer.getInt(pos[0] + 1);
+            int nextAddress = buffer.getInt(pos[0] + 5);
+            int valueCount = buffer.getInt(pos[0] + 9);
+            pos[0] += 13;
+            KeyColumn keys = new KeyColumn(keyType, keyCount);
+            for (int i = 0; i < keyCount; i++) {
+                if (keyType == KeyType.LONG) {
+                    keys.set(i, buffer.getLong(pos[0]));
+                    pos[0] += 8;
+                } else {
+                    int len = buffer.getInt(pos[0]);
+                    byte[] key = new byte[len];
+                    buffer.get(pos[0] + 4, key);
+                    keys.set(i, key);
+                    pos[0] += 4 + len;
+                }
+            }
+            node.initialize(leaf, Math.max(capacity, keyCount + 1), keyType);
+            int p = pos[0];
+            if (leaf) {
+                for (int i = 0; i < valueCount; i++) {
+                    int postingBytes = buffer.getInt(p + 20);
+                    PostingList posting = null;
+                    if (postingBytes > 0) {
+                        byte[] encoded = new byte[postingBytes];
+                        buffer.get(p + 24, encoded);
+                        posting = PostingList.fromBytes(encoded, 0, postingBytes);
+                    }
+                    node.appendSlot(keys, i, buffer.getLong(p), buffer.getLong(p + 8), buffer.getInt(p + 16), posting);
+                    p += 24 + postingBytes;
+                }
+                node.initNext(nextAddress >= 0 ? node(nextAddress) : null);
+            } else {
+                for (int i = 0; i < valueCount; i++) {
+                    node.appendChild(keys, i - 1, node(buffer.getInt(p)));
+                    p += 4;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads one node through the buffer pool. Bytes are copied one index page at a time, so decoding
+     * a node that fits in a page pins the pool only once or twice.
+     */
+    private static final class NodeBytes {
+        private final BufferPool pool;
+        private final int fileId;
+        private final int fileLength;
+        private final ByteBuffer window = ByteBuffer.allocate(PAGE_SIZE);
+        private int start;
+        private int end;
+
+        NodeBytes(BufferPool pool, int fileId, int fileLength) {
+            this.pool = pool;
+            this.fileId = fileId;
+            this.fileLength = fileLength;
+        }
+
+        byte get(int pos) { return window.get(at(pos, 1)); }
+
+        int getInt(int pos) { return window.getInt(at(pos, 4)); }
+
+        long getLong(int pos) { return window.getLong(at(pos, 8)); }
+
+        void get(int pos, byte[] target) {
+            if (target.length > PAGE_SIZE) {
+                read(pos, target, target.length);
+            } else {
+                window.get(at(pos, target.length), target);
+            }
+        }
+
+        /**
+         * @return position in the window of {@code length} bytes at file position {@code pos}
+         */
+        private int at(int pos, int length) {
+            if (pos < start || pos + length > end) {
+                int count = Math.min(PAGE_SIZE, fileLength - pos);
+                if (count < length) {
+                    throw new UncheckedIOException(new IOException("Index node extends past the end of the file"));
+                }
+                read(pos, window.array(), count);
+                start = pos;
+                end = pos + count;
+            }
+            return pos - start;
+        }
+
+        private void read(int pos, byte[] target, int length) {
+            try {
+                pool.read(fileId, pos, target, 0, length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.lightweightDbms.index;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoded key used to probe a tree: a primitive long for {@link KeyType#LONG} trees, UTF-8 bytes
+ * for {@link KeyType#STRING} trees. Created once per operation, so comparisons inside nodes run on
+ * primitives.
+ */
+public final class IndexKey {
+    final long number;
+    final byte[] bytes; // null for LONG keys
+
+    private IndexKey(long number, byte[] bytes) {
+        this.number = number;
+        this.bytes = bytes;
+    }
+
+    static IndexKey of(long number) {
+        return new IndexKey(number, null);
+    }
+
+    static IndexKey of(byte[] bytes) {
+        return new IndexKey(0, bytes);
+    }
+
+    /**
+     * @return type of this key
+     */
+    public KeyType getType() { return bytes == null ? KeyType.LONG : KeyType.STRING; }
+
+    /**
+     * @return key value as it appears in a table row
+     */
+    @Override
+    public String toString() {
+        return bytes == null ? Long.toString(number) : new String(bytes, StandardCharsets.UTF_8);
+    }
+}
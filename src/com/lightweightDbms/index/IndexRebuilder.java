@@ -0,0 +1,332 @@
+package com.lightweightDbms.index;
+
+import com.lightweightDbms.storage.TableStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Rebuilds table indexes from table stores in parallel on a {@link ForkJoinPool}.
+ * <p>
+ * Each table gets one task, which splits the store into ranges of scan segments and forks one task
+ * per range. Chunk tasks parse, encode and sort their keys; the table task merges the sorted runs, builds
+ * the tree bottom-up with {@link DatabaseIndex#buildTree} and writes the index file.
+ * <p>
+ * A tree declared {@link KeyType#LONG} whose column holds a value that is not an integer is built
+ * with STRING keys instead, so that every row stays indexed.
+ */
+public final class IndexRebuilder {
+    /** Default number of store segments scanned by one chunk task. */
+    public static final int DEFAULT_CHUNK_SEGMENTS = 512;
+
+    /**
+     * Receives progress while tables are rebuilt.
+     */
+    @FunctionalInterface
+    public interface ProgressListener {
+        /**
+         * @param tableName table that finished
+         * @param rows number of rows indexed for that table
+         * @param tablesDone tables finished so far
+         * @param tablesTotal tables being rebuilt
+         */
+        void onTableRebuilt(String tableName, long rows, int tablesDone, int tablesTotal);
+    }
+
+    /**
+     * Summary of a rebuild run.
+     */
+    public static final class Report {
+        private final Map<String, Long> rowsByTable;
+        private final long rows;
+        private final long elapsedMillis;
+
+        Report(Map<String, Long> rowsByTable, long rows, long elapsedMillis) {
+            this.rowsByTable = Collections.unmodifiableMap(rowsByTable);
+            this.rows = rows;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return rows indexed per rebuilt table
+         */
+        public Map<String, Long> getRowsByTable() { return rowsByTable; }
+
+        /**
+         * @return number of tables rebuilt
+         */
+        public int getTableCount() { return rowsByTable.size(); }
+
+        /**
+         * @return total rows indexed
+         */
+        public long getRows() { return rows; }
+
+        /**
+         * @return wall-clock time of the rebuild
+         */
+        public long getElapsedMillis() { return elapsedMillis; }
+
+        @Override
+        public String toString() {
+            return "Rebuilt " + rowsByTable.size() + " index(es) over " + rows + " row(s) in " + elapsedMillis + " ms.";
+        }
+    }
+
+    private final DatabaseIndex index;
+    private final ForkJoinPool pool;
+    private final int chunkSegments;
+
+    /**
+     * @param index index receiving the rebuilt trees
+     * @param pool pool running table and chunk tasks
+     * @param chunkSegments number of store segments per chunk task
+     */
+    public IndexRebuilder(DatabaseIndex index, ForkJoinPool pool, int chunkSegments) {
+        this.index = index;
+        this.pool = pool;
+        this.chunkSegments = chunkSegments;
+    }
+
+    /**
+     * Creates a rebuilder on the common pool with the default chunk size.
+     * @param index index receiving the rebuilt trees
+     */
+    public IndexRebuilder(DatabaseIndex index) {
+        this(index, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SEGMENTS);
+    }
+
+    /**
+     * Rebuilds, saves and installs the primary (first column) index of every given table.
+     *
+     * @param tables table stores keyed by table name
+     * @param indexFileOf resolves the index file to write for a table
+     * @param listener progress callback (nullable)
+     * @return summary of the run
+     * @throws UncheckedIOException if a table cannot be read or an index file cannot be written
+     */
+    public Report rebuild(Map<String, TableStore> tables, Function<String, File> indexFileOf, ProgressListener listener) {
+        return rebuild(tables, indexFileOf, t -> 0, t -> KeyType.STRING, listener);
+    }
+
+    /**
+     * Rebuilds, saves and installs the given index trees. Rows lacking the key column are not indexed.
+     *
+     * @param tables table stores keyed by tree name (the table name for a primary index)
+     * @param indexFileOf resolves the index file to write for a tree
+     * @param keyColumnOf resolves the zero-based key column of a tree
+     * @param keyTypeOf resolves the declared key type of a tree
+     * @param listener progress callback (nullable)
+     * @return summary of the run
+     * @throws UncheckedIOException if a table cannot be read or an index file cannot be written
+     */
+    public Report rebuild(Map<String, TableStore> tables, Function<String, File> indexFileOf,
+                          ToIntFunction<String> keyColumnOf, Function<String, KeyType> keyTypeOf,
+                          ProgressListener listener) {
+        long started = System.nanoTime();
+        int total = tables.size();
+        AtomicInteger done = new AtomicInteger();
+        List<TableTask> tasks = new ArrayList<>();
+        for (Map.Entry<String, TableStore> table : tables.entrySet()) {
+            tasks.add(new TableTask(table.getKey(), table.getValue(), indexFileOf.apply(table.getKey()),
+                    keyColumnOf.applyAsInt(table.getKey()), keyTypeOf.apply(table.getKey()), total, done, listener));
+        }
+        pool.invoke(new RecursiveTask<Void>() {
+            @Override
+            protected Void compute() {
+                ForkJoinTask.invokeAll(tasks);
+                return null;
+            }
+        });
+        Map<String, Long> rowsByTable = new LinkedHashMap<>();
+        long rows = 0;
+        for (TableTask task : tasks) {
+            long indexed = task.join();
+            rowsByTable.put(task.tableName, indexed);
+            rows += indexed;
+        }
+        return new Report(rowsByTable, rows, (System.nanoTime() - started) / 1_000_000);
+    }
+
+    /**
+     * Rebuilds one table; the result is the number of rows indexed.
+     */
+    private final class TableTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final String tableName;
+        private final TableStore store;
+        private final File indexFile;
+        private final int keyColumn;
+        private final KeyType keyType;
+        private final int total;
+        private final AtomicInteger done;
+        private final ProgressListener listener;
+
+        TableTask(String tableName, TableStore store, File indexFile, int keyColumn, KeyType keyType, int total,
+                  AtomicInteger done, ProgressListener listener) {
+            this.tableName = tableName;
+            this.store = store;
+            this.indexFile = indexFile;
+            this.keyColumn = keyColumn;
+            this.keyType = keyType;
+            this.total = total;
+            this.done = done;
+            this.listener = listener;
+        }
+
+        @Override
+        protected Long compute() {
+            try {
+                // Writers are excluded while indexes rebuild, so the version read here matches the rows scanned
+                long version = store.getVersion();
+                long recordCount = store.getRecordCount();
+                int segments = store.segmentCount();
+                List<ChunkTask> chunks = new ArrayList<>();
+                for (int start = 0; start < segments; start += chunkSegments) {
+                    chunks.add(new ChunkTask(store, start, Math.min(segments, start + chunkSegments), keyColumn, keyType));
+                }
+                ForkJoinTask.invokeAll(chunks);
+                KeyType builtType = keyType;
+                for (ChunkTask chunk : chunks) {
+                    if (chunk.keys.type() != keyType) builtType = chunk.keys.type();
+                }
+                for (ChunkTask chunk : chunks) {
+                    if (chunk.keys.type() != builtType) chunk.encode(builtType);
+                }
+
+                // Merge the sorted runs; ties keep storage order
+                int rowCount = 0;
+                for (ChunkTask chunk : chunks) {
+                    rowCount += chunk.size;
+                }
+                KeyColumn keys = new KeyColumn(builtType, rowCount);
+                long[] locators = new long[rowCount];
+                int merged = 0;
+                String path = store.getFile().getPath();
+                PriorityQueue<int[]> heads = new PriorityQueue<>((a, b) -> {
+                    ChunkTask left = chunks.get(a[0]);
+                    ChunkTask right = chunks.get(b[0]);
+                    int cmp = left.keys.compare(left.order[a[1]], right.keys, right.order[b[1]]);
+                    return cmp != 0 ? cmp : Integer.compare(a[0], b[0]);
+                });
+                for (int i = 0; i < chunks.size(); i++) {
+                    if (chunks.get(i).size > 0) heads.add(new int[]{i, 0});
+                }
+                while (!heads.isEmpty()) {
+                    int[] head = heads.poll();
+                    ChunkTask chunk = chunks.get(head[0]);
+                    int row = chunk.order[head[1]];
+                    chunk.keys.copyTo(row, keys, merged);
+                    locators[merged] = chunk.locators[row];
+                    merged++;
+                    if (++head[1] < chunk.size) heads.add(head);
+                }
+
+                // Entries carry the row locator as both row number and offset; the length is unused
+                BPlusTreeNode root = index.buildTree(keys, locators, locators, new int[merged], merged);
+                IndexFile.write(indexFile, root, tableName, path, version, recordCount);
+                index.install(tableName, path, root);
+                if (listener != null) {
+                    listener.onTableRebuilt(tableName, rowCount, done.incrementAndGet(), total);
+                }
+                return (long) rowCount;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to rebuild index for '" + tableName + "'", e);
+            }
+        }
+    }
+
+    /**
+     * Scans a range of store segments into a run sorted by key. Falls back to STRING keys if a value
+     * cannot be encoded as the declared key type.
+     */
+    private static final class ChunkTask extends RecursiveTask<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final TableStore store;
+        private final int fromSegment;
+        private final int toSegment;
+        private final int keyColumn;
+        private final KeyType keyType;
+        private String[] values = new String[1024];
+        private KeyColumn keys;
+        private long[] locators = new long[1024];
+        private int[] order;
+        private int size;
+
+        ChunkTask(TableStore store, int fromSegment, int toSegment, int keyColumn, KeyType keyType) {
+            this.store = store;
+            this.fromSegment = fromSegment;
+            this.toSegment = toSegment;
+            this.keyColumn = keyColumn;
+            this.keyType = keyType;
+        }
+
+        @Override
+        protected Void compute() {
+            try {
+                store.scan(fromSegment, toSegment, (locator, row) -> {
+                    if (keyColumn >= row.length) return;
+                    if (size == values.length) grow();
+                    values[size] = row[keyColumn];
+                    locators[size] = locator;
+                    size++;
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (!encode(keyType)) {
+                encode(KeyType.STRING);
+            }
+            return null;
+        }
+
+        /**
+         * Encodes the scanned values as keys of a type and sorts the run by them; ties keep storage order.
+         * @return false if a value cannot be represented in the type
+         */
+        boolean encode(KeyType type) {
+            KeyColumn encoded = new KeyColumn(type, size);
+            for (int i = 0; i < size; i++) {
+                if (type == KeyType.STRING) {
+                    encoded.set(i, values[i].getBytes(StandardCharsets.UTF_8));
+                    continue;
+                }
+                try {
+                    encoded.set(i, Long.parseLong(values[i]));
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+            keys = encoded;
+            Integer[] boxed = new Integer[size];
+            for (int i = 0; i < size; i++) boxed[i] = i;
+            Arrays.sort(boxed, (a, b) -> encoded.compare(a, b));
+            order = new int[size];
+            for (int i = 0; i < size; i++) order[i] = boxed[i];
+            return true;
+        }
+
+        private void grow() {
+            int capacity = values.length * 2;
+            values = Arrays.copyOf(values, capacity);
+            locators = Arrays.copyOf(locators, capacity);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.lightweightDbms.index;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Array of keys of one {@link KeyType}, backed by a {@code long[]} or a {@code byte[][]}.
+ * Used for the keys of a node and for sorted key runs during bulk loads; all comparisons and
+ * binary searches run on the primitive representation.
+ */
+final class KeyColumn {
+    private long[] longs;
+    private byte[][] bytes;
+
+    /**
+     * @param type key type
+     * @param capacity number of key slots
+     */
+    KeyColumn(KeyType type, int capacity) {
+        if (type == KeyType.LONG) {
+            longs = new long[capacity];
+        } else {
+            bytes = new byte[capacity][];
+        }
+    }
+
+    /**
+     * @return type of the keys held
+     */
+    KeyType type() { return longs != null ? KeyType.LONG : KeyType.STRING; }
+
+    /**
+     * @return number of key slots
+     */
+    int capacity() { return longs != null ? longs.length : bytes.length; }
+
+    /**
+     * Grows the column, keeping its contents.
+     * @param capacity new number of key slots
+     */
+    void resize(int capacity) {
+        if (longs != null) {
+            longs = Arrays.copyOf(longs, capacity);
+        } else {
+            bytes = Arrays.copyOf(bytes, capacity);
+        }
+    }
+
+    /**
+     * @param i key position
+     * @return key at the position
+     */
+    IndexKey get(int i) {
+        return longs != null ? IndexKey.of(longs[i]) : IndexKey.of(bytes[i]);
+    }
+
+    /**
+     * @param i key position
+     * @return key at the position as it appears in a table row
+     */
+    String stringAt(int i) {
+        return longs != null ? Long.toString(longs[i]) : new String(bytes[i], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param i key position of a LONG column
+     * @return key at the position
+     */
+    long longAt(int i) { return longs[i]; }
+
+    /**
+     * @param i key position of a STRING column
+     * @return encoded key at the position
+     */
+    byte[] bytesAt(int i) { return bytes[i]; }
+
+    void set(int i, IndexKey key) {
+        if (longs != null) {
+            longs[i] = key.number;
+        } else {
+            bytes[i] = key.bytes;
+        }
+    }
+
+    void set(int i, long key) { longs[i] = key; }
+
+    void set(int i, byte[] key) { bytes[i] = key; }
+
+    /**
+     * Copies keys into another column of the same type; the ranges may overlap when both are this column.
+     */
+    void copyTo(int from, KeyColumn target, int to, int count) {
+        if (longs != null) {
+            System.arraycopy(longs, from, target.longs, to, count);
+        } else {
+            System.arraycopy(bytes, from, target.bytes, to, count);
+        }
+    }
+
+    void copyTo(int from, KeyColumn target, int to) {
+        if (longs != null) {
+            target.longs[to] = longs[from];
+        } else {
+            target.bytes[to] = bytes[from];
+        }
+    }
+
+    /**
+     * Drops references held by unused slots so that removed string keys can be collected.
+     */
+    void clear(int from, int to) {
+        if (bytes != null) {
+            Arrays.fill(bytes, from, to, null);
+        }
+    }
+
+    /**
+     * @return negative, zero or positive as the key at {@code i} is less than, equal to or greater than {@code key}
+     */
+    int compare(int i, IndexKey key) {
+        return longs != null ? Long.compare(longs[i], key.number) : Arrays.compareUnsigned(bytes[i], key.bytes);
+    }
+
+    /**
+     * Compares two keys of this column.
+     */
+    int compare(int i, int j) {
+        return longs != null ? Long.compare(longs[i], longs[j]) : Arrays.compareUnsigned(bytes[i], bytes[j]);
+    }
+
+    /**
+     * Compares a key of this column with a key of another column of the same type.
+     */
+    int compare(int i, KeyColumn other, int j) {
+        return longs != null ? Long.compare(longs[i], other.longs[j]) : Arrays.compareUnsigned(bytes[i], other.bytes[j]);
+    }
+
+    /**
+     * @param size number of keys in use
+     * @param key key to look for
+     * @return position of the first key {@code >= key}, or {@code size} if none
+     */
+    int lowerBound(int size, IndexKey key) {
+        int left = 0, right = size;
+        if (longs != null) {
+            long k = key.number;
+            while (left < right) {
+                int mid = (left + right) >>> 1;
+                if (longs[mid] < k) left = mid + 1; else right = mid;
+            }
+        } else {
+            byte[] k = key.bytes;
+            while (left < right) {
+                int mid = (left + right) >>> 1;
+                if (Arrays.compareUnsigned(bytes[mid], k) < 0) left = mid + 1; else right = mid;
+            }
+        }
+        return left;
+    }
+
+    /**
+     * @param size number of keys in use
+     * @param key key to route
+     * @return position of the first key {@code > key}, or {@code size} if none
+     */
+    int upperBound(int size, IndexKey key) {
+        int left = 0, right = size;
+        if (longs != null) {
+            long k = key.number;
+            while (left < right) {
+                int mid = (left + right) >>> 1;
+                if (longs[mid] <= k) left = mid + 1; else right = mid;
+            }
+        } else {
+            byte[] k = key.bytes;
+            while (left < right) {
+                int mid = (left + right) >>> 1;
+                if (Arrays.compareUnsigned(bytes[mid], k) <= 0) left = mid + 1; else right = mid;
+            }
+        }
+        return left;
+    }
+}
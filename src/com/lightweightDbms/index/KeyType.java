@@ -0,0 +1,49 @@
+package com.lightweightDbms.index;
+
+import com.lightweightDbms.storage.ColumnType;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Key representation an index tree is specialized for, derived from the column type declared in
+ * {@code CREATE TABLE} (e.g. {@code id:int}).
+ */
+public enum KeyType {
+    /** Signed 64-bit integers in numeric order, for columns declared int or bigint. */
+    LONG,
+    /** UTF-8 bytes in unsigned byte order, for all other columns. */
+    STRING;
+
+    /**
+     * Resolves the key type of a column from its header definition.
+     * @param definition column definition, {@code name} or {@code name:type}
+     * @return LONG for INT and BIGINT columns, STRING otherwise
+     */
+    public static KeyType forColumn(String definition) {
+        return ColumnType.forColumn(definition).isInteger() ? LONG : STRING;
+    }
+
+    /**
+     * Encodes a column value as a key of this type.
+     * @param value column value
+     * @return encoded key, or null if the value cannot be represented (e.g. a non-integer for LONG)
+     */
+    public IndexKey encode(String value) {
+        if (this == STRING) {
+            return IndexKey.of(value.getBytes(StandardCharsets.UTF_8));
+        }
+        try {
+            return IndexKey.of(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param value column value
+     * @return true if the value can be stored as a key of this type
+     */
+    public boolean accepts(String value) {
+        return encode(value) != null;
+    }
+}
@@ -0,0 +1,208 @@
+package com.lightweightDbms.index;
+
+import java.util.Arrays;
+
+/**
+ * Sorted list of the record locators that share one index key.
+ * <p>
+ * Locators are kept in file order and stored as delta-encoded variable-length longs: per locator
+ * the row number delta (zigzag), the byte offset delta and the record length. Rows appended to a
+ * table have increasing offsets, so adding one is an append of a few bytes.
+ */
+public final class PostingList {
+    private byte[] data;
+    private int byteLength;
+    private int size;
+    private long lastRowNumber;
+    private long lastOffset;
+
+    private PostingList(byte[] data, int byteLength, int size, long lastRowNumber, long lastOffset) {
+        this.data = data;
+        this.byteLength = byteLength;
+        this.size = size;
+        this.lastRowNumber = lastRowNumber;
+        this.lastOffset = lastOffset;
+    }
+
+    /**
+     * Callback receiving decoded locators.
+     */
+    @FunctionalInterface
+    public interface LocatorVisitor {
+        /**
+         * @param rowNumber row number of the record
+         * @param offset byte offset of the record
+         * @param length byte length of the record
+         */
+        void visit(long rowNumber, long offset, int length);
+    }
+
+    /**
+     * Creates a list holding two locators, e.g. when a key gets its first duplicate.
+     * @param rowNumber row number of the first locator
+     * @param offset byte offset of the first locator
+     * @param length byte length of the first locator
+     * @param otherRowNumber row number of the second locator
+     * @param otherOffset byte offset of the second locator
+     * @param otherLength byte length of the second locator
+     * @return new list in file order
+     */
+    static PostingList of(long rowNumber, long offset, int length, long otherRowNumber, long otherOffset, int otherLength) {
+        PostingList list = new PostingList(new byte[32], 0, 0, 0, 0);
+        list.append(rowNumber, offset, length);
+        list.add(otherRowNumber, otherOffset, otherLength);
+        return list;
+    }
+
+    /**
+     * Decodes a list from its serialized form.
+     * @param bytes buffer holding the encoding
+     * @param from start of the encoding
+     * @param length length of the encoding in bytes
+     * @return decoded list
+     */
+    static PostingList fromBytes(byte[] bytes, int from, int length) {
+        PostingList list = new PostingList(Arrays.copyOfRange(bytes, from, from + length), length, 0, 0, 0);
+        list.forEach((rowNumber, offset, len) -> {
+            list.size++;
+            list.lastRowNumber = rowNumber;
+            list.lastOffset = offset;
+        });
+        return list;
+    }
+
+    /**
+     * @return number of locators
+     */
+    public int size() { return size; }
+
+    /**
+     * @return encoded length in bytes
+     */
+    int byteLength() { return byteLength; }
+
+    /**
+     * Copies the encoding into a buffer, e.g. for writing an index file.
+     * @param out destination
+     * @param at start position in the destination
+     */
+    void copyBytes(byte[] out, int at) {
+        System.arraycopy(data, 0, out, at, byteLength);
+    }
+
+    /**
+     * Adds a locator, keeping file order.
+     * @param rowNumber row number of the record
+     * @param offset byte offset of the record
+     * @param length byte length of the record
+     */
+    void add(long rowNumber, long offset, int length) {
+        if (size == 0 || offset >= lastOffset) {
+            append(rowNumber, offset, length);
+            return;
+        }
+        long[][] decoded = decode(1);
+        int n = size;
+        int at = 0;
+        while (at < n && decoded[1][at] <= offset) at++;
+        System.arraycopy(decoded[0], at, decoded[0], at + 1, n - at);
+        System.arraycopy(decoded[1], at, decoded[1], at + 1, n - at);
+        System.arraycopy(decoded[2], at, decoded[2], at + 1, n - at);
+        decoded[0][at] = rowNumber;
+        decoded[1][at] = offset;
+        decoded[2][at] = length;
+        reencode(decoded, n + 1);
+    }
+
+    /**
+     * Removes the locator of a record.
+     * @param offset byte offset of the record
+     * @return true if a locator was removed
+     */
+    boolean remove(long offset) {
+        long[][] decoded = decode(0);
+        int n = size;
+        for (int i = 0; i < n; i++) {
+            if (decoded[1][i] == offset) {
+                System.arraycopy(decoded[0], i + 1, decoded[0], i, n - i - 1);
+                System.arraycopy(decoded[1], i + 1, decoded[1], i, n - i - 1);
+                System.arraycopy(decoded[2], i + 1, decoded[2], i, n - i - 1);
+                reencode(decoded, n - 1);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decodes every locator in file order.
+     * @param visitor receives each locator
+     */
+    public void forEach(LocatorVisitor visitor) {
+        int[] pos = {0};
+        long rowNumber = 0;
+        long offset = 0;
+        while (pos[0] < byteLength) {
+            long rowDelta = readVarLong(pos);
+            rowNumber += (rowDelta >>> 1) ^ -(rowDelta & 1);
+            offset += readVarLong(pos);
+            int length = (int) readVarLong(pos);
+            visitor.visit(rowNumber, offset, length);
+        }
+    }
+
+    private void append(long rowNumber, long offset, int length) {
+        long rowDelta = rowNumber - lastRowNumber;
+        writeVarLong((rowDelta << 1) ^ (rowDelta >> 63));
+        writeVarLong(offset - lastOffset);
+        writeVarLong(length);
+        lastRowNumber = rowNumber;
+        lastOffset = offset;
+        size++;
+    }
+
+    private long[][] decode(int spare) {
+        long[][] decoded = new long[3][size + spare];
+        int[] i = {0};
+        forEach((rowNumber, offset, length) -> {
+            decoded[0][i[0]] = rowNumber;
+            decoded[1][i[0]] = offset;
+            decoded[2][i[0]] = length;
+            i[0]++;
+        });
+        return decoded;
+    }
+
+    private void reencode(long[][] decoded, int count) {
+        byteLength = 0;
+        size = 0;
+        lastRowNumber = 0;
+        lastOffset = 0;
+        for (int i = 0; i < count; i++) {
+            append(decoded[0][i], decoded[1][i], (int) decoded[2][i]);
+        }
+    }
+
+    private void writeVarLong(long value) {
+        if (byteLength + 10 > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, byteLength + 10));
+        }
+        while ((value & ~0x7FL) != 0) {
+            data[byteLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[byteLength++] = (byte) value;
+    }
+
+    private long readVarLong(int[] pos) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,38 @@
+package com.lightweightDbms.sql;
+
+import com.lightweightDbms.db.DatabaseEngine;
+
+import java.util.Objects;
+
+/**
+ * Command to bulk load the rows of a CSV file into a table.
+ */
+public final class CopyDataCommand implements Command {
+    private final String tableName;
+    private final String fileName;
+    private final boolean header;
+
+    /**
+     * @param tableName name of the table
+     * @param fileName path of the CSV file
+     * @param header true if the first line of the file is a header to skip
+     */
+    public CopyDataCommand(String tableName, String fileName, boolean header) {
+        this.tableName = Objects.requireNonNull(tableName, "tableName");
+        this.fileName = Objects.requireNonNull(fileName, "fileName");
+        this.header = header;
+    }
+
+    @Override
+    public String execute(DatabaseEngine engine) {
+        Objects.requireNonNull(engine, "engine");
+        if (engine instanceof com.lightweightDbms.db.InMemoryDatabaseEngine) {
+            com.lightweightDbms.db.InMemoryDatabaseEngine memEngine = (com.lightweightDbms.db.InMemoryDatabaseEngine) engine;
+            if (memEngine.getQuery() == null) {
+                return "No query handler available.";
+            }
+            return memEngine.getQuery().copyData(tableName, fileName, header);
+        }
+        return "Unsupported engine type.";
+    }
+}
@@ -0,0 +1,38 @@
+package com.lightweightDbms.sql;
+
+import com.lightweightDbms.db.DatabaseEngine;
+
+import java.util.Objects;
+
+/**
+ * Command to create a secondary index on one column of a table.
+ */
+public final class CreateIndexCommand implements Command {
+    private final String indexName;
+    private final String tableName;
+    private final String column;
+
+    /**
+     * @param indexName name of the index
+     * @param tableName name of the table
+     * @param column column to index
+     */
+    public CreateIndexCommand(String indexName, String tableName, String column) {
+        this.indexName = Objects.requireNonNull(indexName, "indexName");
+        this.tableName = Objects.requireNonNull(tableName, "tableName");
+        this.column = Objects.requireNonNull(column, "column");
+    }
+
+    @Override
+    public String execute(DatabaseEngine engine) {
+        Objects.requireNonNull(engine, "engine");
+        if (engine instanceof com.lightweightDbms.db.InMemoryDatabaseEngine) {
+            com.lightweightDbms.db.InMemoryDatabaseEngine memEngine = (com.lightweightDbms.db.InMemoryDatabaseEngine) engine;
+            if (memEngine.getQuery() == null) {
+                return "No query handler available.";
+            }
+            return memEngine.getQuery().createIndex(indexName, tableName, column);
+        }
+        return "Unsupported engine type.";
+    }
+}
@@ -11,14 +11,25 @@ import java.util.Objects;
 public final class CreateTableCommand implements Command {
     private final String tableName;
     private final List<String> columns;
+    private final String format;
 
     /**
      * @param tableName name of the table
      * @param columns list of column definitions
      */
     public CreateTableCommand(String tableName, List<String> columns) {
+        this(tableName, columns, null);
+    }
+
+    /**
+     * @param tableName name of the table
+     * @param columns list of column definitions
+     * @param format name of the table format, or null for the configured one
+     */
+    public CreateTableCommand(String tableName, List<String> columns, String format) {
         this.tableName = Objects.requireNonNull(tableName, "tableName");
         this.columns = Objects.requireNonNull(columns, "columns");
+        this.format = format;
     }
 
     @Override
@@ -29,7 +40,7 @@ public final class CreateTableCommand implements Command {
             if (memEngine.getQuery() == null) {
                 return "No query handler available.";
             }
-            return memEngine.getQuery().createTable(tableName, columns);
+            return memEngine.getQuery().createTable(tableName, columns, format);
         }
         return "Unsupported engine type.";
     }
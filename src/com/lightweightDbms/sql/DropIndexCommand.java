@@ -0,0 +1,32 @@
+package com.lightweightDbms.sql;
+
+import com.lightweightDbms.db.DatabaseEngine;
+
+import java.util.Objects;
+
+/**
+ * Command to drop a secondary index.
+ */
+public final class DropIndexCommand implements Command {
+    private final String indexName;
+
+    /**
+     * @param indexName name of the index
+     */
+    public DropIndexCommand(String indexName) {
+        this.indexName = Objects.requireNonNull(indexName, "indexName");
+    }
+
+    @Override
+    public String execute(DatabaseEngine engine) {
+        Objects.requireNonNull(engine, "engine");
+        if (engine instanceof com.lightweightDbms.db.InMemoryDatabaseEngine) {
+            com.lightweightDbms.db.InMemoryDatabaseEngine memEngine = (com.lightweightDbms.db.InMemoryDatabaseEngine) engine;
+            if (memEngine.getQuery() == null) {
+                return "No query handler available.";
+            }
+            return memEngine.getQuery().dropIndex(indexName);
+        }
+        return "Unsupported engine type.";
+    }
+}
@@ -1,33 +1,78 @@
 package com.lightweightDbms.sql;
 
 import com.lightweightDbms.storage.StorageConfig;
-import com.lightweightDbms.storage.CsvUtil;
+import com.lightweightDbms.storage.BlockCodec;
+import com.lightweightDbms.storage.BufferPool;
+import com.lightweightDbms.storage.ColumnType;
+import com.lightweightDbms.storage.CsvTableFormat;
+import com.lightweightDbms.storage.LogRecovery;
+import com.lightweightDbms.storage.TableStore;
+import com.lightweightDbms.storage.WriteAheadLog;
 import com.lightweightDbms.index.DatabaseIndex;
+import com.lightweightDbms.index.IndexDefinition;
 import com.lightweightDbms.index.IndexEntry;
+import com.lightweightDbms.index.IndexFile;
+import com.lightweightDbms.index.IndexRebuilder;
+import com.lightweightDbms.index.KeyType;
 import com.lightweightDbms.transaction.Transaction;
 import com.lightweightDbms.transaction.TransactionManager;
 import com.lightweightDbms.transaction.TransactionOperation;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 /**
- * Handles SQL operations: SHOW, USE, CREATE, DESCRIBE, SELECT, INSERT, DELETE, UPDATE.
+ * Handles SQL operations: SHOW, USE, CREATE, DESCRIBE, SELECT, INSERT, COPY, DELETE, UPDATE.
  * Each operation type has a dedicated method for execution.
- * Maintains consistency between file storage and in-memory index.
+ * Maintains consistency between table storage and in-memory index.
+ * <p>
+ * Every write runs as a transaction of the database's write-ahead log: a statement outside a
+ * transaction on its own, a committed transaction with all its queued operations. A write is
+ * durable once its commit record is forced; table pages reach their files later. A write that fails
+ * part way is rolled back from the before images in the log.
  */
 public final class Query {
+    /** Smallest table, in store segments, that is compacted in the background. */
+    public static final int MIN_COMPACTION_SEGMENTS = 64;
+    /** Rows appended per transaction by COPY; bounds the undo images the log keeps in memory. */
+    public static final int COPY_BATCH_ROWS = 50_000;
+
     private final StorageConfig storage;
+    private final BufferPool bufferPool;
     private final DatabaseIndex index;
+    // Index state is keyed by tree name: the table name for a primary index, table.index for a secondary one
+    private final Set<String> indexedTables;
+    // Table store version each index file was written against
+    private final Map<String, Long> savedVersions;
+    private final Map<String, TableStore> stores;
     private TransactionManager transactionManager;
     private String currentDatabase;
+    // Replaced whole on every change, so lookups take neither I/O nor locks
+    private volatile SchemaCatalog catalog;
+    private final Object catalogLock = new Object();
+    // Read by the checkpointer thread, which runs outside the engine's command lock
+    private volatile WriteAheadLog log;
+    private volatile long checkpointLsn;
+    // Keeps checkpoints apart from recovery and closing, which must not see redo points move
+    private final Object checkpointLock = new Object();
+    private boolean commitsDeferred;
+    private long pendingCommitLsn = -1;
 
     /**
      * @param storage storage configuration
      */
     public Query(StorageConfig storage) {
         this.storage = storage;
-        this.index = new DatabaseIndex();
+        this.bufferPool = new BufferPool(storage.getBufferPoolSize());
+        this.index = new DatabaseIndex(storage.getIndexFanout(), bufferPool);
+        this.indexedTables = ConcurrentHashMap.newKeySet();
+        this.savedVersions = new ConcurrentHashMap<>();
+        this.stores = new ConcurrentHashMap<>();
         this.transactionManager = new TransactionManager();
     }
 
@@ -44,7 +89,18 @@ public final class Query {
      * @param databaseName database name
      */
     public void setCurrentDatabase(String databaseName) {
+        if (currentDatabase != null && !currentDatabase.equals(databaseName)) {
+            close();
+        }
         this.currentDatabase = databaseName;
+        this.catalog = null;
+    }
+
+    /**
+     * @return buffer pool caching table and index pages, with its hit and miss counters
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
     }
 
     /**
@@ -62,41 +118,141 @@ public final class Query {
         if (currentDatabase == null) {
             throw new IllegalStateException("No database selected. Use USE <database>; first.");
         }
-        File dbDir = storage.databaseDir(currentDatabase);
-        if (!dbDir.exists()) return new ArrayList<>();
-        File[] files = dbDir.listFiles((dir, name) -> name.endsWith(".csv"));
-        if (files == null) return new ArrayList<>();
-        List<String> tables = new ArrayList<>();
-        for (File f : files) {
-            String name = f.getName();
-            tables.add(name.substring(0, name.length() - 4)); // remove .csv
+        return catalog().tableNames();
+    }
+
+    /**
+     * @param tableName table name
+     * @return true if the catalog lists the table
+     */
+    private boolean tableExists(String tableName) {
+        return catalog().table(tableName) != null;
+    }
+
+    /**
+     * Returns the open store of a table, opening it on first use. A table that only exists as a
+     * legacy CSV file is imported into the table format first.
+     * @param tableName table name
+     * @return open table store
+     */
+    private TableStore store(String tableName) {
+        TableStore store = stores.get(tableName);
+        if (store != null) {
+            return store;
+        }
+        SchemaCatalog.TableSchema table = catalog().table(tableName);
+        if (table == null) {
+            throw new IllegalArgumentException("Table '" + tableName + "' does not exist.");
+        }
+        synchronized (stores) {
+            store = stores.get(tableName);
+            if (store != null) {
+                return store;
+            }
+            store = openStore(tableName, storage.getTableFormat(table.getFormat()));
+            stores.put(tableName, store);
+            return store;
         }
-        return tables;
     }
 
     /**
-     * Creates a new table with specified columns.
+     * Opens a table in its format. A table that only exists as a legacy CSV file is imported into
+     * the format first.
+     */
+    private TableStore openStore(String tableName, TableStore.Format format) {
+        File file = storage.tableStoreFile(currentDatabase, tableName, format);
+        try {
+            boolean imported = !file.exists();
+            if (imported) {
+                importCsv(storage.tableFile(currentDatabase, tableName), file, format);
+            }
+            TableStore store = format.open(file, bufferPool);
+            store.setLog(log(), tableName);
+            if (format.compresses()) {
+                store.setBlockCodec(storage.getBlockCodec(tableName));
+            }
+            if (imported) {
+                // Starts the table's log history at the import
+                store.flush();
+            }
+            return store;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open table: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Converts a legacy CSV table into the table format. The table is written to a temporary file and
+     * moved into place, so an interrupted import is simply repeated; the CSV file is left as it was.
+     */
+    private void importCsv(File csvFile, File file, TableStore.Format format) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (TableStore imported = format.create(tmp, CsvTableFormat.readHeader(csvFile), bufferPool)) {
+            CsvTableFormat.importRows(csvFile, imported);
+        } catch (IOException | RuntimeException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Creates a new table with specified columns in the configured table format.
      * @param tableName table name
      * @param columns column definitions (name:type pairs)
      * @return success message
      */
     public String createTable(String tableName, List<String> columns) {
+        return createTable(tableName, columns, null);
+    }
+
+    /**
+     * Creates a new table with specified columns.
+     * @param tableName table name
+     * @param columns column definitions (name:type pairs)
+     * @param formatName name of the table format, e.g. {@code LSM}; null for the configured one
+     * @return success message
+     */
+    public String createTable(String tableName, List<String> columns, String formatName) {
         if (currentDatabase == null) {
             throw new IllegalStateException("No database selected. Use USE <database>; first.");
         }
-        File tableFile = storage.tableFile(currentDatabase, tableName);
-        if (tableFile.exists()) {
+        TableStore.Format format = formatName == null ? storage.getTableFormat() : storage.getTableFormat(formatName);
+        for (String column : columns) {
+            // Rejects malformed types such as varchar(x) before any file is created
+            ColumnType.forColumn(column);
+        }
+        if (tableExists(tableName)) {
             throw new IllegalArgumentException("Table '" + tableName + "' already exists.");
         }
+        File file = storage.tableStoreFile(currentDatabase, tableName, format);
         //noinspection ResultOfMethodCallIgnored
-        tableFile.getParentFile().mkdirs();
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(tableFile, false))) {
-            // Write header
-            bw.write(String.join(",", columns));
-            bw.newLine();
+        file.getParentFile().mkdirs();
+        try {
+            TableStore store = format.create(file, columns, bufferPool);
+            store.setLog(log(), tableName);
+            if (format.compresses()) {
+                store.setBlockCodec(storage.getBlockCodec(tableName));
+            }
+            // Starts the table's log history at its creation
+            store.flush();
+            SchemaCatalog.TableSchema table = new SchemaCatalog.TableSchema(tableName, format.name(), store.getColumns(), 0);
+            try {
+                updateCatalog(current -> current.withTable(table));
+            } catch (IOException | RuntimeException e) {
+                store.close();
+                throw e;
+            }
+            stores.put(tableName, store);
         } catch (IOException e) {
             throw new RuntimeException("Failed to create table: " + e.getMessage());
         }
+        BlockCodec codec = storage.getBlockCodec(tableName);
+        if (codec != BlockCodec.NONE && !format.compresses()) {
+            return "Table '" + tableName + "' created successfully. Block codec " + codec + " is not applied: "
+                    + format.name() + " tables are stored uncompressed.";
+        }
         return "Table '" + tableName + "' created successfully.";
     }
 
@@ -109,26 +265,28 @@ public final class Query {
         if (currentDatabase == null) {
             throw new IllegalStateException("No database selected. Use USE <database>; first.");
         }
-        File tableFile = storage.tableFile(currentDatabase, tableName);
-        if (!tableFile.exists()) {
+        SchemaCatalog.TableSchema table = catalog().table(tableName);
+        if (table == null) {
             throw new IllegalArgumentException("Table '" + tableName + "' does not exist.");
         }
-        try (BufferedReader br = new BufferedReader(new FileReader(tableFile))) {
-            String header = br.readLine();
-            if (header == null) return "Empty table.";
-            String[] columns = header.split(",");
-            StringBuilder result = new StringBuilder("Table: ").append(tableName).append("\n");
-            for (int i = 0; i < columns.length; i++) {
-                result.append("Column ").append(i + 1).append(": ").append(columns[i]).append("\n");
-            }
-            return result.toString();
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to describe table: " + e.getMessage());
+        if (table.columnCount() == 0) return "Empty table.";
+        StringBuilder result = new StringBuilder("Table: ").append(tableName).append("\n");
+        for (int i = 0; i < table.columnCount(); i++) {
+            result.append("Column ").append(i + 1).append(": ").append(table.column(i)).append("\n");
         }
+        // Open tables count their rows as they change; the catalog has the count of the last checkpoint
+        TableStore store = stores.get(tableName);
+        result.append("Format: ").append(table.getFormat()).append("\n");
+        result.append("Rows: ").append(store != null ? store.getRecordCount() : table.getRowCount()).append("\n");
+        return result.toString();
     }
 
     /**
      * Selects data from a table with optional WHERE clause.
+     * Equality and range predicates on the key column (first column) or on a column with a secondary
+     * index are answered through the index; all other predicates fall back to a filtered table scan.
+     * Indexes on int and long columns order keys numerically and answer predicates with integer values;
+     * indexes on other columns order keys as strings, so their numeric range predicates also scan.
      * @param tableName table name
      * @param columns columns to select (* for all)
      * @param whereClause optional WHERE condition
@@ -138,40 +296,613 @@ public final class Query {
         if (currentDatabase == null) {
             throw new IllegalStateException("No database selected. Use USE <database>; first.");
         }
-        File tableFile = storage.tableFile(currentDatabase, tableName);
-        if (!tableFile.exists()) {
-            throw new IllegalArgumentException("Table '" + tableName + "' does not exist.");
-        }
-        try (BufferedReader br = new BufferedReader(new FileReader(tableFile))) {
-            String header = br.readLine();
-            if (header == null) return "Empty table.";
-            String[] allColumns = header.split(",");
+        TableStore store = store(tableName);
+        try {
+            String[] allColumns = store.getColumns();
+            if (allColumns.length == 0) return "Empty table.";
+            WhereClause where = where(tableName, allColumns, whereClause);
             List<String> selectedColumns = columns.contains("*") ? Arrays.asList(allColumns) : columns;
+            int[] projection = new int[selectedColumns.size()];
+            for (int i = 0; i < projection.length; i++) {
+                projection[i] = columnIndex(allColumns, selectedColumns.get(i));
+            }
+            int whereIndex = where == null ? -1 : columnIndex(allColumns, where.getColumn());
             StringBuilder result = new StringBuilder();
             // Header
             result.append(String.join(" | ", selectedColumns)).append("\n");
             result.append("-".repeat(selectedColumns.size() * 10)).append("\n");
             // Data rows
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] values = parseCsvLine(line);
-                List<String> selectedValues = new ArrayList<>();
-                for (String col : selectedColumns) {
-                    int index = Arrays.asList(allColumns).indexOf(col);
-                    if (index >= 0 && index < values.length) {
-                        selectedValues.add(values[index]);
-                    } else {
-                        selectedValues.add("NULL");
+            String indexTree = where == null ? null : indexTreeFor(tableName, whereIndex);
+            if (indexTree != null && indexAnswers(indexTree, store, where)) {
+                if (where.isEquality() && whereIndex == 0) {
+                    List<String[]> rows = lookupByKey(tableName, store, where.getValue());
+                    if (rows != null) {
+                        for (String[] row : rows) {
+                            appendRow(result, row, projection);
+                        }
+                        return result.toString();
+                    }
+                } else {
+                    int headerLength = result.length();
+                    if (scanIndexRange(indexTree, tableName, store, where, whereIndex, result, projection)) {
+                        return result.toString();
                     }
+                    result.setLength(headerLength);
                 }
-                result.append(String.join(" | ", selectedValues)).append("\n");
             }
+            // Only the WHERE column is looked at for every row; other values are read for matches only
+            store.scanColumns(whereIndex, where, (locator, record) -> appendRow(result, record, projection));
             return result.toString();
         } catch (IOException e) {
             throw new RuntimeException("Failed to select data: " + e.getMessage());
         }
     }
 
+    private void appendRow(StringBuilder result, String[] values, int[] projection) {
+        List<String> selectedValues = new ArrayList<>(projection.length);
+        for (int index : projection) {
+            if (index >= 0 && index < values.length) {
+                selectedValues.add(values[index]);
+            } else {
+                selectedValues.add("NULL");
+            }
+        }
+        result.append(String.join(" | ", selectedValues)).append("\n");
+    }
+
+    private void appendRow(StringBuilder result, TableStore.RecordView record, int[] projection) {
+        for (int i = 0; i < projection.length; i++) {
+            if (i > 0) result.append(" | ");
+            int index = projection[i];
+            result.append(index >= 0 && index < record.size() ? record.get(index) : "NULL");
+        }
+        result.append("\n");
+    }
+
+    /**
+     * Resolves a key-column equality predicate through the index, fetching every row with the key.
+     * @param tableName table name
+     * @param store table store
+     * @param key key value to look up
+     * @return rows in insertion order, empty if no row has this key, or null if the index turned out
+     *         stale and the table must be scanned
+     */
+    private List<String[]> lookupByKey(String tableName, TableStore store, String key) {
+        ensureIndexed(tableName, store);
+        List<IndexEntry> entries = index.searchAll(tableName, key);
+        List<String[]> rows = new ArrayList<>(entries.size());
+        for (IndexEntry entry : entries) {
+            String[] row = fetchRow(store, entry);
+            if (row == null || row.length == 0 || !sameKey(tableName, row[0], entry.getKey())) {
+                // Stale entry: drop the table index so the next lookup rebuilds it
+                invalidateIndex(tableName);
+                return null;
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Finds the index tree that can answer predicates on a column.
+     * @param tableName table name
+     * @param column zero-based column position
+     * @return tree name, or null if the column is not indexed
+     */
+    private String indexTreeFor(String tableName, int column) {
+        if (column == 0) {
+            return tableName;
+        }
+        for (IndexDefinition def : catalog().forTable(tableName)) {
+            if (def.getColumnPosition() == column) {
+                return def.getTreeName();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decides whether an index tree orders its keys the way a predicate compares values. LONG trees
+     * answer predicates whose values are integers; STRING trees answer only predicates whose values
+     * are not numbers, since numbers are compared numerically: {@code code = 10} matches {@code 010},
+     * which is a different key in the tree.
+     * @param treeName index tree on the predicate column
+     * @param store table store
+     * @param where predicate
+     * @return true if the predicate can be resolved through the tree
+     */
+    private boolean indexAnswers(String treeName, TableStore store, WhereClause where) {
+        if (!where.isEquality() && !where.isRange()) {
+            return false;
+        }
+        ensureIndexed(treeName, store);
+        KeyType keyType = index.getKeyType(treeName);
+        if (keyType == KeyType.STRING) {
+            return where.comparesAsStrings();
+        }
+        String low = where.isEquality() ? where.getValue() : where.getLowerBound();
+        String high = where.isEquality() ? where.getValue() : where.getUpperBound();
+        return (low == null || keyType.accepts(low)) && (high == null || keyType.accepts(high));
+    }
+
+    /**
+     * Compares a row value with an index key the way the tree does, e.g. {@code 007} and {@code 7}
+     * are the same key in a LONG tree.
+     */
+    private boolean sameKey(String treeName, String value, String key) {
+        if (value.equals(key)) {
+            return true;
+        }
+        KeyType keyType = index.getKeyType(treeName);
+        return keyType == KeyType.LONG && keyType.accepts(value) && keyType.accepts(key)
+                && Long.parseLong(value) == Long.parseLong(key);
+    }
+
+    /**
+     * Resolves an equality or range predicate by streaming the matching index range, in key order.
+     * @param treeName index tree on the predicate column
+     * @param tableName table name
+     * @param store table store
+     * @param where equality or range predicate
+     * @param column zero-based position of the predicate column
+     * @param result output receiving the matching rows
+     * @param projection selected column positions
+     * @return true if the range was answered, false if the index turned out stale and the table must be scanned
+     * @throws IOException if a row cannot be read
+     */
+    private boolean scanIndexRange(String treeName, String tableName, TableStore store, WhereClause where, int column,
+                                   StringBuilder result, int[] projection) throws IOException {
+        ensureIndexed(treeName, store);
+        String low = where.isEquality() ? where.getValue() : where.getLowerBound();
+        String high = where.isEquality() ? where.getValue() : where.getUpperBound();
+        Iterator<IndexEntry> entries = index.rangeIterator(treeName, low, high);
+        while (entries.hasNext()) {
+            IndexEntry entry = entries.next();
+            // Bounds are inclusive in the index; strict operators are applied here
+            if (!where.matches(entry.getKey())) {
+                continue;
+            }
+            String[] row = store.read(entry.getOffset());
+            if (row == null || row.length <= column || !sameKey(treeName, row[column], entry.getKey())) {
+                // Stale entry: drop the table index so the next lookup rebuilds it
+                invalidateIndex(tableName);
+                return false;
+            }
+            appendRow(result, row, projection);
+        }
+        return true;
+    }
+
+    /**
+     * Makes an index tree available for lookups, from its index file if valid, otherwise by rebuilding it.
+     * @param treeName table name for the primary index, {@code table.index} for a secondary one
+     * @param store table store
+     */
+    private void ensureIndexed(String treeName, TableStore store) {
+        if (indexedTables.contains(treeName)) {
+            return;
+        }
+        if (!openSavedIndex(treeName, store)) {
+            Map<String, TableStore> tree = new LinkedHashMap<>();
+            tree.put(treeName, store);
+            rebuildIndexes(tree, null);
+        }
+    }
+
+    /**
+     * @return schema catalog of the current database, loaded on first use
+     */
+    private SchemaCatalog catalog() {
+        SchemaCatalog current = catalog;
+        if (current != null) {
+            return current;
+        }
+        synchronized (catalogLock) {
+            if (catalog == null) {
+                try {
+                    SchemaCatalog loaded = SchemaCatalog.load(storage.catalogFile(currentDatabase));
+                    catalog = loaded != null ? loaded : discoverCatalog();
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to load catalog: " + e.getMessage());
+                }
+            }
+            return catalog;
+        }
+    }
+
+    /**
+     * Catalogs a database from before the schema catalog from its table files, importing legacy CSV
+     * tables, and takes over its index definitions. Runs once per database.
+     * @return saved catalog
+     */
+    private SchemaCatalog discoverCatalog() throws IOException {
+        File dbDir = storage.databaseDir(currentDatabase);
+        if (!dbDir.exists()) {
+            return SchemaCatalog.EMPTY;
+        }
+        // A table in several formats is taken in the configured one, as it used to be opened
+        Map<String, TableStore.Format> formats = new LinkedHashMap<>();
+        for (TableStore.Format format : storage.getTableFormats()) {
+            for (String table : tablesWithExtension(dbDir, format.extension())) {
+                formats.putIfAbsent(table, format);
+            }
+        }
+        for (String table : tablesWithExtension(dbDir, ".csv")) {
+            formats.putIfAbsent(table, storage.getTableFormat());
+        }
+        SchemaCatalog discovered = SchemaCatalog.EMPTY;
+        for (Map.Entry<String, TableStore.Format> table : formats.entrySet()) {
+            TableStore store;
+            synchronized (stores) {
+                store = stores.get(table.getKey());
+                if (store == null) {
+                    store = openStore(table.getKey(), table.getValue());
+                    stores.put(table.getKey(), store);
+                }
+            }
+            discovered = discovered.withTable(new SchemaCatalog.TableSchema(table.getKey(), table.getValue().name(),
+                    store.getColumns(), store.getRecordCount()));
+        }
+        File legacyIndexes = storage.indexCatalogFile(currentDatabase);
+        for (IndexDefinition def : SchemaCatalog.loadLegacyIndexes(legacyIndexes)) {
+            discovered = discovered.withIndex(def);
+        }
+        discovered.save(storage.catalogFile(currentDatabase));
+        //noinspection ResultOfMethodCallIgnored
+        legacyIndexes.delete();
+        return discovered;
+    }
+
+    private static List<String> tablesWithExtension(File dbDir, String extension) {
+        List<String> tables = new ArrayList<>();
+        File[] files = dbDir.listFiles((dir, name) -> name.endsWith(extension) && name.length() > extension.length());
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                tables.add(name.substring(0, name.length() - extension.length()));
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Saves a changed catalog and then publishes it. Changes are made one at a time, each to the
+     * catalog the one before published.
+     * @param change derives the new catalog from the current one; returning it unchanged writes nothing
+     * @throws IOException if the catalog cannot be written; the current catalog stays published
+     */
+    private void updateCatalog(UnaryOperator<SchemaCatalog> change) throws IOException {
+        synchronized (catalogLock) {
+            SchemaCatalog current = catalog();
+            SchemaCatalog next = change.apply(current);
+            if (next != current) {
+                next.save(storage.catalogFile(currentDatabase));
+                catalog = next;
+            }
+        }
+    }
+
+    /**
+     * Records the row counts of the open tables in the catalog.
+     * @throws IOException if the catalog cannot be written
+     */
+    private void saveRowCounts() throws IOException {
+        if (catalog == null) {
+            return;
+        }
+        Map<String, Long> counts = new HashMap<>();
+        for (Map.Entry<String, TableStore> table : stores.entrySet()) {
+            counts.put(table.getKey(), table.getValue().getRecordCount());
+        }
+        updateCatalog(current -> current.withRowCounts(counts));
+    }
+
+    private int keyColumn(String treeName) {
+        IndexDefinition def = catalog().forTree(treeName);
+        return def == null ? 0 : def.getColumnPosition();
+    }
+
+    /**
+     * @return key type matching the declared type of a tree's key column, e.g. LONG for {@code id:int}
+     */
+    private KeyType declaredKeyType(String treeName) {
+        SchemaCatalog.TableSchema table = catalog().table(tableOf(treeName));
+        int position = keyColumn(treeName);
+        return table != null && position < table.columnCount() ? KeyType.forColumn(table.column(position)) : KeyType.STRING;
+    }
+
+    private String tableOf(String treeName) {
+        IndexDefinition def = catalog().forTree(treeName);
+        return def == null ? treeName : def.getTableName();
+    }
+
+    /**
+     * Opens the primary index of every table and every secondary index in the current database.
+     * Indexes with a valid index file are mapped and paged in lazily; all others are rebuilt in
+     * parallel from their tables.
+     * @param listener progress callback for rebuilt tables (nullable)
+     * @return summary of the tables that had to be rebuilt
+     */
+    public IndexRebuilder.Report openIndexes(IndexRebuilder.ProgressListener listener) {
+        Map<String, TableStore> missing = new LinkedHashMap<>();
+        for (String tableName : showTables()) {
+            TableStore store = store(tableName);
+            if (!indexedTables.contains(tableName) && !openSavedIndex(tableName, store)) {
+                missing.put(tableName, store);
+            }
+        }
+        for (IndexDefinition def : catalog().indexes()) {
+            String tree = def.getTreeName();
+            if (tableExists(def.getTableName()) && !indexedTables.contains(tree)) {
+                TableStore store = store(def.getTableName());
+                if (!openSavedIndex(tree, store)) {
+                    missing.put(tree, store);
+                }
+            }
+        }
+        return rebuildIndexes(missing, listener);
+    }
+
+    private IndexRebuilder.Report rebuildIndexes(Map<String, TableStore> tables, IndexRebuilder.ProgressListener listener) {
+        IndexRebuilder.Report report;
+        try {
+            report = new IndexRebuilder(index).rebuild(tables, t -> storage.indexFile(currentDatabase, t),
+                    this::keyColumn, this::declaredKeyType, listener);
+        } catch (UncheckedIOException e) {
+            throw new RuntimeException("Failed to build index: " + e.getMessage());
+        }
+        // Writers wait for the rebuild, so each index file matches its store's current version
+        for (String treeName : report.getRowsByTable().keySet()) {
+            savedVersions.put(treeName, tables.get(treeName).getVersion());
+            indexedTables.add(treeName);
+        }
+        return report;
+    }
+
+    /**
+     * Maps a saved index file if it was written against the table's current version. An index file
+     * from before the latest change to the table is stale and is rebuilt instead.
+     * @param treeName table name for the primary index, {@code table.index} for a secondary one
+     * @param store table store
+     * @return true if the index is now usable, false if there is no valid index file
+     */
+    private boolean openSavedIndex(String treeName, TableStore store) {
+        File indexFile = storage.indexFile(currentDatabase, treeName);
+        if (!indexFile.exists()) {
+            return false;
+        }
+        IndexFile saved;
+        try {
+            saved = index.load(treeName, indexFile);
+        } catch (IOException e) {
+            index.clearTable(treeName);
+            return false;
+        }
+        if (!saved.getFilePath().equals(store.getFile().getPath()) || saved.getStoreVersion() != store.getVersion()) {
+            index.clearTable(treeName);
+            return false;
+        }
+        indexedTables.add(treeName);
+        savedVersions.put(treeName, saved.getStoreVersion());
+        return true;
+    }
+
+    /**
+     * Drops a table's primary and secondary indexes in memory and on disk, e.g. when an index turned
+     * out not to match the table. The secondary index definitions are kept; their trees are rebuilt
+     * on next use.
+     * @param tableName table name
+     */
+    private void invalidateIndex(String tableName) {
+        invalidateTree(tableName);
+        for (IndexDefinition def : catalog().forTable(tableName)) {
+            invalidateTree(def.getTreeName());
+        }
+    }
+
+    private void invalidateTree(String treeName) {
+        indexedTables.remove(treeName);
+        savedVersions.remove(treeName);
+        index.clearTable(treeName);
+        //noinspection ResultOfMethodCallIgnored
+        storage.indexFile(currentDatabase, treeName).delete();
+    }
+
+    private void saveIndex(String treeName, TableStore store) {
+        long version = store.getVersion();
+        try {
+            index.save(treeName, storage.indexFile(currentDatabase, treeName), store.getFile().getPath(),
+                    version, store.getRecordCount());
+            savedVersions.put(treeName, version);
+        } catch (IOException e) {
+            // Index stays usable in memory; it will be rebuilt next session
+        }
+    }
+
+    /**
+     * Persists every loaded index whose table changed since the index was last saved.
+     */
+    public void flushIndexes() {
+        if (currentDatabase == null) return;
+        for (String treeName : new ArrayList<>(indexedTables)) {
+            TableStore store = stores.get(tableOf(treeName));
+            if (store != null && !Objects.equals(savedVersions.get(treeName), store.getVersion())) {
+                saveIndex(treeName, store);
+            }
+        }
+    }
+
+    /**
+     * Saves modified indexes and closes every open table. Tables are reopened on next use.
+     */
+    public void close() {
+        synchronized (checkpointLock) {
+            flushIndexes();
+            IOException failure = null;
+            try {
+                saveRowCounts();
+            } catch (IOException e) {
+                failure = e;
+            }
+            for (TableStore store : stores.values()) {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    if (failure == null) failure = e;
+                }
+            }
+            stores.clear();
+            indexedTables.clear();
+            savedVersions.clear();
+            if (log != null) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    if (failure == null) failure = e;
+                }
+                bufferPool.setLog(null);
+                log = null;
+                pendingCommitLsn = -1;
+                checkpointLsn = 0;
+            }
+            if (failure != null) {
+                throw new RuntimeException("Failed to close table: " + failure.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Lists the open tables whose dead space reached the configured compaction threshold. Tables
+     * smaller than {@link #MIN_COMPACTION_SEGMENTS} segments are never worth rewriting.
+     * @return names of the tables to compact
+     */
+    public List<String> tablesToCompact() {
+        List<String> due = new ArrayList<>();
+        if (currentDatabase == null) return due;
+        for (Map.Entry<String, TableStore> table : stores.entrySet()) {
+            TableStore store = table.getValue();
+            if (store.segmentCount() >= MIN_COMPACTION_SEGMENTS
+                    && store.getDeadRatio() >= storage.getCompactionThreshold()) {
+                due.add(table.getKey());
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Rewrites a table without the space left by deleted rows and rebuilds its indexes against the
+     * new file. Must not run concurrently with other operations on the table.
+     * @param tableName table name
+     * @return summary message
+     */
+    public String compactTable(String tableName) {
+        if (currentDatabase == null) {
+            throw new IllegalStateException("No database selected. Use USE <database>; first.");
+        }
+        TableStore store = store(tableName);
+        int before = store.segmentCount();
+        try {
+            store.compact();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to compact table: " + e.getMessage());
+        }
+        // Locators changed, so every index of the table is rebuilt together with the file
+        Map<String, TableStore> trees = new LinkedHashMap<>();
+        for (String tree : treesOf(tableName)) {
+            invalidateTree(tree);
+            trees.put(tree, store);
+        }
+        rebuildIndexes(trees, null);
+        return "Table '" + tableName + "' compacted from " + before + " to " + store.segmentCount() + " segment(s).";
+    }
+
+    /**
+     * Creates a secondary index on one column and builds it from the table.
+     * @param indexName index name, unique within the database
+     * @param tableName table name
+     * @param column column to index
+     * @return success message
+     */
+    public String createIndex(String indexName, String tableName, String column) {
+        if (currentDatabase == null) {
+            throw new IllegalStateException("No database selected. Use USE <database>; first.");
+        }
+        TableStore store = store(tableName);
+        if (catalog().index(indexName) != null) {
+            throw new IllegalArgumentException("Index '" + indexName + "' already exists.");
+        }
+        String[] columns = catalog().table(tableName).getColumns();
+        int position = columnIndex(columns, column);
+        if (position < 0) {
+            throw new IllegalArgumentException("Unknown column '" + column + "' in table '" + tableName + "'.");
+        }
+        IndexDefinition def = new IndexDefinition(indexName, tableName, columnName(columns[position]), position);
+        try {
+            updateCatalog(current -> current.withIndex(def));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create index: " + e.getMessage());
+        }
+        Map<String, TableStore> tree = new LinkedHashMap<>();
+        tree.put(def.getTreeName(), store);
+        IndexRebuilder.Report report = rebuildIndexes(tree, null);
+        return "Index '" + indexName + "' created on " + tableName + "(" + def.getColumn() + ") over "
+                + report.getRows() + " row(s).";
+    }
+
+    /**
+     * Drops a secondary index and its index file.
+     * @param indexName index name
+     * @return success message
+     */
+    public String dropIndex(String indexName) {
+        if (currentDatabase == null) {
+            throw new IllegalStateException("No database selected. Use USE <database>; first.");
+        }
+        IndexDefinition def = catalog().index(indexName);
+        if (def == null) {
+            throw new IllegalArgumentException("Index '" + indexName + "' does not exist.");
+        }
+        try {
+            updateCatalog(current -> current.withoutIndex(indexName));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to drop index: " + e.getMessage());
+        }
+        invalidateTree(def.getTreeName());
+        return "Index '" + indexName + "' dropped.";
+    }
+
+    /**
+     * Fetches the row an index entry points to.
+     * @param store table store
+     * @param entry index entry carrying the record locator
+     * @return row, or null if the entry has no locator or no live row has it
+     */
+    private String[] fetchRow(TableStore store, IndexEntry entry) {
+        if (!entry.hasLocator()) {
+            return null;
+        }
+        try {
+            return store.read(entry.getOffset());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private int columnIndex(String[] headerColumns, String column) {
+        String name = column.trim();
+        for (int i = 0; i < headerColumns.length; i++) {
+            if (columnName(headerColumns[i]).equals(name) || headerColumns[i].trim().equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String columnName(String definition) {
+        int colon = definition.indexOf(':');
+        return (colon >= 0 ? definition.substring(0, colon) : definition).trim();
+    }
+
     /**
      * Inserts data into a table.
      * @param tableName table name
@@ -182,28 +913,27 @@ public final class Query {
         if (currentDatabase == null) {
             throw new IllegalStateException("No database selected. Use USE <database>; first.");
         }
-        File tableFile = storage.tableFile(currentDatabase, tableName);
-        if (!tableFile.exists()) {
+        if (!tableExists(tableName)) {
             throw new IllegalArgumentException("Table '" + tableName + "' does not exist.");
         }
         
         // Check if we're in a transaction
         Transaction currentTxn = transactionManager.getCurrentTransaction();
         if (currentTxn != null && currentTxn.isActive()) {
-            // Add operation to transaction (temporary storage)
+            // Add operation to transaction (temporary storage); values of the wrong type fail here, not at commit
             TransactionOperation operation = new TransactionOperation(
                 TransactionOperation.OperationType.INSERT, 
                 tableName, 
                 null, 
-                values, 
+                Arrays.asList(typedRow(tableName, values)), 
                 null
             );
             currentTxn.addOperation(operation);
             return "1 row queued for insert into '" + tableName + "' (transaction: " + currentTxn.getTransactionId() + ").";
         }
         
-        // No transaction - apply immediately
-        return insertDataImmediate(tableName, values);
+        // No transaction - apply immediately, as a transaction of its own in the log
+        return logged(() -> insertDataImmediate(tableName, values));
     }
 
     /**
@@ -213,26 +943,272 @@ public final class Query {
      * @return success message
      */
     private String insertDataImmediate(String tableName, List<String> values) {
-        File tableFile = storage.tableFile(currentDatabase, tableName);
-        
-        // Count existing rows to determine row number
-        long rowNumber = countRows(tableFile);
-        
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(tableFile, true))) {
-            bw.write(String.join(",", values));
-            bw.newLine();
+        TableStore store = store(tableName);
+        String[] row = typedRow(tableName, values);
+        long locator;
+        try {
+            locator = store.insert(row);
         } catch (IOException e) {
             throw new RuntimeException("Failed to insert data: " + e.getMessage());
         }
-        
-        // Update index with new entry (using first value as key)
-        String key = values.isEmpty() ? "" : values.get(0);
-        IndexEntry entry = new IndexEntry(tableName, key, rowNumber, tableFile.getPath());
-        index.insert(tableName, key, entry);
+        // Indexes not loaded yet are rebuilt when next opened, since the table version changed
+        addToIndexes(tableName, store, row, locator);
         
         return "1 row inserted into '" + tableName + "'.";
     }
 
+    /**
+     * Bulk loads the rows of a CSV file into a table. Rows are checked against the column types and
+     * appended with {@link TableStore#load} in transactions of {@link #COPY_BATCH_ROWS} rows. The
+     * table's indexes are not maintained row by row; they are rebuilt from sorted runs once all
+     * rows are in.
+     * @param tableName table name
+     * @param fileName path of the CSV file
+     * @param header true to skip the first line of the file
+     * @return number of rows loaded and the load rate
+     * @throws IllegalArgumentException if a row does not fit the table; the batches committed
+     *         before it stay loaded
+     */
+    public String copyData(String tableName, String fileName, boolean header) {
+        if (currentDatabase == null) {
+            throw new IllegalStateException("No database selected. Use USE <database>; first.");
+        }
+        SchemaCatalog.TableSchema table = table(tableName);
+        Transaction currentTxn = transactionManager.getCurrentTransaction();
+        if (currentTxn != null && currentTxn.isActive()) {
+            throw new IllegalStateException("COPY cannot run inside a transaction.");
+        }
+        File file = new File(fileName);
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("File '" + fileName + "' does not exist.");
+        }
+        TableStore store = store(tableName);
+        long started = System.nanoTime();
+        long[] loaded = {0};
+        // Trees of a failed load stay dropped and are rebuilt on next use
+        invalidateIndex(tableName);
+        try (CsvTableFormat.RowReader rows = CsvTableFormat.openRows(file, header)) {
+            while (rows.hasNext()) {
+                Iterator<String[]> batch = copyBatch(table, rows);
+                logged(() -> {
+                    try {
+                        loaded[0] += store.load(batch);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return null;
+                });
+            }
+        } catch (IOException | UncheckedIOException e) {
+            String cause = e instanceof UncheckedIOException ? e.getCause().getMessage() : e.getMessage();
+            throw new RuntimeException("Failed to copy data: " + cause + keptRows(loaded[0]));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(e.getMessage() + keptRows(loaded[0]));
+        }
+        Map<String, TableStore> trees = new LinkedHashMap<>();
+        for (String tree : treesOf(tableName)) {
+            trees.put(tree, store);
+        }
+        IndexRebuilder.Report report = rebuildIndexes(trees, null);
+        long elapsedNanos = Math.max(1, System.nanoTime() - started);
+        return loaded[0] + " row(s) copied into '" + tableName + "' in " + elapsedNanos / 1_000_000 + " ms ("
+                + loaded[0] * 1_000_000_000L / elapsedNanos + " rows/s), including " + report.getElapsedMillis()
+                + " ms to rebuild " + report.getTableCount() + " index(es).";
+    }
+
+    private static String keptRows(long loaded) {
+        return loaded == 0 ? "" : " (" + loaded + " row(s) of earlier batches stay loaded)";
+    }
+
+    /**
+     * @return the next {@link #COPY_BATCH_ROWS} rows of a COPY, each checked against the table
+     * @throws IllegalArgumentException from {@code next()} for a row that does not fit the table,
+     *         naming its line
+     */
+    private Iterator<String[]> copyBatch(SchemaCatalog.TableSchema table, CsvTableFormat.RowReader rows) {
+        return new Iterator<String[]>() {
+            private int remaining = COPY_BATCH_ROWS;
+
+            @Override
+            public boolean hasNext() { return remaining > 0 && rows.hasNext(); }
+
+            @Override
+            public String[] next() {
+                String[] row = rows.next();
+                remaining--;
+                try {
+                    return typedRow(table, row);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Line " + rows.getLineNumber() + ": " + e.getMessage());
+                }
+            }
+        };
+    }
+
+    /**
+     * Checks values against the declared columns of a table and their types.
+     * @param tableName table name
+     * @param values row values in column order
+     * @return values in the canonical text of their column types, e.g. {@code 7} for {@code 007} in an int column
+     * @throws IllegalArgumentException if there is not one value per column or a value is not of its column's type
+     */
+    private String[] typedRow(String tableName, List<String> values) {
+        return typedRow(table(tableName), values.toArray(new String[0]));
+    }
+
+    private String[] typedRow(SchemaCatalog.TableSchema table, String[] row) {
+        if (row.length != table.columnCount()) {
+            throw new IllegalArgumentException("Expected " + table.columnCount() + " value(s), found " + row.length + ".");
+        }
+        for (int i = 0; i < row.length; i++) {
+            row[i] = typedValue(table, i, row[i]);
+        }
+        return row;
+    }
+
+    /**
+     * Checks the new values of an UPDATE against the declared types of the columns they set. Values
+     * for columns the table does not have are kept as they are; the update skips them.
+     * @return values in the canonical text of their column types
+     * @throws IllegalArgumentException if a value is not of its column's type
+     */
+    private List<String> typedUpdate(String tableName, List<String> columns, List<String> values) {
+        SchemaCatalog.TableSchema schema = table(tableName);
+        String[] headerColumns = store(tableName).getColumns();
+        List<String> typed = new ArrayList<>(values);
+        for (int j = 0; j < columns.size() && j < values.size(); j++) {
+            int k = columnIndex(headerColumns, columns.get(j));
+            if (k >= 0 && k < schema.columnCount()) {
+                typed.set(j, typedValue(schema, k, values.get(j)));
+            }
+        }
+        return typed;
+    }
+
+    private String typedValue(SchemaCatalog.TableSchema table, int column, String value) {
+        try {
+            return table.type(column).normalize(value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Column '" + columnName(table.column(column)) + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parses a WHERE condition against a table; SELECT, UPDATE and DELETE all apply conditions this way.
+     * @param tableName table name
+     * @param columns column definitions of the table
+     * @param whereClause raw condition, null or blank for none
+     * @return clause with its values in the canonical text of the column's type, or null if there is no condition
+     * @throws IllegalArgumentException if the condition is malformed or names an unknown column
+     */
+    private WhereClause where(String tableName, String[] columns, String whereClause) {
+        WhereClause where = WhereClause.parse(whereClause);
+        if (where == null) {
+            return null;
+        }
+        int column = columnIndex(columns, where.getColumn());
+        if (column < 0) {
+            throw new IllegalArgumentException("Unknown column '" + where.getColumn() + "' in WHERE clause.");
+        }
+        SchemaCatalog.TableSchema table = table(tableName);
+        return column < table.columnCount() ? where.forType(table.type(column)) : where;
+    }
+
+    /**
+     * @return schema of a table
+     * @throws IllegalArgumentException if the catalog does not list the table
+     */
+    private SchemaCatalog.TableSchema table(String tableName) {
+        SchemaCatalog.TableSchema table = catalog().table(tableName);
+        if (table == null) {
+            throw new IllegalArgumentException("Table '" + tableName + "' does not exist.");
+        }
+        return table;
+    }
+
+    /**
+     * @return primary and secondary index trees of a table
+     */
+    private List<String> treesOf(String tableName) {
+        List<String> trees = new ArrayList<>();
+        trees.add(tableName);
+        for (IndexDefinition def : catalog().forTable(tableName)) {
+            trees.add(def.getTreeName());
+        }
+        return trees;
+    }
+
+    /**
+     * Adds a stored row to every loaded index tree of its table.
+     */
+    private void addToIndexes(String tableName, TableStore store, String[] row, long locator) {
+        String path = store.getFile().getPath();
+        for (String tree : treesOf(tableName)) {
+            int column = keyColumn(tree);
+            if (!indexedTables.contains(tree) || column >= row.length) {
+                continue;
+            }
+            indexRow(tree, row[column], new IndexEntry(tree, row[column], locator, path, locator, 0));
+        }
+    }
+
+    /**
+     * Removes a row from every loaded index tree of its table. A tree missing the row is dropped
+     * and rebuilt on next use.
+     */
+    private void removeFromIndexes(String tableName, String[] row, long locator) {
+        for (String tree : treesOf(tableName)) {
+            int column = keyColumn(tree);
+            if (!indexedTables.contains(tree) || column >= row.length) {
+                continue;
+            }
+            if (!index.delete(tree, row[column], locator)) {
+                invalidateTree(tree);
+            }
+        }
+    }
+
+    /**
+     * Moves a replaced row to its new key and locator in the loaded index trees of its table, leaving
+     * alone the trees whose key and locator are both unchanged.
+     */
+    private void updateIndexes(String tableName, TableStore store, String[] oldRow, long oldLocator,
+                               String[] newRow, long newLocator) {
+        String path = store.getFile().getPath();
+        for (String tree : treesOf(tableName)) {
+            int column = keyColumn(tree);
+            if (!indexedTables.contains(tree)) {
+                continue;
+            }
+            String oldKey = column < oldRow.length ? oldRow[column] : null;
+            String newKey = column < newRow.length ? newRow[column] : null;
+            if (oldLocator == newLocator && Objects.equals(oldKey, newKey)) {
+                continue;
+            }
+            if (oldKey != null && !index.delete(tree, oldKey, oldLocator)) {
+                invalidateTree(tree);
+                continue;
+            }
+            if (newKey != null) {
+                indexRow(tree, newKey, new IndexEntry(tree, newKey, newLocator, path, newLocator, 0));
+            }
+        }
+    }
+
+    /**
+     * Adds a row to a loaded index tree. A value its key type cannot hold (e.g. text in an int
+     * column) drops the tree instead; it is rebuilt with string keys on next use.
+     * @return true if the row was indexed
+     */
+    private boolean indexRow(String treeName, String key, IndexEntry entry) {
+        if (!index.getKeyType(treeName).accepts(key)) {
+            invalidateTree(treeName);
+            return false;
+        }
+        index.insert(treeName, key, entry);
+        return true;
+    }
+
     /**
      * Deletes data from a table.
      * @param tableName table name
@@ -243,8 +1219,7 @@ public final class Query {
         if (currentDatabase == null) {
             throw new IllegalStateException("No database selected. Use USE <database>; first.");
         }
-        File tableFile = storage.tableFile(currentDatabase, tableName);
-        if (!tableFile.exists()) {
+        if (!tableExists(tableName)) {
             throw new IllegalArgumentException("Table '" + tableName + "' does not exist.");
         }
         
@@ -263,8 +1238,8 @@ public final class Query {
             return "Delete operation queued for '" + tableName + "' (transaction: " + currentTxn.getTransactionId() + ").";
         }
         
-        // No transaction - apply immediately
-        return deleteDataImmediate(tableName, whereClause);
+        // No transaction - apply immediately, as a transaction of its own in the log
+        return logged(() -> deleteDataImmediate(tableName, whereClause));
     }
 
     /**
@@ -274,70 +1249,81 @@ public final class Query {
      * @return success message
      */
     private String deleteDataImmediate(String tableName, String whereClause) {
-        File tableFile = storage.tableFile(currentDatabase, tableName);
-        
-        // Read all lines
-        List<String> lines = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(tableFile))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                lines.add(line);
+        TableStore store = store(tableName);
+        WhereClause where = where(tableName, store.getColumns(), whereClause);
+        int whereColumn = where == null ? -1 : columnIndex(store.getColumns(), where.getColumn());
+
+        // Collect first, since the table must not change under a scan
+        List<Long> locators = new ArrayList<>();
+        List<String[]> rowsToDelete = new ArrayList<>();
+        try {
+            collectMatching(tableName, store, where, whereColumn, locators, rowsToDelete);
+            // Deleting only frees each row's slot; the compactor reclaims the space once enough is dead
+            for (int i = 0; i < locators.size(); i++) {
+                store.delete(locators.get(i));
+                removeFromIndexes(tableName, rowsToDelete.get(i), locators.get(i));
             }
         } catch (IOException e) {
-            throw new RuntimeException("Failed to read table: " + e.getMessage());
+            throw new RuntimeException("Failed to update table: " + e.getMessage());
         }
         
-        if (lines.isEmpty()) {
-            return "No rows to delete.";
+        return rowsToDelete.size() + " row(s) deleted from '" + tableName + "'.";
+    }
+
+    /**
+     * Collects the rows matching a WHERE condition, through the index on its column when one answers
+     * the condition, otherwise by scanning the table.
+     * @param where condition, null to collect every row
+     * @param column zero-based position of the condition's column
+     * @param locators receives the locator of each matching row
+     * @param rows receives each matching row
+     * @throws IOException if a row cannot be read
+     */
+    private void collectMatching(String tableName, TableStore store, WhereClause where, int column, List<Long> locators,
+                                 List<String[]> rows) throws IOException {
+        if (where != null && collectByIndex(tableName, store, where, column, locators, rows)) {
+            return;
         }
-        
-        String header = lines.get(0);
-        List<String> rowsToDelete = new ArrayList<>();
-        
-        // Simple WHERE clause matching (exact match on first column)
-        if (whereClause != null && !whereClause.isEmpty()) {
-            String[] parts = whereClause.split("=", 2);
-            if (parts.length == 2) {
-                String column = parts[0].trim();
-                String value = parts[1].trim().replace("'", "");
-                
-                // Find matching rows
-                for (int i = 1; i < lines.size(); i++) {
-                    String[] values = parseCsvLine(lines.get(i));
-                    if (values.length > 0 && values[0].equals(value)) {
-                        rowsToDelete.add(lines.get(i));
-                    }
-                }
-            }
-        } else {
-            // Delete all rows (keep header)
-            for (int i = 1; i < lines.size(); i++) {
-                rowsToDelete.add(lines.get(i));
+        store.scan((locator, values) -> {
+            if (where == null || (column < values.length && where.matches(values[column]))) {
+                locators.add(locator);
+                rows.add(values);
             }
+        });
+    }
+
+    /**
+     * Collects the rows matching an equality or range condition through the index on its column.
+     * @return true if collected, false if the column has no index answering the condition and the
+     *         table must be scanned
+     */
+    private boolean collectByIndex(String tableName, TableStore store, WhereClause where, int column,
+                                   List<Long> locators, List<String[]> rows) throws IOException {
+        String tree = indexTreeFor(tableName, column);
+        if (tree == null || !indexAnswers(tree, store, where)) {
+            return false;
         }
-        
-        // Remove rows from lines list
-        lines.removeAll(rowsToDelete);
-        
-        // Write back to file
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(tableFile, false))) {
-            for (String line : lines) {
-                bw.write(line);
-                bw.newLine();
+        String low = where.isEquality() ? where.getValue() : where.getLowerBound();
+        String high = where.isEquality() ? where.getValue() : where.getUpperBound();
+        Iterator<IndexEntry> entries = index.rangeIterator(tree, low, high);
+        while (entries.hasNext()) {
+            IndexEntry entry = entries.next();
+            // Bounds are inclusive in the index; strict operators are applied here
+            if (!where.matches(entry.getKey())) {
+                continue;
             }
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to update table: " + e.getMessage());
-        }
-        
-        // Update index - remove deleted entries
-        for (String deletedRow : rowsToDelete) {
-            String[] values = parseCsvLine(deletedRow);
-            if (values.length > 0) {
-                index.delete(tableName, values[0]);
+            String[] row = fetchRow(store, entry);
+            if (row == null || row.length <= column || !sameKey(tree, row[column], entry.getKey())) {
+                // Stale entry: drop the table index so the next lookup rebuilds it
+                invalidateIndex(tableName);
+                locators.clear();
+                rows.clear();
+                return false;
             }
+            locators.add(entry.getOffset());
+            rows.add(row);
         }
-        
-        return rowsToDelete.size() + " row(s) deleted from '" + tableName + "'.";
+        return true;
     }
 
     /**
@@ -352,28 +1338,27 @@ public final class Query {
         if (currentDatabase == null) {
             throw new IllegalStateException("No database selected. Use USE <database>; first.");
         }
-        File tableFile = storage.tableFile(currentDatabase, tableName);
-        if (!tableFile.exists()) {
+        if (!tableExists(tableName)) {
             throw new IllegalArgumentException("Table '" + tableName + "' does not exist.");
         }
         
         // Check if we're in a transaction
         Transaction currentTxn = transactionManager.getCurrentTransaction();
         if (currentTxn != null && currentTxn.isActive()) {
-            // Add operation to transaction (temporary storage)
+            // Add operation to transaction (temporary storage); values of the wrong type fail here, not at commit
             TransactionOperation operation = new TransactionOperation(
                 TransactionOperation.OperationType.UPDATE, 
                 tableName, 
                 columns, 
-                values, 
+                typedUpdate(tableName, columns, values), 
                 whereClause
             );
             currentTxn.addOperation(operation);
             return "Update operation queued for '" + tableName + "' (transaction: " + currentTxn.getTransactionId() + ").";
         }
         
-        // No transaction - apply immediately
-        return updateDataImmediate(tableName, columns, values, whereClause);
+        // No transaction - apply immediately, as a transaction of its own in the log
+        return logged(() -> updateDataImmediate(tableName, columns, values, whereClause));
     }
 
     /**
@@ -385,106 +1370,55 @@ public final class Query {
      * @return success message
      */
     private String updateDataImmediate(String tableName, List<String> columns, List<String> values, String whereClause) {
-        File tableFile = storage.tableFile(currentDatabase, tableName);
-        
-        // Read all lines
-        List<String> lines = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(tableFile))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                lines.add(line);
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to read table: " + e.getMessage());
-        }
+        TableStore store = store(tableName);
+        String[] headerColumns = store.getColumns();
+        List<String> typedValues = typedUpdate(tableName, columns, values);
         
-        if (lines.isEmpty()) {
-            return "No rows to update.";
-        }
-        
-        String header = lines.get(0);
-        String[] headerColumns = header.split(",");
-        int updatedCount = 0;
-        
-        // Update matching rows
-        for (int i = 1; i < lines.size(); i++) {
-            String[] rowValues = parseCsvLine(lines.get(i));
-            boolean shouldUpdate = false;
-            
-            // Check WHERE condition
-            if (whereClause != null && !whereClause.isEmpty()) {
-                String[] parts = whereClause.split("=", 2);
-                if (parts.length == 2) {
-                    String column = parts[0].trim();
-                    String value = parts[1].trim().replace("'", "");
-                    
-                    // Find column index
-                    int colIndex = -1;
-                    for (int j = 0; j < headerColumns.length; j++) {
-                        if (headerColumns[j].trim().equals(column)) {
-                            colIndex = j;
-                            break;
-                        }
-                    }
-                    
-                    if (colIndex >= 0 && colIndex < rowValues.length && rowValues[colIndex].equals(value)) {
-                        shouldUpdate = true;
-                    }
-                }
-            } else {
-                shouldUpdate = true; // Update all rows if no WHERE clause
-            }
-            
-            if (shouldUpdate) {
+        WhereClause where = where(tableName, headerColumns, whereClause);
+        int whereColumn = where == null ? -1 : columnIndex(headerColumns, where.getColumn());
+
+        // Collect matching rows first, since the table must not change under a scan
+        List<Long> locators = new ArrayList<>();
+        List<String[]> rowsToUpdate = new ArrayList<>();
+        try {
+            collectMatching(tableName, store, where, whereColumn, locators, rowsToUpdate);
+
+            // A row that still fits is overwritten in its slot; one that grew past its page moves,
+            // and only then do the indexes over unchanged columns need its new locator
+            for (int i = 0; i < locators.size(); i++) {
+                String[] oldValues = rowsToUpdate.get(i);
+                String[] rowValues = oldValues.clone();
                 // Update specified columns
-                for (int j = 0; j < columns.size() && j < values.size(); j++) {
-                    String colName = columns.get(j);
-                    String newValue = values.get(j);
-                    
-                    // Find column index
-                    for (int k = 0; k < headerColumns.length; k++) {
-                        if (headerColumns[k].trim().equals(colName)) {
-                            if (k < rowValues.length) {
-                                rowValues[k] = newValue;
-                            }
-                            break;
-                        }
+                for (int j = 0; j < columns.size() && j < typedValues.size(); j++) {
+                    int k = columnIndex(headerColumns, columns.get(j));
+                    if (k >= 0 && k < rowValues.length) {
+                        rowValues[k] = typedValues.get(j);
                     }
                 }
-                
-                // Rebuild the line
-                lines.set(i, String.join(",", rowValues));
-                updatedCount++;
-                
-                // Update index
-                if (rowValues.length > 0) {
-                    String oldKey = rowValues[0]; // Assuming first column is key
-                    index.delete(tableName, oldKey);
-                    IndexEntry newEntry = new IndexEntry(tableName, oldKey, i - 1, tableFile.getPath());
-                    index.insert(tableName, oldKey, newEntry);
-                }
-            }
-        }
-        
-        // Write back to file
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(tableFile, false))) {
-            for (String line : lines) {
-                bw.write(line);
-                bw.newLine();
+                long locator = store.update(locators.get(i), rowValues);
+                updateIndexes(tableName, store, oldValues, locators.get(i), rowValues, locator);
             }
         } catch (IOException e) {
             throw new RuntimeException("Failed to update table: " + e.getMessage());
         }
         
-        return updatedCount + " row(s) updated in '" + tableName + "'.";
+        return rowsToUpdate.size() + " row(s) updated in '" + tableName + "'.";
     }
 
     /**
      * Applies all operations in a transaction to persistent storage.
      * @param transaction transaction to apply
-     * @return true if all operations applied successfully
+     * @return true if all operations applied successfully, false if the transaction was rolled back
+     * @throws IllegalStateException if a failed transaction could not be rolled back
+     * @throws RuntimeException if the transaction could not commit; see {@link #commit(WriteAheadLog)}
      */
     public boolean applyTransaction(Transaction transaction) {
+        WriteAheadLog log = log();
+        try {
+            log.begin();
+        } catch (IOException e) {
+            return false;
+        }
         try {
             for (TransactionOperation operation : transaction.getOperations()) {
                 switch (operation.getType()) {
@@ -500,54 +1434,209 @@ public final class Query {
                         break;
                 }
             }
-            return true;
         } catch (Exception e) {
             // If any operation fails, the entire transaction should be rolled back
+            abort(log, e);
             return false;
         }
+        commit(log);
+        return true;
     }
 
-    private long countRows(File tableFile) {
-        long count = 0;
-        try (BufferedReader br = new BufferedReader(new FileReader(tableFile))) {
-            while (br.readLine() != null) {
-                count++;
-            }
+    /**
+     * Runs a write as a transaction of its own: it commits if the write completes and aborts if it throws.
+     * @param write write to run
+     * @return result of the write
+     */
+    private String logged(Supplier<String> write) {
+        WriteAheadLog log = log();
+        try {
+            log.begin();
         } catch (IOException e) {
-            // Return 0 if can't read
-        }
-        return count;
-    }
-
-    private String[] parseCsvLine(String line) {
-        List<String> cols = new ArrayList<>();
-        StringBuilder cur = new StringBuilder();
-        boolean inQuotes = false;
-        for (int i = 0; i < line.length(); i++) {
-            char c = line.charAt(i);
-            if (inQuotes) {
-                if (c == '"') {
-                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
-                        cur.append('"');
-                        i++;
-                    } else {
-                        inQuotes = false;
-                    }
-                } else {
-                    cur.append(c);
+            throw new RuntimeException("Failed to write log: " + e.getMessage());
+        }
+        String result;
+        try {
+            result = write.get();
+        } catch (RuntimeException e) {
+            abort(log, e);
+            throw e;
+        }
+        commit(log);
+        return result;
+    }
+
+    /**
+     * Appends the commit record of the log's active transaction and, unless commits are deferred,
+     * waits until it is durable.
+     * @throws RuntimeException if the commit record cannot be written, after the transaction is
+     *         rolled back, or if it cannot be made durable; its changes then stay and recovery keeps
+     *         them only if the record reached the log
+     * @throws IllegalStateException if the transaction cannot be rolled back
+     */
+    private void commit(WriteAheadLog log) {
+        long lsn;
+        try {
+            lsn = log.commit();
+        } catch (IOException e) {
+            RuntimeException failure = new RuntimeException("Failed to commit: " + e.getMessage(), e);
+            abort(log, failure);
+            throw failure;
+        }
+        if (commitsDeferred) {
+            pendingCommitLsn = Math.max(pendingCommitLsn, lsn);
+            return;
+        }
+        try {
+            log.flush(lsn);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to make commit durable: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Rolls back the changes of the log's active transaction and aborts it. The indexes of the
+     * tables it touched are dropped, since they followed its changes; they are rebuilt on next use.
+     * @param log database log
+     * @param cause failure that ended the transaction
+     * @throws IllegalStateException if the rollback fails; the transaction then stays open in the
+     *         log and recovery rolls it back when the database is next opened
+     */
+    private void abort(WriteAheadLog log, Exception cause) {
+        List<WriteAheadLog.Record> changes = log.getActiveChanges();
+        Set<String> touched = new LinkedHashSet<>();
+        try {
+            for (int i = changes.size() - 1; i >= 0; i--) {
+                WriteAheadLog.Record change = changes.get(i);
+                touched.add(change.getTable());
+                store(change.getTable()).restore(change.getLocator(), change.getBefore());
+            }
+            log.abort();
+        } catch (IOException | RuntimeException e) {
+            IllegalStateException failure = new IllegalStateException("Failed to roll back after '" + cause.getMessage()
+                    + "': " + e.getMessage() + ". Partial changes remain until the database is reopened and recovered.", e);
+            failure.addSuppressed(cause);
+            throw failure;
+        } finally {
+            for (String tableName : touched) {
+                invalidateIndex(tableName);
+            }
+        }
+    }
+
+    /**
+     * @return log bytes appended since the last checkpoint started, 0 if the log is not open
+     */
+    public long logBytesSinceCheckpoint() {
+        WriteAheadLog current = log;
+        return current == null ? 0 : Math.max(0, current.getEndLsn() - Math.max(checkpointLsn, current.getStartLsn()));
+    }
+
+    /**
+     * Checkpoints every open table and deletes the log segments recovery no longer needs: those
+     * before the oldest table redo point and before the start of a transaction still being written.
+     * Safe to call while other operations run; they wait at most for single page writes.
+     * @return summary message
+     */
+    public String checkpoint() {
+        synchronized (checkpointLock) {
+            WriteAheadLog current = log;
+            if (current == null) {
+                return "No log to checkpoint.";
+            }
+            long started = current.getEndLsn();
+            try {
+                long keep = started;
+                for (TableStore store : stores.values()) {
+                    store.checkpoint();
+                    keep = Math.min(keep, store.getRedoLsn());
                 }
-            } else {
-                if (c == ',') {
-                    cols.add(cur.toString());
-                    cur.setLength(0);
-                } else if (c == '"') {
-                    inQuotes = true;
-                } else {
-                    cur.append(c);
+                // Read after the redo points: a transaction beginning later starts past all of them
+                long active = current.getActiveTransaction();
+                if (active != 0) {
+                    keep = Math.min(keep, active);
                 }
+                int deleted = current.truncate(keep);
+                checkpointLsn = started;
+                saveRowCounts();
+                return "Checkpoint at LSN " + keep + ", " + deleted + " log segment(s) deleted.";
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to checkpoint: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Replays the write-ahead log into the tables of the current database and rolls back
+     * transactions that did not finish, e.g. after a crash. Must run before any other operation on
+     * the database; indexes of recovered tables no longer match their versions and are rebuilt when opened.
+     * @return summary of the recovery
+     */
+    public LogRecovery.Report recover() {
+        if (currentDatabase == null) {
+            throw new IllegalStateException("No database selected. Use USE <database>; first.");
+        }
+        Map<String, TableStore> tables = new LinkedHashMap<>();
+        for (String tableName : showTables()) {
+            tables.put(tableName, store(tableName));
+        }
+        synchronized (checkpointLock) {
+            try {
+                return new LogRecovery(log()).recover(tables);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to recover database: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Opens the write-ahead log of the current database on first use.
+     */
+    private WriteAheadLog log() {
+        if (log == null) {
+            try {
+                log = WriteAheadLog.open(storage.logDir(currentDatabase), storage.getGroupCommitMicros());
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open log: " + e.getMessage());
             }
+            bufferPool.setLog(log);
+        }
+        return log;
+    }
+
+    /**
+     * Lets commits return before their commit record is durable; the caller then waits for
+     * {@link #takeCommitLsn()} with {@link #awaitDurable(long)}, e.g. after releasing a lock, so that
+     * concurrent commits share one log force.
+     * @param commitsDeferred true to defer waiting for commits to the caller
+     */
+    public void setCommitsDeferred(boolean commitsDeferred) {
+        this.commitsDeferred = commitsDeferred;
+    }
+
+    /**
+     * Returns and forgets the LSN of the latest deferred commit.
+     * @return commit LSN, or -1 if nothing was committed since the last call
+     */
+    public long takeCommitLsn() {
+        long lsn = pendingCommitLsn;
+        pendingCommitLsn = -1;
+        return lsn;
+    }
+
+    /**
+     * Waits until a commit is durable.
+     * @param commitLsn LSN returned by {@link #takeCommitLsn()}; nothing is waited for if negative
+     */
+    public void awaitDurable(long commitLsn) {
+        WriteAheadLog current = log;
+        if (commitLsn < 0 || current == null) {
+            return;
+        }
+        try {
+            current.flush(commitLsn);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to commit: " + e.getMessage());
         }
-        cols.add(cur.toString());
-        return cols.toArray(new String[0]);
     }
 }
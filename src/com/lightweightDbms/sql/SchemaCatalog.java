@@ -0,0 +1,313 @@
+package com.lightweightDbms.sql;
+
+import com.lightweightDbms.index.IndexDefinition;
+import com.lightweightDbms.storage.ColumnType;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Schema of one database: its tables with their format, typed columns and row count, and its
+ * secondary indexes. A catalog is immutable; a change makes a new catalog, which is saved and then
+ * published in place of the old one, so readers look tables up without locks or I/O.
+ * <p>
+ * The file holds one line per table ({@code table,name,format,rows,column:type,...}) and one per
+ * index ({@code index,name,table,column,position}), in creation order. It is replaced atomically.
+ */
+public final class SchemaCatalog {
+    /** Catalog of a database without tables. */
+    public static final SchemaCatalog EMPTY = new SchemaCatalog(new LinkedHashMap<>(), new LinkedHashMap<>());
+
+    private static final String TABLE = "table";
+    private static final String INDEX = "index";
+
+    private final Map<String, TableSchema> tables;
+    private final Map<String, IndexDefinition> indexes;
+
+    private SchemaCatalog(Map<String, TableSchema> tables, Map<String, IndexDefinition> indexes) {
+        this.tables = Collections.unmodifiableMap(tables);
+        this.indexes = Collections.unmodifiableMap(indexes);
+    }
+
+    /**
+     * Schema of one table.
+     */
+    public static final class TableSchema {
+        private final String name;
+        private final String format;
+        private final String[] columns;
+        private final ColumnType[] types;
+        private final long rowCount;
+
+        /**
+         * @param name table name
+         * @param format name of the table format, e.g. {@code PAGED}
+         * @param columns column definitions ({@code name:type})
+         * @param rowCount live rows when the catalog was last saved
+         * @throws IllegalArgumentException if a column type is malformed
+         */
+        public TableSchema(String name, String format, String[] columns, long rowCount) {
+            this.name = Objects.requireNonNull(name, "name");
+            this.format = Objects.requireNonNull(format, "format");
+            this.columns = columns.clone();
+            this.types = new ColumnType[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                types[i] = ColumnType.forColumn(columns[i]);
+            }
+            this.rowCount = rowCount;
+        }
+
+        /**
+         * @return table name
+         */
+        public String getName() { return name; }
+
+        /**
+         * @return name of the table format
+         */
+        public String getFormat() { return format; }
+
+        /**
+         * @return column definitions ({@code name:type}), in table order
+         */
+        public String[] getColumns() { return columns.clone(); }
+
+        /**
+         * @return number of columns
+         */
+        public int columnCount() { return columns.length; }
+
+        /**
+         * @param position zero-based column position
+         * @return column definition
+         */
+        public String column(int position) { return columns[position]; }
+
+        /**
+         * @param position zero-based column position
+         * @return declared type of the column
+         */
+        public ColumnType type(int position) { return types[position]; }
+
+        /**
+         * @return live rows when the catalog was last saved; writes since then are not counted
+         */
+        public long getRowCount() { return rowCount; }
+    }
+
+    /**
+     * Loads a catalog.
+     * @param file catalog file
+     * @return loaded catalog, or null if the file does not exist
+     * @throws IOException if the file exists but cannot be read or parsed
+     */
+    public static SchemaCatalog load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        Map<String, TableSchema> tables = new LinkedHashMap<>();
+        Map<String, IndexDefinition> indexes = new LinkedHashMap<>();
+        try (BufferedReader br = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.isBlank()) continue;
+                String[] parts = line.split(",", -1);
+                try {
+                    if (parts[0].equals(TABLE) && parts.length >= 4) {
+                        String[] columns = Arrays.copyOfRange(parts, 4, parts.length);
+                        tables.put(parts[1], new TableSchema(parts[1], parts[2], columns, Long.parseLong(parts[3])));
+                    } else if (parts[0].equals(INDEX) && parts.length == 5) {
+                        IndexDefinition def = new IndexDefinition(parts[1], parts[2], parts[3], Integer.parseInt(parts[4]));
+                        indexes.put(def.getName(), def);
+                    } else {
+                        throw new IOException("Malformed catalog line: " + line);
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Malformed catalog line: " + line);
+                }
+            }
+        }
+        return new SchemaCatalog(tables, indexes);
+    }
+
+    /**
+     * Reads the index definitions file of databases from before the catalog
+     * ({@code name,table,column,position} per line).
+     * @param file index definitions file
+     * @return definitions, empty if the file does not exist
+     * @throws IOException if the file exists but cannot be read or parsed
+     */
+    static List<IndexDefinition> loadLegacyIndexes(File file) throws IOException {
+        List<IndexDefinition> definitions = new ArrayList<>();
+        if (!file.exists()) {
+            return definitions;
+        }
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (line.isBlank()) continue;
+            String[] parts = line.split(",");
+            try {
+                definitions.add(new IndexDefinition(parts[0], parts[1], parts[2], Integer.parseInt(parts[3])));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                throw new IOException("Malformed index catalog line: " + line);
+            }
+        }
+        return definitions;
+    }
+
+    /**
+     * Writes the catalog to a temporary file, forces it and moves it over the catalog file.
+     * @param file catalog file
+     * @throws IOException if the catalog cannot be written
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        try (FileOutputStream out = new FileOutputStream(tmp);
+             BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            for (TableSchema table : tables.values()) {
+                bw.write(TABLE + "," + table.name + "," + table.format + "," + table.rowCount);
+                for (String column : table.columns) {
+                    bw.write("," + column);
+                }
+                bw.newLine();
+            }
+            for (IndexDefinition def : indexes.values()) {
+                bw.write(INDEX + "," + def.getName() + "," + def.getTableName() + "," + def.getColumn()
+                        + "," + def.getColumnPosition());
+                bw.newLine();
+            }
+            bw.flush();
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param name table name
+     * @return table schema, or null if no such table exists
+     */
+    public TableSchema table(String name) {
+        return tables.get(name);
+    }
+
+    /**
+     * @return table names, in creation order
+     */
+    public List<String> tableNames() {
+        return new ArrayList<>(tables.keySet());
+    }
+
+    /**
+     * @param name index name
+     * @return definition, or null if no such index exists
+     */
+    public IndexDefinition index(String name) {
+        return indexes.get(name);
+    }
+
+    /**
+     * @param treeName name the index tree is registered under
+     * @return definition, or null if the tree is not a secondary index
+     */
+    public IndexDefinition forTree(String treeName) {
+        for (IndexDefinition def : indexes.values()) {
+            if (def.getTreeName().equals(treeName)) {
+                return def;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param tableName table name
+     * @return secondary indexes defined on the table
+     */
+    public List<IndexDefinition> forTable(String tableName) {
+        List<IndexDefinition> result = new ArrayList<>();
+        for (IndexDefinition def : indexes.values()) {
+            if (def.getTableName().equals(tableName)) {
+                result.add(def);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return all index definitions, in creation order
+     */
+    public Collection<IndexDefinition> indexes() {
+        return indexes.values();
+    }
+
+    /**
+     * @param table schema of a new table
+     * @return catalog with the table added
+     */
+    public SchemaCatalog withTable(TableSchema table) {
+        if (tables.containsKey(table.name)) {
+            throw new IllegalArgumentException("Table '" + table.name + "' already exists.");
+        }
+        Map<String, TableSchema> next = new LinkedHashMap<>(tables);
+        next.put(table.name, table);
+        return new SchemaCatalog(next, new LinkedHashMap<>(indexes));
+    }
+
+    /**
+     * @param definition new index
+     * @return catalog with the index added
+     */
+    public SchemaCatalog withIndex(IndexDefinition definition) {
+        if (indexes.containsKey(definition.getName())) {
+            throw new IllegalArgumentException("Index '" + definition.getName() + "' already exists.");
+        }
+        Map<String, IndexDefinition> next = new LinkedHashMap<>(indexes);
+        next.put(definition.getName(), definition);
+        return new SchemaCatalog(new LinkedHashMap<>(tables), next);
+    }
+
+    /**
+     * @param name index name
+     * @return catalog without the index; this catalog if there is no such index
+     */
+    public SchemaCatalog withoutIndex(String name) {
+        if (!indexes.containsKey(name)) {
+            return this;
+        }
+        Map<String, IndexDefinition> next = new LinkedHashMap<>(indexes);
+        next.remove(name);
+        return new SchemaCatalog(new LinkedHashMap<>(tables), next);
+    }
+
+    /**
+     * @param rowCounts current row counts by table name; tables not listed keep theirs
+     * @return catalog with the row counts; this catalog if none changed
+     */
+    public SchemaCatalog withRowCounts(Map<String, Long> rowCounts) {
+        Map<String, TableSchema> next = new LinkedHashMap<>(tables);
+        boolean changed = false;
+        for (Map.Entry<String, Long> count : rowCounts.entrySet()) {
+            TableSchema table = tables.get(count.getKey());
+            if (table != null && table.rowCount != count.getValue()) {
+                next.put(table.name, new TableSchema(table.name, table.format, table.columns, count.getValue()));
+                changed = true;
+            }
+        }
+        return changed ? new SchemaCatalog(next, new LinkedHashMap<>(indexes)) : this;
+    }
+}
@@ -15,10 +15,13 @@ public final class SqlParser {
      * - CREATE DATABASE <name>;
      * - USE <name>;
      * - SHOW TABLES;
-     * - CREATE TABLE <name> (<columns>);
+     * - CREATE TABLE <name> (<columns>) [USING <format>];
+     * - CREATE INDEX <name> ON <table>(<column>);
+     * - DROP INDEX <name>;
      * - DESCRIBE <table>;
-     * - SELECT <columns> FROM <table>;
+     * - SELECT <columns> FROM <table> [WHERE <column> <op> <value> | WHERE <column> BETWEEN <low> AND <high>];
      * - INSERT INTO <table> VALUES (<values>);
+     * - COPY <table> FROM '<file.csv>' [HEADER];
      * - EXIT; or QUIT; to terminate the session loop (handled by caller)
      *
      * @param line raw user input
@@ -70,9 +73,41 @@ public final class SqlParser {
             }
             String tableName = rest.substring(0, parenStart).trim();
             String columnsStr = rest.substring(parenStart + 1, parenEnd).trim();
+            String options = rest.substring(parenEnd + 1).trim();
+            String format = null;
+            if (!options.isEmpty()) {
+                if (!options.toUpperCase().startsWith("USING ")) {
+                    throw new IllegalArgumentException("Invalid CREATE TABLE syntax. Use: CREATE TABLE name (col1, col2, ...) [USING format]");
+                }
+                format = options.substring("USING ".length()).trim();
+                validateIdentifier(format);
+            }
             validateIdentifier(tableName);
             List<String> columns = parseColumnList(columnsStr);
-            return new CreateTableCommand(tableName, columns);
+            return new CreateTableCommand(tableName, columns, format);
+        }
+
+        if (upper.startsWith("CREATE INDEX ")) {
+            String rest = noSemicolon.substring("CREATE INDEX ".length()).trim();
+            int on = rest.toUpperCase().indexOf(" ON ");
+            int parenStart = rest.indexOf('(');
+            int parenEnd = rest.lastIndexOf(')');
+            if (on == -1 || parenStart < on || parenEnd <= parenStart) {
+                throw new IllegalArgumentException("Invalid CREATE INDEX syntax. Use: CREATE INDEX name ON table(column)");
+            }
+            String indexName = rest.substring(0, on).trim();
+            String tableName = rest.substring(on + " ON ".length(), parenStart).trim();
+            String column = rest.substring(parenStart + 1, parenEnd).trim();
+            validateIdentifier(indexName);
+            validateIdentifier(tableName);
+            validateIdentifier(column);
+            return new CreateIndexCommand(indexName, tableName, column);
+        }
+
+        if (upper.startsWith("DROP INDEX ")) {
+            String indexName = noSemicolon.substring("DROP INDEX ".length()).trim();
+            validateIdentifier(indexName);
+            return new DropIndexCommand(indexName);
         }
 
         if (upper.startsWith("DESCRIBE ")) {
@@ -83,25 +118,32 @@ public final class SqlParser {
 
         if (upper.startsWith("SELECT ")) {
             String rest = noSemicolon.substring("SELECT ".length()).trim();
-            if (!upper.contains(" FROM ")) {
+            String[] parts = splitAtKeyword(rest, "FROM");
+            if (parts == null) {
                 throw new IllegalArgumentException("Invalid SELECT syntax. Use: SELECT columns FROM table");
             }
-            String[] parts = rest.split(" FROM ", 2);
-            String columnsStr = parts[0].trim();
-            String tableName = parts[1].trim();
+            String columnsStr = parts[0];
+            String tableName = parts[1];
+            String whereClause = null;
+            String[] whereParts = splitAtKeyword(tableName, "WHERE");
+            if (whereParts != null) {
+                tableName = whereParts[0];
+                whereClause = whereParts[1];
+                WhereClause.parse(whereClause); // validate syntax early
+            }
             validateIdentifier(tableName);
             List<String> columns = parseColumnList(columnsStr);
-            return new SelectDataCommand(tableName, columns, null);
+            return new SelectDataCommand(tableName, columns, whereClause);
         }
 
         if (upper.startsWith("INSERT INTO ")) {
             String rest = noSemicolon.substring("INSERT INTO ".length()).trim();
-            if (!upper.contains(" VALUES ")) {
+            String[] parts = splitAtKeyword(rest, "VALUES");
+            if (parts == null) {
                 throw new IllegalArgumentException("Invalid INSERT syntax. Use: INSERT INTO table VALUES (val1, val2, ...)");
             }
-            String[] parts = rest.split(" VALUES ", 2);
-            String tableName = parts[0].trim();
-            String valuesStr = parts[1].trim();
+            String tableName = parts[0];
+            String valuesStr = parts[1];
             if (!valuesStr.startsWith("(") || !valuesStr.endsWith(")")) {
                 throw new IllegalArgumentException("Invalid VALUES syntax. Use: VALUES (val1, val2, ...)");
             }
@@ -111,16 +153,37 @@ public final class SqlParser {
             return new InsertDataCommand(tableName, values);
         }
 
+        if (upper.startsWith("COPY ")) {
+            String rest = noSemicolon.substring("COPY ".length()).trim();
+            int from = indexOfKeyword(rest, "FROM");
+            int quoteStart = rest.indexOf('\'');
+            int quoteEnd = rest.lastIndexOf('\'');
+            if (from == -1 || quoteStart < from || quoteEnd <= quoteStart
+                    || !rest.substring(from + " FROM ".length(), quoteStart).isBlank()) {
+                throw new IllegalArgumentException("Invalid COPY syntax. Use: COPY table FROM 'file.csv' [HEADER]");
+            }
+            String tableName = rest.substring(0, from).trim();
+            String fileName = rest.substring(quoteStart + 1, quoteEnd);
+            String options = rest.substring(quoteEnd + 1).trim();
+            if (!options.isEmpty() && !"HEADER".equalsIgnoreCase(options)) {
+                throw new IllegalArgumentException("Invalid COPY syntax. Use: COPY table FROM 'file.csv' [HEADER]");
+            }
+            validateIdentifier(tableName);
+            if (fileName.isEmpty()) {
+                throw new IllegalArgumentException("File name cannot be empty");
+            }
+            return new CopyDataCommand(tableName, fileName, !options.isEmpty());
+        }
+
         if (upper.startsWith("DELETE FROM ")) {
             String rest = noSemicolon.substring("DELETE FROM ".length()).trim();
-            String tableName;
+            String tableName = rest;
             String whereClause = null;
-            if (upper.contains(" WHERE ")) {
-                String[] parts = rest.split(" WHERE ", 2);
-                tableName = parts[0].trim();
-                whereClause = parts[1].trim();
-            } else {
-                tableName = rest;
+            String[] parts = splitAtKeyword(rest, "WHERE");
+            if (parts != null) {
+                tableName = parts[0];
+                whereClause = parts[1];
+                WhereClause.parse(whereClause); // validate syntax early
             }
             validateIdentifier(tableName);
             return new DeleteDataCommand(tableName, whereClause);
@@ -128,18 +191,19 @@ public final class SqlParser {
 
         if (upper.startsWith("UPDATE ")) {
             String rest = noSemicolon.substring("UPDATE ".length()).trim();
-            if (!upper.contains(" SET ")) {
+            String[] parts = splitAtKeyword(rest, "SET");
+            if (parts == null) {
                 throw new IllegalArgumentException("Invalid UPDATE syntax. Use: UPDATE table SET col1=val1, col2=val2 WHERE condition");
             }
-            String[] parts = rest.split(" SET ", 2);
-            String tableName = parts[0].trim();
-            String setClause = parts[1].trim();
+            String tableName = parts[0];
+            String setClause = parts[1];
             
             String whereClause = null;
-            if (upper.contains(" WHERE ")) {
-                String[] whereParts = setClause.split(" WHERE ", 2);
-                setClause = whereParts[0].trim();
-                whereClause = whereParts[1].trim();
+            String[] whereParts = splitAtKeyword(setClause, "WHERE");
+            if (whereParts != null) {
+                setClause = whereParts[0];
+                whereClause = whereParts[1];
+                WhereClause.parse(whereClause); // validate syntax early
             }
             
             validateIdentifier(tableName);
@@ -165,6 +229,31 @@ public final class SqlParser {
         throw new IllegalArgumentException("Unsupported command");
     }
 
+    /**
+     * Splits text at the first occurrence of a keyword between spaces, ignoring case.
+     * @return the trimmed text before and after the keyword, or null if the keyword does not occur
+     */
+    private static String[] splitAtKeyword(String text, String keyword) {
+        int at = indexOfKeyword(text, keyword);
+        if (at < 0) {
+            return null;
+        }
+        return new String[]{text.substring(0, at).trim(), text.substring(at + keyword.length() + 2).trim()};
+    }
+
+    /**
+     * @return index of the space before the first occurrence of {@code " keyword "}, ignoring case; -1 if none
+     */
+    private static int indexOfKeyword(String text, String keyword) {
+        String padded = " " + keyword + " ";
+        for (int i = 0; i + padded.length() <= text.length(); i++) {
+            if (text.regionMatches(true, i, padded, 0, padded.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     private List<String> parseColumnList(String columnsStr) {
         List<String> columns = new ArrayList<>();
         String[] parts = columnsStr.split(",");
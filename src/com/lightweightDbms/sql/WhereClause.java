@@ -0,0 +1,499 @@
+package com.lightweightDbms.sql;
+
+import com.lightweightDbms.storage.ColumnType;
+import com.lightweightDbms.storage.TableStore;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Single-column predicate parsed from a WHERE clause, e.g. {@code id = 5}, {@code price >= 10} or
+ * {@code id BETWEEN 3 AND 7}.
+ * Values are compared numerically when both sides are numbers, otherwise as strings. Values stored
+ * in binary by their column type are compared as the numbers they hold, with the same result.
+ */
+public final class WhereClause implements TableStore.ValueFilter {
+    /**
+     * Comparison operators supported in a WHERE clause.
+     */
+    public enum Operator {
+        EQ("="),
+        NE("!="),
+        LT("<"),
+        LE("<="),
+        GT(">"),
+        GE(">="),
+        BETWEEN("BETWEEN");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        /**
+         * @return SQL symbol of this operator
+         */
+        public String getSymbol() { return symbol; }
+    }
+
+    /** Result of {@link #compareEncoded} when the encoded value has to be decoded to compare it. */
+    private static final int UNDECIDED = Integer.MIN_VALUE;
+    /** Result of {@link #parsePlainInteger} for values that are not plain integers. */
+    private static final long NOT_PLAIN = Long.MIN_VALUE;
+
+    private static final Pattern BETWEEN_PATTERN =
+            Pattern.compile("(?i)^([^\\s']+)\\s+BETWEEN\\s+('[^']*'|\\S+)\\s+AND\\s+('[^']*'|\\S+)$");
+
+    private final String column;
+    private final Operator operator;
+    private final String value;
+    private final String upperValue;
+    private final byte[] valueBytes;
+    private final byte[] upperBytes;
+    private final Double valueNumber;
+    private final Double upperNumber;
+    private final TypedLiteral valueTyped;
+    private final TypedLiteral upperTyped;
+
+    /**
+     * @param column column name
+     * @param operator comparison operator other than BETWEEN
+     * @param value literal value (unquoted)
+     */
+    public WhereClause(String column, Operator operator, String value) {
+        this(column, operator, value, null);
+        if (operator == Operator.BETWEEN) {
+            throw new IllegalArgumentException("BETWEEN needs an upper value.");
+        }
+    }
+
+    /**
+     * @param column column name
+     * @param operator comparison operator
+     * @param value literal value (unquoted); the lower value for BETWEEN
+     * @param upperValue upper value for BETWEEN (unquoted), null otherwise
+     */
+    public WhereClause(String column, Operator operator, String value, String upperValue) {
+        this.column = Objects.requireNonNull(column, "column");
+        this.operator = Objects.requireNonNull(operator, "operator");
+        this.value = Objects.requireNonNull(value, "value");
+        this.upperValue = operator == Operator.BETWEEN ? Objects.requireNonNull(upperValue, "upperValue") : null;
+        this.valueBytes = this.value.getBytes(StandardCharsets.UTF_8);
+        this.upperBytes = this.upperValue == null ? null : this.upperValue.getBytes(StandardCharsets.UTF_8);
+        this.valueNumber = parseNumber(this.value);
+        this.upperNumber = this.upperValue == null ? null : parseNumber(this.upperValue);
+        this.valueTyped = new TypedLiteral(this.value);
+        this.upperTyped = this.upperValue == null ? null : new TypedLiteral(this.upperValue);
+    }
+
+    /**
+     * A literal as the stored value of each fixed-width column type whose canonical text it is, or
+     * null for the types it is not a value of.
+     */
+    private static final class TypedLiteral {
+        private final Long integer;
+        private final Long flag;
+        private final Long micros;
+
+        TypedLiteral(String literal) {
+            integer = canonical(ColumnType.BIGINT, literal);
+            flag = canonical(ColumnType.BOOLEAN, literal);
+            micros = canonical(ColumnType.TIMESTAMP, literal);
+        }
+
+        Long forKind(ColumnType.Kind kind) {
+            return switch (kind) {
+                case INT, BIGINT -> integer;
+                case BOOLEAN -> flag;
+                case TIMESTAMP -> micros;
+                default -> null;
+            };
+        }
+
+        private static Long canonical(ColumnType type, String literal) {
+            try {
+                long stored = type.parseLong(literal);
+                return type.format(stored).equals(literal) ? stored : null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Parses a raw WHERE condition such as {@code id = 5}, {@code name != 'Bob'} or {@code id BETWEEN 1 AND 9}.
+     *
+     * @param clause raw condition text (without the WHERE keyword)
+     * @return parsed clause, or null if the clause is null or blank
+     * @throws IllegalArgumentException when the condition is malformed
+     */
+    public static WhereClause parse(String clause) {
+        if (clause == null || clause.trim().isEmpty()) {
+            return null;
+        }
+        String text = clause.trim();
+        Matcher between = BETWEEN_PATTERN.matcher(text);
+        if (between.matches()) {
+            return new WhereClause(between.group(1), Operator.BETWEEN, unquote(between.group(2)), unquote(between.group(3)));
+        }
+        int opStart = -1;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\'') break;
+            if (c == '=' || c == '<' || c == '>' || c == '!') {
+                opStart = i;
+                break;
+            }
+        }
+        if (opStart <= 0) {
+            throw new IllegalArgumentException("Invalid WHERE clause: " + clause);
+        }
+        String opText = text.substring(opStart, Math.min(opStart + 2, text.length()));
+        Operator operator;
+        int opLength = 2;
+        if (opText.equals("<=")) {
+            operator = Operator.LE;
+        } else if (opText.equals(">=")) {
+            operator = Operator.GE;
+        } else if (opText.equals("!=") || opText.equals("<>")) {
+            operator = Operator.NE;
+        } else {
+            opLength = 1;
+            switch (text.charAt(opStart)) {
+                case '=' -> operator = Operator.EQ;
+                case '<' -> operator = Operator.LT;
+                case '>' -> operator = Operator.GT;
+                default -> throw new IllegalArgumentException("Invalid WHERE operator in: " + clause);
+            }
+        }
+        String column = text.substring(0, opStart).trim();
+        String value = unquote(text.substring(opStart + opLength).trim());
+        if (column.isEmpty() || value.isEmpty()) {
+            throw new IllegalArgumentException("Invalid WHERE clause: " + clause);
+        }
+        return new WhereClause(column, operator, value);
+    }
+
+    /**
+     * Puts the clause's values into the canonical text of the column's type, e.g. {@code 3.0} for
+     * {@code 3} in a DOUBLE column or {@code true} for {@code TRUE} in a BOOLEAN one, as values are
+     * normalized when they are stored.
+     * @param type declared type of the clause's column
+     * @return clause with canonical values, or this clause if a value is not of the type
+     */
+    public WhereClause forType(ColumnType type) {
+        if (!type.isFixedWidth()) {
+            return this;
+        }
+        try {
+            String lower = type.normalize(value);
+            String upper = upperValue == null ? null : type.normalize(upperValue);
+            if (lower.isEmpty() || "".equals(upper) || (lower.equals(value) && Objects.equals(upper, upperValue))) {
+                return this;
+            }
+            return new WhereClause(column, operator, lower, upper);
+        } catch (IllegalArgumentException e) {
+            return this;
+        }
+    }
+
+    /**
+     * @return column name referenced by this clause
+     */
+    public String getColumn() { return column; }
+
+    /**
+     * @return comparison operator
+     */
+    public Operator getOperator() { return operator; }
+
+    /**
+     * @return literal value to compare against
+     */
+    public String getValue() { return value; }
+
+    /**
+     * @return upper value of a BETWEEN predicate, null for other operators
+     */
+    public String getUpperValue() { return upperValue; }
+
+    /**
+     * @return true if this clause bounds the column from one or both sides
+     */
+    public boolean isRange() {
+        return operator != Operator.EQ && operator != Operator.NE;
+    }
+
+    /**
+     * @return lowest value a matching row may hold, or null if unbounded below
+     */
+    public String getLowerBound() {
+        return operator == Operator.GT || operator == Operator.GE || operator == Operator.BETWEEN ? value : null;
+    }
+
+    /**
+     * @return highest value a matching row may hold, or null if unbounded above
+     */
+    public String getUpperBound() {
+        if (operator == Operator.BETWEEN) return upperValue;
+        return operator == Operator.LT || operator == Operator.LE ? value : null;
+    }
+
+    /**
+     * Numbers are compared numerically, so a clause whose values are numbers does not follow string order.
+     * @return true if every comparison this clause makes uses string order
+     */
+    public boolean comparesAsStrings() {
+        return valueNumber == null && upperNumber == null;
+    }
+
+    /**
+     * @return true if this clause is an equality predicate
+     */
+    public boolean isEquality() {
+        return operator == Operator.EQ;
+    }
+
+    /**
+     * Evaluates this predicate against a row value.
+     *
+     * @param candidate value read from the row
+     * @return true if the row value satisfies the predicate
+     */
+    public boolean matches(String candidate) {
+        if (candidate == null) return false;
+        int cmp = compareValues(candidate, value, valueNumber);
+        return switch (operator) {
+            case EQ -> cmp == 0;
+            case NE -> cmp != 0;
+            case LT -> cmp < 0;
+            case LE -> cmp <= 0;
+            case GT -> cmp > 0;
+            case GE -> cmp >= 0;
+            case BETWEEN -> cmp >= 0 && compareValues(candidate, upperValue, upperNumber) <= 0;
+        };
+    }
+
+    /**
+     * Evaluates this predicate against a UTF-8 encoded row value, with the same result as
+     * {@link #matches(String)}. Plain strings and integers are compared on the bytes; other values
+     * are decoded first.
+     *
+     * @param buffer buffer holding the value; read with absolute get methods only
+     * @param offset position of the value in the buffer
+     * @param length number of bytes of the value
+     * @return true if the row value satisfies the predicate
+     */
+    @Override
+    public boolean matches(ByteBuffer buffer, int offset, int length) {
+        int cmp = compareEncoded(buffer, offset, length, valueBytes, valueNumber);
+        if (cmp == UNDECIDED) {
+            return matches(decode(buffer, offset, length));
+        }
+        return switch (operator) {
+            case EQ -> cmp == 0;
+            case NE -> cmp != 0;
+            case LT -> cmp < 0;
+            case LE -> cmp <= 0;
+            case GT -> cmp > 0;
+            case GE -> cmp >= 0;
+            case BETWEEN -> {
+                if (cmp < 0) yield false;
+                int upper = compareEncoded(buffer, offset, length, upperBytes, upperNumber);
+                yield upper == UNDECIDED ? matches(decode(buffer, offset, length)) : upper <= 0;
+            }
+        };
+    }
+
+    /**
+     * Evaluates this predicate against a value in the encoding of its column type, with the same
+     * result as {@link #matches(String)} on its text. Binary values are read from the buffer and
+     * compared as numbers; UTF-8 values go to {@link #matches(ByteBuffer, int, int)}.
+     *
+     * @param type type the value is encoded in
+     * @param buffer buffer holding the value; read with absolute get methods only
+     * @param offset position of the value in the buffer
+     * @param length number of bytes of the value, 0 for no value
+     * @return true if the row value satisfies the predicate
+     */
+    @Override
+    public boolean matches(ColumnType type, ByteBuffer buffer, int offset, int length) {
+        if (length == 0 || !type.isFixedWidth()) {
+            return matches(buffer, offset, length);
+        }
+        int cmp = compareTyped(type, buffer, offset, value, valueNumber, valueTyped);
+        return switch (operator) {
+            case EQ -> cmp == 0;
+            case NE -> cmp != 0;
+            case LT -> cmp < 0;
+            case LE -> cmp <= 0;
+            case GT -> cmp > 0;
+            case GE -> cmp >= 0;
+            case BETWEEN -> cmp >= 0 && compareTyped(type, buffer, offset, upperValue, upperNumber, upperTyped) <= 0;
+        };
+    }
+
+    /**
+     * Decides from the range of a column's values whether some value may satisfy this predicate. The
+     * range rules values out when all comparisons use one order: numeric if the clause's values and
+     * all of the range's are numbers, string order if the clause's values are not numbers.
+     *
+     * @param range range of the values, or null if there are none
+     * @return false only if no value in the range satisfies the predicate
+     */
+    @Override
+    public boolean mayMatch(TableStore.ValueRange range) {
+        if (range == null) return false;
+        int minToValue;
+        int maxToValue;
+        int minToUpper = 0;
+        if (valueNumber != null && (upperValue == null || upperNumber != null)) {
+            if (!range.isNumeric()) return true;
+            minToValue = Double.compare(range.getMinNumber(), valueNumber);
+            maxToValue = Double.compare(range.getMaxNumber(), valueNumber);
+            if (upperNumber != null) minToUpper = Double.compare(range.getMinNumber(), upperNumber);
+        } else if (comparesAsStrings()) {
+            minToValue = range.getMin().compareTo(value);
+            maxToValue = range.getMax().compareTo(value);
+            if (upperValue != null) minToUpper = range.getMin().compareTo(upperValue);
+        } else {
+            return true;
+        }
+        return switch (operator) {
+            case EQ -> minToValue <= 0 && maxToValue >= 0;
+            case NE -> minToValue != 0 || maxToValue != 0;
+            case LT -> minToValue < 0;
+            case LE -> minToValue <= 0;
+            case GT -> maxToValue > 0;
+            case GE -> maxToValue >= 0;
+            case BETWEEN -> maxToValue >= 0 && minToUpper <= 0;
+        };
+    }
+
+    private static Double parseNumber(String v) {
+        try {
+            return Double.parseDouble(v);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static int compareValues(String left, String right, Double rightNumber) {
+        if (left.equals(right)) return 0;
+        if (rightNumber != null) {
+            try {
+                return Double.compare(Double.parseDouble(left), rightNumber);
+            } catch (NumberFormatException e) {
+                // not a number: compared as a string
+            }
+        }
+        return left.compareTo(right);
+    }
+
+    /**
+     * Compares a binary value with a literal the way {@link #compareValues} compares the value's
+     * canonical text with it; the text is only produced for literals that are not values of the type.
+     */
+    private static int compareTyped(ColumnType type, ByteBuffer buffer, int offset, String literal,
+                                    Double literalNumber, TypedLiteral typed) {
+        if (type.getKind() == ColumnType.Kind.DOUBLE) {
+            double stored = buffer.getDouble(offset);
+            return literalNumber != null ? Double.compare(stored, literalNumber) : Double.toString(stored).compareTo(literal);
+        }
+        long stored = type.readLong(buffer, offset);
+        Long exact = typed.forKind(type.getKind());
+        if (exact != null) {
+            return Long.compare(stored, exact);
+        }
+        return compareValues(type.format(stored), literal, literalNumber);
+    }
+
+    /**
+     * Compares an encoded value with a literal the way {@link #compareValues} compares their strings.
+     * @return the sign of the comparison, or {@link #UNDECIDED} if the value has to be decoded
+     */
+    private static int compareEncoded(ByteBuffer buffer, int offset, int length, byte[] literal, Double literalNumber) {
+        if (length == literal.length && equalBytes(buffer, offset, literal)) return 0;
+        if (literalNumber != null) {
+            long number = parsePlainInteger(buffer, offset, length);
+            if (number != NOT_PLAIN) {
+                return Double.compare((double) number, literalNumber);
+            }
+            if (length > 0 && mayStartNumber(buffer.get(offset))) {
+                return UNDECIDED;
+            }
+        }
+        // UTF-8 byte order is UTF-16 order up to the first difference if that difference is ASCII
+        int common = Math.min(length, literal.length);
+        for (int i = 0; i < common; i++) {
+            int left = buffer.get(offset + i) & 0xFF;
+            int right = literal[i] & 0xFF;
+            if (left != right) {
+                return left < 0x80 && right < 0x80 ? Integer.signum(left - right) : UNDECIDED;
+            }
+        }
+        return Integer.signum(length - literal.length);
+    }
+
+    private static boolean equalBytes(ByteBuffer buffer, int offset, byte[] literal) {
+        for (int i = 0; i < literal.length; i++) {
+            if (buffer.get(offset + i) != literal[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the value of an optionally signed integer of at most 15 digits, which parses exactly as a
+     *         double, or {@link #NOT_PLAIN} for anything else
+     */
+    private static long parsePlainInteger(ByteBuffer buffer, int offset, int length) {
+        int pos = offset;
+        int end = offset + length;
+        boolean negative = false;
+        if (pos < end && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+            negative = buffer.get(pos++) == '-';
+        }
+        if (pos == end || end - pos > 15) return NOT_PLAIN;
+        long value = 0;
+        for (; pos < end; pos++) {
+            int digit = buffer.get(pos) - '0';
+            if (digit < 0 || digit > 9) return NOT_PLAIN;
+            value = value * 10 + digit;
+        }
+        if (negative && value == 0) return NOT_PLAIN; // -0 parses as -0.0, which orders below 0.0
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return false if no text starting with this byte is accepted by {@link Double#parseDouble}
+     */
+    private static boolean mayStartNumber(byte first) {
+        return (first >= '0' && first <= '9') || first == '+' || first == '-' || first == '.'
+                || first == 'N' || first == 'I' || (first & 0xFF) <= ' ';
+    }
+
+    private static String decode(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String unquote(String v) {
+        if (v.length() >= 2 && v.startsWith("'") && v.endsWith("'")) {
+            return v.substring(1, v.length() - 1);
+        }
+        return v;
+    }
+
+    @Override
+    public String toString() {
+        if (operator == Operator.BETWEEN) {
+            return column + " BETWEEN '" + value + "' AND '" + upperValue + "'";
+        }
+        return column + " " + operator.getSymbol() + " '" + value + "'";
+    }
+}
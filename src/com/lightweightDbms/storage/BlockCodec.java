@@ -0,0 +1,289 @@
+package com.lightweightDbms.storage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the blocks of table files. Every block is compressed on its own, so reading a
+ * record only decompresses the block holding it. Files record the codec of a block by its
+ * {@link #id()}, which never changes, not by its position in this enum.
+ */
+public enum BlockCodec {
+    /** Blocks are stored as they are, one page each. */
+    NONE(0, BufferPool.PAGE_SIZE) {
+        @Override
+        byte[] compress(byte[] data, int length) {
+            return Arrays.copyOf(data, length);
+        }
+
+        @Override
+        byte[] decompress(byte[] data, int offset, int length, int rawLength) throws IOException {
+            if (length != rawLength) {
+                throw new IOException("Corrupt block: " + length + " bytes stored for " + rawLength);
+            }
+            return Arrays.copyOfRange(data, offset, offset + length);
+        }
+    },
+
+    /** Deflate at the default level: the smallest blocks, for tables mostly scanned. */
+    DEFLATE(1, 64 << 10) {
+        @Override
+        byte[] compress(byte[] data, int length) {
+            Deflater deflater = new Deflater();
+            try {
+                deflater.setInput(data, 0, length);
+                deflater.finish();
+                byte[] out = new byte[length + length / 1000 + 64];
+                int size = 0;
+                while (!deflater.finished()) {
+                    if (size == out.length) {
+                        out = Arrays.copyOf(out, out.length * 2);
+                    }
+                    size += deflater.deflate(out, size, out.length - size);
+                }
+                return Arrays.copyOf(out, size);
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        byte[] decompress(byte[] data, int offset, int length, int rawLength) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data, offset, length);
+                byte[] out = new byte[rawLength];
+                int size = 0;
+                while (size < rawLength && !inflater.finished()) {
+                    int n = inflater.inflate(out, size, rawLength - size);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                    size += n;
+                }
+                if (size != rawLength) {
+                    throw new IOException("Corrupt block: " + size + " bytes inflated for " + rawLength);
+                }
+                return out;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt block: " + e.getMessage(), e);
+            } finally {
+                inflater.end();
+            }
+        }
+    },
+
+    /**
+     * Byte-oriented LZ77 in the manner of LZ4: several times faster than deflate both ways, at a
+     * lower ratio; for tables that are read by key as well as scanned.
+     */
+    LZ(2, 64 << 10) {
+        @Override
+        byte[] compress(byte[] data, int length) {
+            return lzCompress(data, length);
+        }
+
+        @Override
+        byte[] decompress(byte[] data, int offset, int length, int rawLength) throws IOException {
+            return lzDecompress(data, offset, length, rawLength);
+        }
+    };
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 14;
+
+    private final int id;
+    private final int blockSize;
+
+    BlockCodec(int id, int blockSize) {
+        this.id = id;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return number identifying the codec in files; stays the same when codecs are added or reordered
+     */
+    public int id() { return id; }
+
+    /**
+     * @return number of record bytes gathered into one block before it is compressed
+     */
+    public int blockSize() { return blockSize; }
+
+    /**
+     * @param data bytes to compress
+     * @param length number of bytes of the array to compress
+     * @return compressed bytes; may be larger than the input for data that does not compress
+     */
+    abstract byte[] compress(byte[] data, int length);
+
+    /**
+     * @param data array holding a compressed block
+     * @param offset position of the block in the array
+     * @param length number of compressed bytes
+     * @param rawLength number of bytes the block decompresses to
+     * @return decompressed block
+     * @throws IOException if the block is corrupt
+     */
+    abstract byte[] decompress(byte[] data, int offset, int length, int rawLength) throws IOException;
+
+    /**
+     * Looks a codec up by name, ignoring case.
+     * @param name codec name, e.g. {@code lz}
+     * @return codec
+     * @throws IllegalArgumentException if no codec has this name
+     */
+    public static BlockCodec forName(String name) {
+        for (BlockCodec codec : values()) {
+            if (codec.name().equalsIgnoreCase(name)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown block codec '" + name + "'. Use one of " + Arrays.toString(values()) + ".");
+    }
+
+    /**
+     * Looks a codec up by the id stored in a file.
+     * @param id codec id
+     * @return codec
+     * @throws IOException if no codec has this id, e.g. in a corrupt file
+     */
+    public static BlockCodec forId(int id) throws IOException {
+        for (BlockCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IOException("Unknown block codec " + id);
+    }
+
+    /*
+     * LZ format: a sequence of token byte, literals and match. The token's upper four bits are the
+     * literal count and its lower four the match length minus MIN_MATCH; 15 means more follows in
+     * bytes added to it, each 255 meaning yet another byte. A match is a two-byte little-endian
+     * offset back from the current position, then the rest of its length. The last sequence has
+     * literals only and ends the input.
+     */
+
+    private static byte[] lzCompress(byte[] src, int length) {
+        byte[] out = new byte[length + length / 255 + 16];
+        int[] table = new int[1 << HASH_BITS];
+        Arrays.fill(table, -1);
+        int op = 0;
+        int anchor = 0;
+        int pos = 0;
+        while (pos + MIN_MATCH <= length) {
+            int sequence = readInt(src, pos);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[hash];
+            table[hash] = pos;
+            if (ref < 0 || pos - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                // Steps grow over incompressible stretches
+                pos += 1 + ((pos - anchor) >>> 6);
+                continue;
+            }
+            int match = MIN_MATCH;
+            while (pos + match < length && src[ref + match] == src[pos + match]) {
+                match++;
+            }
+            op = writeSequence(out, op, src, anchor, pos - anchor, pos - ref, match);
+            pos += match;
+            anchor = pos;
+        }
+        op = writeSequence(out, op, src, anchor, length - anchor, 0, 0);
+        return Arrays.copyOf(out, op);
+    }
+
+    private static int writeSequence(byte[] out, int op, byte[] src, int literalStart, int literals, int offset, int match) {
+        int matchCode = match == 0 ? 0 : match - MIN_MATCH;
+        int token = op++;
+        out[token] = (byte) ((Math.min(literals, 15) << 4) | Math.min(matchCode, 15));
+        op = writeLength(out, op, literals);
+        System.arraycopy(src, literalStart, out, op, literals);
+        op += literals;
+        if (match > 0) {
+            out[op++] = (byte) offset;
+            out[op++] = (byte) (offset >>> 8);
+            op = writeLength(out, op, matchCode);
+        }
+        return op;
+    }
+
+    private static int writeLength(byte[] out, int op, int length) {
+        if (length < 15) return op;
+        length -= 15;
+        while (length >= 255) {
+            out[op++] = (byte) 255;
+            length -= 255;
+        }
+        out[op++] = (byte) length;
+        return op;
+    }
+
+    private static byte[] lzDecompress(byte[] src, int offset, int length, int rawLength) throws IOException {
+        byte[] out = new byte[rawLength];
+        int ip = offset;
+        int end = offset + length;
+        int op = 0;
+        try {
+            while (ip < end) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[checkedPosition(ip++, end)] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                checkedPosition(ip + literals - 1, end);
+                System.arraycopy(src, ip, out, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == end) break;
+                checkedPosition(ip + 1, end);
+                int back = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                int match = token & 15;
+                if (match == 15) {
+                    int b;
+                    do {
+                        b = src[checkedPosition(ip++, end)] & 0xFF;
+                        match += b;
+                    } while (b == 255);
+                }
+                match += MIN_MATCH;
+                int ref = op - back;
+                if (back == 0 || ref < 0 || op + match > rawLength) {
+                    throw new IOException("Corrupt block: bad match at " + op);
+                }
+                // Byte by byte, since a match may overlap the bytes it produces
+                for (int i = 0; i < match; i++) {
+                    out[op++] = out[ref++];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt block: " + e.getMessage(), e);
+        }
+        if (op != rawLength) {
+            throw new IOException("Corrupt block: " + op + " bytes decompressed for " + rawLength);
+        }
+        return out;
+    }
+
+    /**
+     * Keeps decoding within the block, since the array holding it may go on past its end.
+     */
+    private static int checkedPosition(int position, int end) throws IOException {
+        if (position >= end) {
+            throw new IOException("Corrupt block: truncated at " + end);
+        }
+        return position;
+    }
+
+    private static int readInt(byte[] b, int pos) {
+        return (b[pos] & 0xFF) | (b[pos + 1] & 0xFF) << 8 | (b[pos + 2] & 0xFF) << 16 | (b[pos + 3] & 0xFF) << 24;
+    }
+}
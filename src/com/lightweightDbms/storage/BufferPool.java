@@ -0,0 +1,492 @@
+package com.lightweightDbms.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded cache of file pages shared by the tables and indexes of a database.
+ * <p>
+ * Files are registered once and addressed by the returned id. A page is pinned while it is used
+ * and unpinned afterwards, marking it dirty if it was modified; pinned pages are never evicted.
+ * Dirty pages are written back when they are evicted or when their file is flushed. Frames are
+ * allocated on demand up to the configured budget; after that the clock algorithm picks a victim
+ * among unpinned pages. A page that is read only once (e.g. by a table scan) enters the clock
+ * without its reference bit, so it is evicted before pages that were used again.
+ * <p>
+ * A page changed under a {@link WriteAheadLog} carries the LSN of its last log record; the log is
+ * forced up to that record before the page is written back. The log is never forced while the pool
+ * is locked: the clock passes over pages waiting for the log, and a pin that finds no other victim
+ * forces the log without the lock and tries again.
+ * <p>
+ * The bytes of a pinned page may be read and modified concurrently by the users of its file; they
+ * coordinate by synchronizing on the {@link Page}.
+ */
+public final class BufferPool {
+    /** Size of one page in bytes. */
+    public static final int PAGE_SIZE = 8192;
+
+    /** Default memory budget in bytes. */
+    public static final long DEFAULT_CAPACITY = 64L << 20;
+
+    /** Smallest number of frames a pool gets, whatever its budget. */
+    static final int MIN_FRAMES = 16;
+
+    /**
+     * A file page held in a frame of the pool.
+     */
+    public static final class Page {
+        private final ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        private int fileId = -1;
+        private long pageNumber;
+        private int pins;
+        private boolean dirty;
+        private boolean referenced;
+        private long lsn;
+
+        private Page() {}
+
+        /**
+         * @return page contents; use absolute get/put methods only, the buffer is shared
+         */
+        public ByteBuffer buffer() { return buffer; }
+
+        /**
+         * @return position of the page in its file, in pages
+         */
+        public long getPageNumber() { return pageNumber; }
+
+        /**
+         * Records that the page contains the change logged at an LSN; the page is not written back
+         * before the log is durable up to it.
+         * @param lsn LSN of the log record
+         */
+        public void setLsn(long lsn) {
+            synchronized (this) {
+                this.lsn = Math.max(this.lsn, lsn);
+            }
+        }
+
+        private long lsn() {
+            synchronized (this) {
+                return lsn;
+            }
+        }
+    }
+
+    private final int capacity;
+    private final List<Page> frames = new ArrayList<>();
+    private final Deque<Page> free = new ArrayDeque<>();
+    private final Map<Long, Page> pageTable = new HashMap<>();
+    private final Map<Integer, FileChannel> files = new HashMap<>();
+    private WriteAheadLog log;
+    private int nextFileId;
+    private int hand;
+    /** Lowest LSN the log must be durable past for {@link #victim()} to find a page, 0 if none. */
+    private long awaitedLsn;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writes;
+
+    /**
+     * @param capacityBytes memory budget for page frames
+     */
+    public BufferPool(long capacityBytes) {
+        if (capacityBytes <= 0) {
+            throw new IllegalArgumentException("Buffer pool capacity must be positive: " + capacityBytes);
+        }
+        this.capacity = (int) Math.max(MIN_FRAMES, Math.min(Integer.MAX_VALUE, capacityBytes / PAGE_SIZE));
+    }
+
+    /**
+     * Creates a pool with the default budget.
+     */
+    public BufferPool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Sets the log that pages with an LSN are checked against before they are written back.
+     * @param log write-ahead log (nullable)
+     */
+    public synchronized void setLog(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Registers a file whose pages are to be cached.
+     * @param channel channel open on the file; it must stay open until the file is released
+     * @return id addressing the file in this pool
+     */
+    public synchronized int register(FileChannel channel) {
+        int id = nextFileId++;
+        files.put(id, channel);
+        return id;
+    }
+
+    /**
+     * Pins a page, reading it from its file if it is not cached. Pages beyond the end of the file
+     * read as zeros; they are written, extending the file, once they are dirty and flushed.
+     * @param fileId registered file
+     * @param pageNumber position of the page in the file, in pages
+     * @return pinned page; must be passed to {@link #unpin} exactly once
+     * @throws IOException if the page cannot be read, or a dirty victim cannot be written
+     * @throws IllegalStateException if every frame is pinned
+     */
+    public Page pin(int fileId, long pageNumber) throws IOException {
+        while (true) {
+            WriteAheadLog pageLog;
+            long lsn;
+            synchronized (this) {
+                Page page = load(fileId, pageNumber);
+                if (page != null) {
+                    return page;
+                }
+                pageLog = log;
+                lsn = awaitedLsn;
+            }
+            // Every page that could be evicted waits for the log
+            pageLog.flush(lsn);
+        }
+    }
+
+    /**
+     * Pins a cached page, or reads it into a victim's frame.
+     * @return pinned page, or null if every evictable page waits for the log to be forced up to
+     *         {@link #awaitedLsn}
+     */
+    private Page load(int fileId, long pageNumber) throws IOException {
+        FileChannel channel = channel(fileId);
+        Long key = key(fileId, pageNumber);
+        Page page = pageTable.get(key);
+        if (page != null) {
+            hits++;
+            page.pins++;
+            page.referenced = true;
+            return page;
+        }
+        page = victim();
+        if (page == null) {
+            return null;
+        }
+        misses++;
+        ByteBuffer buf = page.buffer;
+        buf.clear();
+        long position = pageNumber * PAGE_SIZE;
+        try {
+            while (buf.hasRemaining()) {
+                int n = channel.read(buf, position + buf.position());
+                if (n < 0) break;
+            }
+        } catch (IOException e) {
+            free.push(page);
+            throw e;
+        }
+        while (buf.hasRemaining()) {
+            buf.put((byte) 0);
+        }
+        buf.clear();
+        page.fileId = fileId;
+        page.pageNumber = pageNumber;
+        page.pins = 1;
+        page.dirty = false;
+        page.referenced = false;
+        page.lsn = 0;
+        pageTable.put(key, page);
+        return page;
+    }
+
+    /**
+     * Pins a page only if the pool already holds it; a page that is not cached is not read.
+     * @param fileId registered file
+     * @param pageNumber position of the page in the file, in pages
+     * @return pinned page, or null if the page is not in the pool
+     */
+    public synchronized Page pinIfCached(int fileId, long pageNumber) {
+        Page page = pageTable.get(key(fileId, pageNumber));
+        if (page == null) {
+            return null;
+        }
+        hits++;
+        page.pins++;
+        page.referenced = true;
+        return page;
+    }
+
+    /**
+     * Releases a pin.
+     * @param page pinned page
+     * @param dirty true if the page was modified while pinned
+     */
+    public synchronized void unpin(Page page, boolean dirty) {
+        if (page.pins <= 0) {
+            throw new IllegalStateException("Page " + page.pageNumber + " is not pinned");
+        }
+        page.pins--;
+        page.dirty |= dirty;
+    }
+
+    /**
+     * Copies bytes of a file through the pool, across page boundaries if needed.
+     * @param fileId registered file
+     * @param position byte position in the file
+     * @param target array receiving the bytes
+     * @param offset first index in the array
+     * @param length number of bytes to copy
+     * @throws IOException if a page cannot be read
+     */
+    public void read(int fileId, long position, byte[] target, int offset, int length) throws IOException {
+        while (length > 0) {
+            Page page = pin(fileId, position / PAGE_SIZE);
+            try {
+                int from = (int) (position % PAGE_SIZE);
+                int n = Math.min(length, PAGE_SIZE - from);
+                synchronized (page) {
+                    page.buffer.get(from, target, offset, n);
+                }
+                position += n;
+                offset += n;
+                length -= n;
+            } finally {
+                unpin(page, false);
+            }
+        }
+    }
+
+    /**
+     * Writes every dirty page of a file. Pages whose changes are durable in the log are written
+     * first; the log is then forced for the others without holding the pool.
+     * @param fileId registered file
+     * @throws IOException if a page cannot be written
+     */
+    public void flush(int fileId) throws IOException {
+        while (true) {
+            WriteAheadLog pageLog;
+            long lsn = 0;
+            synchronized (this) {
+                channel(fileId);
+                for (Page page : frames) {
+                    if (page.fileId == fileId && page.dirty) {
+                        long pageLsn = page.lsn();
+                        if (isDurable(pageLsn)) {
+                            writeBack(page);
+                        } else {
+                            lsn = Math.max(lsn, pageLsn);
+                        }
+                    }
+                }
+                if (lsn == 0) {
+                    return;
+                }
+                pageLog = log;
+            }
+            pageLog.flush(lsn);
+        }
+    }
+
+    /**
+     * Writes every page of a file that is dirty when the call starts, while the file stays in use.
+     * Unlike {@link #flush(int)}, the pool is locked for one page at a time and the log is forced
+     * without holding it, so other users wait at most for one page write. Each page is written
+     * under its latch; a page changed again meanwhile stays dirty.
+     * @param fileId registered file
+     * @throws IOException if a page cannot be written
+     */
+    public void writeDirtyPages(int fileId) throws IOException {
+        List<Page> dirtyPages = new ArrayList<>();
+        List<Long> pageNumbers = new ArrayList<>();
+        WriteAheadLog pageLog;
+        synchronized (this) {
+            channel(fileId);
+            for (Page page : frames) {
+                if (page.fileId == fileId && page.dirty) {
+                    dirtyPages.add(page);
+                    pageNumbers.add(page.pageNumber);
+                }
+            }
+            pageLog = log;
+        }
+        for (int i = 0; i < dirtyPages.size(); i++) {
+            Page page = dirtyPages.get(i);
+            long lsn = page.lsn();
+            while (true) {
+                if (lsn > 0 && pageLog != null) {
+                    pageLog.flush(lsn);
+                }
+                synchronized (this) {
+                    // A frame holding another page by now was written back when it was evicted
+                    if (page.fileId != fileId || page.pageNumber != pageNumbers.get(i)) break;
+                    synchronized (page) {
+                        if (page.dirty && !isDurable(page.lsn)) {
+                            // Changed again since the log was forced; force it further
+                            lsn = page.lsn;
+                            continue;
+                        }
+                        if (page.dirty) {
+                            writeBack(page);
+                        }
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Writes the dirty pages of a file, drops its pages from the pool and unregisters it.
+     * The channel is not closed.
+     * @param fileId registered file
+     * @throws IOException if a page cannot be written
+     */
+    public void release(int fileId) throws IOException {
+        try {
+            flush(fileId);
+        } finally {
+            discard(fileId);
+        }
+    }
+
+    /**
+     * Drops the pages of a file without writing them and unregisters it, e.g. for a read-only file.
+     * @param fileId registered file
+     */
+    public synchronized void discard(int fileId) {
+        for (Page page : frames) {
+            if (page.fileId == fileId) {
+                pageTable.remove(key(fileId, page.pageNumber));
+                page.fileId = -1;
+                page.pins = 0;
+                page.dirty = false;
+                page.referenced = false;
+                page.lsn = 0;
+                free.push(page);
+            }
+        }
+        files.remove(fileId);
+    }
+
+    /**
+     * @return maximum number of pages held
+     */
+    public int getCapacity() { return capacity; }
+
+    /**
+     * @return number of pages currently held
+     */
+    public synchronized int getPageCount() { return pageTable.size(); }
+
+    /**
+     * @return pins served from the pool
+     */
+    public synchronized long getHits() { return hits; }
+
+    /**
+     * @return pins that had to read the page from its file
+     */
+    public synchronized long getMisses() { return misses; }
+
+    /**
+     * @return pages dropped to make room for others
+     */
+    public synchronized long getEvictions() { return evictions; }
+
+    /**
+     * @return dirty pages written back to their files
+     */
+    public synchronized long getWrites() { return writes; }
+
+    @Override
+    public synchronized String toString() {
+        long pins = hits + misses;
+        return "Buffer pool: " + pageTable.size() + "/" + capacity + " page(s), " + hits + " hit(s), "
+                + misses + " miss(es)" + (pins > 0 ? " (" + (hits * 100 / pins) + "% hit rate)" : "")
+                + ", " + evictions + " eviction(s), " + writes + " write(s).";
+    }
+
+    /**
+     * Finds a frame for a new page: an unused one while the budget allows, otherwise the first
+     * unpinned page the clock hand reaches without its reference bit. Dirty pages whose changes are
+     * not yet durable in the log are passed over.
+     * @return frame, or null if only pages waiting for the log could be evicted; {@link #awaitedLsn}
+     *         then holds the lowest LSN they wait for
+     */
+    private Page victim() throws IOException {
+        if (!free.isEmpty()) {
+            return free.pop();
+        }
+        if (frames.size() < capacity) {
+            Page page = new Page();
+            frames.add(page);
+            return page;
+        }
+        long awaited = Long.MAX_VALUE;
+        // Two sweeps clear every reference bit, so a third finding nothing means all pages are pinned
+        for (int step = 0; step < 3 * frames.size(); step++) {
+            Page page = frames.get(hand);
+            hand = (hand + 1) % frames.size();
+            if (page.pins > 0) continue;
+            if (page.referenced) {
+                page.referenced = false;
+                continue;
+            }
+            if (page.dirty) {
+                long lsn = page.lsn();
+                if (!isDurable(lsn)) {
+                    awaited = Math.min(awaited, lsn);
+                    continue;
+                }
+                writeBack(page);
+            }
+            pageTable.remove(key(page.fileId, page.pageNumber));
+            page.fileId = -1;
+            evictions++;
+            return page;
+        }
+        if (awaited != Long.MAX_VALUE) {
+            awaitedLsn = awaited;
+            return null;
+        }
+        throw new IllegalStateException("Buffer pool exhausted: all " + frames.size() + " pages are pinned");
+    }
+
+    /**
+     * @return true if the log is durable past an LSN, so a page carrying it may be written back
+     */
+    private boolean isDurable(long lsn) {
+        return lsn == 0 || log == null || lsn < log.getDurableLsn();
+    }
+
+    /**
+     * Writes a page to its file; the log must already be durable past the page's LSN.
+     */
+    private void writeBack(Page page) throws IOException {
+        FileChannel channel = channel(page.fileId);
+        ByteBuffer buf = page.buffer.duplicate();
+        buf.clear();
+        long position = page.pageNumber * PAGE_SIZE;
+        while (buf.hasRemaining()) {
+            channel.write(buf, position + buf.position());
+        }
+        page.dirty = false;
+        writes++;
+    }
+
+    private FileChannel channel(int fileId) {
+        FileChannel channel = files.get(fileId);
+        if (channel == null) {
+            throw new IllegalStateException("File " + fileId + " is not registered with the buffer pool");
+        }
+        return channel;
+    }
+
+    private static Long key(int fileId, long pageNumber) {
+        return ((long) fileId << 40) | pageNumber;
+    }
+}
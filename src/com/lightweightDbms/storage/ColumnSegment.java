@@ -0,0 +1,329 @@
+package com.lightweightDbms.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Values of one column for the rows of a row group of a {@link ColumnarTableStore}, read in place
+ * from the group file, or from the segment decompressed from its blocks in a compressed group.
+ * <p>
+ * A segment is encoded in whichever of three ways is smallest: plain, as the values one after the
+ * other with their offsets; as a dictionary of the distinct values with a bit-packed code per row;
+ * or run-length, as the same dictionary with one bit-packed code per run of equal values and the
+ * row at which each run ends. Codes use as few bits as the dictionary needs, none if it holds one
+ * value. Every encoding gives any row's value without decoding the others.
+ * <p>
+ * Layout: encoding and flags bytes, minimum and maximum as numbers (doubles) and as strings (int
+ * length and UTF-8 bytes), then for the encoding:
+ * <pre>
+ *   PLAIN:      int[rows + 1] value offsets, value bytes
+ *   DICTIONARY: int entries, byte code width, int[entries + 1] entry offsets, entry bytes, packed codes
+ *   RUN_LENGTH: int entries, byte code width, int[entries + 1] entry offsets, entry bytes,
+ *               int runs, int[runs] run ends (exclusive), packed run codes
+ * </pre>
+ * Offsets are relative to the first value or entry byte. Packed codes are little-endian bit
+ * strings followed by three bytes of padding, so a code is always read with three byte loads.
+ */
+final class ColumnSegment {
+    static final byte PLAIN = 0;
+    static final byte DICTIONARY = 1;
+    static final byte RUN_LENGTH = 2;
+
+    private static final int HAS_VALUES = 1; // some row has a value in this column
+    private static final int NUMERIC = 2; // every value parses as a number
+    private static final int PADDING = 3;
+
+    private final ByteBuffer buffer;
+    private final byte encoding;
+    private final TableStore.ValueRange range;
+    private final int offsetsPos;
+    private final int dataPos;
+    private final int width;
+    private final int runs;
+    private final int runEndsPos;
+    private final int codesPos;
+
+    /**
+     * @param buffer buffer holding the group file or the segment
+     * @param offset position of the segment in the buffer
+     * @param rows rows of the group
+     */
+    ColumnSegment(ByteBuffer buffer, int offset, int rows) {
+        this.buffer = buffer;
+        encoding = buffer.get(offset);
+        range = range(buffer, offset);
+        int pos = offset + headerLength(buffer, offset);
+        if (encoding == PLAIN) {
+            offsetsPos = pos;
+            dataPos = pos + 4 * (rows + 1);
+            width = 0;
+            runs = 0;
+            runEndsPos = 0;
+            codesPos = 0;
+            return;
+        }
+        if (encoding != DICTIONARY && encoding != RUN_LENGTH) {
+            throw new IllegalStateException("Unknown column encoding " + encoding);
+        }
+        int entries = buffer.getInt(pos);
+        width = buffer.get(pos + 4);
+        offsetsPos = pos + 5;
+        dataPos = offsetsPos + 4 * (entries + 1);
+        pos = dataPos + buffer.getInt(offsetsPos + 4 * entries);
+        if (encoding == RUN_LENGTH) {
+            runs = buffer.getInt(pos);
+            runEndsPos = pos + 4;
+            codesPos = runEndsPos + 4 * runs;
+        } else {
+            runs = 0;
+            runEndsPos = 0;
+            codesPos = pos;
+        }
+    }
+
+    /**
+     * Reads the range of a segment without reading its values.
+     * @param buffer buffer holding the segment's header
+     * @param offset position of the segment in the buffer
+     * @return minimum and maximum of the values, or null if no row has a value in this column
+     */
+    static TableStore.ValueRange range(ByteBuffer buffer, int offset) {
+        int flags = buffer.get(offset + 1);
+        if ((flags & HAS_VALUES) == 0) {
+            return null;
+        }
+        int pos = offset + 18;
+        String min = string(buffer, pos);
+        String max = string(buffer, pos + 4 + buffer.getInt(pos));
+        return new TableStore.ValueRange(min, max, (flags & NUMERIC) != 0,
+                buffer.getDouble(offset + 2), buffer.getDouble(offset + 10));
+    }
+
+    /**
+     * @param buffer buffer holding the segment's header
+     * @param offset position of the segment in the buffer
+     * @return length of the header: encoding, flags and range, which precede the values
+     */
+    static int headerLength(ByteBuffer buffer, int offset) {
+        int maxPos = offset + 18 + 4 + buffer.getInt(offset + 18);
+        return maxPos + 4 + buffer.getInt(maxPos) - offset;
+    }
+
+    /**
+     * @return buffer the segment is read from; {@link #offset} gives positions in it
+     */
+    ByteBuffer buffer() { return buffer; }
+
+    /**
+     * @return encoding of the segment
+     */
+    byte getEncoding() { return encoding; }
+
+    /**
+     * @return minimum and maximum of the values, or null if no row has a value in this column
+     */
+    TableStore.ValueRange range() { return range; }
+
+    /**
+     * @param row row in the group
+     * @return position of the row's UTF-8 bytes in the buffer
+     */
+    int offset(int row) {
+        return dataPos + buffer.getInt(offsetsPos + 4 * (encoding == PLAIN ? row : entry(row)));
+    }
+
+    /**
+     * @param row row in the group
+     * @return number of UTF-8 bytes of the row's value
+     */
+    int length(int row) {
+        int at = offsetsPos + 4 * (encoding == PLAIN ? row : entry(row));
+        return buffer.getInt(at + 4) - buffer.getInt(at);
+    }
+
+    /**
+     * @param row row in the group
+     * @return the row's value
+     */
+    String get(int row) {
+        byte[] bytes = new byte[length(row)];
+        buffer.get(offset(row), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return dictionary entry holding the value of a row
+     */
+    private int entry(int row) {
+        if (encoding == DICTIONARY) {
+            return code(row);
+        }
+        // First run ending after the row
+        int low = 0;
+        int high = runs - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (buffer.getInt(runEndsPos + 4 * mid) <= row) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return code(low);
+    }
+
+    private int code(int index) {
+        if (width == 0) return 0;
+        long bit = (long) index * width;
+        int pos = codesPos + (int) (bit >>> 3);
+        int word = (buffer.get(pos) & 0xFF) | (buffer.get(pos + 1) & 0xFF) << 8 | (buffer.get(pos + 2) & 0xFF) << 16;
+        return (word >>> (bit & 7)) & ((1 << width) - 1);
+    }
+
+    private static String string(ByteBuffer buffer, int pos) {
+        byte[] bytes = new byte[buffer.getInt(pos)];
+        buffer.get(pos + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes the values of a column.
+     * @param values UTF-8 value of every row of the group, null for rows without a value in this
+     *               column; such rows read as empty and are left out of the minimum and maximum
+     * @return encoded segment
+     */
+    static byte[] encode(byte[][] values) {
+        int rows = values.length;
+        // Dictionary; ISO-8859-1 maps bytes to chars one to one, so it serves as a byte-array key
+        Map<String, Integer> codes = new HashMap<>();
+        int[] rowCodes = new int[rows];
+        byte[][] entries = new byte[16][];
+        boolean[] present = new boolean[entries.length];
+        int entryCount = 0;
+        long entryBytes = 0;
+        long valueBytes = 0;
+        int runCount = 0;
+        for (int row = 0; row < rows; row++) {
+            byte[] value = values[row] == null ? new byte[0] : values[row];
+            valueBytes += value.length;
+            String key = new String(value, StandardCharsets.ISO_8859_1);
+            Integer code = codes.get(key);
+            if (code == null) {
+                code = entryCount++;
+                codes.put(key, code);
+                if (code == entries.length) {
+                    entries = Arrays.copyOf(entries, entries.length * 2);
+                    present = Arrays.copyOf(present, entries.length);
+                }
+                entries[code] = value;
+                entryBytes += value.length;
+            }
+            present[code] |= values[row] != null;
+            rowCodes[row] = code;
+            if (row == 0 || rowCodes[row - 1] != code) {
+                runCount++;
+            }
+        }
+        int width = entryCount <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(entryCount - 1);
+        long dictionary = 5 + 4L * (entryCount + 1) + entryBytes;
+        long plainSize = 4L * (rows + 1) + valueBytes;
+        long dictionarySize = dictionary + packedSize(rows, width);
+        long runLengthSize = dictionary + 4 + 4L * runCount + packedSize(runCount, width);
+        byte encoding = plainSize <= Math.min(dictionarySize, runLengthSize) ? PLAIN
+                : dictionarySize <= runLengthSize ? DICTIONARY : RUN_LENGTH;
+
+        // Minimum and maximum over the entries some row has as its value
+        String min = null;
+        String max = null;
+        boolean numeric = true;
+        double minNumber = Double.POSITIVE_INFINITY;
+        double maxNumber = Double.NEGATIVE_INFINITY;
+        for (int code = 0; code < entryCount; code++) {
+            if (!present[code]) continue;
+            String value = new String(entries[code], StandardCharsets.UTF_8);
+            if (min == null || value.compareTo(min) < 0) min = value;
+            if (max == null || value.compareTo(max) > 0) max = value;
+            if (numeric) {
+                try {
+                    double number = Double.parseDouble(value);
+                    if (Double.compare(number, minNumber) < 0) minNumber = number;
+                    if (Double.compare(number, maxNumber) > 0) maxNumber = number;
+                } catch (NumberFormatException e) {
+                    numeric = false;
+                }
+            }
+        }
+        byte[] minBytes = min == null ? new byte[0] : min.getBytes(StandardCharsets.UTF_8);
+        byte[] maxBytes = max == null ? new byte[0] : max.getBytes(StandardCharsets.UTF_8);
+        long size = 2 + 16 + 8 + minBytes.length + maxBytes.length
+                + (encoding == PLAIN ? plainSize : encoding == DICTIONARY ? dictionarySize : runLengthSize);
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Column segment of " + size + " bytes is too large");
+        }
+        ByteBuffer out = ByteBuffer.allocate((int) size);
+        out.put(encoding);
+        out.put((byte) ((min != null ? HAS_VALUES : 0) | (min != null && numeric ? NUMERIC : 0)));
+        out.putDouble(min != null && numeric ? minNumber : 0);
+        out.putDouble(min != null && numeric ? maxNumber : 0);
+        out.putInt(minBytes.length).put(minBytes);
+        out.putInt(maxBytes.length).put(maxBytes);
+        if (encoding == PLAIN) {
+            int offset = 0;
+            for (byte[] value : values) {
+                out.putInt(offset);
+                offset += value == null ? 0 : value.length;
+            }
+            out.putInt(offset);
+            for (byte[] value : values) {
+                if (value != null) out.put(value);
+            }
+            return out.array();
+        }
+        out.putInt(entryCount);
+        out.put((byte) width);
+        int offset = 0;
+        for (int code = 0; code < entryCount; code++) {
+            out.putInt(offset);
+            offset += entries[code].length;
+        }
+        out.putInt(offset);
+        for (int code = 0; code < entryCount; code++) {
+            out.put(entries[code]);
+        }
+        if (encoding == DICTIONARY) {
+            pack(out, rowCodes, rows, width);
+        } else {
+            out.putInt(runCount);
+            int[] runCodes = new int[runCount];
+            int run = 0;
+            for (int row = 1; row <= rows; row++) {
+                if (row == rows || rowCodes[row] != rowCodes[row - 1]) {
+                    out.putInt(row);
+                    runCodes[run++] = rowCodes[row - 1];
+                }
+            }
+            pack(out, runCodes, runCount, width);
+        }
+        return out.array();
+    }
+
+    private static long packedSize(long count, int width) {
+        return (count * width + 7) / 8 + PADDING;
+    }
+
+    private static void pack(ByteBuffer out, int[] codes, int count, int width) {
+        byte[] packed = new byte[(int) packedSize(count, width)];
+        long bit = 0;
+        for (int i = 0; i < count && width > 0; i++, bit += width) {
+            int value = codes[i] << (bit & 7);
+            int pos = (int) (bit >>> 3);
+            packed[pos] |= (byte) value;
+            packed[pos + 1] |= (byte) (value >>> 8);
+            packed[pos + 2] |= (byte) (value >>> 16);
+        }
+        out.put(packed);
+    }
+}
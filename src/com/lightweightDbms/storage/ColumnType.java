@@ -0,0 +1,395 @@
+package com.lightweightDbms.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.Locale;
+
+/**
+ * Type of a column as declared in {@code CREATE TABLE} (e.g. {@code id:int} or {@code name:varchar(40)}).
+ * <p>
+ * Values travel as text; each type has one canonical text per value ({@code 7} for {@code 007} in an
+ * int column), which {@link #normalize} produces and decoding a stored value gives back. Types of a
+ * fixed width store their values in binary in table rows: int in four bytes, bigint, double and
+ * timestamp (microseconds since 1970-01-01 00:00, no time zone) in eight, boolean in one. An empty
+ * value is no value, in every type. Columns without a type or with an unknown one hold any text.
+ */
+public final class ColumnType {
+    /**
+     * Kinds of values a column can hold.
+     */
+    public enum Kind {
+        INT(Integer.BYTES),
+        BIGINT(Long.BYTES),
+        DOUBLE(Double.BYTES),
+        BOOLEAN(1),
+        TIMESTAMP(Long.BYTES),
+        VARCHAR(0),
+        TEXT(0);
+
+        private final int width;
+
+        Kind(int width) {
+            this.width = width;
+        }
+    }
+
+    /** 32-bit signed integers. */
+    public static final ColumnType INT = new ColumnType(Kind.INT, 0);
+    /** 64-bit signed integers. */
+    public static final ColumnType BIGINT = new ColumnType(Kind.BIGINT, 0);
+    /** 64-bit floating point numbers. */
+    public static final ColumnType DOUBLE = new ColumnType(Kind.DOUBLE, 0);
+    /** {@code true} or {@code false}. */
+    public static final ColumnType BOOLEAN = new ColumnType(Kind.BOOLEAN, 0);
+    /**
+     * Date and time of day to the microsecond, e.g. {@code 2024-03-01 12:30:00.25}; accepted as
+     * {@code yyyy-MM-dd}, optionally followed by a space or {@code T} and {@code HH:mm},
+     * {@code HH:mm:ss} or {@code HH:mm:ss.ffffff}.
+     */
+    public static final ColumnType TIMESTAMP = new ColumnType(Kind.TIMESTAMP, 0);
+    /** Any text. */
+    public static final ColumnType TEXT = new ColumnType(Kind.TEXT, 0);
+
+    private static final int MICROS = 1_000_000;
+    private static final int DAY_SECONDS = 86_400;
+
+    private final Kind kind;
+    private final int maxLength;
+
+    private ColumnType(Kind kind, int maxLength) {
+        this.kind = kind;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @param maxLength most characters a value may have
+     * @return text type bounded in length
+     */
+    public static ColumnType varchar(int maxLength) {
+        if (maxLength <= 0) {
+            throw new IllegalArgumentException("VARCHAR length must be positive: " + maxLength);
+        }
+        return new ColumnType(Kind.VARCHAR, maxLength);
+    }
+
+    /**
+     * Resolves the type of a column from its definition.
+     * @param definition column definition, {@code name} or {@code name:type}
+     * @return declared type; TEXT without a type or for an unknown one
+     * @throws IllegalArgumentException if a VARCHAR length is not a positive number
+     */
+    public static ColumnType forColumn(String definition) {
+        int colon = definition.indexOf(':');
+        if (colon < 0) {
+            return TEXT;
+        }
+        String type = definition.substring(colon + 1).trim().toLowerCase(Locale.ROOT);
+        int paren = type.indexOf('(');
+        if (paren > 0 && type.endsWith(")")) {
+            String base = type.substring(0, paren).trim();
+            if (base.equals("varchar") || base.equals("char")) {
+                try {
+                    return varchar(Integer.parseInt(type.substring(paren + 1, type.length() - 1).trim()));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid VARCHAR length in '" + definition + "'");
+                }
+            }
+        }
+        switch (type) {
+            case "int":
+            case "integer":
+            case "smallint":
+                return INT;
+            case "long":
+            case "bigint":
+                return BIGINT;
+            case "double":
+            case "float":
+            case "real":
+                return DOUBLE;
+            case "bool":
+            case "boolean":
+                return BOOLEAN;
+            case "timestamp":
+            case "datetime":
+                return TIMESTAMP;
+            default:
+                return TEXT;
+        }
+    }
+
+    /**
+     * @return kind of values of the type
+     */
+    public Kind getKind() { return kind; }
+
+    /**
+     * @return most characters of a VARCHAR value, 0 for other types
+     */
+    public int getMaxLength() { return maxLength; }
+
+    /**
+     * @return true if values are stored in binary of {@link #width()} bytes
+     */
+    public boolean isFixedWidth() { return kind.width > 0; }
+
+    /**
+     * @return bytes of a stored value, 0 for types stored as UTF-8 text
+     */
+    public int width() { return kind.width; }
+
+    /**
+     * @return true for INT and BIGINT
+     */
+    public boolean isInteger() { return kind == Kind.INT || kind == Kind.BIGINT; }
+
+    /**
+     * Checks a value against the type.
+     * @param value value as text; null, empty or, for fixed-width types, {@code NULL} for no value
+     * @return canonical text of the value, empty for no value
+     * @throws IllegalArgumentException if the value is not of this type
+     */
+    public String normalize(String value) {
+        if (value == null || value.isEmpty() || (isFixedWidth() && value.equalsIgnoreCase("NULL"))) {
+            return "";
+        }
+        switch (kind) {
+            case INT:
+                return Integer.toString((int) parseLong(value));
+            case BIGINT:
+            case BOOLEAN:
+            case TIMESTAMP:
+                return format(parseLong(value));
+            case DOUBLE:
+                return Double.toString(parseDouble(value));
+            case VARCHAR:
+                if (value.codePointCount(0, value.length()) > maxLength) {
+                    throw new IllegalArgumentException("Value longer than " + this + ": '" + value + "'");
+                }
+                return value;
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Parses a value of an INT, BIGINT, BOOLEAN (1 or 0) or TIMESTAMP (microseconds) column.
+     * @param value value as text
+     * @return the value as a number
+     * @throws IllegalArgumentException if the value is not of this type
+     */
+    public long parseLong(String value) {
+        String text = value.trim();
+        try {
+            switch (kind) {
+                case INT:
+                    return Integer.parseInt(text);
+                case BIGINT:
+                    return Long.parseLong(text);
+                case BOOLEAN:
+                    switch (text.toLowerCase(Locale.ROOT)) {
+                        case "true": case "t": case "yes": case "1":
+                            return 1;
+                        case "false": case "f": case "no": case "0":
+                            return 0;
+                        default:
+                            throw new IllegalArgumentException("Not of type " + this + ": '" + value + "'");
+                    }
+                case TIMESTAMP:
+                    return parseTimestamp(text);
+                default:
+                    throw new IllegalStateException(this + " values are not integers");
+            }
+        } catch (NumberFormatException | DateTimeException | ArithmeticException e) {
+            throw new IllegalArgumentException("Not of type " + this + ": '" + value + "'");
+        }
+    }
+
+    /**
+     * @param value value as text
+     * @return the value of a DOUBLE column
+     * @throws IllegalArgumentException if the value is not a number
+     */
+    public double parseDouble(String value) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not of type " + this + ": '" + value + "'");
+        }
+    }
+
+    /**
+     * @param value value of an INT, BIGINT, BOOLEAN or TIMESTAMP column as returned by {@link #parseLong}
+     * @return canonical text of the value
+     */
+    public String format(long value) {
+        switch (kind) {
+            case BOOLEAN:
+                return value != 0 ? "true" : "false";
+            case TIMESTAMP:
+                return formatTimestamp(value);
+            default:
+                return Long.toString(value);
+        }
+    }
+
+    /**
+     * Parses a timestamp without a formatter, which would cost more than the rest of an insert.
+     * @return microseconds since 1970-01-01 00:00
+     */
+    private static long parseTimestamp(String text) {
+        int length = text.length();
+        if (length < 10 || text.charAt(4) != '-' || text.charAt(7) != '-') {
+            throw new DateTimeException(text);
+        }
+        long seconds = LocalDate.of(digits(text, 0, 4), digits(text, 5, 2), digits(text, 8, 2)).toEpochDay() * DAY_SECONDS;
+        long fraction = 0;
+        if (length > 10) {
+            char separator = text.charAt(10);
+            if ((separator != ' ' && separator != 'T') || length < 16 || text.charAt(13) != ':') {
+                throw new DateTimeException(text);
+            }
+            int hour = digits(text, 11, 2);
+            int minute = digits(text, 14, 2);
+            int second = 0;
+            if (length > 16) {
+                if (length < 19 || text.charAt(16) != ':') {
+                    throw new DateTimeException(text);
+                }
+                second = digits(text, 17, 2);
+                int fractionDigits = length - 20;
+                if (length > 19 && (text.charAt(19) != '.' || fractionDigits < 1 || fractionDigits > 6)) {
+                    throw new DateTimeException(text);
+                }
+                for (int i = 0; i < 6; i++) {
+                    fraction = fraction * 10 + (i < fractionDigits ? digits(text, 20 + i, 1) : 0);
+                }
+            }
+            if (hour > 23 || minute > 59 || second > 59) {
+                throw new DateTimeException(text);
+            }
+            seconds += hour * 3600 + minute * 60 + second;
+        }
+        return seconds * MICROS + fraction;
+    }
+
+    private static int digits(String text, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new DateTimeException(text);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static String formatTimestamp(long value) {
+        long seconds = Math.floorDiv(value, MICROS);
+        int micros = Math.floorMod(value, MICROS);
+        LocalDate date = LocalDate.ofEpochDay(Math.floorDiv(seconds, DAY_SECONDS));
+        int time = Math.floorMod(seconds, DAY_SECONDS);
+        StringBuilder text = new StringBuilder(26);
+        pad(text, date.getYear(), 4).append('-');
+        pad(text, date.getMonthValue(), 2).append('-');
+        pad(text, date.getDayOfMonth(), 2).append(' ');
+        pad(text, time / 3600, 2).append(':');
+        pad(text, time / 60 % 60, 2).append(':');
+        pad(text, time % 60, 2);
+        if (micros != 0) {
+            int digits = 6;
+            while (micros % 10 == 0) {
+                micros /= 10;
+                digits--;
+            }
+            pad(text.append('.'), micros, digits);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Appends the last {@code width} digits of a non-negative value, zero-padded.
+     */
+    private static StringBuilder pad(StringBuilder text, int value, int width) {
+        int divisor = 1;
+        for (int i = 1; i < width; i++) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            text.append((char) ('0' + value / divisor % 10));
+        }
+        return text;
+    }
+
+    /**
+     * Reads a stored value of an INT, BIGINT, BOOLEAN or TIMESTAMP column.
+     * @param buffer buffer holding the value
+     * @param offset position of the value's {@link #width()} bytes
+     * @return the value as {@link #parseLong} returns it
+     */
+    public long readLong(ByteBuffer buffer, int offset) {
+        switch (kind) {
+            case INT:
+                return buffer.getInt(offset);
+            case BOOLEAN:
+                return buffer.get(offset);
+            default:
+                return buffer.getLong(offset);
+        }
+    }
+
+    /**
+     * Encodes a value for a table row.
+     * @param value value as text
+     * @return binary value for fixed-width types, UTF-8 otherwise; empty for no value
+     * @throws IllegalArgumentException if the value is not of this type
+     */
+    byte[] encode(String value) {
+        if (value == null || value.isEmpty()) {
+            return new byte[0];
+        }
+        switch (kind) {
+            case INT:
+                return ByteBuffer.allocate(Integer.BYTES).putInt((int) parseLong(value)).array();
+            case BIGINT:
+            case TIMESTAMP:
+                return ByteBuffer.allocate(Long.BYTES).putLong(parseLong(value)).array();
+            case BOOLEAN:
+                return new byte[] {(byte) parseLong(value)};
+            case DOUBLE:
+                return ByteBuffer.allocate(Double.BYTES).putDouble(parseDouble(value)).array();
+            default:
+                return value.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Decodes a value encoded by {@link #encode}.
+     * @param buffer buffer holding the value
+     * @param offset position of the value
+     * @param length number of bytes of the value
+     * @return canonical text of the value, empty for no value
+     */
+    String decode(ByteBuffer buffer, int offset, int length) {
+        if (length == 0) {
+            return "";
+        }
+        if (!isFixedWidth()) {
+            byte[] bytes = new byte[length];
+            buffer.get(offset, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        if (length != width()) {
+            throw new IllegalStateException("Corrupt " + this + " value of " + length + " bytes");
+        }
+        return kind == Kind.DOUBLE ? Double.toString(buffer.getDouble(offset)) : format(readLong(buffer, offset));
+    }
+
+    @Override
+    public String toString() {
+        return kind == Kind.VARCHAR ? "VARCHAR(" + maxLength + ")" : kind.name();
+    }
+}
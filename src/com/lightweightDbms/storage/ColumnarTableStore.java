@@ -0,0 +1,1072 @@
+package com.lightweightDbms.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Table store keeping every column apart, for analytic queries that read a few columns of wide tables.
+ * <p>
+ * Rows are stored in row groups of up to {@link #GROUP_ROWS} rows. Rows of the newest group, the
+ * open one, are kept in memory in row format; once it is full the group is sealed into an immutable
+ * file holding one {@link ColumnSegment} per column, encoded as a dictionary, as runs or plain,
+ * whichever is smallest, with the range of its values. Group files are memory-mapped, so reading a
+ * value only touches the pages of its column; {@link #scanColumns} tests the filter column first and
+ * skips groups whose range of that column rules the filter out. With a {@link BlockCodec} other
+ * than {@link BlockCodec#NONE}, the values of each segment are compressed in blocks of the codec's
+ * {@link BlockCodec#blockSize()}, listed in a directory of their offsets and lengths before and
+ * after compression. Segment headers, which hold the ranges, stay uncompressed, so a group is
+ * skipped without decompressing anything; the blocks of a column are decompressed when it is first
+ * read and held only softly, so memory pressure drops them again.
+ * <p>
+ * A locator holds the group number above the row number in the group, which takes the lower 16 bits.
+ * Sealed rows never change: a delete sets a bit in the group's deletion bitmap and an update deletes
+ * the row and inserts its new values as a new row, so every locator only ever holds one record.
+ * Deleted rows keep their space until {@link #compact()} rewrites the table.
+ * <p>
+ * The table is a directory holding the group files and a {@code MANIFEST} listing them with their
+ * deletion bitmaps, the table counters and the rows of the open group. The manifest is replaced
+ * atomically when a group is sealed and on every flush and checkpoint; group files it does not list
+ * are deleted on open. Once a {@link WriteAheadLog} is attached, every change is logged before it is
+ * applied and the manifest is only written once the log holds all of its changes. The manifest
+ * records the log position up to which it does; recovery replays the log from there on
+ * {@link #redo}, and the first replayed record moves the table to a new generation.
+ * <p>
+ * Readers share a read lock and writers take the write lock, so scans hold writers back.
+ */
+public final class ColumnarTableStore implements TableStore {
+    /** Column-oriented format, stored in {@code .col} directories. */
+    public static final Format FORMAT = new Format() {
+        @Override
+        public String name() { return "COLUMNAR"; }
+
+        @Override
+        public String extension() { return ".col"; }
+
+        @Override
+        public boolean compresses() { return true; }
+
+        @Override
+        public TableStore create(File file, List<String> columns, BufferPool pool) throws IOException {
+            return ColumnarTableStore.create(file, columns);
+        }
+
+        @Override
+        public TableStore open(File file, BufferPool pool) throws IOException {
+            return ColumnarTableStore.open(file);
+        }
+    };
+
+    /** Rows of a row group. */
+    static final int GROUP_ROWS = 1 << 16;
+
+    private static final int MAGIC = 0x434F4C54; // "COLT"
+    private static final int GROUP_MAGIC = 0x434F4C47; // "COLG"
+    private static final int PACKED_MAGIC = 0x434F4C42; // "COLB", a group compressed in blocks
+    private static final int PACKED_SEGMENTS = 20; // segment directory of a compressed group
+    private static final int SEGMENT_ENTRY = 16; // header offset and length, values length, first block
+    private static final int BLOCK_ENTRY = 13; // offset, stored length, raw length and codec
+    private static final int VERSION = 1;
+    private static final String MANIFEST = "MANIFEST";
+    private static final String GROUP_SUFFIX = ".grp";
+
+    private final File dir;
+    private final String[] columns;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<RowGroup> groups = new ArrayList<>();
+    private final List<byte[]> open = new ArrayList<>(); // rows of the open group, null once deleted
+    private WriteAheadLog log;
+    private String logName;
+    private boolean closed;
+
+    private long recordCount;
+    private int generation;
+    private long changes;
+    private boolean replayed;
+    private long nextFile = 1;
+    private volatile BlockCodec codec = BlockCodec.NONE;
+    private volatile long redoLsn; // log position from which changes may be missing from the manifest
+
+    /**
+     * Sealed row group, mapped from its file. Only the deletion bitmap changes.
+     */
+    private static final class RowGroup {
+        final long file;
+        final int rows;
+        final ByteBuffer data;
+        final boolean packed; // segments compressed in blocks
+        final ValueRange[] ranges; // of every segment, the widths first
+        final int uniformWidth; // width of every row if the same for all, otherwise -1
+        final BitSet deleted;
+        private final ColumnSegment[] segments; // of a group that is not compressed
+        private final SoftReference<ColumnSegment>[] decoded; // of a compressed group, once read
+
+        @SuppressWarnings("unchecked")
+        RowGroup(long file, ByteBuffer data, BitSet deleted) throws IOException {
+            int magic = data.getInt(0);
+            if ((magic != GROUP_MAGIC && magic != PACKED_MAGIC) || data.getInt(4) != VERSION) {
+                throw new IOException("Not a compatible row group: " + file);
+            }
+            this.file = file;
+            this.data = data;
+            this.deleted = deleted;
+            packed = magic == PACKED_MAGIC;
+            rows = data.getInt(8);
+            ranges = new ValueRange[data.getInt(12)];
+            if (packed) {
+                segments = null;
+                decoded = new SoftReference[ranges.length];
+                for (int i = 0; i < ranges.length; i++) {
+                    ranges[i] = ColumnSegment.range(data, data.getInt(PACKED_SEGMENTS + SEGMENT_ENTRY * i));
+                }
+            } else {
+                decoded = null;
+                segments = new ColumnSegment[ranges.length];
+                for (int i = 0; i < ranges.length; i++) {
+                    segments[i] = new ColumnSegment(data, data.getInt(16 + 4 * i), rows);
+                    ranges[i] = segments[i].range();
+                }
+            }
+            ValueRange range = ranges[0];
+            uniformWidth = range != null && range.getMin().equals(range.getMax()) ? Integer.parseInt(range.getMin()) : -1;
+        }
+
+        /**
+         * @return number of columns some row of the group has a value in
+         */
+        int columnCount() { return ranges.length - 1; }
+
+        /**
+         * @return segment of a column, decompressing it if the group is compressed and the column
+         *         was not read since memory was last short
+         */
+        ColumnSegment column(int column) throws IOException {
+            return segment(column + 1);
+        }
+
+        private ColumnSegment segment(int index) throws IOException {
+            if (!packed) {
+                return segments[index];
+            }
+            // Readers may decompress a segment at the same time; either copy serves
+            SoftReference<ColumnSegment> reference = decoded[index];
+            ColumnSegment segment = reference == null ? null : reference.get();
+            if (segment == null) {
+                segment = new ColumnSegment(ByteBuffer.wrap(decompress(index)), 0, rows);
+                decoded[index] = new SoftReference<>(segment);
+            }
+            return segment;
+        }
+
+        /**
+         * @return the header and the decompressed values of a segment
+         */
+        private byte[] decompress(int index) throws IOException {
+            int entry = PACKED_SEGMENTS + SEGMENT_ENTRY * index;
+            int headerLength = data.getInt(entry + 4);
+            byte[] segment = new byte[headerLength + data.getInt(entry + 8)];
+            data.get(data.getInt(entry), segment, 0, headerLength);
+            int blocks = PACKED_SEGMENTS + SEGMENT_ENTRY * ranges.length;
+            int filled = headerLength;
+            for (int block = data.getInt(entry + 12); filled < segment.length; block++) {
+                int at = blocks + BLOCK_ENTRY * block;
+                byte[] stored = new byte[data.getInt(at + 4)];
+                data.get(data.getInt(at), stored);
+                int rawLength = data.getInt(at + 8);
+                if (rawLength > segment.length - filled) {
+                    throw new IOException("Corrupt block directory in row group " + file);
+                }
+                byte[] raw;
+                try {
+                    raw = BlockCodec.forId(data.get(at + 12)).decompress(stored, 0, stored.length, rawLength);
+                } catch (IOException e) {
+                    throw new IOException(e.getMessage() + " in row group " + file, e);
+                }
+                System.arraycopy(raw, 0, segment, filled, rawLength);
+                filled += rawLength;
+            }
+            return segment;
+        }
+
+        int width(int row) throws IOException {
+            if (uniformWidth >= 0) return uniformWidth;
+            ColumnSegment widths = segment(0);
+            ByteBuffer buffer = widths.buffer();
+            int offset = widths.offset(row);
+            int width = 0;
+            for (int i = 0, length = widths.length(row); i < length; i++) {
+                width = width * 10 + buffer.get(offset + i) - '0';
+            }
+            return width;
+        }
+
+        boolean isLive(int row) {
+            return row < rows && !deleted.get(row);
+        }
+
+        String[] values(int row) throws IOException {
+            String[] values = new String[width(row)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = column(i).get(row);
+            }
+            return values;
+        }
+    }
+
+    /**
+     * View of a sealed row; values are read from their column when asked for. The columns of a
+     * compressed group are decompressed apart, so the row's values are copied into one buffer when
+     * {@link #buffer()} or {@link #offset} is asked for.
+     */
+    private static final class GroupRecord implements RecordView {
+        private RowGroup group;
+        private int row;
+        private int size;
+        private ByteBuffer copy;
+        private int[] offsets;
+
+        void reset(RowGroup group, int row, int size) {
+            this.group = group;
+            this.row = row;
+            this.size = size;
+            copy = null;
+        }
+
+        @Override
+        public int size() { return size; }
+
+        @Override
+        public ByteBuffer buffer() { return group.packed ? copy() : group.data; }
+
+        @Override
+        public int offset(int column) {
+            if (group.packed) {
+                copy();
+                return offsets[column];
+            }
+            return column(column).offset(row);
+        }
+
+        @Override
+        public int length(int column) { return column(column).length(row); }
+
+        @Override
+        public String get(int column) { return column(column).get(row); }
+
+        private ColumnSegment column(int column) {
+            try {
+                return group.column(column);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private ByteBuffer copy() {
+            if (copy == null) {
+                offsets = new int[size + 1];
+                for (int c = 0; c < size; c++) {
+                    offsets[c + 1] = offsets[c] + length(c);
+                }
+                byte[] bytes = new byte[offsets[size]];
+                for (int c = 0; c < size; c++) {
+                    ColumnSegment segment = column(c);
+                    segment.buffer().get(segment.offset(row), bytes, offsets[c], offsets[c + 1] - offsets[c]);
+                }
+                copy = ByteBuffer.wrap(bytes);
+            }
+            return copy;
+        }
+    }
+
+    private ColumnarTableStore(File dir, String[] columns) {
+        this.dir = dir;
+        this.columns = columns;
+    }
+
+    /**
+     * Creates an empty table directory.
+     * @param dir table directory to create
+     * @param columns column definitions
+     * @return open store
+     * @throws IOException if the directory exists or cannot be written
+     */
+    public static ColumnarTableStore create(File dir, List<String> columns) throws IOException {
+        if (!dir.mkdir()) {
+            throw new IOException("Cannot create table directory " + dir);
+        }
+        ColumnarTableStore store = new ColumnarTableStore(dir, columns.toArray(new String[0]));
+        try {
+            store.generation = 1;
+            store.writeManifest();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(new File(dir, MANIFEST).toPath());
+            Files.deleteIfExists(dir.toPath());
+            throw e;
+        }
+        return store;
+    }
+
+    /**
+     * Opens a table directory and deletes the group files its manifest does not list, left by a seal
+     * or compaction that was cut off.
+     * @param dir table directory
+     * @return open store
+     * @throws IOException if the directory cannot be read or is not a table
+     */
+    public static ColumnarTableStore open(File dir) throws IOException {
+        File manifest = new File(dir, MANIFEST);
+        if (!manifest.isFile()) {
+            throw new IOException("Not a compatible table directory: " + dir);
+        }
+        ColumnarTableStore store;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a compatible table directory: " + dir);
+            }
+            String[] columns = new String[in.readInt()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = in.readUTF();
+            }
+            store = new ColumnarTableStore(dir, columns);
+            store.generation = in.readInt();
+            store.changes = in.readLong();
+            store.recordCount = in.readLong();
+            store.redoLsn = in.readLong();
+            store.nextFile = in.readLong();
+            int groups = in.readInt();
+            for (int i = 0; i < groups; i++) {
+                long file = in.readLong();
+                long[] bits = new long[in.readInt()];
+                for (int j = 0; j < bits.length; j++) {
+                    bits[j] = in.readLong();
+                }
+                store.groups.add(new RowGroup(file, map(groupFile(dir, file)), BitSet.valueOf(bits)));
+            }
+            int rows = in.readInt();
+            for (int i = 0; i < rows; i++) {
+                int length = in.readInt();
+                byte[] record = null;
+                if (length >= 0) {
+                    record = new byte[length];
+                    in.readFully(record);
+                }
+                store.open.add(record);
+            }
+        }
+        store.deleteUnlisted();
+        return store;
+    }
+
+    private static File groupFile(File dir, long number) {
+        return new File(dir, String.format("%06d", number) + GROUP_SUFFIX);
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The mapping stays valid once the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private void deleteUnlisted() throws IOException {
+        List<String> listed = new ArrayList<>();
+        for (RowGroup group : groups) {
+            listed.add(groupFile(dir, group.file).getName());
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(GROUP_SUFFIX) && !listed.contains(name));
+        if (files != null) {
+            for (File f : files) {
+                Files.deleteIfExists(f.toPath());
+            }
+        }
+        Files.deleteIfExists(new File(dir, MANIFEST + ".tmp").toPath());
+    }
+
+    @Override
+    public File getFile() { return dir; }
+
+    @Override
+    public String[] getColumns() { return columns.clone(); }
+
+    @Override
+    public long getRecordCount() {
+        lock.readLock().lock();
+        try {
+            return recordCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getVersion() {
+        lock.readLock().lock();
+        try {
+            return ((long) generation << 32) + changes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setLog(WriteAheadLog log, String name) {
+        lock.writeLock().lock();
+        try {
+            this.log = log;
+            this.logName = name;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies to the groups sealed from now on, so a {@link #compact()} rewrites the whole table
+     * with the codec.
+     */
+    @Override
+    public void setBlockCodec(BlockCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public long getRedoLsn() { return redoLsn; }
+
+    @Override
+    public double getDeadRatio() {
+        lock.readLock().lock();
+        try {
+            long slots = open.size();
+            for (RowGroup group : groups) {
+                slots += group.rows;
+            }
+            return slots == 0 ? 0 : (double) (slots - recordCount) / slots;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long insert(String[] values) throws IOException {
+        byte[] record = RowCodec.TEXT.encode(values);
+        lock.writeLock().lock();
+        try {
+            return append(record);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long load(Iterator<String[]> rows) throws IOException {
+        lock.writeLock().lock();
+        try {
+            long loaded = 0;
+            while (rows.hasNext()) {
+                append(RowCodec.TEXT.encode(rows.next()));
+                loaded++;
+            }
+            return loaded;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String[] read(long locator) throws IOException {
+        lock.readLock().lock();
+        try {
+            int group = group(locator);
+            int row = row(locator);
+            if (group < groups.size()) {
+                RowGroup sealed = groups.get(group);
+                return sealed.isLive(row) ? sealed.values(row) : null;
+            }
+            byte[] record = group == groups.size() && row < open.size() ? open.get(row) : null;
+            return record == null ? null : RowCodec.TEXT.decode(record, 0, record.length);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The row moves to a new locator, since sealed rows never change.
+     */
+    @Override
+    public long update(long locator, String[] values) throws IOException {
+        byte[] after = RowCodec.TEXT.encode(values);
+        lock.writeLock().lock();
+        try {
+            byte[] before = record(locator);
+            if (before == null) {
+                throw new IllegalArgumentException("No row at locator " + locator + " in " + dir);
+            }
+            apply(locator, before, null);
+            return append(after);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(long locator) throws IOException {
+        lock.writeLock().lock();
+        try {
+            byte[] before = record(locator);
+            if (before == null) {
+                return false;
+            }
+            apply(locator, before, null);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * A locator only ever holds one record, so restoring a sealed row only clears its deleted bit.
+     */
+    @Override
+    public void restore(long locator, byte[] record) throws IOException {
+        lock.writeLock().lock();
+        try {
+            apply(locator, record(locator), record);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies the after image of a change; the log already holds it, so it is not logged again.
+     * Format records do not concern this store.
+     */
+    @Override
+    public boolean redo(WriteAheadLog.Record record) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (record.getType() != WriteAheadLog.CHANGE || record.getLsn() < redoLsn) {
+                return false;
+            }
+            if (!replayed) {
+                generation++;
+                changes = 0;
+                replayed = true;
+            }
+            put(record.getLocator(), record.getBefore(), record.getAfter(), record.getLsn() + 1);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static int group(long locator) {
+        return (int) (locator >>> 16);
+    }
+
+    private static int row(long locator) {
+        return (int) (locator & (GROUP_ROWS - 1));
+    }
+
+    /**
+     * @return encoded record of a live row, or null
+     */
+    private byte[] record(long locator) throws IOException {
+        int group = group(locator);
+        int row = row(locator);
+        if (group < groups.size()) {
+            RowGroup sealed = groups.get(group);
+            return sealed.isLive(row) ? RowCodec.TEXT.encode(sealed.values(row)) : null;
+        }
+        return group == groups.size() && row < open.size() ? open.get(row) : null;
+    }
+
+    /**
+     * Adds a row to the open group.
+     */
+    private long append(byte[] record) throws IOException {
+        long locator = ((long) groups.size() << 16) | open.size();
+        apply(locator, null, record);
+        return locator;
+    }
+
+    /**
+     * Logs a change and applies it.
+     */
+    private void apply(long locator, byte[] before, byte[] after) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Table " + dir + " is closed");
+        }
+        long endLsn = 0;
+        if (log != null) {
+            log.logChange(logName, locator, before, after);
+            endLsn = log.getEndLsn();
+        }
+        put(locator, before, after, endLsn);
+    }
+
+    /**
+     * Applies a change and seals the open group once it is full.
+     * @param endLsn LSN past the change's log record, 0 if the table is not logged
+     */
+    private void put(long locator, byte[] before, byte[] after, long endLsn) throws IOException {
+        int group = group(locator);
+        int row = row(locator);
+        if (group < groups.size()) {
+            groups.get(group).deleted.set(row, after == null);
+        } else if (group == groups.size()) {
+            while (open.size() <= row) {
+                open.add(null);
+            }
+            open.set(row, after);
+        } else {
+            throw new IllegalStateException("Locator " + locator + " is past the open row group of " + dir);
+        }
+        recordCount += (after != null ? 1 : 0) - (before != null ? 1 : 0);
+        changes++;
+        if (open.size() == GROUP_ROWS) {
+            seal(endLsn);
+        }
+    }
+
+    /**
+     * Writes the open group to a group file and starts a new one.
+     * @param endLsn log position up to which the manifest then holds every change
+     */
+    private void seal(long endLsn) throws IOException {
+        RowGroup group = writeGroup(open);
+        List<byte[]> rows = new ArrayList<>(open);
+        groups.add(group);
+        open.clear();
+        try {
+            persist(endLsn);
+        } catch (IOException | RuntimeException e) {
+            groups.remove(groups.size() - 1);
+            open.addAll(rows);
+            deleteFiles(List.of(group));
+            throw e;
+        }
+    }
+
+    /**
+     * Writes rows to a new group file, deleted rows as rows without values, compressed with the
+     * table's codec, and maps it.
+     */
+    private RowGroup writeGroup(List<byte[]> records) throws IOException {
+        int rows = records.size();
+        int width = 0;
+        String[][] values = new String[rows][];
+        BitSet deleted = new BitSet(rows);
+        for (int row = 0; row < rows; row++) {
+            byte[] record = records.get(row);
+            if (record == null) {
+                values[row] = new String[0];
+                deleted.set(row);
+            } else {
+                values[row] = RowCodec.TEXT.decode(record, 0, record.length);
+            }
+            width = Math.max(width, values[row].length);
+        }
+        byte[][] segments = new byte[width + 1][];
+        byte[][] column = new byte[rows][];
+        for (int row = 0; row < rows; row++) {
+            column[row] = Integer.toString(values[row].length).getBytes(StandardCharsets.UTF_8);
+        }
+        segments[0] = ColumnSegment.encode(column);
+        for (int c = 0; c < width; c++) {
+            for (int row = 0; row < rows; row++) {
+                column[row] = c < values[row].length ? values[row][c].getBytes(StandardCharsets.UTF_8) : null;
+            }
+            segments[c + 1] = ColumnSegment.encode(column);
+        }
+
+        byte[] image = codec == BlockCodec.NONE ? null : packedImage(rows, segments, codec);
+        if (image == null) {
+            image = plainImage(rows, segments);
+        }
+
+        long number = nextFile++;
+        File file = groupFile(dir, number);
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(image);
+            stream.getFD().sync();
+            return new RowGroup(number, map(file), deleted);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file.toPath());
+            throw e;
+        }
+    }
+
+    /**
+     * Lays out a group file holding the segments as they are, after a table of their offsets.
+     */
+    private byte[] plainImage(int rows, byte[][] segments) {
+        long size = 16 + 4L * segments.length;
+        for (byte[] segment : segments) {
+            size += segment.length;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Row group of " + dir + " exceeds 2 GB");
+        }
+        ByteBuffer out = ByteBuffer.allocate((int) size);
+        out.putInt(GROUP_MAGIC).putInt(VERSION).putInt(rows).putInt(segments.length);
+        int offset = 16 + 4 * segments.length;
+        for (byte[] segment : segments) {
+            out.putInt(offset);
+            offset += segment.length;
+        }
+        for (byte[] segment : segments) {
+            out.put(segment);
+        }
+        return out.array();
+    }
+
+    /**
+     * Lays out a group file whose segment values are compressed in blocks: the segment directory,
+     * the block directory, the segment headers and then the blocks. A block that does not shrink is
+     * stored as it is.
+     * @return file image, or null if no block shrinks
+     */
+    private byte[] packedImage(int rows, byte[][] segments, BlockCodec codec) {
+        int[] headers = new int[segments.length];
+        List<byte[]> blocks = new ArrayList<>();
+        List<BlockCodec> codecs = new ArrayList<>();
+        List<Integer> rawLengths = new ArrayList<>();
+        int[] firstBlocks = new int[segments.length];
+        boolean shrinks = false;
+        for (int i = 0; i < segments.length; i++) {
+            byte[] segment = segments[i];
+            headers[i] = ColumnSegment.headerLength(ByteBuffer.wrap(segment), 0);
+            firstBlocks[i] = blocks.size();
+            for (int from = headers[i]; from < segment.length; from += codec.blockSize()) {
+                byte[] raw = Arrays.copyOfRange(segment, from, Math.min(segment.length, from + codec.blockSize()));
+                byte[] compressed = codec.compress(raw, raw.length);
+                boolean shrunk = compressed.length < raw.length;
+                shrinks |= shrunk;
+                blocks.add(shrunk ? compressed : raw);
+                codecs.add(shrunk ? codec : BlockCodec.NONE);
+                rawLengths.add(raw.length);
+            }
+        }
+        if (!shrinks) {
+            return null;
+        }
+        long size = PACKED_SEGMENTS + (long) SEGMENT_ENTRY * segments.length + (long) BLOCK_ENTRY * blocks.size();
+        for (int header : headers) {
+            size += header;
+        }
+        for (byte[] block : blocks) {
+            size += block.length;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Row group of " + dir + " exceeds 2 GB");
+        }
+        ByteBuffer out = ByteBuffer.allocate((int) size);
+        out.putInt(PACKED_MAGIC).putInt(VERSION).putInt(rows).putInt(segments.length).putInt(blocks.size());
+        int offset = PACKED_SEGMENTS + SEGMENT_ENTRY * segments.length + BLOCK_ENTRY * blocks.size();
+        for (int i = 0; i < segments.length; i++) {
+            out.putInt(offset).putInt(headers[i]).putInt(segments[i].length - headers[i]).putInt(firstBlocks[i]);
+            offset += headers[i];
+        }
+        for (int i = 0; i < blocks.size(); i++) {
+            out.putInt(offset).putInt(blocks.get(i).length).putInt(rawLengths.get(i)).put((byte) codecs.get(i).id());
+            offset += blocks.get(i).length;
+        }
+        for (int i = 0; i < segments.length; i++) {
+            out.put(segments[i], 0, headers[i]);
+        }
+        for (byte[] block : blocks) {
+            out.put(block);
+        }
+        return out.array();
+    }
+
+    /**
+     * Deletes the files of groups no longer listed. Mapped files cannot be deleted on every platform;
+     * those left behind are deleted when the table is next opened.
+     */
+    private void deleteFiles(List<RowGroup> unlisted) {
+        for (RowGroup group : unlisted) {
+            try {
+                Files.deleteIfExists(groupFile(dir, group.file).toPath());
+            } catch (IOException e) {
+                // left for deleteUnlisted
+            }
+        }
+    }
+
+    @Override
+    public int segmentCount() {
+        lock.readLock().lock();
+        try {
+            return groups.size() + 1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void scan(RecordVisitor visitor) throws IOException {
+        scan(0, Integer.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Each row group is a segment, the open group being the last.
+     */
+    @Override
+    public void scan(int fromSegment, int toSegment, RecordVisitor visitor) throws IOException {
+        lock.readLock().lock();
+        try {
+            for (int segment = fromSegment; segment < Math.min(toSegment, groups.size()); segment++) {
+                RowGroup group = groups.get(segment);
+                for (int row = group.deleted.nextClearBit(0); row < group.rows; row = group.deleted.nextClearBit(row + 1)) {
+                    visitor.visit(((long) segment << 16) | row, group.values(row));
+                }
+            }
+            if (fromSegment <= groups.size() && toSegment > groups.size()) {
+                long base = (long) groups.size() << 16;
+                for (int row = 0; row < open.size(); row++) {
+                    byte[] record = open.get(row);
+                    if (record != null) {
+                        visitor.visit(base | row, RowCodec.TEXT.decode(record, 0, record.length));
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void scanViews(RecordViewVisitor visitor) throws IOException {
+        scanColumns(0, null, visitor);
+    }
+
+    /**
+     * Skips the row groups whose range of the filter column rules the filter out, tests the filter
+     * column of the other rows and reads the other columns only as the visitor asks for them.
+     */
+    @Override
+    public void scanColumns(int filterColumn, ValueFilter filter, RecordViewVisitor visitor) throws IOException {
+        lock.readLock().lock();
+        try {
+            GroupRecord view = new GroupRecord();
+            for (int number = 0; number < groups.size(); number++) {
+                RowGroup group = groups.get(number);
+                ColumnSegment tested = null;
+                if (filter != null) {
+                    if (filterColumn >= group.columnCount() || !filter.mayMatch(group.ranges[filterColumn + 1])) {
+                        continue;
+                    }
+                    tested = group.column(filterColumn);
+                }
+                long base = (long) number << 16;
+                for (int row = group.deleted.nextClearBit(0); row < group.rows; row = group.deleted.nextClearBit(row + 1)) {
+                    int width = group.width(row);
+                    if (tested != null && (filterColumn >= width
+                            || !filter.matches(tested.buffer(), tested.offset(row), tested.length(row)))) {
+                        continue;
+                    }
+                    view.reset(group, row, width);
+                    visitor.visit(base | row, view);
+                }
+            }
+            PagedTableStore.PageRecord record = new PagedTableStore.PageRecord(RowCodec.TEXT);
+            long base = (long) groups.size() << 16;
+            for (int row = 0; row < open.size(); row++) {
+                byte[] bytes = open.get(row);
+                if (bytes == null) continue;
+                record.reset(ByteBuffer.wrap(bytes), 0, bytes.length);
+                if (filter != null && (filterColumn >= record.size()
+                        || !filter.matches(record.buffer(), record.offset(filterColumn), record.length(filterColumn)))) {
+                    continue;
+                }
+                visitor.visit(base | row, record);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the live rows into full row groups, dropping deleted rows.
+     */
+    @Override
+    public void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            List<RowGroup> written = new ArrayList<>();
+            List<byte[]> batch = new ArrayList<>();
+            try {
+                for (RowGroup group : groups) {
+                    for (int row = group.deleted.nextClearBit(0); row < group.rows; row = group.deleted.nextClearBit(row + 1)) {
+                        batch.add(RowCodec.TEXT.encode(group.values(row)));
+                        if (batch.size() == GROUP_ROWS) {
+                            written.add(writeGroup(batch));
+                            batch.clear();
+                        }
+                    }
+                }
+                for (byte[] record : open) {
+                    if (record == null) continue;
+                    batch.add(record);
+                    if (batch.size() == GROUP_ROWS) {
+                        written.add(writeGroup(batch));
+                        batch.clear();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                deleteFiles(written);
+                throw e;
+            }
+            List<RowGroup> oldGroups = new ArrayList<>(groups);
+            List<byte[]> oldOpen = new ArrayList<>(open);
+            long oldRedoLsn = redoLsn;
+            groups.clear();
+            groups.addAll(written);
+            open.clear();
+            open.addAll(batch);
+            generation++;
+            long oldChanges = changes;
+            changes = 0;
+            // The log's changes to the old locators must not be replayed on the new ones
+            if (log != null) {
+                redoLsn = log.getEndLsn();
+            }
+            try {
+                writeManifest();
+            } catch (IOException | RuntimeException e) {
+                groups.clear();
+                groups.addAll(oldGroups);
+                open.clear();
+                open.addAll(oldOpen);
+                generation--;
+                changes = oldChanges;
+                redoLsn = oldRedoLsn;
+                deleteFiles(written);
+                throw e;
+            }
+            deleteFiles(oldGroups);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forces the log up to a position and records in the manifest that it holds every change before it.
+     */
+    private void persist(long endLsn) throws IOException {
+        WriteAheadLog tableLog = log;
+        if (tableLog != null && endLsn > tableLog.getDurableLsn()) {
+            tableLog.flush(endLsn - 1);
+        }
+        long previousRedo = redoLsn;
+        redoLsn = Math.max(redoLsn, endLsn);
+        try {
+            writeManifest();
+        } catch (IOException | RuntimeException e) {
+            redoLsn = previousRedo;
+            throw e;
+        }
+    }
+
+    /**
+     * Replaces the manifest with one listing the current groups, their deletion bitmaps, the counters
+     * and the rows of the open group.
+     */
+    private void writeManifest() throws IOException {
+        File tmp = new File(dir, MANIFEST + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(columns.length);
+            for (String column : columns) {
+                out.writeUTF(column);
+            }
+            out.writeInt(generation);
+            out.writeLong(changes);
+            out.writeLong(recordCount);
+            out.writeLong(redoLsn);
+            out.writeLong(nextFile);
+            out.writeInt(groups.size());
+            for (RowGroup group : groups) {
+                out.writeLong(group.file);
+                long[] bits = group.deleted.toLongArray();
+                out.writeInt(bits.length);
+                for (long word : bits) {
+                    out.writeLong(word);
+                }
+            }
+            out.writeInt(open.size());
+            for (byte[] record : open) {
+                out.writeInt(record == null ? -1 : record.length);
+                if (record != null) {
+                    out.write(record);
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(dir, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the manifest with the rows of the open group; writers wait for it, which is short since
+     * sealed groups are already on disk and only their deletion bitmaps are written again.
+     */
+    @Override
+    public void checkpoint() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (log == null || closed) return;
+            persist(log.getEndLsn());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) return;
+            persist(log == null ? 0 : log.getEndLsn());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) return;
+            try {
+                flush();
+            } finally {
+                closed = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.lightweightDbms.storage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * CSV import and export for tables. A CSV table file has a header line with the column
+ * definitions followed by one line per row.
+ */
+public final class CsvTableFormat {
+    private CsvTableFormat() {}
+
+    /**
+     * Reads the column definitions of a CSV table file.
+     *
+     * @param csvFile CSV file
+     * @return column definitions from the header line, empty if the file is empty
+     * @throws IOException if the file cannot be read
+     */
+    public static List<String> readHeader(File csvFile) throws IOException {
+        try (BufferedReader br = Files.newBufferedReader(csvFile.toPath(), StandardCharsets.UTF_8)) {
+            String header = br.readLine();
+            return header == null || header.isEmpty() ? List.of() : Arrays.asList(header.split(","));
+        }
+    }
+
+    /**
+     * Appends the rows of a CSV file (all lines after the header) to a table in one bulk load.
+     *
+     * @param csvFile CSV file
+     * @param store table receiving the rows
+     * @return number of rows imported
+     * @throws IOException if the file cannot be read or the table cannot be written
+     */
+    public static long importRows(File csvFile, TableStore store) throws IOException {
+        try (RowReader rows = openRows(csvFile, true)) {
+            return store.load(rows);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Opens a CSV file for streaming its rows, e.g. into {@link TableStore#load(Iterator)}.
+     *
+     * @param csvFile CSV file
+     * @param header true to skip the first line
+     * @return reader positioned at the first row
+     * @throws IOException if the file cannot be opened
+     */
+    public static RowReader openRows(File csvFile, boolean header) throws IOException {
+        return new RowReader(Files.newBufferedReader(csvFile.toPath(), StandardCharsets.UTF_8), header);
+    }
+
+    /**
+     * Iterates the rows of a CSV file, one per non-empty line, parsing every line with the same
+     * {@link CsvUtil.LineParser}. Read errors are thrown as {@link UncheckedIOException}.
+     */
+    public static final class RowReader implements Iterator<String[]>, Closeable {
+        private final BufferedReader reader;
+        private final CsvUtil.LineParser parser = new CsvUtil.LineParser();
+        private String next;
+        private long nextLine;
+        private long lineNumber;
+
+        private RowReader(BufferedReader reader, boolean header) {
+            this.reader = reader;
+            if (header) {
+                readLine();
+            }
+            advance();
+        }
+
+        private String readLine() {
+            try {
+                nextLine++;
+                return reader.readLine();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void advance() {
+            do {
+                next = readLine();
+            } while (next != null && next.isEmpty());
+        }
+
+        /**
+         * @return one-based line number of the row last returned by {@link #next()}, 0 before the first
+         */
+        public long getLineNumber() { return lineNumber; }
+
+        @Override
+        public boolean hasNext() { return next != null; }
+
+        @Override
+        public String[] next() {
+            if (next == null) throw new NoSuchElementException();
+            String[] row = parser.parse(next);
+            lineNumber = nextLine;
+            advance();
+            return row;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes a table as a CSV file with a header line.
+     *
+     * @param store table to export
+     * @param csvFile CSV file to write
+     * @return number of rows exported
+     * @throws IOException if the table cannot be read or the file cannot be written
+     */
+    public static long export(TableStore store, File csvFile) throws IOException {
+        long[] rows = {0};
+        try (BufferedWriter bw = Files.newBufferedWriter(csvFile.toPath(), StandardCharsets.UTF_8)) {
+            bw.write(String.join(",", store.getColumns()));
+            bw.newLine();
+            store.scan((locator, values) -> {
+                try {
+                    bw.write(CsvUtil.formatLine(values));
+                    bw.newLine();
+                    rows[0]++;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return rows[0];
+    }
+}
@@ -51,6 +51,129 @@ public final class CsvUtil {
         return out;
     }
 
+    /**
+     * Parses one CSV line into its fields, honouring double-quoted values and doubled quotes.
+     *
+     * @param line CSV line without line terminator
+     * @return parsed fields
+     */
+    public static String[] parseLine(String line) {
+        return new LineParser().parse(line);
+    }
+
+    /**
+     * Parses CSV lines like {@link #parseLine(String)}, reusing its buffers from line to line.
+     * Unquoted fields are cut from the line without copying them character by character.
+     */
+    public static final class LineParser {
+        private final List<String> fields = new ArrayList<>();
+        private final StringBuilder quoted = new StringBuilder();
+
+        /**
+         * @param line CSV line without line terminator
+         * @return parsed fields
+         */
+        public String[] parse(String line) {
+            fields.clear();
+            int length = line.length();
+            int start = 0;
+            while (true) {
+                int end = start;
+                while (end < length && line.charAt(end) != ',' && line.charAt(end) != '"') {
+                    end++;
+                }
+                if (end < length && line.charAt(end) == '"') {
+                    end = parseQuoted(line, start);
+                } else {
+                    fields.add(line.substring(start, end));
+                }
+                if (end >= length) {
+                    return fields.toArray(new String[0]);
+                }
+                start = end + 1;
+            }
+        }
+
+        /**
+         * Parses a field containing quotes.
+         * @return position of the comma ending the field, or the line length
+         */
+        private int parseQuoted(String line, int start) {
+            quoted.setLength(0);
+            boolean inQuotes = false;
+            int i = start;
+            for (; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (inQuotes) {
+                    if (c == '"') {
+                        if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                            quoted.append('"');
+                            i++;
+                        } else {
+                            inQuotes = false;
+                        }
+                    } else {
+                        quoted.append(c);
+                    }
+                } else if (c == ',') {
+                    break;
+                } else if (c == '"') {
+                    inQuotes = true;
+                } else {
+                    quoted.append(c);
+                }
+            }
+            fields.add(quoted.toString());
+            return i;
+        }
+    }
+
+    /**
+     * Formats fields as one CSV line, quoting values that contain commas, quotes or line breaks.
+     *
+     * @param values fields to format; null is written as an empty field
+     * @return CSV line without line terminator
+     */
+    public static String formatLine(String[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(escapeCsv(values[i] == null ? "" : values[i]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Extracts only the first field of a CSV line, without splitting the rest of it.
+     *
+     * @param line CSV line without line terminator
+     * @return first field, unquoted
+     */
+    public static String firstField(String line) {
+        int comma = line.indexOf(',');
+        int end = comma < 0 ? line.length() : comma;
+        int quote = line.indexOf('"');
+        if (quote < 0 || quote > end) {
+            return line.substring(0, end);
+        }
+        return parseLine(line)[0];
+    }
+
+    /**
+     * Extracts one field of a CSV line.
+     *
+     * @param line CSV line without line terminator
+     * @param position zero-based field position
+     * @return field, unquoted, or null if the line has fewer fields
+     */
+    public static String field(String line, int position) {
+        if (position == 0) {
+            return firstField(line);
+        }
+        String[] fields = parseLine(line);
+        return position < fields.length ? fields[position] : null;
+    }
+
     private static String join(List<String> values, char delimiter, String escape) {
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < values.size(); i++) {
@@ -0,0 +1,211 @@
+package com.lightweightDbms.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Brings table files up to date with the write-ahead log after the database was not closed cleanly.
+ * <p>
+ * Recovery reads the log once, from its start: checkpoints truncate it to the oldest record that
+ * may still be needed, so this stays bounded however long the database ran. Change and format
+ * records are grouped by table and replayed in parallel on a {@link ForkJoinPool}, one task per table,
+ * each starting at its own table's redo point; a record whose page already carries it is skipped, so
+ * replaying is idempotent. This repeats history, including the changes of transactions that never
+ * committed: such a transaction, e.g. one cut off while {@code applyTransaction} was applying it, is
+ * then rolled back by restoring the before images of its changes in reverse order. The restores are
+ * logged under the transaction, which is then aborted, so a crash during recovery only repeats it.
+ */
+public final class LogRecovery {
+    /**
+     * Summary of a recovery run.
+     */
+    public static final class Report {
+        private final Map<String, Long> recordsByTable;
+        private final long records;
+        private final int rolledBack;
+        private final long elapsedMillis;
+
+        Report(Map<String, Long> recordsByTable, long records, int rolledBack, long elapsedMillis) {
+            this.recordsByTable = recordsByTable;
+            this.records = records;
+            this.rolledBack = rolledBack;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return log records replayed per table that had any
+         */
+        public Map<String, Long> getRecordsByTable() { return recordsByTable; }
+
+        /**
+         * @return log records replayed onto table pages
+         */
+        public long getRecords() { return records; }
+
+        /**
+         * @return transactions rolled back because they had not committed
+         */
+        public int getRolledBack() { return rolledBack; }
+
+        /**
+         * @return wall-clock time of the recovery
+         */
+        public long getElapsedMillis() { return elapsedMillis; }
+
+        /**
+         * @return true if any table was changed
+         */
+        public boolean changedTables() { return records > 0 || rolledBack > 0; }
+
+        @Override
+        public String toString() {
+            return "Recovered " + records + " log record(s) into " + recordsByTable.size() + " table(s), rolled back "
+                    + rolledBack + " transaction(s) in " + elapsedMillis + " ms.";
+        }
+    }
+
+    private final WriteAheadLog log;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param log log of the database
+     * @param pool pool running the per-table replay tasks
+     */
+    public LogRecovery(WriteAheadLog log, ForkJoinPool pool) {
+        this.log = log;
+        this.pool = pool;
+    }
+
+    /**
+     * Creates a recovery on the common pool.
+     * @param log log of the database
+     */
+    public LogRecovery(WriteAheadLog log) {
+        this(log, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Replays the log into the given tables and rolls back unfinished transactions. Records of
+     * tables not given are ignored. Must run before the tables are used.
+     * @param tables open stores keyed by table name, with the log attached
+     * @return summary of the run
+     * @throws IOException if the log or a table cannot be read or written
+     */
+    public Report recover(Map<String, TableStore> tables) throws IOException {
+        long started = System.nanoTime();
+        if (tables.isEmpty()) {
+            return new Report(new LinkedHashMap<>(), 0, 0, 0);
+        }
+
+        // Analysis: group the records to replay by table and find the transactions that never ended.
+        // Reading starts before the redo points, since an unfinished transaction may have changes
+        // that a checkpoint already wrote to the table.
+        Map<String, List<WriteAheadLog.Record>> byTable = new HashMap<>();
+        Map<Long, List<WriteAheadLog.Record>> unfinished = new LinkedHashMap<>();
+        Set<Long> finished = new HashSet<>();
+        log.read(log.getStartLsn(), record -> {
+            long transaction = record.getTransaction();
+            switch (record.getType()) {
+                case WriteAheadLog.COMMIT, WriteAheadLog.ABORT -> {
+                    finished.add(transaction);
+                    unfinished.remove(transaction);
+                }
+                case WriteAheadLog.CHANGE, WriteAheadLog.FORMAT -> {
+                    TableStore store = tables.get(record.getTable());
+                    if (store == null) return;
+                    if (record.getLsn() >= store.getRedoLsn()) {
+                        byTable.computeIfAbsent(record.getTable(), t -> new ArrayList<>()).add(record);
+                    }
+                    if (transaction != 0 && record.getType() == WriteAheadLog.CHANGE && !finished.contains(transaction)) {
+                        unfinished.computeIfAbsent(transaction, t -> new ArrayList<>()).add(record);
+                    }
+                }
+                default -> {
+                    if (transaction != 0 && !finished.contains(transaction)) {
+                        unfinished.computeIfAbsent(transaction, t -> new ArrayList<>());
+                    }
+                }
+            }
+        });
+
+        // Redo, one task per table
+        List<ReplayTask> tasks = new ArrayList<>();
+        for (Map.Entry<String, List<WriteAheadLog.Record>> table : byTable.entrySet()) {
+            tasks.add(new ReplayTask(table.getKey(), tables.get(table.getKey()), table.getValue()));
+        }
+        try {
+            pool.invoke(new RecursiveTask<Void>() {
+                @Override
+                protected Void compute() {
+                    ForkJoinTask.invokeAll(tasks);
+                    return null;
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Map<String, Long> recordsByTable = new LinkedHashMap<>();
+        long records = 0;
+        for (ReplayTask task : tasks) {
+            long replayed = task.join();
+            if (replayed > 0) {
+                recordsByTable.put(task.tableName, replayed);
+                records += replayed;
+            }
+        }
+
+        // Undo: at most one transaction is written at a time, so this is short
+        for (Map.Entry<Long, List<WriteAheadLog.Record>> transaction : unfinished.entrySet()) {
+            List<WriteAheadLog.Record> changes = transaction.getValue();
+            log.resume(transaction.getKey());
+            for (int i = changes.size() - 1; i >= 0; i--) {
+                WriteAheadLog.Record change = changes.get(i);
+                tables.get(change.getTable()).restore(change.getLocator(), change.getBefore());
+            }
+            log.flush(log.abort());
+        }
+        return new Report(recordsByTable, records, unfinished.size(), (System.nanoTime() - started) / 1_000_000);
+    }
+
+    /**
+     * Replays the records of one table in LSN order; the result is the number of records applied.
+     */
+    private static final class ReplayTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final String tableName;
+        private final TableStore store;
+        private final List<WriteAheadLog.Record> records;
+
+        ReplayTask(String tableName, TableStore store, List<WriteAheadLog.Record> records) {
+            this.tableName = tableName;
+            this.store = store;
+            this.records = records;
+        }
+
+        @Override
+        protected Long compute() {
+            long applied = 0;
+            try {
+                for (WriteAheadLog.Record record : records) {
+                    if (store.redo(record)) {
+                        applied++;
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to recover table '" + tableName + "'", e);
+            }
+            return applied;
+        }
+    }
+}
@@ -0,0 +1,1083 @@
+package com.lightweightDbms.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * Table store built as a log-structured merge tree, for tables that take far more writes than reads.
+ * <p>
+ * Rows are keyed by a locator handed out in insert order and never reused, so a row keeps its
+ * locator for life. Writes go to a memtable, a {@link ConcurrentSkipListMap} that readers search
+ * without locking: an insert adds a key, an update puts the new record under the same key and a
+ * delete puts a tombstone, so no write touches a table file. A memtable that reached
+ * {@link #MEMTABLE_BYTES} is frozen and written by a background thread as an immutable
+ * {@link SSTable} in level 0, where tables may overlap. Once level 0 holds {@link #L0_TRIGGER}
+ * tables they are merged into level 1. From level 1 on, every level is a run of tables with
+ * disjoint key ranges holding ten times the data of the level before; a level over its budget merges
+ * one table into the overlapping tables of the next level, taking the tables of a level in turn.
+ * Merging keeps the newest record of every key and drops tombstones once no deeper level can hold
+ * an older record.
+ * <p>
+ * A read looks at the memtables, then at level 0 from the newest table to the oldest, then at the
+ * one table of each deeper level whose range holds the key, skipping tables whose Bloom filter rules
+ * it out. Reads and scans work on an immutable snapshot of the memtables and tables, so flushes and
+ * compactions never block them; a table replaced by a compaction is deleted once the last snapshot
+ * using it is released. Writers are serialized by the store and only wait for the background
+ * thread when {@link #MAX_FROZEN} memtables are already waiting to be written.
+ * <p>
+ * The table is a directory holding the tables and a {@code MANIFEST} that lists them with the table
+ * counters; the manifest is replaced atomically whenever the list changes, and table files it does
+ * not list are deleted on open. Once a {@link WriteAheadLog} is attached, every change is logged
+ * before it reaches the memtable, and a memtable is only written once its records are durable. The
+ * manifest records the log position from which changes are not all in tables yet; recovery replays
+ * the log from there into the memtable on {@link #redo}, and the first replayed record moves the
+ * table to a new generation. Records are encoded by a {@link RowCodec}; tables whose manifest has
+ * version 1 predate column types and hold UTF-8 values only.
+ */
+public final class LsmTableStore implements TableStore {
+    /** Log-structured merge tree format, stored in {@code .lsm} directories. */
+    public static final Format FORMAT = new Format() {
+        @Override
+        public String name() { return "LSM"; }
+
+        @Override
+        public String extension() { return ".lsm"; }
+
+        @Override
+        public boolean compresses() { return true; }
+
+        @Override
+        public TableStore create(File file, List<String> columns, BufferPool pool) throws IOException {
+            return LsmTableStore.create(file, columns, pool);
+        }
+
+        @Override
+        public TableStore open(File file, BufferPool pool) throws IOException {
+            return LsmTableStore.open(file, pool);
+        }
+    };
+
+    /** Memtable size in bytes from which it is frozen and written to a table. */
+    static final int MEMTABLE_BYTES = 4 << 20;
+    /** Frozen memtables from which writers wait for them to be written. */
+    static final int MAX_FROZEN = 2;
+    /** Level-0 tables from which they are merged into level 1. */
+    static final int L0_TRIGGER = 4;
+
+    private static final int MAGIC = 0x4C534D54; // "LSMT"
+    private static final int VERSION = 2;
+    private static final int TEXT_VERSION = 1; // every value stored as UTF-8
+    private static final int LEVELS = 7;
+    private static final long LEVEL_BASE_BYTES = 16L << 20;
+    private static final long TABLE_BYTES = 2L << 20;
+    private static final int ENTRY_OVERHEAD = 64; // skip-list node, key and array headers
+    private static final int SEGMENT_ROWS = 1024;
+    private static final String MANIFEST = "MANIFEST";
+    private static final String TABLE_SUFFIX = ".sst";
+
+    /** Writes memtables and compacts levels for every open store. */
+    private static final ExecutorService BACKGROUND = Executors.newFixedThreadPool(2, task -> {
+        Thread thread = new Thread(task, "lsm-background");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File dir;
+    private final BufferPool pool;
+    private final String[] columns;
+    private final int version;
+    private final RowCodec rowCodec;
+    private volatile Snapshot current;
+    private final Object snapshotLock = new Object();
+    private final Object flushLock = new Object(); // serializes writing memtables
+    private final Object compactionLock = new Object(); // serializes compactions
+    private final Object manifestLock = new Object(); // serializes manifest updates with their snapshots
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private volatile IOException backgroundFailure;
+    private volatile boolean closed;
+    private volatile WriteAheadLog log;
+    private String logName;
+    private volatile BlockCodec codec = BlockCodec.NONE;
+
+    // Current counters, under the store monitor
+    private long recordCount;
+    private long nextId;
+    private int generation;
+    private long changes;
+    private boolean replayed;
+
+    // Counters as of the tables, recorded in the manifest; under the manifest lock
+    private long savedRecordCount;
+    private long savedNextId;
+    private int savedGeneration;
+    private long savedChanges;
+    private final AtomicLong nextTable = new AtomicLong(1);
+    private final long[] compactionPointers = new long[LEVELS];
+    private volatile long redoLsn; // log position from which changes may be missing from the tables
+
+    /**
+     * In-memory table of the newest changes, keyed by locator; tombstones are {@link SSTable#DELETED}.
+     */
+    private static final class Memtable {
+        final ConcurrentSkipListMap<Long, byte[]> rows = new ConcurrentSkipListMap<>();
+        long bytes;
+        // Set when frozen: end of its changes in the log and the counters after its last change
+        long endLsn;
+        long recordCount;
+        long nextId;
+        int generation;
+        long changes;
+    }
+
+    /**
+     * Immutable view of the memtables and tables, reference counted by its readers and by the store
+     * while it is current.
+     */
+    private static final class Snapshot {
+        final Memtable active;
+        final List<Memtable> frozen; // oldest first
+        final List<List<SSTable>> levels; // level 0 newest first, deeper levels by key
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        Snapshot(Memtable active, List<Memtable> frozen, List<List<SSTable>> levels) {
+            this.active = active;
+            this.frozen = List.copyOf(frozen);
+            List<List<SSTable>> copy = new ArrayList<>();
+            for (List<SSTable> level : levels) {
+                for (SSTable table : level) {
+                    table.retain();
+                }
+                copy.add(List.copyOf(level));
+            }
+            this.levels = List.copyOf(copy);
+        }
+
+        boolean retain() {
+            int r;
+            do {
+                r = refs.get();
+                if (r == 0) return false;
+            } while (!refs.compareAndSet(r, r + 1));
+            return true;
+        }
+
+        void release() {
+            if (refs.decrementAndGet() > 0) return;
+            for (List<SSTable> level : levels) {
+                for (SSTable table : level) {
+                    table.release();
+                }
+            }
+        }
+    }
+
+    private LsmTableStore(File dir, BufferPool pool, String[] columns, int version) {
+        this.dir = dir;
+        this.pool = pool;
+        this.columns = columns;
+        this.version = version;
+        this.rowCodec = version == TEXT_VERSION ? RowCodec.TEXT : RowCodec.forColumns(columns);
+    }
+
+    /**
+     * Creates an empty table directory.
+     * @param dir table directory to create
+     * @param columns column definitions
+     * @param pool buffer pool caching the blocks of the table's sorted tables
+     * @return open store
+     * @throws IOException if the directory exists or cannot be written
+     */
+    public static LsmTableStore create(File dir, List<String> columns, BufferPool pool) throws IOException {
+        if (!dir.mkdir()) {
+            throw new IOException("Cannot create table directory " + dir);
+        }
+        LsmTableStore store = new LsmTableStore(dir, pool, columns.toArray(new String[0]), VERSION);
+        try {
+            store.generation = 1;
+            store.savedGeneration = 1;
+            store.current = new Snapshot(new Memtable(), List.of(), emptyLevels());
+            store.writeManifest(store.current.levels);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(new File(dir, MANIFEST).toPath());
+            Files.deleteIfExists(dir.toPath());
+            throw e;
+        }
+        return store;
+    }
+
+    /**
+     * Opens a table directory and deletes the table files its manifest does not list, left by a
+     * flush or compaction that was cut off.
+     * @param dir table directory
+     * @param pool buffer pool caching the blocks of the table's sorted tables
+     * @return open store
+     * @throws IOException if the directory cannot be read or is not a table
+     */
+    public static LsmTableStore open(File dir, BufferPool pool) throws IOException {
+        File manifest = new File(dir, MANIFEST);
+        if (!manifest.isFile()) {
+            throw new IOException("Not a compatible table directory: " + dir);
+        }
+        List<List<SSTable>> levels = emptyLevels();
+        LsmTableStore store;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)))) {
+            int version = in.readInt() == MAGIC ? in.readInt() : -1;
+            if (version != VERSION && version != TEXT_VERSION) {
+                throw new IOException("Not a compatible table directory: " + dir);
+            }
+            String[] columns = new String[in.readInt()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = in.readUTF();
+            }
+            store = new LsmTableStore(dir, pool, columns, version);
+            store.savedGeneration = in.readInt();
+            store.savedChanges = in.readLong();
+            store.savedRecordCount = in.readLong();
+            store.savedNextId = in.readLong();
+            store.redoLsn = in.readLong();
+            store.nextTable.set(in.readLong());
+            int tables = in.readInt();
+            try {
+                for (int i = 0; i < tables; i++) {
+                    int level = in.readInt();
+                    long number = in.readLong();
+                    levels.get(level).add(SSTable.open(number, tableFile(dir, number), pool));
+                }
+            } catch (IOException | RuntimeException e) {
+                for (List<SSTable> level : levels) {
+                    for (SSTable table : level) {
+                        table.retain();
+                        table.release();
+                    }
+                }
+                throw e;
+            }
+        }
+        levels.get(0).sort(Comparator.comparingLong(SSTable::getNumber).reversed());
+        for (int level = 1; level < LEVELS; level++) {
+            levels.get(level).sort(Comparator.comparingLong(SSTable::getMinKey));
+        }
+        store.generation = store.savedGeneration;
+        store.changes = store.savedChanges;
+        store.recordCount = store.savedRecordCount;
+        store.nextId = store.savedNextId;
+        store.current = new Snapshot(new Memtable(), List.of(), levels);
+        store.deleteUnlisted(levels);
+        return store;
+    }
+
+    private static List<List<SSTable>> emptyLevels() {
+        List<List<SSTable>> levels = new ArrayList<>();
+        for (int i = 0; i < LEVELS; i++) {
+            levels.add(new ArrayList<>());
+        }
+        return levels;
+    }
+
+    private static File tableFile(File dir, long number) {
+        return new File(dir, String.format("%06d", number) + TABLE_SUFFIX);
+    }
+
+    private void deleteUnlisted(List<List<SSTable>> levels) throws IOException {
+        List<String> listed = new ArrayList<>();
+        for (List<SSTable> level : levels) {
+            for (SSTable table : level) {
+                listed.add(tableFile(dir, table.getNumber()).getName());
+            }
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(TABLE_SUFFIX) && !listed.contains(name));
+        if (files != null) {
+            for (File f : files) {
+                Files.deleteIfExists(f.toPath());
+            }
+        }
+        Files.deleteIfExists(new File(dir, MANIFEST + ".tmp").toPath());
+    }
+
+    @Override
+    public File getFile() { return dir; }
+
+    @Override
+    public String[] getColumns() { return columns.clone(); }
+
+    @Override
+    public synchronized long getRecordCount() { return recordCount; }
+
+    @Override
+    public synchronized long getVersion() { return ((long) generation << 32) + changes; }
+
+    @Override
+    public synchronized void setLog(WriteAheadLog log, String name) {
+        this.log = log;
+        this.logName = name;
+    }
+
+    /**
+     * Applies to the sorted tables written by later flushes and compactions, so a full
+     * {@link #compact()} rewrites the whole table with the codec.
+     */
+    @Override
+    public void setBlockCodec(BlockCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public long getRedoLsn() { return redoLsn; }
+
+    /**
+     * Compaction reclaims the space of deleted and overwritten rows in the background, so the table
+     * never reports dead space to be reclaimed by {@link #compact()}.
+     */
+    @Override
+    public double getDeadRatio() { return 0; }
+
+    @Override
+    public synchronized long insert(String[] values) throws IOException {
+        long locator = nextId;
+        apply(locator, null, rowCodec.encode(values));
+        return locator;
+    }
+
+    @Override
+    public synchronized long load(Iterator<String[]> rows) throws IOException {
+        long loaded = 0;
+        while (rows.hasNext()) {
+            apply(nextId, null, rowCodec.encode(rows.next()));
+            loaded++;
+        }
+        return loaded;
+    }
+
+    @Override
+    public String[] read(long locator) throws IOException {
+        byte[] record = lookup(locator);
+        return record == null ? null : rowCodec.decode(record, 0, record.length);
+    }
+
+    /**
+     * The row keeps its locator.
+     */
+    @Override
+    public synchronized long update(long locator, String[] values) throws IOException {
+        byte[] record = rowCodec.encode(values);
+        byte[] before = lookup(locator);
+        if (before == null) {
+            throw new IllegalArgumentException("No row at locator " + locator + " in " + dir);
+        }
+        apply(locator, before, record);
+        return locator;
+    }
+
+    @Override
+    public synchronized boolean delete(long locator) throws IOException {
+        byte[] before = lookup(locator);
+        if (before == null) {
+            return false;
+        }
+        apply(locator, before, null);
+        return true;
+    }
+
+    @Override
+    public synchronized void restore(long locator, byte[] record) throws IOException {
+        apply(locator, lookup(locator), record);
+    }
+
+    /**
+     * Puts the after image of a change into the memtable; the log already holds it, so it is not
+     * logged again. Format records do not concern this store.
+     */
+    @Override
+    public synchronized boolean redo(WriteAheadLog.Record record) throws IOException {
+        if (record.getType() != WriteAheadLog.CHANGE || record.getLsn() < redoLsn) {
+            return false;
+        }
+        if (!replayed) {
+            generation++;
+            changes = 0;
+            replayed = true;
+        }
+        put(record.getLocator(), record.getBefore(), record.getAfter(), record.getLsn() + 1);
+        return true;
+    }
+
+    /**
+     * Logs a change and applies it.
+     */
+    private void apply(long locator, byte[] before, byte[] after) throws IOException {
+        if (backgroundFailure != null) {
+            throw new IOException("Writing table " + dir + " in the background failed: "
+                    + backgroundFailure.getMessage(), backgroundFailure);
+        }
+        long endLsn = 0;
+        if (log != null) {
+            log.logChange(logName, locator, before, after);
+            endLsn = log.getEndLsn();
+        }
+        put(locator, before, after, endLsn);
+    }
+
+    /**
+     * Applies a change to the memtable and freezes it once it is full.
+     * @param endLsn LSN past the change's log record, 0 if the table is not logged
+     */
+    private void put(long locator, byte[] before, byte[] after, long endLsn) throws IOException {
+        Memtable active = current.active;
+        active.rows.put(locator, after == null ? SSTable.DELETED : after);
+        active.bytes += ENTRY_OVERHEAD + (after == null ? 0 : after.length);
+        recordCount += (after != null ? 1 : 0) - (before != null ? 1 : 0);
+        nextId = Math.max(nextId, locator + 1);
+        changes++;
+        if (active.bytes >= MEMTABLE_BYTES) {
+            freeze(endLsn);
+        }
+    }
+
+    /**
+     * Replaces the active memtable by an empty one and has the frozen one written. Called with the
+     * store monitor held, so no change is between the frozen memtable and the new one.
+     * @param endLsn log position from which changes go to the new memtable
+     */
+    private void freeze(long endLsn) throws IOException {
+        Memtable frozen = current.active;
+        frozen.endLsn = endLsn;
+        frozen.recordCount = recordCount;
+        frozen.nextId = nextId;
+        frozen.generation = generation;
+        frozen.changes = changes;
+        Memtable next = new Memtable();
+        install(s -> {
+            List<Memtable> waiting = new ArrayList<>(s.frozen);
+            waiting.add(frozen);
+            return new Snapshot(next, waiting, s.levels);
+        });
+        if (current.frozen.size() > MAX_FROZEN) {
+            // The background thread falls behind: the writer helps instead of piling up memory
+            writeFrozen();
+        } else {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Makes a new snapshot current and releases the previous one.
+     */
+    private void install(UnaryOperator<Snapshot> change) {
+        synchronized (snapshotLock) {
+            Snapshot old = current;
+            current = change.apply(old);
+            old.release();
+        }
+    }
+
+    /**
+     * @return the current snapshot, retained; the caller releases it
+     */
+    private Snapshot acquire() {
+        while (true) {
+            Snapshot s = current;
+            if (s.retain()) return s;
+        }
+    }
+
+    /**
+     * @return newest record of the key, or null if there is none or it is deleted
+     */
+    private byte[] lookup(long key) throws IOException {
+        Snapshot s = acquire();
+        try {
+            byte[] record = s.active.rows.get(key);
+            for (int i = s.frozen.size() - 1; record == null && i >= 0; i--) {
+                record = s.frozen.get(i).rows.get(key);
+            }
+            for (Iterator<SSTable> it = s.levels.get(0).iterator(); record == null && it.hasNext(); ) {
+                record = it.next().get(key);
+            }
+            for (int level = 1; record == null && level < LEVELS; level++) {
+                SSTable table = find(s.levels.get(level), key);
+                if (table != null) {
+                    record = table.get(key);
+                }
+            }
+            return record == null || record.length == 0 ? null : record;
+        } finally {
+            s.release();
+        }
+    }
+
+    /**
+     * @return table of a level from 1 on whose range holds the key, or null
+     */
+    private static SSTable find(List<SSTable> level, long key) {
+        int low = 0;
+        int high = level.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            SSTable table = level.get(mid);
+            if (table.getMaxKey() < key) {
+                low = mid + 1;
+            } else if (table.getMinKey() > key) {
+                high = mid - 1;
+            } else {
+                return table;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A segment is a range of {@link #SEGMENT_ROWS} locators.
+     */
+    @Override
+    public synchronized int segmentCount() {
+        return (int) Math.min(Integer.MAX_VALUE, (nextId + SEGMENT_ROWS - 1) / SEGMENT_ROWS);
+    }
+
+    @Override
+    public void scan(RecordVisitor visitor) throws IOException {
+        scan(0, Integer.MAX_VALUE, visitor);
+    }
+
+    @Override
+    public void scan(int fromSegment, int toSegment, RecordVisitor visitor) throws IOException {
+        Snapshot s = acquire();
+        try {
+            SSTable.Cursor rows = merge(s, (long) fromSegment * SEGMENT_ROWS, (long) toSegment * SEGMENT_ROWS, true);
+            while (rows.next()) {
+                byte[] record = rows.value();
+                visitor.visit(rows.key(), rowCodec.decode(record, 0, record.length));
+            }
+        } finally {
+            s.release();
+        }
+    }
+
+    /**
+     * Writers are not held back: the scan reads a snapshot taken when it starts.
+     */
+    @Override
+    public void scanViews(RecordViewVisitor visitor) throws IOException {
+        PagedTableStore.PageRecord view = new PagedTableStore.PageRecord(rowCodec);
+        Snapshot s = acquire();
+        try {
+            SSTable.Cursor rows = merge(s, 0, Long.MAX_VALUE, true);
+            while (rows.next()) {
+                byte[] record = rows.value();
+                view.reset(ByteBuffer.wrap(record), 0, record.length);
+                visitor.visit(rows.key(), view);
+            }
+        } finally {
+            s.release();
+        }
+    }
+
+    /**
+     * Merges the memtables and tables of a snapshot over a key range.
+     * @param from first key (inclusive)
+     * @param to last key (exclusive)
+     * @param live true to skip deleted rows
+     */
+    private static SSTable.Cursor merge(Snapshot s, long from, long to, boolean live) {
+        List<SSTable.Cursor> sources = new ArrayList<>();
+        sources.add(cursor(s.active, from, to));
+        for (int i = s.frozen.size() - 1; i >= 0; i--) {
+            sources.add(cursor(s.frozen.get(i), from, to));
+        }
+        for (SSTable table : s.levels.get(0)) {
+            if (table.overlaps(from, to - 1)) {
+                sources.add(table.cursor(from, to));
+            }
+        }
+        for (int level = 1; level < s.levels.size(); level++) {
+            List<SSTable> tables = new ArrayList<>();
+            for (SSTable table : s.levels.get(level)) {
+                if (table.overlaps(from, to - 1)) {
+                    tables.add(table);
+                }
+            }
+            if (!tables.isEmpty()) {
+                sources.add(concat(tables, from, to));
+            }
+        }
+        return new MergeCursor(sources, live);
+    }
+
+    /**
+     * Reads the disjoint tables of a level below 0 one after the other, as a single merge source.
+     * @param tables tables in key order
+     */
+    private static SSTable.Cursor concat(List<SSTable> tables, long from, long to) {
+        return new SSTable.Cursor() {
+            private int next;
+            private SSTable.Cursor cursor;
+
+            @Override
+            public boolean next() throws IOException {
+                while (cursor == null || !cursor.next()) {
+                    if (next == tables.size()) return false;
+                    cursor = tables.get(next++).cursor(from, to);
+                }
+                return true;
+            }
+
+            @Override
+            public long key() { return cursor.key(); }
+
+            @Override
+            public byte[] value() { return cursor.value(); }
+        };
+    }
+
+    private static SSTable.Cursor cursor(Memtable memtable, long from, long to) {
+        Iterator<Map.Entry<Long, byte[]>> rows = memtable.rows.subMap(from, to).entrySet().iterator();
+        return new SSTable.Cursor() {
+            private Map.Entry<Long, byte[]> row;
+
+            @Override
+            public boolean next() {
+                row = rows.hasNext() ? rows.next() : null;
+                return row != null;
+            }
+
+            @Override
+            public long key() { return row.getKey(); }
+
+            @Override
+            public byte[] value() { return row.getValue(); }
+        };
+    }
+
+    /**
+     * Merges sorted sources, the newest first; of records with the same key only the newest is reported.
+     */
+    private static final class MergeCursor implements SSTable.Cursor {
+        private final List<SSTable.Cursor> sources;
+        private final boolean live;
+        private PriorityQueue<Integer> heap;
+        private long key;
+        private byte[] value;
+
+        MergeCursor(List<SSTable.Cursor> sources, boolean live) {
+            this.sources = sources;
+            this.live = live;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (heap == null) {
+                heap = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> {
+                    int byKey = Long.compare(sources.get(a).key(), sources.get(b).key());
+                    return byKey != 0 ? byKey : Integer.compare(a, b);
+                });
+                for (int i = 0; i < sources.size(); i++) {
+                    if (sources.get(i).next()) heap.add(i);
+                }
+            }
+            while (!heap.isEmpty()) {
+                int newest = heap.poll();
+                SSTable.Cursor source = sources.get(newest);
+                key = source.key();
+                value = source.value();
+                advance(newest);
+                while (!heap.isEmpty() && sources.get(heap.peek()).key() == key) {
+                    advance(heap.poll());
+                }
+                if (!live || value.length > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void advance(int source) throws IOException {
+            if (sources.get(source).next()) heap.add(source);
+        }
+
+        @Override
+        public long key() { return key; }
+
+        @Override
+        public byte[] value() { return value; }
+    }
+
+    /**
+     * Has a background thread write the frozen memtables, unless one already will.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            BACKGROUND.execute(() -> {
+                // Memtables frozen from now on schedule another run
+                flushScheduled.set(false);
+                try {
+                    writeFrozen();
+                    scheduleCompaction();
+                } catch (IOException | RuntimeException e) {
+                    backgroundFailure = e instanceof IOException io ? io : new IOException(e.getMessage(), e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Has a background thread compact the levels over their budget, unless one already will.
+     */
+    private void scheduleCompaction() {
+        if (compactionScheduled.compareAndSet(false, true)) {
+            BACKGROUND.execute(() -> {
+                try {
+                    synchronized (compactionLock) {
+                        compactionScheduled.set(false);
+                        while (!closed && compactLevel()) {
+                            // until every level is within its budget
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    backgroundFailure = e instanceof IOException io ? io : new IOException(e.getMessage(), e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes the frozen memtables to level 0, oldest first, and records each in the manifest. A
+     * memtable's log records are forced first, so a table never holds a change the log may lose.
+     * Compactions go on meanwhile; only the manifest update waits for one to record its result.
+     */
+    private void writeFrozen() throws IOException {
+        synchronized (flushLock) {
+            while (!closed && !current.frozen.isEmpty()) {
+                Memtable oldest = current.frozen.get(0);
+                WriteAheadLog tableLog = log;
+                if (tableLog != null && oldest.endLsn > tableLog.getDurableLsn()) {
+                    tableLog.flush(oldest.endLsn - 1);
+                }
+                List<SSTable> written = oldest.rows.isEmpty() ? List.of()
+                        : writeTables(cursor(oldest, Long.MIN_VALUE, Long.MAX_VALUE), Long.MAX_VALUE);
+                synchronized (manifestLock) {
+                    List<List<SSTable>> levels = copyLevels(current.levels);
+                    levels.get(0).addAll(0, written);
+                    savedRecordCount = oldest.recordCount;
+                    savedNextId = oldest.nextId;
+                    savedGeneration = oldest.generation;
+                    savedChanges = oldest.changes;
+                    long previousRedo = redoLsn;
+                    redoLsn = Math.max(redoLsn, oldest.endLsn);
+                    try {
+                        writeManifest(levels);
+                    } catch (IOException | RuntimeException e) {
+                        redoLsn = previousRedo;
+                        abandon(written);
+                        throw e;
+                    }
+                    install(s -> new Snapshot(s.active, s.frozen.subList(1, s.frozen.size()), levels));
+                }
+                for (SSTable table : written) {
+                    table.release(); // now held by the snapshot only
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs one compaction step if a level is over its budget.
+     * @return false if no level needs compacting
+     */
+    private boolean compactLevel() throws IOException {
+        List<List<SSTable>> levels = current.levels;
+        if (levels.get(0).size() >= L0_TRIGGER) {
+            compact(0, levels.get(0));
+            return true;
+        }
+        for (int level = 1; level < LEVELS - 1; level++) {
+            long budget = LEVEL_BASE_BYTES;
+            for (int i = 1; i < level; i++) {
+                budget *= 10;
+            }
+            if (size(levels.get(level)) > budget) {
+                List<SSTable> tables = levels.get(level);
+                SSTable input = tables.get(0);
+                for (SSTable table : tables) {
+                    if (table.getMinKey() > compactionPointers[level]) {
+                        input = table;
+                        break;
+                    }
+                }
+                compactionPointers[level] = input.getMaxKey();
+                compact(level, List.of(input));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Merges tables of a level with the overlapping tables of the next level into the next level.
+     * A table overlapping nothing below level 0 is moved without being rewritten. Only compactions
+     * change the levels below 0 and they run one at a time, so the overlap found stays valid while
+     * the merge runs; memtables written to level 0 meanwhile are newer and stay there.
+     * @param inputs tables of the level, the newest first
+     */
+    private void compact(int level, List<SSTable> inputs) throws IOException {
+        List<List<SSTable>> levels = current.levels;
+        int target = level + 1;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (SSTable table : inputs) {
+            min = Math.min(min, table.getMinKey());
+            max = Math.max(max, table.getMaxKey());
+        }
+        List<SSTable> merged = new ArrayList<>(inputs);
+        for (SSTable table : levels.get(target)) {
+            if (table.overlaps(min, max)) {
+                merged.add(table);
+                min = Math.min(min, table.getMinKey());
+                max = Math.max(max, table.getMaxKey());
+            }
+        }
+        if (level > 0 && merged.size() == inputs.size()) {
+            replaceTables(inputs, target, inputs, List.of());
+            return;
+        }
+        boolean bottom = true;
+        for (int deeper = target + 1; deeper < LEVELS; deeper++) {
+            for (SSTable table : levels.get(deeper)) {
+                bottom &= !table.overlaps(min, max);
+            }
+        }
+        List<SSTable> written = mergeInto(merged, bottom);
+        replaceTables(merged, target, written, merged);
+        for (SSTable table : written) {
+            table.release();
+        }
+    }
+
+    /**
+     * Merges every table into the deepest level in use, dropping all tombstones and overwritten
+     * records. Locators do not change, so indexes over the table stay valid; the version is kept too.
+     */
+    @Override
+    public synchronized void compact() throws IOException {
+        flush();
+        synchronized (compactionLock) {
+            List<SSTable> all = new ArrayList<>();
+            int deepest = 1;
+            for (int level = 0; level < LEVELS; level++) {
+                List<SSTable> tables = current.levels.get(level);
+                if (!tables.isEmpty()) {
+                    deepest = Math.max(deepest, level);
+                }
+                all.addAll(tables);
+            }
+            if (all.isEmpty()) return;
+            List<SSTable> written = mergeInto(all, true);
+            replaceTables(all, deepest, written, all);
+            for (SSTable table : written) {
+                table.release();
+            }
+        }
+    }
+
+    /**
+     * Merges tables into new tables of at most {@link #TABLE_BYTES}.
+     * @param tables tables to merge; of two with the same key, the earlier in the list is newer
+     * @param dropDeleted true if no older table can hold the keys, so tombstones can go
+     */
+    private List<SSTable> mergeInto(List<SSTable> tables, boolean dropDeleted) throws IOException {
+        List<SSTable.Cursor> sources = new ArrayList<>();
+        for (SSTable table : tables) {
+            sources.add(table.cursor(Long.MIN_VALUE, Long.MAX_VALUE));
+        }
+        return writeTables(new MergeCursor(sources, dropDeleted), TABLE_BYTES);
+    }
+
+    /**
+     * Records in the manifest that tables moved or were merged into others, makes that current and
+     * has the merged tables deleted once no reader holds them.
+     * @param removed tables leaving their level
+     * @param target level receiving the added tables
+     * @param added tables joining the target level
+     * @param obsolete removed tables whose file is no longer needed
+     */
+    private void replaceTables(List<SSTable> removed, int target, List<SSTable> added, List<SSTable> obsolete)
+            throws IOException {
+        synchronized (manifestLock) {
+            List<List<SSTable>> levels = copyLevels(current.levels);
+            for (List<SSTable> level : levels) {
+                level.removeAll(removed);
+            }
+            levels.get(target).addAll(added);
+            levels.get(target).sort(Comparator.comparingLong(SSTable::getMinKey));
+            try {
+                writeManifest(levels);
+            } catch (IOException | RuntimeException e) {
+                if (added != removed) {
+                    abandon(added);
+                }
+                throw e;
+            }
+            for (SSTable table : obsolete) {
+                table.markObsolete();
+            }
+            install(s -> new Snapshot(s.active, s.frozen, levels));
+        }
+    }
+
+    /**
+     * Writes the records of a cursor to new tables, starting a new table when one reaches a size.
+     * The tables are returned retained once, by the caller.
+     */
+    private List<SSTable> writeTables(SSTable.Cursor rows, long maxBytes) throws IOException {
+        List<SSTable> written = new ArrayList<>();
+        SSTable.Writer writer = null;
+        long number = 0;
+        try {
+            while (rows.next()) {
+                if (writer == null) {
+                    number = nextTable.getAndIncrement();
+                    writer = new SSTable.Writer(tableFile(dir, number), codec);
+                }
+                writer.add(rows.key(), rows.value());
+                if (writer.size() >= maxBytes) {
+                    SSTable table = writer.finish(number, pool);
+                    writer = null;
+                    table.retain();
+                    written.add(table);
+                }
+            }
+            if (writer != null) {
+                SSTable table = writer.finish(number, pool);
+                writer = null;
+                table.retain();
+                written.add(table);
+            }
+            return written;
+        } catch (IOException | RuntimeException e) {
+            if (writer != null) {
+                writer.abandon();
+            }
+            abandon(written);
+            throw e;
+        }
+    }
+
+    private static void abandon(List<SSTable> tables) {
+        for (SSTable table : tables) {
+            table.markObsolete();
+            table.release();
+        }
+    }
+
+    private static List<List<SSTable>> copyLevels(List<List<SSTable>> levels) {
+        List<List<SSTable>> copy = new ArrayList<>();
+        for (List<SSTable> level : levels) {
+            copy.add(new ArrayList<>(level));
+        }
+        return copy;
+    }
+
+    private static long size(List<SSTable> tables) {
+        long size = 0;
+        for (SSTable table : tables) {
+            size += table.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * Replaces the manifest with one listing the given tables and the saved counters.
+     */
+    private void writeManifest(List<List<SSTable>> levels) throws IOException {
+        File tmp = new File(dir, MANIFEST + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeInt(version);
+            out.writeInt(columns.length);
+            for (String column : columns) {
+                out.writeUTF(column);
+            }
+            out.writeInt(savedGeneration);
+            out.writeLong(savedChanges);
+            out.writeLong(savedRecordCount);
+            out.writeLong(savedNextId);
+            out.writeLong(redoLsn);
+            out.writeLong(nextTable.get());
+            int tables = 0;
+            for (List<SSTable> level : levels) {
+                tables += level.size();
+            }
+            out.writeInt(tables);
+            for (int level = 0; level < levels.size(); level++) {
+                for (SSTable table : levels.get(level)) {
+                    out.writeInt(level);
+                    out.writeLong(table.getNumber());
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(dir, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Freezes the memtable, even when empty, so that its counters and redo point reach the
+     * manifest, and writes it from the calling thread. Writers wait only for the freeze.
+     */
+    @Override
+    public void checkpoint() throws IOException {
+        synchronized (this) {
+            if (log == null || closed) return;
+            freeze(log.getEndLsn());
+        }
+        writeFrozen();
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (closed) return;
+        freeze(log == null ? 0 : log.getEndLsn());
+        writeFrozen();
+    }
+
+    /**
+     * Writes the memtable and stops background work; a compaction in progress is finished first.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        try {
+            flush();
+        } finally {
+            closed = true;
+            synchronized (compactionLock) {
+                synchronized (flushLock) {
+                    current.release();
+                }
+            }
+        }
+    }
+}
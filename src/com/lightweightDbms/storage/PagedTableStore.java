@@ -0,0 +1,1181 @@
+package com.lightweightDbms.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Table store made of fixed-size slotted pages.
+ * <p>
+ * Page 0 is a header holding the column definitions and table counters. Every data page has a small
+ * header, records growing up from it and a slot directory growing down from the page end; a record
+ * is addressed by its page and slot number, so it keeps its locator when other records on the page
+ * are deleted, grow or are compacted. Records are encoded by a {@link RowCodec}, values of
+ * fixed-width column types in binary; files of version 2 predate column types and hold UTF-8
+ * values only. A delete only frees the record's slot; its
+ * bytes stay on the page as dead space until an insert needs the room and compacts the page, or
+ * {@link #compact()} rewrites the table.
+ * <p>
+ * A free-space map keeps one byte per data page with its free space in units of
+ * {@code PAGE_SIZE / 256} bytes. Map pages are interleaved with the data pages they describe (one
+ * map page before every {@link #PAGE_SIZE} data pages), so the file grows without relocating the
+ * map. Inserts go to the last page used if it has room, otherwise to a page with at least a quarter
+ * of a page free that is certain to have room, otherwise to a new page at the end of the file. Pages
+ * with that much room are tracked in memory in size classes, so an insert costs the same however
+ * large the table is. The
+ * row count lives in the header with the other table counters and is never recomputed from the rows,
+ * except after a crash.
+ * <p>
+ * Data and map pages are read and modified in a shared {@link BufferPool}; modified pages reach
+ * the file when the pool evicts them or the table is flushed; {@link #scanViews} reads pages the
+ * pool does not hold straight from a memory mapping of the file. The header is written directly: it
+ * is marked unclean by the first modification of a session and clean again by {@link #flush()} or
+ * {@link #close()}, after all modified pages have been written. A table opened unclean gets its map
+ * and counters recomputed and moves to a new generation, so indexes saved before the crash no
+ * longer match its version.
+ * <p>
+ * Pages are not compressed, so the table takes no {@link BlockCodec} other than
+ * {@link BlockCodec#NONE}: the pool writes every page back in place at a fixed position, which a
+ * page compressed to a varying size would not fit. Tables that are to be compressed use the LSM or
+ * COLUMNAR format.
+ * <p>
+ * Once a {@link WriteAheadLog} is attached, every row change and page format is logged with the
+ * before and after image of the record, and the data page is stamped with the record's LSN, so the
+ * pool writes it back only after the log. A flush records in the header the log position from which
+ * the table's changes are not all in the file yet. Recovery replays the records from there on
+ * {@link #redo}, skipping those whose page already carries a later LSN; the first replayed record
+ * moves the table to a new generation.
+ */
+public final class PagedTableStore implements TableStore {
+    /** Size of one page in bytes. */
+    public static final int PAGE_SIZE = BufferPool.PAGE_SIZE;
+
+    /** Slotted-page format, stored in {@code .tbl} files. */
+    public static final Format FORMAT = new Format() {
+        @Override
+        public String name() { return "PAGED"; }
+
+        @Override
+        public String extension() { return ".tbl"; }
+
+        @Override
+        public TableStore create(File file, List<String> columns, BufferPool pool) throws IOException {
+            return PagedTableStore.create(file, columns, pool);
+        }
+
+        @Override
+        public TableStore open(File file, BufferPool pool) throws IOException {
+            return PagedTableStore.open(file, pool);
+        }
+    };
+
+    private static final int MAGIC = 0x4C575442; // "LWTB"
+    private static final int VERSION = 3;
+    private static final int TEXT_VERSION = 2; // every value stored as UTF-8
+    private static final int CLEAN = 1;
+    // header page layout
+    private static final int H_FLAGS = 12;
+    private static final int H_GENERATION = 16;
+    private static final int H_CHANGES = 20;
+    private static final int H_RECORDS = 28;
+    private static final int H_REDO_LSN = 36;
+    private static final int H_COLUMNS = 44;
+    // data page layout
+    private static final int SLOT_COUNT = 0;
+    private static final int FREE_START = 2;
+    private static final int P_LSN = 8;
+    private static final int DATA_START = 16;
+    private static final int SLOT_SIZE = 4;
+    /** Largest encoded record that fits on an empty page. */
+    static final int MAX_RECORD = PAGE_SIZE - DATA_START - SLOT_SIZE;
+    // free-space map
+    private static final int FSM_SPAN = PAGE_SIZE;
+    private static final int FSM_UNIT = PAGE_SIZE / 256;
+    /** Free-space category from which a page is offered to inserts again (a quarter of a page). */
+    private static final int REUSE_CATEGORY = 64;
+    /** Free-space category of an empty data page. */
+    private static final int FULL_CATEGORY = (PAGE_SIZE - DATA_START) / FSM_UNIT;
+    /** Free-space categories per size class of the pages offered to inserts. */
+    private static final int CLASS_WIDTH = 16;
+    /** Size classes of pages offered to inserts; the last one holds only empty pages. */
+    private static final int SIZE_CLASSES = (FULL_CATEGORY - REUSE_CATEGORY + CLASS_WIDTH - 1) / CLASS_WIDTH + 1;
+    /** Bytes of the file mapped at once by a view scan. */
+    private static final long MAP_WINDOW = 1L << 30;
+
+    private final File file;
+    private FileChannel channel;
+    private final BufferPool pool;
+    private int fileId;
+    private final String[] columns;
+    private final int version;
+    private final RowCodec codec;
+    private int pageCount;
+    private byte[] freeSpace; // free-space category per page; 0 for the header and map pages
+    private final BitSet[] roomyPages = sizeClasses(); // pages with at least REUSE_CATEGORY free, by size class
+    private long freeUnits; // sum of the free-space categories of all data pages
+    private int insertHint = -1;
+    private long recordCount;
+    private int generation;
+    private long changes;
+    private boolean dirty;
+    private WriteAheadLog log;
+    private String logName;
+    private long redoLsn; // log position from which changes may be missing from the file
+    private boolean replayed;
+
+    private PagedTableStore(File file, FileChannel channel, BufferPool pool, String[] columns, int version) {
+        this.file = file;
+        this.channel = channel;
+        this.pool = pool;
+        this.fileId = pool.register(channel);
+        this.columns = columns;
+        this.version = version;
+        this.codec = version == TEXT_VERSION ? RowCodec.TEXT : RowCodec.forColumns(columns);
+    }
+
+    /**
+     * Creates an empty table file.
+     * @param file table file to create
+     * @param columns column definitions
+     * @param pool buffer pool caching the table's pages
+     * @return open store
+     * @throws IOException if the file exists or cannot be written
+     */
+    public static PagedTableStore create(File file, List<String> columns, BufferPool pool) throws IOException {
+        return create(file, columns, pool, VERSION);
+    }
+
+    private static PagedTableStore create(File file, List<String> columns, BufferPool pool, int version) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        PagedTableStore store = new PagedTableStore(file, channel, pool, columns.toArray(new String[0]), version);
+        try {
+            store.pageCount = 1;
+            store.freeSpace = new byte[64];
+            store.generation = 1;
+            store.writeHeader(true);
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            pool.discard(store.fileId);
+            channel.close();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            throw e;
+        }
+        return store;
+    }
+
+    /**
+     * Opens a table file, recovering its free-space map and counters if it was not closed cleanly.
+     * @param file table file
+     * @param pool buffer pool caching the table's pages
+     * @return open store
+     * @throws IOException if the file cannot be read or is not a table file
+     */
+    public static PagedTableStore open(File file, BufferPool pool) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        PagedTableStore store = null;
+        try {
+            ByteBuffer header = readHeader(channel, file);
+            int columnBytes = header.getInt(H_COLUMNS);
+            byte[] encoded = new byte[columnBytes];
+            header.get(H_COLUMNS + 4, encoded);
+            String line = new String(encoded, StandardCharsets.UTF_8);
+            String[] columns = line.isEmpty() ? new String[0] : line.split(",");
+            store = new PagedTableStore(file, channel, pool, columns, header.getInt(4));
+            store.readState(header);
+            return store;
+        } catch (IOException | RuntimeException e) {
+            if (store != null) {
+                pool.discard(store.fileId);
+            }
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel, File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+        readFully(channel, header, 0);
+        int version = header.getInt(4);
+        if (header.getInt(0) != MAGIC || (version != VERSION && version != TEXT_VERSION) || header.getInt(8) != PAGE_SIZE) {
+            throw new IOException("Not a compatible table file: " + file);
+        }
+        return header;
+    }
+
+    /**
+     * Loads the counters and free-space map of the open file, recovering them if it was not closed cleanly.
+     */
+    private void readState(ByteBuffer header) throws IOException {
+        pageCount = (int) (channel.size() / PAGE_SIZE);
+        freeSpace = new byte[Math.max(64, pageCount)];
+        for (BitSet pages : roomyPages) {
+            pages.clear();
+        }
+        freeUnits = 0;
+        insertHint = -1;
+        generation = header.getInt(H_GENERATION);
+        changes = header.getLong(H_CHANGES);
+        recordCount = header.getLong(H_RECORDS);
+        redoLsn = header.getLong(H_REDO_LSN);
+        dirty = false;
+        if (header.getInt(H_FLAGS) == CLEAN) {
+            readFreeSpaceMap();
+        } else {
+            recover();
+        }
+    }
+
+    @Override
+    public File getFile() { return file; }
+
+    @Override
+    public String[] getColumns() { return columns.clone(); }
+
+    @Override
+    public synchronized long getRecordCount() { return recordCount; }
+
+    @Override
+    public synchronized long getVersion() { return ((long) generation << 32) + changes; }
+
+    @Override
+    public synchronized void setLog(WriteAheadLog log, String name) {
+        this.log = log;
+        this.logName = name;
+    }
+
+    /**
+     * Dead space is the share of data pages a compaction would give back. The pages a compaction
+     * needs are estimated from the average space of a live row: whole rows are packed onto each
+     * page, so the unusable tails of pages holding large rows are not counted as dead.
+     */
+    @Override
+    public synchronized double getDeadRatio() {
+        long dataPages = pageCount - 1 - (pageCount - 1 + FSM_SPAN) / (FSM_SPAN + 1);
+        if (dataPages <= 0) {
+            return 0;
+        }
+        long capacity = dataPages * (long) FULL_CATEGORY;
+        if (recordCount <= 0) {
+            return (double) freeUnits / capacity;
+        }
+        // Categories round free space down, so rows look larger than they are and fewer fit per page
+        double rowUnits = (double) (capacity - freeUnits) / recordCount;
+        long rowsPerPage = Math.max(1, (long) (FULL_CATEGORY / rowUnits));
+        long neededPages = (recordCount + rowsPerPage - 1) / rowsPerPage;
+        return Math.max(0, 1 - (double) neededPages / dataPages);
+    }
+
+    @Override
+    public synchronized long insert(String[] values) throws IOException {
+        byte[] record = codec.encode(values);
+        markDirty();
+        int page = findPage(record.length + SLOT_SIZE);
+        BufferPool.Page p = pool.pin(fileId, page);
+        try {
+            int slot;
+            synchronized (p) {
+                slot = place(p.buffer(), record, -1);
+                if (slot >= 0) {
+                    logChange(p, locator(page, slot), null, record);
+                }
+            }
+            if (slot < 0) {
+                throw new IllegalStateException("Free-space map out of date for page " + page + " of " + file);
+            }
+            recordCount++;
+            changes++;
+            return locator(page, slot);
+        } finally {
+            release(page, p);
+        }
+    }
+
+    @Override
+    public synchronized long load(Iterator<String[]> rows) throws IOException {
+        markDirty();
+        long loaded = 0;
+        BufferPool.Page p = null;
+        int page = -1;
+        try {
+            while (rows.hasNext()) {
+                byte[] record = codec.encode(rows.next());
+                // New pages are not visible to readers until the load returns, so they are filled unlatched
+                int slot = p == null ? -1 : place(p.buffer(), record, -1);
+                if (slot < 0) {
+                    if (p != null) {
+                        release(page, p);
+                        p = null;
+                    }
+                    page = allocatePage();
+                    p = pool.pin(fileId, page);
+                    format(p, page);
+                    slot = place(p.buffer(), record, -1);
+                }
+                logChange(p, locator(page, slot), null, record);
+                loaded++;
+            }
+        } finally {
+            if (p != null) {
+                release(page, p);
+            }
+            recordCount += loaded;
+            changes++;
+        }
+        return loaded;
+    }
+
+    @Override
+    public String[] read(long locator) throws IOException {
+        int page = pageOf(locator);
+        if (!isDataPage(page)) {
+            return null;
+        }
+        BufferPool.Page p = pool.pin(fileId, page);
+        try {
+            synchronized (p) {
+                ByteBuffer buf = p.buffer();
+                int slot = slotOf(locator);
+                if (slot >= slotCount(buf) || slotOffset(buf, slot) == 0) {
+                    return null;
+                }
+                return codec.decode(buf.array(), slotOffset(buf, slot), slotLength(buf, slot));
+            }
+        } finally {
+            pool.unpin(p, false);
+        }
+    }
+
+    @Override
+    public synchronized long update(long locator, String[] values) throws IOException {
+        byte[] record = codec.encode(values);
+        int page = pageOf(locator);
+        int slot = slotOf(locator);
+        if (!isDataPage(page)) {
+            throw new IllegalArgumentException("No row at locator " + locator + " in " + file);
+        }
+        BufferPool.Page p = pool.pin(fileId, page);
+        try {
+            ByteBuffer buf = p.buffer();
+            if (slot >= slotCount(buf) || slotOffset(buf, slot) == 0) {
+                throw new IllegalArgumentException("No row at locator " + locator + " in " + file);
+            }
+            markDirty();
+            changes++;
+            synchronized (p) {
+                byte[] before = image(buf, slot);
+                if (record.length <= slotLength(buf, slot)) {
+                    // Shrinking or same size: overwrite in place, the tail becomes dead space
+                    System.arraycopy(record, 0, buf.array(), slotOffset(buf, slot), record.length);
+                    setSlot(buf, slot, slotOffset(buf, slot), record.length);
+                    logChange(p, locator, before, record);
+                    return locator;
+                }
+                setSlot(buf, slot, 0, 0);
+                if (place(buf, record, slot) >= 0) {
+                    logChange(p, locator, before, record);
+                    return locator;
+                }
+                // No room left on this page: the row moves
+                trimSlots(buf);
+                logChange(p, locator, before, null);
+            }
+        } finally {
+            release(page, p);
+        }
+        int target = findPage(record.length + SLOT_SIZE);
+        BufferPool.Page t = pool.pin(fileId, target);
+        try {
+            int targetSlot;
+            synchronized (t) {
+                targetSlot = place(t.buffer(), record, -1);
+                if (targetSlot >= 0) {
+                    logChange(t, locator(target, targetSlot), null, record);
+                }
+            }
+            if (targetSlot < 0) {
+                throw new IllegalStateException("Free-space map out of date for page " + target + " of " + file);
+            }
+            return locator(target, targetSlot);
+        } finally {
+            release(target, t);
+        }
+    }
+
+    @Override
+    public synchronized long getRedoLsn() { return redoLsn; }
+
+    @Override
+    public synchronized boolean redo(WriteAheadLog.Record record) throws IOException {
+        boolean format = record.getType() == WriteAheadLog.FORMAT;
+        int page = format ? (int) record.getLocator() : pageOf(record.getLocator());
+        // Pages allocated before the crash may not have reached the file
+        while (page >= pageCount) {
+            allocatePage();
+        }
+        if (page < 1 || isMapPage(page)) {
+            throw new IllegalArgumentException("Log record " + record.getLsn() + " addresses no data page of " + file);
+        }
+        markDirty();
+        BufferPool.Page p = pool.pin(fileId, page);
+        try {
+            synchronized (p) {
+                ByteBuffer buf = p.buffer();
+                if (buf.getLong(P_LSN) >= record.getLsn()) {
+                    return false;
+                }
+                if (format) {
+                    initPage(buf);
+                } else {
+                    recordCount += putSlot(buf, slotOf(record.getLocator()), record.getAfter());
+                }
+                stamp(p, record.getLsn());
+            }
+        } finally {
+            release(page, p);
+        }
+        if (!replayed) {
+            generation++;
+            changes = 0;
+            replayed = true;
+        }
+        changes++;
+        return true;
+    }
+
+    @Override
+    public synchronized void restore(long locator, byte[] record) throws IOException {
+        int page = pageOf(locator);
+        if (!isDataPage(page)) {
+            throw new IllegalArgumentException("No data page at locator " + locator + " in " + file);
+        }
+        markDirty();
+        BufferPool.Page p = pool.pin(fileId, page);
+        try {
+            synchronized (p) {
+                ByteBuffer buf = p.buffer();
+                int slot = slotOf(locator);
+                byte[] before = slot < slotCount(buf) && slotOffset(buf, slot) != 0 ? image(buf, slot) : null;
+                recordCount += putSlot(buf, slot, record);
+                logChange(p, locator, before, record);
+            }
+            changes++;
+        } finally {
+            release(page, p);
+        }
+    }
+
+    @Override
+    public synchronized boolean delete(long locator) throws IOException {
+        int page = pageOf(locator);
+        if (!isDataPage(page)) {
+            return false;
+        }
+        BufferPool.Page p = pool.pin(fileId, page);
+        try {
+            ByteBuffer buf = p.buffer();
+            int slot = slotOf(locator);
+            if (slot >= slotCount(buf) || slotOffset(buf, slot) == 0) {
+                return false;
+            }
+            markDirty();
+            synchronized (p) {
+                byte[] before = image(buf, slot);
+                setSlot(buf, slot, 0, 0);
+                trimSlots(buf);
+                logChange(p, locator, before, null);
+            }
+            recordCount--;
+            changes++;
+            return true;
+        } finally {
+            release(page, p);
+        }
+    }
+
+    @Override
+    public synchronized int segmentCount() { return pageCount; }
+
+    @Override
+    public void scan(RecordVisitor visitor) throws IOException {
+        scan(0, segmentCount(), visitor);
+    }
+
+    @Override
+    public void scan(int fromSegment, int toSegment, RecordVisitor visitor) throws IOException {
+        int end = Math.min(toSegment, segmentCount());
+        List<String[]> rows = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        for (int page = Math.max(1, fromSegment); page < end; page++) {
+            if (isMapPage(page)) continue;
+            readPage(page, rows, slots);
+            for (int i = 0; i < rows.size(); i++) {
+                visitor.visit(locator(page, slots.get(i)), rows.get(i));
+            }
+            rows.clear();
+            slots.clear();
+        }
+    }
+
+    /**
+     * Reads pages through read-only mappings of the file instead of the pool, so a full scan neither
+     * copies pages nor evicts the pool's working set; pages the pool holds are read from the pool,
+     * since they may be newer than the file. Writers wait for the scan to end: otherwise a page
+     * modified in the pool could be written back into the mapping while it is read.
+     */
+    @Override
+    public synchronized void scanViews(RecordViewVisitor visitor) throws IOException {
+        PageRecord record = new PageRecord(codec);
+        long fileSize = channel.size();
+        MappedByteBuffer window = null;
+        long windowStart = 0;
+        for (int page = 1; page < pageCount; page++) {
+            if (isMapPage(page)) continue;
+            long position = (long) page * PAGE_SIZE;
+            BufferPool.Page cached = pool.pinIfCached(fileId, page);
+            if (cached == null && position + PAGE_SIZE > fileSize) {
+                cached = pool.pin(fileId, page);
+            }
+            try {
+                ByteBuffer buf;
+                if (cached != null) {
+                    buf = cached.buffer();
+                } else {
+                    if (window == null || position + PAGE_SIZE > windowStart + window.capacity()) {
+                        windowStart = position;
+                        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                                Math.min(MAP_WINDOW, fileSize - windowStart) / PAGE_SIZE * PAGE_SIZE);
+                    }
+                    buf = window.slice((int) (position - windowStart), PAGE_SIZE);
+                }
+                int count = slotCount(buf);
+                for (int slot = 0; slot < count; slot++) {
+                    int offset = slotOffset(buf, slot);
+                    if (offset == 0) continue;
+                    record.reset(buf, offset, slotLength(buf, slot));
+                    visitor.visit(locator(page, slot), record);
+                }
+            } finally {
+                if (cached != null) {
+                    pool.unpin(cached, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the live rows in storage order into a new file of the next generation, then replaces the
+     * table file with it. A crash before the replacement leaves the old file in place.
+     */
+    @Override
+    public synchronized void compact() throws IOException {
+        flush();
+        File target = new File(file.getPath() + ".compact");
+        Files.deleteIfExists(target.toPath());
+        // The copy keeps the record encoding, so a table from before column types is not retyped
+        PagedTableStore copy = create(target, Arrays.asList(columns), pool, version);
+        try {
+            copy.generation = generation + 1;
+            // The log's changes to the old file must not be replayed on the new one
+            copy.redoLsn = log == null ? redoLsn : log.getEndLsn();
+            copy.load(liveRows());
+        } catch (UncheckedIOException e) {
+            copy.abandon();
+            throw e.getCause();
+        } catch (IOException | RuntimeException e) {
+            copy.abandon();
+            throw e;
+        }
+        copy.close();
+        pool.discard(fileId);
+        channel.close();
+        try {
+            Files.move(target.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // Reopens the compacted file, or the old one if it could not be replaced
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            fileId = pool.register(channel);
+            readState(readHeader(channel, file));
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        pool.flush(fileId);
+        if (log != null) {
+            // The pages must be on disk before the header moves the redo point past their changes
+            channel.force(false);
+            redoLsn = log.getEndLsn();
+        }
+        writeHeader(true);
+        dirty = false;
+        channel.force(false);
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        long mark;
+        int id;
+        FileChannel current;
+        synchronized (this) {
+            if (log == null || !channel.isOpen()) return;
+            // Writers hold the monitor, so every change logged before the mark has marked its page dirty
+            mark = log.getEndLsn();
+            id = fileId;
+            current = channel;
+        }
+        try {
+            pool.writeDirtyPages(id);
+            current.force(false);
+        } catch (ClosedChannelException | IllegalStateException e) {
+            return; // closed or compacted meanwhile, which flushed the table anyway
+        }
+        synchronized (this) {
+            if (id != fileId || !channel.isOpen() || mark <= redoLsn) return;
+            redoLsn = mark;
+            // The counters and free-space map may lag the pages, so a dirty table stays marked unclean
+            writeHeader(!dirty);
+        }
+        current.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) return;
+        try {
+            flush();
+        } finally {
+            pool.discard(fileId);
+            channel.close();
+        }
+    }
+
+    /**
+     * Closes and deletes a table file that is being written, without flushing it.
+     */
+    private void abandon() throws IOException {
+        pool.discard(fileId);
+        channel.close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * Decodes the live rows of a data page under its latch.
+     * @param rows receives the rows; cleared first
+     * @param slots receives the slot of each row; cleared first
+     */
+    private void readPage(int page, List<String[]> rows, List<Integer> slots) throws IOException {
+        rows.clear();
+        slots.clear();
+        BufferPool.Page p = pool.pin(fileId, page);
+        try {
+            synchronized (p) {
+                ByteBuffer buf = p.buffer();
+                int count = slotCount(buf);
+                for (int slot = 0; slot < count; slot++) {
+                    int offset = slotOffset(buf, slot);
+                    if (offset == 0) continue;
+                    rows.add(codec.decode(buf.array(), offset, slotLength(buf, slot)));
+                    slots.add(slot);
+                }
+            }
+        } finally {
+            pool.unpin(p, false);
+        }
+    }
+
+    /**
+     * @return live rows in storage order, read one page at a time
+     */
+    private Iterator<String[]> liveRows() {
+        return new Iterator<>() {
+            private final List<String[]> rows = new ArrayList<>();
+            private final List<Integer> slots = new ArrayList<>();
+            private int page = 1;
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == rows.size()) {
+                    if (page >= pageCount) return false;
+                    next = 0;
+                    if (isMapPage(page)) {
+                        page++;
+                        continue;
+                    }
+                    try {
+                        readPage(page++, rows, slots);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public String[] next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return rows.get(next++);
+            }
+        };
+    }
+
+    /**
+     * View of an encoded record in a page buffer; the value positions are parsed once per record and
+     * the values are only decoded on request.
+     */
+    static final class PageRecord implements RecordView {
+        private final RowCodec codec;
+        private ByteBuffer buffer;
+        private int size;
+        private int[] offsets = new int[16];
+        private int[] lengths = new int[16];
+        private byte[] scratch = new byte[64];
+        private int pos;
+
+        /**
+         * @param codec codec the records were encoded with
+         */
+        PageRecord(RowCodec codec) {
+            this.codec = codec;
+        }
+
+        void reset(ByteBuffer buffer, int offset, int length) {
+            this.buffer = buffer;
+            pos = offset;
+            size = varInt();
+            if (size > offsets.length) {
+                offsets = new int[Math.max(size, offsets.length * 2)];
+                lengths = new int[offsets.length];
+            }
+            for (int i = 0; i < size; i++) {
+                lengths[i] = varInt();
+                offsets[i] = pos;
+                pos += lengths[i];
+            }
+            if (pos != offset + length) {
+                throw new IllegalStateException("Corrupt record at offset " + offset);
+            }
+        }
+
+        @Override
+        public int size() { return size; }
+
+        @Override
+        public ByteBuffer buffer() { return buffer; }
+
+        @Override
+        public int offset(int column) { return offsets[column]; }
+
+        @Override
+        public int length(int column) { return lengths[column]; }
+
+        @Override
+        public ColumnType type(int column) { return codec.type(column); }
+
+        @Override
+        public String get(int column) {
+            int length = lengths[column];
+            ColumnType type = codec.type(column);
+            if (type.isFixedWidth()) {
+                return type.decode(buffer, offsets[column], length);
+            }
+            if (buffer.hasArray()) {
+                return new String(buffer.array(), buffer.arrayOffset() + offsets[column], length, StandardCharsets.UTF_8);
+            }
+            if (length > scratch.length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            buffer.get(offsets[column], scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private int varInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(pos++);
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+
+    /**
+     * Stores a record on a page, compacting the page if its free space is fragmented.
+     * @param slot slot to use, or -1 to reuse a free slot or add one
+     * @return slot of the record, or -1 if the page has no room
+     */
+    private static int place(ByteBuffer buf, byte[] record, int slot) {
+        int slots = slotCount(buf);
+        if (slot < 0) {
+            slot = slots;
+            for (int i = 0; i < slots; i++) {
+                if (slotOffset(buf, i) == 0) {
+                    slot = i;
+                    break;
+                }
+            }
+        }
+        int newSlots = Math.max(slots, slot + 1);
+        int directory = PAGE_SIZE - SLOT_SIZE * newSlots;
+        if (freeStart(buf) + record.length > directory) {
+            if (freeBytes(buf) - SLOT_SIZE * (newSlots - slots) < record.length) {
+                return -1;
+            }
+            compact(buf);
+        }
+        int offset = freeStart(buf);
+        System.arraycopy(record, 0, buf.array(), offset, record.length);
+        for (int i = slots; i < newSlots; i++) {
+            setSlot(buf, i, 0, 0);
+        }
+        buf.putShort(SLOT_COUNT, (short) newSlots);
+        setSlot(buf, slot, offset, record.length);
+        buf.putShort(FREE_START, (short) (offset + record.length));
+        return slot;
+    }
+
+    /**
+     * Puts a record into a given slot, replacing what it held, or frees the slot.
+     * @param record record, or null to free the slot
+     * @return change in the number of live records on the page: -1, 0 or 1
+     * @throws IllegalStateException if the record does not fit on the page
+     */
+    private static int putSlot(ByteBuffer buf, int slot, byte[] record) {
+        int live = slot < slotCount(buf) && slotOffset(buf, slot) != 0 ? 1 : 0;
+        if (live == 1) {
+            setSlot(buf, slot, 0, 0);
+        }
+        if (record == null) {
+            trimSlots(buf);
+            return -live;
+        }
+        if (place(buf, record, slot) < 0) {
+            throw new IllegalStateException("Record of " + record.length + " bytes does not fit back into slot " + slot);
+        }
+        return 1 - live;
+    }
+
+    /**
+     * Moves the live records of a page together so that all free space is contiguous; slots keep their numbers.
+     */
+    private static void compact(ByteBuffer buf) {
+        byte[] copy = buf.array().clone();
+        int slots = slotCount(buf);
+        int pos = DATA_START;
+        for (int i = 0; i < slots; i++) {
+            int offset = slotOffset(buf, i);
+            if (offset == 0) continue;
+            int length = slotLength(buf, i);
+            System.arraycopy(copy, offset, buf.array(), pos, length);
+            setSlot(buf, i, pos, length);
+            pos += length;
+        }
+        buf.putShort(FREE_START, (short) pos);
+    }
+
+    /**
+     * Drops free slots at the end of the slot directory.
+     */
+    private static void trimSlots(ByteBuffer buf) {
+        int slots = slotCount(buf);
+        while (slots > 0 && slotOffset(buf, slots - 1) == 0) {
+            slots--;
+        }
+        buf.putShort(SLOT_COUNT, (short) slots);
+    }
+
+    /**
+     * @return bytes a page could still store after compaction, including space for new slots
+     */
+    private static int freeBytes(ByteBuffer buf) {
+        int slots = slotCount(buf);
+        int live = 0;
+        for (int i = 0; i < slots; i++) {
+            live += slotLength(buf, i);
+        }
+        return PAGE_SIZE - DATA_START - SLOT_SIZE * slots - live;
+    }
+
+    private static int slotCount(ByteBuffer buf) { return buf.getShort(SLOT_COUNT) & 0xFFFF; }
+
+    private static int freeStart(ByteBuffer buf) { return buf.getShort(FREE_START) & 0xFFFF; }
+
+    private static int slotOffset(ByteBuffer buf, int slot) {
+        return buf.getShort(PAGE_SIZE - SLOT_SIZE * (slot + 1)) & 0xFFFF;
+    }
+
+    private static int slotLength(ByteBuffer buf, int slot) {
+        return buf.getShort(PAGE_SIZE - SLOT_SIZE * (slot + 1) + 2) & 0xFFFF;
+    }
+
+    private static void setSlot(ByteBuffer buf, int slot, int offset, int length) {
+        int entry = PAGE_SIZE - SLOT_SIZE * (slot + 1);
+        buf.putShort(entry, (short) offset);
+        buf.putShort(entry + 2, (short) length);
+    }
+
+    /**
+     * Formats a new data page, logging it if the table is logged.
+     */
+    private void format(BufferPool.Page p, int page) throws IOException {
+        initPage(p.buffer());
+        if (log != null) {
+            stamp(p, log.logFormat(logName, page));
+        }
+    }
+
+    /**
+     * Logs a change of one slot and stamps its page with the record's LSN; called under the page
+     * latch, right after the change. Does nothing if the table is not logged.
+     * @param before record previously in the slot, or null if it was free
+     * @param after record now in the slot, or null if it is free
+     */
+    private void logChange(BufferPool.Page p, long locator, byte[] before, byte[] after) throws IOException {
+        if (log != null) {
+            stamp(p, log.logChange(logName, locator, before, after));
+        }
+    }
+
+    private static void stamp(BufferPool.Page p, long lsn) {
+        p.buffer().putLong(P_LSN, lsn);
+        p.setLsn(lsn);
+    }
+
+    /**
+     * @return copy of the record in a live slot if the table is logged, otherwise null
+     */
+    private byte[] image(ByteBuffer buf, int slot) {
+        if (log == null) {
+            return null;
+        }
+        int offset = slotOffset(buf, slot);
+        return Arrays.copyOfRange(buf.array(), offset, offset + slotLength(buf, slot));
+    }
+
+    /**
+     * Formats a page as an empty data page.
+     */
+    private static void initPage(ByteBuffer buf) {
+        Arrays.fill(buf.array(), buf.arrayOffset(), buf.arrayOffset() + PAGE_SIZE, (byte) 0);
+        buf.putShort(FREE_START, (short) DATA_START);
+    }
+
+    private static long locator(int page, int slot) { return ((long) page << 16) | slot; }
+
+    private static int pageOf(long locator) { return (int) (locator >>> 16); }
+
+    private static int slotOf(long locator) { return (int) (locator & 0xFFFF); }
+
+    private static boolean isMapPage(int page) {
+        return page >= 1 && (page - 1) % (FSM_SPAN + 1) == 0;
+    }
+
+    private boolean isDataPage(int page) {
+        return page >= 1 && page < segmentCount() && !isMapPage(page);
+    }
+
+    /**
+     * Finds a page with room for {@code needed} bytes, allocating one if no page has enough. Only the
+     * last page used and pages with at least a quarter of a page free are considered, so the cost of
+     * an insert does not grow with the table; space on fuller pages is reused once deletes free
+     * enough of it. Those pages are kept in size classes, and only classes in which every page has
+     * room are looked at: the fullest such class first, and at most one page per class.
+     */
+    private int findPage(int needed) throws IOException {
+        int category = (needed + FSM_UNIT - 1) / FSM_UNIT;
+        if (insertHint > 0 && (freeSpace[insertHint] & 0xFF) >= category) {
+            return insertHint;
+        }
+        if (category <= FULL_CATEGORY) {
+            int first = Math.max(0, (category - REUSE_CATEGORY + CLASS_WIDTH - 1) / CLASS_WIDTH);
+            for (int c = first; c < SIZE_CLASSES; c++) {
+                int page = roomyPages[c].nextSetBit(1);
+                if (page >= 0) {
+                    insertHint = page;
+                    return page;
+                }
+            }
+        }
+        int page = allocatePage();
+        BufferPool.Page p = pool.pin(fileId, page);
+        synchronized (p) {
+            format(p, page);
+        }
+        release(page, p);
+        insertHint = page;
+        return page;
+    }
+
+    /**
+     * Reserves the next data page number, writing a new free-space map page first when one is due.
+     */
+    private int allocatePage() throws IOException {
+        if (isMapPage(pageCount)) {
+            // Pages past the end of the file read as zeros: an empty map
+            BufferPool.Page map = pool.pin(fileId, pageCount);
+            pool.unpin(map, true);
+            pageCount++;
+        }
+        int page = pageCount++;
+        if (page >= freeSpace.length) {
+            freeSpace = Arrays.copyOf(freeSpace, Math.max(page + 1, freeSpace.length * 2));
+        }
+        return page;
+    }
+
+    /**
+     * Unpins a modified data page and records its free space in the map.
+     */
+    private void release(int page, BufferPool.Page p) throws IOException {
+        byte category = (byte) Math.min(255, freeBytes(p.buffer()) / FSM_UNIT);
+        pool.unpin(p, true);
+        if (freeSpace[page] != category) {
+            setFreeSpace(page, category);
+            int mapPage = 1 + (page - 1) / (FSM_SPAN + 1) * (FSM_SPAN + 1);
+            BufferPool.Page map = pool.pin(fileId, mapPage);
+            map.buffer().put(page - mapPage - 1, category);
+            pool.unpin(map, true);
+        }
+    }
+
+    private void readFreeSpaceMap() throws IOException {
+        for (int mapPage = 1; mapPage < pageCount; mapPage += FSM_SPAN + 1) {
+            int covered = Math.min(FSM_SPAN, pageCount - mapPage - 1);
+            if (covered <= 0) break;
+            pool.read(fileId, (long) mapPage * PAGE_SIZE, freeSpace, mapPage + 1, covered);
+        }
+        for (int page = 1; page < pageCount; page++) {
+            freeUnits += freeSpace[page] & 0xFF;
+            int c = sizeClass(freeSpace[page]);
+            if (c >= 0) {
+                roomyPages[c].set(page);
+            }
+        }
+    }
+
+    private void setFreeSpace(int page, byte category) {
+        freeUnits += (category & 0xFF) - (freeSpace[page] & 0xFF);
+        int before = sizeClass(freeSpace[page]);
+        int after = sizeClass(category);
+        freeSpace[page] = category;
+        if (before != after) {
+            if (before >= 0) roomyPages[before].clear(page);
+            if (after >= 0) roomyPages[after].set(page);
+        }
+    }
+
+    private static BitSet[] sizeClasses() {
+        BitSet[] classes = new BitSet[SIZE_CLASSES];
+        for (int c = 0; c < SIZE_CLASSES; c++) {
+            classes[c] = new BitSet();
+        }
+        return classes;
+    }
+
+    /**
+     * @return size class of a page offered to inserts, or -1 if it has less than REUSE_CATEGORY free
+     */
+    private static int sizeClass(byte category) {
+        int free = category & 0xFF;
+        if (free < REUSE_CATEGORY) return -1;
+        return free >= FULL_CATEGORY ? SIZE_CLASSES - 1 : (free - REUSE_CATEGORY) / CLASS_WIDTH;
+    }
+
+    /**
+     * Rebuilds the free-space map and record count from the data pages after an unclean shutdown.
+     * Pages that never reached the file before the crash read as zeros and are formatted as empty.
+     */
+    private void recover() throws IOException {
+        long records = 0;
+        for (int page = 1; page < pageCount; page++) {
+            if (isMapPage(page)) continue;
+            BufferPool.Page p = pool.pin(fileId, page);
+            ByteBuffer buf = p.buffer();
+            boolean blank = freeStart(buf) < DATA_START;
+            if (blank) {
+                initPage(buf);
+            }
+            int slots = slotCount(buf);
+            for (int i = 0; i < slots; i++) {
+                if (slotOffset(buf, i) != 0) records++;
+            }
+            setFreeSpace(page, (byte) Math.min(255, freeBytes(buf) / FSM_UNIT));
+            pool.unpin(p, blank);
+        }
+        for (int mapPage = 1; mapPage < pageCount; mapPage += FSM_SPAN + 1) {
+            int covered = Math.max(0, Math.min(FSM_SPAN, pageCount - mapPage - 1));
+            BufferPool.Page map = pool.pin(fileId, mapPage);
+            byte[] bytes = map.buffer().array();
+            Arrays.fill(bytes, (byte) 0);
+            System.arraycopy(freeSpace, mapPage + 1, bytes, 0, covered);
+            pool.unpin(map, true);
+        }
+        recordCount = records;
+        generation++;
+        changes = 0;
+        pool.flush(fileId);
+        writeHeader(true);
+        channel.force(true);
+    }
+
+    /**
+     * Marks the table unclean on disk before its first change since it was last flushed. The header
+     * is forced, so a page written back before a crash is never behind a header that still says clean.
+     */
+    private void markDirty() throws IOException {
+        if (!dirty) {
+            writeHeader(false);
+            channel.force(false);
+            dirty = true;
+        }
+    }
+
+    private void writeHeader(boolean clean) throws IOException {
+        byte[] line = String.join(",", columns).getBytes(StandardCharsets.UTF_8);
+        if (H_COLUMNS + 4 + line.length > PAGE_SIZE) {
+            throw new IllegalArgumentException("Column definitions too long for the table header");
+        }
+        ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+        header.putInt(MAGIC).putInt(version).putInt(PAGE_SIZE).putInt(clean ? CLEAN : 0)
+                .putInt(generation).putLong(changes).putLong(recordCount).putLong(redoLsn)
+                .putInt(line.length).put(line);
+        header.clear();
+        writeFully(channel, header, 0);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of table file at offset " + position);
+            }
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+}
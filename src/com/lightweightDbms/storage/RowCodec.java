@@ -0,0 +1,125 @@
+package com.lightweightDbms.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoding of table rows into records, shared by the table stores.
+ * <p>
+ * A record holds a column count followed by each value with its length, so reading a row does not
+ * parse any text. Values of columns declared with a fixed-width {@link ColumnType} are stored in
+ * binary, all others as UTF-8. Tables written before column types were stored hold UTF-8 only and
+ * are read with {@link #TEXT}.
+ */
+final class RowCodec {
+    /** Codec storing every value as UTF-8. */
+    static final RowCodec TEXT = new RowCodec(new ColumnType[0]);
+
+    private final ColumnType[] types;
+
+    private RowCodec(ColumnType[] types) {
+        this.types = types;
+    }
+
+    /**
+     * @param columns column definitions (name or name:type)
+     * @return codec storing values in the binary form of the declared types
+     */
+    static RowCodec forColumns(String[] columns) {
+        ColumnType[] types = new ColumnType[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            types[i] = ColumnType.forColumn(columns[i]);
+        }
+        return new RowCodec(types);
+    }
+
+    /**
+     * @param column zero-based column index
+     * @return type the column's values are encoded in; TEXT for UTF-8
+     */
+    ColumnType type(int column) {
+        return column < types.length ? types[column] : ColumnType.TEXT;
+    }
+
+    /**
+     * Encodes a row as a column count and length-prefixed values.
+     * @param values column values; null is stored as an empty string
+     * @return encoded record
+     * @throws IllegalArgumentException if a value is not of its column's type or the record does
+     *         not fit on a page
+     */
+    byte[] encode(String[] values) {
+        byte[][] encoded = new byte[values.length][];
+        int size = varIntSize(values.length);
+        for (int i = 0; i < values.length; i++) {
+            encoded[i] = type(i).encode(values[i]);
+            size += varIntSize(encoded[i].length) + encoded[i].length;
+        }
+        if (size > PagedTableStore.MAX_RECORD) {
+            throw new IllegalArgumentException("Row of " + size + " bytes exceeds the page limit of "
+                    + PagedTableStore.MAX_RECORD + " bytes");
+        }
+        byte[] record = new byte[size];
+        int pos = putVarInt(record, 0, values.length);
+        for (byte[] value : encoded) {
+            pos = putVarInt(record, pos, value.length);
+            System.arraycopy(value, 0, record, pos, value.length);
+            pos += value.length;
+        }
+        return record;
+    }
+
+    /**
+     * Decodes a record written by {@link #encode(String[])}.
+     */
+    String[] decode(byte[] bytes, int offset, int length) {
+        int[] pos = {offset};
+        String[] values = new String[getVarInt(bytes, pos)];
+        ByteBuffer buffer = null;
+        for (int i = 0; i < values.length; i++) {
+            int len = getVarInt(bytes, pos);
+            ColumnType type = type(i);
+            if (type.isFixedWidth()) {
+                if (buffer == null) buffer = ByteBuffer.wrap(bytes);
+                values[i] = type.decode(buffer, pos[0], len);
+            } else {
+                values[i] = new String(bytes, pos[0], len, StandardCharsets.UTF_8);
+            }
+            pos[0] += len;
+        }
+        if (pos[0] != offset + length) {
+            throw new IllegalStateException("Corrupt record at offset " + offset);
+        }
+        return values;
+    }
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int putVarInt(byte[] out, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int getVarInt(byte[] in, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,490 @@
+package com.lightweightDbms.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable sorted table of an {@link LsmTableStore}: records keyed by locator, in ascending key order.
+ * <p>
+ * The file starts with data blocks, each holding an entry count and entries of key, record length
+ * (-1 for a tombstone) and record bytes; an entry never spans two blocks. Blocks are compressed one
+ * by one with the {@link BlockCodec} the table was written with, and stored with their length
+ * before compression and the codec, which is {@link BlockCodec#NONE} for a block that did not
+ * shrink. The blocks are followed by the block index, holding the first key and the file offset of
+ * every block, a Bloom filter over all keys and a fixed-size footer. The index and the filter are
+ * kept in memory, so a lookup seeks straight to one block and decompresses it; a key the filter
+ * rules out reads none. Blocks are read through the shared buffer pool, which caches them compressed.
+ * <p>
+ * Tables are reference counted by the store snapshots that list them. A table replaced by a
+ * compaction is marked obsolete and deleted when the last snapshot holding it is released.
+ */
+final class SSTable {
+    /** Record standing for a deleted row; no encoded row is empty. */
+    static final byte[] DELETED = new byte[0];
+
+    private static final int MAGIC = 0x4C535332; // "LSS2"
+    private static final int PAGE_SIZE = BufferPool.PAGE_SIZE;
+    private static final int BLOCK_PREFIX = 5; // length before compression and codec of a stored block
+    private static final int BLOCK_HEADER = 2;
+    private static final int ENTRY_HEADER = 12;
+    private static final int FOOTER = 44;
+    private static final int BLOOM_BITS_PER_KEY = 10;
+    private static final int BLOOM_HASHES = 7;
+
+    /** Largest record that fits in a block of any codec. */
+    static final int MAX_RECORD = PAGE_SIZE - BLOCK_HEADER - ENTRY_HEADER;
+
+    /**
+     * Position in a sorted stream of records; tombstones are reported as {@link #DELETED}. A new
+     * cursor stands before the first record.
+     */
+    interface Cursor {
+        /**
+         * Moves to the next record.
+         * @return false if there is none
+         * @throws IOException if the records cannot be read
+         */
+        boolean next() throws IOException;
+
+        /**
+         * @return key of the current record
+         */
+        long key();
+
+        /**
+         * @return current record, or {@link #DELETED}
+         */
+        byte[] value();
+    }
+
+    private final long number;
+    private final File file;
+    private final FileChannel channel;
+    private final BufferPool pool;
+    private final int fileId;
+    private final long[] firstKeys;
+    private final long[] offsets; // of every block, then of the block index
+    private final long[] bloom;
+    private final long entries;
+    private final long minKey;
+    private final long maxKey;
+    private final long size;
+    private final AtomicInteger refs = new AtomicInteger();
+    private volatile boolean obsolete;
+
+    private SSTable(long number, File file, FileChannel channel, BufferPool pool, long[] firstKeys, long[] offsets,
+                    long[] bloom, long entries, long minKey, long maxKey) throws IOException {
+        this.number = number;
+        this.file = file;
+        this.channel = channel;
+        this.pool = pool;
+        this.fileId = pool.register(channel);
+        this.firstKeys = firstKeys;
+        this.offsets = offsets;
+        this.bloom = bloom;
+        this.entries = entries;
+        this.minKey = minKey;
+        this.maxKey = maxKey;
+        this.size = channel.size();
+    }
+
+    /**
+     * Opens a table file written by a {@link Writer}.
+     * @param number table number, unique within the store
+     * @param file table file
+     * @param pool buffer pool caching the table's blocks
+     * @return open table
+     * @throws IOException if the file cannot be read or is not a table file
+     */
+    static SSTable open(long number, File file, BufferPool pool) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long fileSize = channel.size();
+            if (fileSize < FOOTER) {
+                throw new IOException("Not a sorted table file: " + file);
+            }
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER);
+            readFully(channel, footer, fileSize - FOOTER);
+            if (footer.getInt(FOOTER - 4) != MAGIC) {
+                throw new IOException("Not a sorted table file: " + file);
+            }
+            long metaOffset = footer.getLong(0);
+            int blocks = footer.getInt(8);
+            int bloomWords = footer.getInt(12);
+            ByteBuffer meta = ByteBuffer.allocate((2 * blocks + 1 + bloomWords) * 8);
+            readFully(channel, meta, metaOffset);
+            long[] firstKeys = new long[blocks];
+            long[] offsets = new long[blocks + 1];
+            long[] bloom = new long[bloomWords];
+            meta.asLongBuffer().get(firstKeys).get(offsets).get(bloom);
+            return new SSTable(number, file, channel, pool, firstKeys, offsets, bloom,
+                    footer.getLong(16), footer.getLong(24), footer.getLong(32));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return table number, unique within the store; newer tables have higher numbers
+     */
+    long getNumber() { return number; }
+
+    /**
+     * @return smallest key in the table
+     */
+    long getMinKey() { return minKey; }
+
+    /**
+     * @return largest key in the table
+     */
+    long getMaxKey() { return maxKey; }
+
+    /**
+     * @return number of records, tombstones included
+     */
+    long getEntries() { return entries; }
+
+    /**
+     * @return size of the file in bytes
+     */
+    long getSize() { return size; }
+
+    /**
+     * @return true if the table may hold keys from {@code from} to {@code to}, both inclusive
+     */
+    boolean overlaps(long from, long to) {
+        return minKey <= to && maxKey >= from;
+    }
+
+    /**
+     * Looks a key up.
+     * @param key key
+     * @return copy of the record, {@link #DELETED} for a tombstone, or null if the table has no record for the key
+     * @throws IOException if the block cannot be read
+     */
+    byte[] get(long key) throws IOException {
+        if (key < minKey || key > maxKey || !mightContain(key)) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(readBlock(block(key)));
+        int count = buf.getShort(0) & 0xFFFF;
+        int pos = BLOCK_HEADER;
+        for (int i = 0; i < count; i++) {
+            long k = buf.getLong(pos);
+            int length = buf.getInt(pos + 8);
+            pos += ENTRY_HEADER;
+            if (k == key) {
+                return length < 0 ? DELETED : copy(buf, pos, length);
+            }
+            if (k > key) {
+                return null;
+            }
+            pos += Math.max(0, length);
+        }
+        return null;
+    }
+
+    /**
+     * Reads a block through the pool and decompresses it.
+     */
+    private byte[] readBlock(int block) throws IOException {
+        int stored = (int) (offsets[block + 1] - offsets[block]);
+        byte[] bytes = new byte[stored];
+        pool.read(fileId, offsets[block], bytes, 0, stored);
+        int rawLength = ByteBuffer.wrap(bytes).getInt(0);
+        BlockCodec codec;
+        try {
+            codec = BlockCodec.forId(bytes[4]);
+        } catch (IOException e) {
+            throw new IOException(e.getMessage() + " in " + file, e);
+        }
+        return codec.decompress(bytes, BLOCK_PREFIX, stored - BLOCK_PREFIX, rawLength);
+    }
+
+    /**
+     * Opens a cursor over the records with keys from {@code from} (inclusive) to {@code to}
+     * (exclusive). Blocks are read one at a time, so the table must stay retained while the cursor is used.
+     */
+    Cursor cursor(long from, long to) {
+        return new Cursor() {
+            private int block = from <= minKey ? 0 : block(from);
+            private long[] keys = new long[0];
+            private byte[][] values = new byte[0][];
+            private int count;
+            private int next;
+            private boolean done;
+
+            @Override
+            public boolean next() throws IOException {
+                next++;
+                while (next >= count) {
+                    if (done || block >= firstKeys.length || firstKeys[block] >= to) {
+                        done = true;
+                        return false;
+                    }
+                    readBlock(block++);
+                    next = 0;
+                }
+                return true;
+            }
+
+            private void readBlock(int index) throws IOException {
+                ByteBuffer buf = ByteBuffer.wrap(SSTable.this.readBlock(index));
+                int entriesInBlock = buf.getShort(0) & 0xFFFF;
+                if (keys.length < entriesInBlock) {
+                    keys = new long[entriesInBlock];
+                    values = new byte[entriesInBlock][];
+                }
+                count = 0;
+                int pos = BLOCK_HEADER;
+                for (int i = 0; i < entriesInBlock; i++) {
+                    long k = buf.getLong(pos);
+                    int length = buf.getInt(pos + 8);
+                    pos += ENTRY_HEADER;
+                    if (k >= to) {
+                        done = true;
+                        break;
+                    }
+                    if (k >= from) {
+                        keys[count] = k;
+                        values[count++] = length < 0 ? DELETED : copy(buf, pos, length);
+                    }
+                    pos += Math.max(0, length);
+                }
+            }
+
+            @Override
+            public long key() { return keys[next]; }
+
+            @Override
+            public byte[] value() { return values[next]; }
+        };
+    }
+
+    /**
+     * Adds a reference from a snapshot.
+     */
+    void retain() {
+        refs.incrementAndGet();
+    }
+
+    /**
+     * Drops a reference; the last one closes the table, and deletes its file if it is obsolete.
+     */
+    void release() {
+        if (refs.decrementAndGet() > 0) return;
+        pool.discard(fileId);
+        try {
+            channel.close();
+            if (obsolete) {
+                Files.deleteIfExists(file.toPath());
+            }
+        } catch (IOException e) {
+            // An obsolete file left behind is not listed in the manifest and is removed on next open
+        }
+    }
+
+    /**
+     * Marks the table as replaced, so that its file is deleted once no snapshot holds it.
+     */
+    void markObsolete() {
+        obsolete = true;
+    }
+
+    /**
+     * @return index of the block that holds the key if the table does
+     */
+    private int block(long key) {
+        int i = Arrays.binarySearch(firstKeys, key);
+        return i >= 0 ? i : Math.max(0, -i - 2);
+    }
+
+    private boolean mightContain(long key) {
+        long bits = (long) bloom.length * 64;
+        long h = mix(key);
+        long h1 = h & 0xFFFFFFFFL;
+        long h2 = h >>> 32;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bits);
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long mix(long key) {
+        long z = key * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static byte[] copy(ByteBuffer buf, int pos, int length) {
+        byte[] record = new byte[length];
+        buf.get(pos, record);
+        return record;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of sorted table file at offset " + (position + buf.position()));
+            }
+        }
+        buf.flip();
+    }
+
+    /**
+     * Writes a table from records added in ascending key order.
+     */
+    static final class Writer {
+        private final File file;
+        private final FileChannel channel;
+        private final BlockCodec codec;
+        private final ByteBuffer block;
+        private long[] firstKeys = new long[16];
+        private long[] offsets = new long[17];
+        private long written;
+        private long[] keys = new long[1024];
+        private int blocks;
+        private int blockEntries;
+        private long entries;
+        private long lastKey;
+
+        /**
+         * @param file table file to create
+         * @param codec codec compressing the blocks
+         * @throws IOException if the file exists or cannot be created
+         */
+        Writer(File file, BlockCodec codec) throws IOException {
+            this.file = file;
+            this.codec = codec;
+            this.block = ByteBuffer.allocate(codec.blockSize());
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            block.position(BLOCK_HEADER);
+        }
+
+        /**
+         * Adds a record.
+         * @param key key, greater than the previous one
+         * @param value record, or {@link #DELETED} for a tombstone
+         * @throws IOException if a block cannot be written
+         */
+        void add(long key, byte[] value) throws IOException {
+            if (entries > 0 && key <= lastKey) {
+                throw new IllegalArgumentException("Keys out of order: " + key + " after " + lastKey);
+            }
+            if (value.length > MAX_RECORD) {
+                throw new IllegalArgumentException("Record of " + value.length + " bytes exceeds the block limit of " + MAX_RECORD + " bytes");
+            }
+            if (block.position() + ENTRY_HEADER + value.length > block.capacity()) {
+                writeBlock();
+            }
+            if (blockEntries == 0) {
+                if (blocks == firstKeys.length) {
+                    firstKeys = Arrays.copyOf(firstKeys, blocks * 2);
+                    offsets = Arrays.copyOf(offsets, blocks * 2 + 1);
+                }
+                firstKeys[blocks] = key;
+            }
+            block.putLong(key).putInt(value.length == 0 ? -1 : value.length).put(value);
+            blockEntries++;
+            if (entries == keys.length) {
+                keys = Arrays.copyOf(keys, keys.length * 2);
+            }
+            keys[(int) entries++] = key;
+            lastKey = key;
+        }
+
+        /**
+         * @return bytes written so far, counting the block being filled before compression
+         */
+        long size() {
+            return written + (blockEntries > 0 ? block.position() : 0);
+        }
+
+        /**
+         * @return number of records added
+         */
+        long entries() { return entries; }
+
+        /**
+         * Writes the index, filter and footer, forces the file and opens it.
+         * @param number table number
+         * @param pool buffer pool caching the table's blocks
+         * @return open table
+         * @throws IOException if the file cannot be written
+         */
+        SSTable finish(long number, BufferPool pool) throws IOException {
+            if (blockEntries > 0) {
+                writeBlock();
+            }
+            long[] bloom = new long[(int) Math.max(1, (entries * BLOOM_BITS_PER_KEY + 63) / 64)];
+            long bits = (long) bloom.length * 64;
+            for (int i = 0; i < entries; i++) {
+                long h = mix(keys[i]);
+                long h1 = h & 0xFFFFFFFFL;
+                long h2 = h >>> 32;
+                for (int j = 0; j < BLOOM_HASHES; j++) {
+                    long bit = Math.floorMod(h1 + j * h2, bits);
+                    bloom[(int) (bit >>> 6)] |= 1L << bit;
+                }
+            }
+            long metaOffset = written;
+            offsets[blocks] = metaOffset;
+            ByteBuffer tail = ByteBuffer.allocate((2 * blocks + 1 + bloom.length) * 8 + FOOTER);
+            tail.asLongBuffer().put(firstKeys, 0, blocks).put(offsets, 0, blocks + 1).put(bloom);
+            tail.position((2 * blocks + 1 + bloom.length) * 8);
+            tail.putLong(metaOffset).putInt(blocks).putInt(bloom.length).putLong(entries)
+                    .putLong(entries == 0 ? 0 : keys[0]).putLong(lastKey).putInt(MAGIC);
+            tail.flip();
+            write(tail, metaOffset);
+            channel.force(true);
+            channel.close();
+            return open(number, file, pool);
+        }
+
+        /**
+         * Closes and deletes the file being written.
+         */
+        void abandon() throws IOException {
+            channel.close();
+            Files.deleteIfExists(file.toPath());
+        }
+
+        private void writeBlock() throws IOException {
+            block.putShort(0, (short) blockEntries);
+            int rawLength = block.position();
+            BlockCodec used = codec;
+            byte[] compressed = codec.compress(block.array(), rawLength);
+            if (compressed.length >= rawLength && codec != BlockCodec.NONE) {
+                used = BlockCodec.NONE;
+                compressed = BlockCodec.NONE.compress(block.array(), rawLength);
+            }
+            ByteBuffer stored = ByteBuffer.allocate(BLOCK_PREFIX + compressed.length);
+            stored.putInt(rawLength).put((byte) used.id()).put(compressed).flip();
+            offsets[blocks] = written;
+            write(stored, written);
+            written += BLOCK_PREFIX + compressed.length;
+            blocks++;
+            blockEntries = 0;
+            block.clear();
+            block.position(BLOCK_HEADER);
+        }
+
+        private void write(ByteBuffer buf, long position) throws IOException {
+            while (buf.hasRemaining()) {
+                position += channel.write(buf, position);
+            }
+        }
+    }
+}
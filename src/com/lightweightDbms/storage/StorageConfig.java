@@ -1,6 +1,11 @@
 package com.lightweightDbms.storage;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Configuration for file-based storage locations and delimiters.
@@ -9,6 +14,19 @@ public final class StorageConfig {
     private final File rootDir;
     private final char fieldDelimiter;
     private final String escapeSequence;
+    private int indexFanout = 128;
+    private TableStore.Format tableFormat = PagedTableStore.FORMAT;
+    private final Map<String, TableStore.Format> tableFormats = new LinkedHashMap<>(Map.of(
+            PagedTableStore.FORMAT.name(), PagedTableStore.FORMAT, LsmTableStore.FORMAT.name(), LsmTableStore.FORMAT,
+            ColumnarTableStore.FORMAT.name(), ColumnarTableStore.FORMAT));
+    private BlockCodec blockCodec = BlockCodec.NONE;
+    private final Map<String, BlockCodec> tableCodecs = new HashMap<>();
+    private long bufferPoolSize = BufferPool.DEFAULT_CAPACITY;
+    private double compactionThreshold = 0.5;
+    private long compactionIntervalMillis = 30_000;
+    private long groupCommitMicros = 0;
+    private long checkpointIntervalMillis = 30_000;
+    private long checkpointLogBytes = 64L << 20;
 
     /**
      * @param rootPath base directory for all persisted data
@@ -40,6 +58,198 @@ public final class StorageConfig {
      */
     public String getEscapeSequence() { return escapeSequence; }
 
+    /**
+     * @return maximum keys per B+ tree index node
+     */
+    public int getIndexFanout() { return indexFanout; }
+
+    /**
+     * Sets the number of keys per B+ tree index node; takes effect for indexes created afterwards.
+     * @param indexFanout keys per node, between 64 and 512
+     */
+    public void setIndexFanout(int indexFanout) {
+        if (indexFanout < 64 || indexFanout > 512) {
+            throw new IllegalArgumentException("Index fanout must be between 64 and 512: " + indexFanout);
+        }
+        this.indexFanout = indexFanout;
+    }
+
+    /**
+     * @return storage format of tables created or imported from now on
+     */
+    public TableStore.Format getTableFormat() { return tableFormat; }
+
+    /**
+     * Sets the storage format of tables; existing tables keep the format they were written in.
+     * @param tableFormat table storage format; registered with the known formats if it is not yet
+     */
+    public void setTableFormat(TableStore.Format tableFormat) {
+        if (tableFormat == null) {
+            throw new IllegalArgumentException("Table format must not be null");
+        }
+        this.tableFormat = tableFormat;
+        tableFormats.putIfAbsent(tableFormat.name(), tableFormat);
+    }
+
+    /**
+     * @return every format tables may be stored in, the configured one first
+     */
+    public List<TableStore.Format> getTableFormats() {
+        List<TableStore.Format> formats = new ArrayList<>();
+        formats.add(tableFormat);
+        for (TableStore.Format format : tableFormats.values()) {
+            if (format != tableFormat) formats.add(format);
+        }
+        return formats;
+    }
+
+    /**
+     * @param name format name, in any case
+     * @return format of that name
+     * @throws IllegalArgumentException if no format has the name
+     */
+    public TableStore.Format getTableFormat(String name) {
+        TableStore.Format format = tableFormats.get(name.toUpperCase());
+        if (format == null) {
+            throw new IllegalArgumentException("Unknown table format '" + name + "'. Use one of " + tableFormats.keySet() + ".");
+        }
+        return format;
+    }
+
+    /**
+     * @return codec compressing the blocks of tables without a codec of their own
+     */
+    public BlockCodec getBlockCodec() { return blockCodec; }
+
+    /**
+     * Sets the codec compressing the table files of tables without a codec of their own. Only
+     * formats writing immutable files, {@code LSM} and {@code COLUMNAR}, compress; {@code PAGED}
+     * tables rewrite their pages in place and stay uncompressed. Files keep the codec they were
+     * written with, so a table changes over as its files are rewritten.
+     * @param blockCodec block codec
+     */
+    public void setBlockCodec(BlockCodec blockCodec) {
+        if (blockCodec == null) {
+            throw new IllegalArgumentException("Block codec must not be null.");
+        }
+        this.blockCodec = blockCodec;
+    }
+
+    /**
+     * @param table table name
+     * @return codec compressing the blocks of the table
+     */
+    public BlockCodec getBlockCodec(String table) { return tableCodecs.getOrDefault(table, blockCodec); }
+
+    /**
+     * Sets the codec of one table; takes effect when the table is next opened.
+     * @param table table name
+     * @param blockCodec block codec, or null to use the default one
+     */
+    public void setBlockCodec(String table, BlockCodec blockCodec) {
+        if (blockCodec == null) {
+            tableCodecs.remove(table);
+        } else {
+            tableCodecs.put(table, blockCodec);
+        }
+    }
+
+    /**
+     * @return memory budget in bytes of the buffer pool caching table and index pages
+     */
+    public long getBufferPoolSize() { return bufferPoolSize; }
+
+    /**
+     * Sets the memory budget of the buffer pool; takes effect for engines created afterwards.
+     * @param bufferPoolSize budget in bytes, at least one page
+     */
+    public void setBufferPoolSize(long bufferPoolSize) {
+        if (bufferPoolSize < BufferPool.PAGE_SIZE) {
+            throw new IllegalArgumentException("Buffer pool size must be at least one page: " + bufferPoolSize);
+        }
+        this.bufferPoolSize = bufferPoolSize;
+    }
+
+    /**
+     * @return dead-space ratio from which a table is compacted in the background
+     */
+    public double getCompactionThreshold() { return compactionThreshold; }
+
+    /**
+     * Sets the share of a table's storage that must be dead space before the table is compacted.
+     * @param compactionThreshold ratio above 0, at most 1
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        if (!(compactionThreshold > 0 && compactionThreshold <= 1)) {
+            throw new IllegalArgumentException("Compaction threshold must be in (0, 1]: " + compactionThreshold);
+        }
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * @return milliseconds between two background checks for tables to compact; 0 if disabled
+     */
+    public long getCompactionIntervalMillis() { return compactionIntervalMillis; }
+
+    /**
+     * Sets how often tables are checked for compaction; takes effect for engines created afterwards.
+     * @param compactionIntervalMillis interval in milliseconds, 0 to disable background compaction
+     */
+    public void setCompactionIntervalMillis(long compactionIntervalMillis) {
+        if (compactionIntervalMillis < 0) {
+            throw new IllegalArgumentException("Compaction interval must not be negative: " + compactionIntervalMillis);
+        }
+        this.compactionIntervalMillis = compactionIntervalMillis;
+    }
+
+    /**
+     * @return microseconds a log force waits for more commits to join it when commits are concurrent
+     */
+    public long getGroupCommitMicros() { return groupCommitMicros; }
+
+    /**
+     * Sets the group-commit window; takes effect for logs opened afterwards.
+     * @param groupCommitMicros window in microseconds, 0 to force the log without waiting
+     */
+    public void setGroupCommitMicros(long groupCommitMicros) {
+        if (groupCommitMicros < 0) {
+            throw new IllegalArgumentException("Group-commit window must not be negative: " + groupCommitMicros);
+        }
+        this.groupCommitMicros = groupCommitMicros;
+    }
+
+    /**
+     * @return longest time in milliseconds between two background checkpoints; 0 if disabled
+     */
+    public long getCheckpointIntervalMillis() { return checkpointIntervalMillis; }
+
+    /**
+     * Sets how often the log is checkpointed; takes effect for engines created afterwards.
+     * @param checkpointIntervalMillis interval in milliseconds, 0 to disable background checkpoints
+     */
+    public void setCheckpointIntervalMillis(long checkpointIntervalMillis) {
+        if (checkpointIntervalMillis < 0) {
+            throw new IllegalArgumentException("Checkpoint interval must not be negative: " + checkpointIntervalMillis);
+        }
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+    }
+
+    /**
+     * @return log bytes written since the last checkpoint after which a checkpoint starts early
+     */
+    public long getCheckpointLogBytes() { return checkpointLogBytes; }
+
+    /**
+     * Bounds the log that recovery may have to replay, whatever the write rate.
+     * @param checkpointLogBytes log growth in bytes, above 0
+     */
+    public void setCheckpointLogBytes(long checkpointLogBytes) {
+        if (checkpointLogBytes <= 0) {
+            throw new IllegalArgumentException("Checkpoint log size must be positive: " + checkpointLogBytes);
+        }
+        this.checkpointLogBytes = checkpointLogBytes;
+    }
+
     /**
      * @return users CSV file path
      */
@@ -64,9 +274,52 @@ public final class StorageConfig {
     /**
      * @param databaseName db name
      * @param table table name
-     * @return CSV file for a table
+     * @return CSV file for a table; legacy tables in this form are imported into the table format on first use
      */
     public File tableFile(String databaseName, String table) { return new File(databaseDir(databaseName), table + ".csv"); }
-}
 
+    /**
+     * @param databaseName db name
+     * @param table table name
+     * @return table file in the configured table format
+     */
+    public File tableStoreFile(String databaseName, String table) {
+        return tableStoreFile(databaseName, table, tableFormat);
+    }
+
+    /**
+     * @param databaseName db name
+     * @param table table name
+     * @param format table format
+     * @return table file, or directory, in the given format
+     */
+    public File tableStoreFile(String databaseName, String table, TableStore.Format format) {
+        return new File(databaseDir(databaseName), table + format.extension());
+    }
+
+    /**
+     * @param databaseName db name
+     * @param table table name, or {@code table.index} for a secondary index
+     * @return persistent B+ tree index file stored next to the table
+     */
+    public File indexFile(String databaseName, String table) { return new File(databaseDir(databaseName), table + ".idx"); }
+
+    /**
+     * @param databaseName db name
+     * @return directory holding the write-ahead log segments of the database
+     */
+    public File logDir(String databaseName) { return new File(databaseDir(databaseName), "wal"); }
 
+    /**
+     * @param databaseName db name
+     * @return schema catalog of the database: its tables, their columns and formats, and its indexes
+     */
+    public File catalogFile(String databaseName) { return new File(databaseDir(databaseName), "catalog.def"); }
+
+    /**
+     * @param databaseName db name
+     * @return secondary index definitions of a database from before the schema catalog; taken over
+     *         into the catalog once
+     */
+    public File indexCatalogFile(String databaseName) { return new File(databaseDir(databaseName), "indexes.def"); }
+}
@@ -0,0 +1,405 @@
+package com.lightweightDbms.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Storage engine for the rows of one table.
+ * <p>
+ * Rows are addressed by a locator chosen by the store; indexes keep locators and fetch rows with
+ * {@link #read(long)}. A store reports a version that changes with every modification, so a saved
+ * index can tell whether it still matches the table. Writes are serialized by the store; reads and
+ * scans may run concurrently with each other.
+ */
+public interface TableStore extends Closeable {
+    /**
+     * Creates and opens stores of one on-disk format.
+     */
+    interface Format {
+        /**
+         * @return name selecting the format in {@code CREATE TABLE ... USING name}, in upper case
+         */
+        String name();
+
+        /**
+         * @return file name extension of tables in this format, e.g. {@code .tbl}
+         */
+        String extension();
+
+        /**
+         * @return true if tables in this format compress their files with a {@link BlockCodec}
+         */
+        default boolean compresses() { return false; }
+
+        /**
+         * Creates an empty table.
+         * @param file table file to create
+         * @param columns column definitions (name or name:type)
+         * @param pool buffer pool caching the table's pages
+         * @return open store
+         * @throws IOException if the file cannot be written
+         */
+        TableStore create(File file, List<String> columns, BufferPool pool) throws IOException;
+
+        /**
+         * Opens an existing table.
+         * @param file table file
+         * @param pool buffer pool caching the table's pages
+         * @return open store
+         * @throws IOException if the file cannot be read or is not in this format
+         */
+        TableStore open(File file, BufferPool pool) throws IOException;
+    }
+
+    /**
+     * Callback receiving rows during a scan.
+     */
+    @FunctionalInterface
+    interface RecordVisitor {
+        /**
+         * @param locator locator of the row
+         * @param values column values
+         */
+        void visit(long locator, String[] values);
+    }
+
+    /**
+     * Row handed to a {@link RecordViewVisitor} without being decoded. Values are exposed as their
+     * stored bytes in a shared buffer, UTF-8 or the binary form of their {@link #type}; the view and
+     * the buffer are only valid during the visit.
+     */
+    interface RecordView {
+        /**
+         * @return number of column values in the row
+         */
+        int size();
+
+        /**
+         * @return buffer holding the encoded values; use absolute get methods only
+         */
+        ByteBuffer buffer();
+
+        /**
+         * @param column zero-based column index, less than {@link #size()}
+         * @return position of the column's bytes in {@link #buffer()}
+         */
+        int offset(int column);
+
+        /**
+         * @param column zero-based column index, less than {@link #size()}
+         * @return number of bytes of the column, 0 for no value
+         */
+        int length(int column);
+
+        /**
+         * @param column zero-based column index, less than {@link #size()}
+         * @return type the column's bytes are encoded in; TEXT for UTF-8
+         */
+        default ColumnType type(int column) {
+            return ColumnType.TEXT;
+        }
+
+        /**
+         * Decodes one value.
+         * @param column zero-based column index, less than {@link #size()}
+         * @return column value
+         */
+        String get(int column);
+    }
+
+    /**
+     * Callback receiving undecoded rows during a view scan.
+     */
+    @FunctionalInterface
+    interface RecordViewVisitor {
+        /**
+         * @param locator locator of the row
+         * @param record view of the row, valid only during the call
+         */
+        void visit(long locator, RecordView record);
+    }
+
+    /**
+     * Smallest and largest value of a column over a part of a table, kept by stores that store
+     * columns apart so that scans can skip parts no row of which passes a filter.
+     */
+    final class ValueRange {
+        private final String min;
+        private final String max;
+        private final boolean numeric;
+        private final double minNumber;
+        private final double maxNumber;
+
+        /**
+         * @param min smallest value in string order
+         * @param max largest value in string order
+         * @param numeric true if every value parses as a number
+         * @param minNumber smallest value as a number, if numeric
+         * @param maxNumber largest value as a number, if numeric
+         */
+        public ValueRange(String min, String max, boolean numeric, double minNumber, double maxNumber) {
+            this.min = min;
+            this.max = max;
+            this.numeric = numeric;
+            this.minNumber = minNumber;
+            this.maxNumber = maxNumber;
+        }
+
+        /**
+         * @return smallest value in string order
+         */
+        public String getMin() { return min; }
+
+        /**
+         * @return largest value in string order
+         */
+        public String getMax() { return max; }
+
+        /**
+         * @return true if every value parses as a number, so the numeric bounds apply
+         */
+        public boolean isNumeric() { return numeric; }
+
+        /**
+         * @return smallest value as a number; only meaningful if {@link #isNumeric()}
+         */
+        public double getMinNumber() { return minNumber; }
+
+        /**
+         * @return largest value as a number; only meaningful if {@link #isNumeric()}
+         */
+        public double getMaxNumber() { return maxNumber; }
+    }
+
+    /**
+     * Test applied to the value of one column during {@link #scanColumns}.
+     */
+    interface ValueFilter {
+        /**
+         * @param buffer buffer holding the value; read with absolute get methods only
+         * @param offset position of the value's UTF-8 bytes in the buffer
+         * @param length number of UTF-8 bytes of the value
+         * @return true if a row with this value is reported
+         */
+        boolean matches(ByteBuffer buffer, int offset, int length);
+
+        /**
+         * Tests a value in the encoding of its column type. Values stored as UTF-8 go to
+         * {@link #matches(ByteBuffer, int, int)}; by default binary values are decoded to text for it.
+         * @param type type the value is encoded in
+         * @param buffer buffer holding the value; read with absolute get methods only
+         * @param offset position of the value's bytes in the buffer
+         * @param length number of bytes of the value, 0 for no value
+         * @return true if a row with this value is reported
+         */
+        default boolean matches(ColumnType type, ByteBuffer buffer, int offset, int length) {
+            if (!type.isFixedWidth()) {
+                return matches(buffer, offset, length);
+            }
+            byte[] text = type.decode(buffer, offset, length).getBytes(StandardCharsets.UTF_8);
+            return matches(ByteBuffer.wrap(text), 0, text.length);
+        }
+
+        /**
+         * @param range range of the column's values over a part of the table, or null if no row of
+         *              that part has a value in the column
+         * @return false only if no value in the range passes {@link #matches}
+         */
+        default boolean mayMatch(ValueRange range) {
+            return range != null;
+        }
+    }
+
+    /**
+     * @return backing file of the table
+     */
+    File getFile();
+
+    /**
+     * @return column definitions (name or name:type) in table order
+     */
+    String[] getColumns();
+
+    /**
+     * @return number of live rows
+     */
+    long getRecordCount();
+
+    /**
+     * @return value that changes with every modification of the table, including across sessions
+     */
+    long getVersion();
+
+    /**
+     * Logs every later change to the table in a write-ahead log, under the active transaction of the
+     * log; changed pages are not written to the table file before their log records are durable.
+     * @param log write-ahead log of the database
+     * @param name table name identifying the table in the log
+     */
+    void setLog(WriteAheadLog log, String name);
+
+    /**
+     * Sets the codec compressing the blocks of table files written from now on; files already
+     * written keep the codec they were written with. Only stores whose {@link Format#compresses()}
+     * accept a codec other than {@link BlockCodec#NONE}.
+     * @param codec block codec
+     * @throws IllegalArgumentException if the store does not compress its files
+     */
+    default void setBlockCodec(BlockCodec codec) {
+        if (codec != BlockCodec.NONE) {
+            throw new IllegalArgumentException("Table format does not compress its files; use " + codec + " with LSM or COLUMNAR tables.");
+        }
+    }
+
+    /**
+     * @return LSN from which logged changes of the table may be missing from its file, as of the last flush
+     */
+    long getRedoLsn();
+
+    /**
+     * Replays a logged {@link WriteAheadLog#CHANGE} or {@link WriteAheadLog#FORMAT} record of this
+     * table, unless its page already holds it. Used by recovery before the table is otherwise used.
+     * @param record log record
+     * @return true if the record was applied, false if the page was already up to date
+     * @throws IOException if the page cannot be read or written
+     */
+    boolean redo(WriteAheadLog.Record record) throws IOException;
+
+    /**
+     * Puts a logged record image back at a locator, e.g. the before image of a change being rolled
+     * back. The restore is itself logged under the log's active transaction.
+     * @param locator locator of the row
+     * @param record record image from a log record, or null to free the slot
+     * @throws IOException if the page cannot be written
+     */
+    void restore(long locator, byte[] record) throws IOException;
+
+    /**
+     * @return fraction of the table's storage that {@link #compact()} would reclaim, from 0 to 1;
+     *         deleted rows leave such space behind until inserts reuse it
+     */
+    double getDeadRatio();
+
+    /**
+     * Adds a row.
+     * @param values column values
+     * @return locator of the new row
+     * @throws IOException if the row cannot be written
+     * @throws IllegalArgumentException if the row is too large for the store
+     */
+    long insert(String[] values) throws IOException;
+
+    /**
+     * Appends many rows at once, e.g. when importing a table; faster than one insert per row.
+     * Locators are not reported, so indexes over the table have to be rebuilt afterwards.
+     * @param rows rows to append
+     * @return number of rows appended
+     * @throws IOException if the rows cannot be written
+     * @throws IllegalArgumentException if a row is too large for the store
+     */
+    long load(Iterator<String[]> rows) throws IOException;
+
+    /**
+     * Fetches one row.
+     * @param locator locator of the row
+     * @return column values, or null if no live row has this locator
+     * @throws IOException if the row cannot be read
+     */
+    String[] read(long locator) throws IOException;
+
+    /**
+     * Replaces a row.
+     * @param locator locator of the row
+     * @param values new column values
+     * @return locator of the row afterwards; it changes if the row had to move
+     * @throws IOException if the row cannot be written
+     * @throws IllegalArgumentException if no live row has this locator or the new row is too large
+     */
+    long update(long locator, String[] values) throws IOException;
+
+    /**
+     * Removes a row.
+     * @param locator locator of the row
+     * @return true if a live row was removed
+     * @throws IOException if the row cannot be written
+     */
+    boolean delete(long locator) throws IOException;
+
+    /**
+     * @return number of scan segments; scans of disjoint segment ranges may run in parallel
+     */
+    int segmentCount();
+
+    /**
+     * Reports every live row in storage order.
+     * @param visitor receives each row
+     * @throws IOException if the table cannot be read
+     */
+    void scan(RecordVisitor visitor) throws IOException;
+
+    /**
+     * Reports the live rows of a range of segments in storage order.
+     * @param fromSegment first segment (inclusive)
+     * @param toSegment last segment (exclusive)
+     * @param visitor receives each row
+     * @throws IOException if the table cannot be read
+     */
+    void scan(int fromSegment, int toSegment, RecordVisitor visitor) throws IOException;
+
+    /**
+     * Reports every live row in storage order without decoding it, so that a caller filtering rows
+     * only decodes the values it uses. Meant for full scans of large tables; writers may be held
+     * back until the scan ends.
+     * @param visitor receives each row
+     * @throws IOException if the table cannot be read
+     */
+    void scanViews(RecordViewVisitor visitor) throws IOException;
+
+    /**
+     * Reports the live rows whose value in one column passes a filter, like {@link #scanViews}. Rows
+     * without a value in the filter column are left out. Values are read only when the visitor asks
+     * for them, so a store keeping columns apart reads only the filter column for rows that do not
+     * pass, and only the columns the visitor uses for rows that do; such a store also skips the parts
+     * of the table whose range of the filter column rules the filter out.
+     * @param filterColumn zero-based column the filter tests; ignored without a filter
+     * @param filter test on the filter column's value, or null to report every row
+     * @param visitor receives each row passing the filter
+     * @throws IOException if the table cannot be read
+     */
+    default void scanColumns(int filterColumn, ValueFilter filter, RecordViewVisitor visitor) throws IOException {
+        scanViews((locator, record) -> {
+            if (filter == null || (filterColumn < record.size()
+                    && filter.matches(record.type(filterColumn), record.buffer(), record.offset(filterColumn),
+                            record.length(filterColumn)))) {
+                visitor.visit(locator, record);
+            }
+        });
+    }
+
+    /**
+     * Rewrites the table without the space left by deleted rows. Locators change, so indexes over
+     * the table have to be rebuilt afterwards; the version changes too, so saved indexes no longer
+     * match. Must not run concurrently with any other operation on the table.
+     * @throws IOException if the table cannot be rewritten
+     */
+    void compact() throws IOException;
+
+    /**
+     * Writes the table's modified pages back while other operations on it go on, then moves its redo
+     * point to where the log ended when the checkpoint started. Unlike {@link #flush()}, the table
+     * is only locked briefly at the start and to rewrite the header.
+     * @throws IOException if the file cannot be written
+     */
+    void checkpoint() throws IOException;
+
+    /**
+     * Writes buffered state so that the table file is consistent on disk.
+     * @throws IOException if the file cannot be written
+     */
+    void flush() throws IOException;
+}
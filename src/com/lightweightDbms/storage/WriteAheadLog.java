@@ -0,0 +1,618 @@
+package com.lightweightDbms.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead log of one database.
+ * <p>
+ * Every change to a table page is appended here before the page may be written to its table file,
+ * and a transaction commits by appending its commit record and forcing the log up to it; table pages
+ * are written back lazily by the buffer pool afterwards. A record is addressed by its log sequence
+ * number (LSN), the position of its first byte in the log; data pages carry the LSN of the last
+ * record applied to them.
+ * <p>
+ * The log is a series of segment files named after the LSN they start at. Records are
+ * {@code [int length][int CRC32C][byte type][long transaction][payload]}, where the CRC covers the
+ * bytes after it; a record never spans two segments. Appended records are buffered in memory until
+ * a commit or the buffer pool needs them durable.
+ * <p>
+ * Forcing is shared between committers: while one thread forces the log, others queue behind it and
+ * are all served by the next force, which covers every record appended meanwhile. When the last
+ * force served more than one committer, the next one first waits for more commits to join it, up to
+ * the configured group-commit window but never longer than the last force took: waiting longer
+ * would cost more than a force of its own.
+ * <p>
+ * One transaction is written at a time; callers serialize their writes. The row changes of the
+ * transaction being written are also kept in memory, so that it can be rolled back.
+ */
+public final class WriteAheadLog implements Closeable {
+    /** First record of a transaction; its LSN is the transaction id. */
+    public static final byte BEGIN = 1;
+    /** Row change: table, locator, before and after image of the row. */
+    public static final byte CHANGE = 2;
+    /** Formatting of an empty data page: table, page. */
+    public static final byte FORMAT = 3;
+    /** Transaction committed. */
+    public static final byte COMMIT = 4;
+    /** Transaction abandoned. */
+    public static final byte ABORT = 5;
+
+    /**
+     * A record read back from the log.
+     */
+    public static final class Record {
+        private final long lsn;
+        private final byte type;
+        private final long transaction;
+        private final String table;
+        private final long locator;
+        private final byte[] before;
+        private final byte[] after;
+
+        Record(long lsn, byte type, long transaction, String table, long locator, byte[] before, byte[] after) {
+            this.lsn = lsn;
+            this.type = type;
+            this.transaction = transaction;
+            this.table = table;
+            this.locator = locator;
+            this.before = before;
+            this.after = after;
+        }
+
+        /**
+         * @return LSN of the record
+         */
+        public long getLsn() { return lsn; }
+
+        /**
+         * @return record type, e.g. {@link #CHANGE}
+         */
+        public byte getType() { return type; }
+
+        /**
+         * @return id of the transaction the record belongs to, or 0 for none
+         */
+        public long getTransaction() { return transaction; }
+
+        /**
+         * @return table of a {@link #CHANGE} or {@link #FORMAT} record, otherwise null
+         */
+        public String getTable() { return table; }
+
+        /**
+         * @return row locator of a {@link #CHANGE} record, or page number of a {@link #FORMAT} record
+         */
+        public long getLocator() { return locator; }
+
+        /**
+         * @return record previously in the slot of a {@link #CHANGE}, or null if the slot was free
+         */
+        public byte[] getBefore() { return before; }
+
+        /**
+         * @return record put into the slot by a {@link #CHANGE}, or null if the slot was freed
+         */
+        public byte[] getAfter() { return after; }
+
+        static Record decode(long lsn, ByteBuffer body) {
+            byte type = body.get();
+            long transaction = body.getLong();
+            if (type != CHANGE && type != FORMAT) {
+                return new Record(lsn, type, transaction, null, 0, null, null);
+            }
+            byte[] name = new byte[body.getShort() & 0xFFFF];
+            body.get(name);
+            String table = new String(name, StandardCharsets.UTF_8);
+            if (type == FORMAT) {
+                return new Record(lsn, type, transaction, table, body.getInt(), null, null);
+            }
+            long locator = body.getLong();
+            byte[] before = getImage(body);
+            return new Record(lsn, type, transaction, table, locator, before, getImage(body));
+        }
+
+        private static byte[] getImage(ByteBuffer body) {
+            int length = body.getInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] image = new byte[length];
+            body.get(image);
+            return image;
+        }
+    }
+
+    /**
+     * Callback receiving records read from the log.
+     */
+    @FunctionalInterface
+    public interface RecordVisitor {
+        /**
+         * @param record record, in LSN order
+         * @throws IOException to stop reading
+         */
+        void visit(Record record) throws IOException;
+    }
+
+    /** Size from which a new segment is started. */
+    static final long SEGMENT_SIZE = 16L << 20;
+
+    private static final int MAGIC = 0x4C57574C; // "LWWL"
+    private static final int SEGMENT_HEADER = 16;
+    private static final int RECORD_HEADER = 8;
+    private static final int BODY_HEADER = 9;
+    /** Buffered bytes from which an append forces the log even without a commit. */
+    private static final int BUFFER_LIMIT = 1 << 20;
+
+    private final File dir;
+    private final long groupCommitNanos;
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+    private FileChannel tail;
+    private long tailStart;
+    private byte[] buffer = new byte[64 << 10];
+    private int bufferLength;
+    private long endLsn;
+    private long durableLsn;
+    private boolean flushing;
+    private int waiting;
+    private int lastBatch;
+    private long lastForceNanos;
+    private IOException failure;
+    private long activeTransaction;
+    private List<Record> activeChanges = new ArrayList<>();
+
+    private WriteAheadLog(File dir, long groupCommitNanos) {
+        this.dir = dir;
+        this.groupCommitNanos = groupCommitNanos;
+    }
+
+    /**
+     * Opens the log in a directory, creating it if needed. A record torn by a crash at the end of the
+     * log is cut off.
+     * @param dir log directory
+     * @param groupCommitMicros group-commit window in microseconds; 0 to force without waiting
+     * @return open log
+     * @throws IOException if the log cannot be read or created
+     */
+    public static WriteAheadLog open(File dir, long groupCommitMicros) throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        dir.mkdirs();
+        WriteAheadLog log = new WriteAheadLog(dir, TimeUnit.MICROSECONDS.toNanos(groupCommitMicros));
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".wal"));
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                try {
+                    log.segments.put(Long.parseLong(name.substring(0, name.length() - 4), 16), f);
+                } catch (NumberFormatException e) {
+                    // Not a segment
+                }
+            }
+        }
+        if (log.segments.isEmpty()) {
+            log.startSegment(0);
+        } else {
+            Map.Entry<Long, File> last = log.segments.lastEntry();
+            log.tailStart = last.getKey();
+            log.tail = FileChannel.open(last.getValue().toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long valid = validLength(log.tail, last.getValue());
+            if (valid < log.tail.size()) {
+                log.tail.truncate(valid);
+                log.tail.force(true);
+            }
+            log.endLsn = log.tailStart + valid;
+        }
+        log.durableLsn = log.endLsn;
+        return log;
+    }
+
+    /**
+     * @return LSN the next record will get
+     */
+    public synchronized long getEndLsn() { return endLsn; }
+
+    /**
+     * @return LSN up to which (exclusive) the log is forced to disk
+     */
+    public synchronized long getDurableLsn() { return durableLsn; }
+
+    /**
+     * @return LSN of the oldest record still in the log
+     */
+    public synchronized long getStartLsn() { return segments.firstKey() + SEGMENT_HEADER; }
+
+    /**
+     * @return id of the transaction being written, or 0 if there is none
+     */
+    public synchronized long getActiveTransaction() { return activeTransaction; }
+
+    /**
+     * @return {@link #CHANGE} records of the transaction being written, in LSN order
+     */
+    public synchronized List<Record> getActiveChanges() { return new ArrayList<>(activeChanges); }
+
+    /**
+     * Starts a transaction; the records appended until its commit or abort belong to it.
+     * @return transaction id
+     * @throws IOException if the log cannot be written
+     * @throws IllegalStateException if a transaction is already being written
+     */
+    public synchronized long begin() throws IOException {
+        if (activeTransaction != 0) {
+            throw new IllegalStateException("Transaction " + activeTransaction + " is still being written");
+        }
+        activeTransaction = endLsn;
+        activeChanges = new ArrayList<>();
+        append(BEGIN, activeTransaction, new byte[0]);
+        return activeTransaction;
+    }
+
+    /**
+     * Makes a transaction left unfinished in the log by a crash the one being written again, so that
+     * it can be rolled back and aborted. Its earlier changes are not read back.
+     * @param transaction transaction id
+     * @throws IllegalStateException if a transaction is already being written
+     */
+    public synchronized void resume(long transaction) {
+        if (activeTransaction != 0) {
+            throw new IllegalStateException("Transaction " + activeTransaction + " is still being written");
+        }
+        activeTransaction = transaction;
+        activeChanges = new ArrayList<>();
+    }
+
+    /**
+     * Appends the commit record of the active transaction. The commit is durable once
+     * {@link #flush(long)} returns for the returned LSN.
+     * @return LSN of the commit record
+     * @throws IOException if the log cannot be written
+     */
+    public synchronized long commit() throws IOException {
+        return end(COMMIT);
+    }
+
+    /**
+     * Appends the abort record of the active transaction.
+     * @return LSN of the abort record
+     * @throws IOException if the log cannot be written
+     */
+    public synchronized long abort() throws IOException {
+        return end(ABORT);
+    }
+
+    private long end(byte type) throws IOException {
+        if (activeTransaction == 0) {
+            throw new IllegalStateException("No transaction is being written");
+        }
+        long lsn = append(type, activeTransaction, new byte[0]);
+        activeTransaction = 0;
+        activeChanges = new ArrayList<>();
+        return lsn;
+    }
+
+    /**
+     * Logs a row change in the active transaction.
+     * @param table table name
+     * @param locator locator of the row
+     * @param before row record before the change, or null if the slot was free
+     * @param after row record after the change, or null if the slot is freed
+     * @return LSN of the record
+     * @throws IOException if the log cannot be written
+     */
+    public long logChange(String table, long locator, byte[] before, byte[] after) throws IOException {
+        byte[] name = table.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + name.length + 8 + 4 + length(before) + 4 + length(after));
+        payload.putShort((short) name.length).put(name).putLong(locator);
+        putImage(payload, before);
+        putImage(payload, after);
+        long lsn = appendAndSpill(CHANGE, payload.array());
+        synchronized (this) {
+            if (activeTransaction != 0) {
+                activeChanges.add(new Record(lsn, CHANGE, activeTransaction, table, locator, before, after));
+            }
+        }
+        return lsn;
+    }
+
+    /**
+     * Logs the formatting of an empty data page in the active transaction.
+     * @param table table name
+     * @param page page number
+     * @return LSN of the record
+     * @throws IOException if the log cannot be written
+     */
+    public long logFormat(String table, int page) throws IOException {
+        byte[] name = table.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + name.length + 4);
+        payload.putShort((short) name.length).put(name).putInt(page);
+        return appendAndSpill(FORMAT, payload.array());
+    }
+
+    private static int length(byte[] image) { return image == null ? 0 : image.length; }
+
+    private static void putImage(ByteBuffer payload, byte[] image) {
+        if (image == null) {
+            payload.putInt(-1);
+        } else {
+            payload.putInt(image.length).put(image);
+        }
+    }
+
+    /**
+     * Appends a record and, if the buffer grew large, forces it, so a long transaction does not
+     * buffer its whole log in memory.
+     */
+    private long appendAndSpill(byte type, byte[] payload) throws IOException {
+        long lsn;
+        boolean spill;
+        synchronized (this) {
+            lsn = append(type, activeTransaction, payload);
+            spill = bufferLength >= BUFFER_LIMIT;
+        }
+        if (spill) {
+            flush(lsn);
+        }
+        return lsn;
+    }
+
+    private long append(byte type, long transaction, byte[] payload) throws IOException {
+        if (failure != null) {
+            throw new IOException("Write-ahead log failed earlier", failure);
+        }
+        int length = RECORD_HEADER + BODY_HEADER + payload.length;
+        if (endLsn - tailStart + length > SEGMENT_SIZE && endLsn - tailStart > SEGMENT_HEADER) {
+            roll();
+        }
+        if (bufferLength + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(bufferLength + length, buffer.length * 2));
+        }
+        ByteBuffer out = ByteBuffer.wrap(buffer, bufferLength, length);
+        out.putInt(BODY_HEADER + payload.length).putInt(0).put(type).putLong(transaction).put(payload);
+        CRC32C crc = new CRC32C();
+        crc.update(buffer, bufferLength + RECORD_HEADER, BODY_HEADER + payload.length);
+        ByteBuffer.wrap(buffer).putInt(bufferLength + 4, (int) crc.getValue());
+        bufferLength += length;
+        long lsn = endLsn;
+        endLsn += length;
+        return lsn;
+    }
+
+    /**
+     * Makes a record durable, together with every record before it.
+     * @param lsn LSN of the record
+     * @throws IOException if the log cannot be forced; the log accepts no further records
+     */
+    public void flush(long lsn) throws IOException {
+        byte[] data;
+        int length;
+        long start;
+        FileChannel channel;
+        long base;
+        int batch;
+        synchronized (this) {
+            waiting++;
+            try {
+                while (lsn >= durableLsn && flushing) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the log");
+            } finally {
+                waiting--;
+            }
+            if (lsn < durableLsn) {
+                return;
+            }
+            if (failure != null) {
+                throw new IOException("Write-ahead log failed earlier", failure);
+            }
+            flushing = true;
+            long window = Math.min(groupCommitNanos, lastForceNanos);
+            if (window > 0 && lastBatch > 1) {
+                // Other committers joined the last force; give them time to join this one too
+                long deadline = System.nanoTime() + window;
+                try {
+                    for (long left = window; left > 0; left = deadline - System.nanoTime()) {
+                        TimeUnit.NANOSECONDS.timedWait(this, left);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            data = buffer;
+            length = bufferLength;
+            start = durableLsn;
+            buffer = new byte[Math.max(64 << 10, Math.min(bufferLength, BUFFER_LIMIT))];
+            bufferLength = 0;
+            channel = tail;
+            base = tailStart;
+            batch = waiting + 1;
+        }
+        boolean done = false;
+        long started = System.nanoTime();
+        try {
+            write(channel, data, length, start - base);
+            channel.force(false);
+            done = true;
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+            }
+            throw e;
+        } finally {
+            synchronized (this) {
+                flushing = false;
+                if (done) {
+                    durableLsn = start + length;
+                    lastBatch = batch;
+                    lastForceNanos = System.nanoTime() - started;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Forces the current segment and continues the log in a new one starting at the end LSN.
+     */
+    private void roll() throws IOException {
+        try {
+            while (flushing) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the log");
+        }
+        write(tail, buffer, bufferLength, durableLsn - tailStart);
+        tail.force(false);
+        tail.close();
+        bufferLength = 0;
+        durableLsn = endLsn;
+        notifyAll();
+        startSegment(endLsn);
+    }
+
+    private void startSegment(long start) throws IOException {
+        File file = new File(dir, String.format("%016x.wal", start));
+        tail = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+        header.putInt(MAGIC).putInt(0).putLong(start);
+        header.flip();
+        while (header.hasRemaining()) {
+            tail.write(header, header.position());
+        }
+        tail.force(true);
+        segments.put(start, file);
+        tailStart = start;
+        endLsn = start + SEGMENT_HEADER;
+        durableLsn = endLsn;
+    }
+
+    private static void write(FileChannel channel, byte[] data, int length, long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    /**
+     * @return length of the segment up to the end of its last complete, intact record
+     */
+    private static long validLength(FileChannel channel, File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            // read until full or end of file
+        }
+        if (header.position() < SEGMENT_HEADER || header.getInt(0) != MAGIC) {
+            throw new IOException("Not a write-ahead log segment: " + file);
+        }
+        long size = channel.size();
+        ByteBuffer data = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE, size - SEGMENT_HEADER));
+        while (data.hasRemaining() && channel.read(data, SEGMENT_HEADER + data.position()) >= 0) {
+            // read the whole segment
+        }
+        data.flip();
+        int pos = 0;
+        CRC32C crc = new CRC32C();
+        while (pos + RECORD_HEADER + BODY_HEADER <= data.limit()) {
+            int length = data.getInt(pos);
+            if (length < BODY_HEADER || pos + RECORD_HEADER + length > data.limit()) break;
+            crc.reset();
+            crc.update(data.array(), pos + RECORD_HEADER, length);
+            if ((int) crc.getValue() != data.getInt(pos + 4)) break;
+            pos += RECORD_HEADER + length;
+        }
+        return SEGMENT_HEADER + pos;
+    }
+
+    /**
+     * Deletes the segments that end at or before an LSN; records from it on are kept. The segment
+     * being appended to is never deleted, so the log may keep up to one segment more than needed.
+     * @param lsn oldest LSN still needed by recovery
+     * @return number of segments deleted
+     * @throws IOException if a segment cannot be deleted
+     */
+    public synchronized int truncate(long lsn) throws IOException {
+        int deleted = 0;
+        while (tail.isOpen() && segments.size() > 1) {
+            Map.Entry<Long, File> first = segments.firstEntry();
+            // A segment ends where the next one starts
+            if (segments.higherKey(first.getKey()) > lsn) break;
+            Files.deleteIfExists(first.getValue().toPath());
+            segments.remove(first.getKey());
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Reads the records on disk from an LSN on, up to the first torn or missing record.
+     * @param fromLsn LSN of the first record to read; earlier records are skipped
+     * @param visitor receives the records in LSN order
+     * @throws IOException if the log cannot be read or the visitor fails
+     */
+    public void read(long fromLsn, RecordVisitor visitor) throws IOException {
+        List<Map.Entry<Long, File>> files;
+        synchronized (this) {
+            Long first = segments.floorKey(fromLsn);
+            files = new ArrayList<>((first == null ? segments : segments.tailMap(first, true)).entrySet());
+        }
+        for (Map.Entry<Long, File> segment : files) {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(segment.getValue().toPath()));
+            int pos = SEGMENT_HEADER;
+            CRC32C crc = new CRC32C();
+            while (pos + RECORD_HEADER + BODY_HEADER <= data.limit()) {
+                int length = data.getInt(pos);
+                if (length < BODY_HEADER || pos + RECORD_HEADER + length > data.limit()) return;
+                crc.reset();
+                crc.update(data.array(), pos + RECORD_HEADER, length);
+                if ((int) crc.getValue() != data.getInt(pos + 4)) return;
+                long lsn = segment.getKey() + pos;
+                if (lsn >= fromLsn) {
+                    visitor.visit(Record.decode(lsn, data.slice(pos + RECORD_HEADER, length)));
+                }
+                pos += RECORD_HEADER + length;
+            }
+        }
+    }
+
+    /**
+     * Forces every appended record and closes the log.
+     * @throws IOException if the log cannot be forced
+     */
+    @Override
+    public void close() throws IOException {
+        long end;
+        synchronized (this) {
+            if (!tail.isOpen()) return;
+            end = endLsn;
+        }
+        try {
+            if (end > getDurableLsn()) {
+                flush(end - 1);
+            }
+        } finally {
+            synchronized (this) {
+                tail.close();
+            }
+        }
+    }
+}
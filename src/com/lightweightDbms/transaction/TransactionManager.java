@@ -43,9 +43,13 @@ public final class TransactionManager {
     }
 
     /**
-     * Commits a transaction, applying all changes to persistent storage.
+     * Commits a transaction, applying all changes to persistent storage. The changes are logged in
+     * the write-ahead log and the transaction commits with a single commit record; table pages are
+     * written back later.
      * @param transactionId transaction to commit
-     * @return true if committed successfully
+     * @return true if committed successfully, false if it was rolled back
+     * @throws IllegalStateException if a failed transaction could not be rolled back
+     * @throws RuntimeException if the commit record could not be written or made durable
      */
     public synchronized boolean commitTransaction(String transactionId) {
         Transaction transaction = activeTransactions.get(transactionId);
@@ -62,7 +66,16 @@ public final class TransactionManager {
             transaction.setState(TransactionState.COMMITTING);
             
             // Apply all operations to persistent storage
-            boolean success = applyOperations(transaction);
+            boolean success;
+            try {
+                success = applyOperations(transaction);
+            } catch (RuntimeException e) {
+                // The commit or the rollback failed; recovery settles it when the database is next opened
+                transaction.setState(TransactionState.ROLLING_BACK);
+                activeTransactions.remove(transactionId);
+                completedTransactions.put(transactionId, transaction);
+                throw e;
+            }
             
             if (success) {
                 transaction.setState(TransactionState.COMMITTED);
@@ -0,0 +1,147 @@
+package com.lightweightDbms.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks the optimistic lock coupling of {@link DatabaseIndex} under concurrent inserts and removes
+ * with a small fanout, so that leaves split and empty leaves are unlinked all the time, while
+ * readers scan the leaf chain. Run with {@code java com.lightweightDbms.index.DatabaseIndexConcurrencyTest}.
+ */
+public final class DatabaseIndexConcurrencyTest {
+    private static final String TABLE = "t";
+
+    private DatabaseIndexConcurrencyTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int fanout : new int[]{3, 4, 16, DatabaseIndex.DEFAULT_FANOUT}) {
+            concurrentInsertAndRemove(fanout);
+        }
+        emptiedTreeIsReused();
+        System.out.println("DatabaseIndexConcurrencyTest OK");
+    }
+
+    /**
+     * Writers insert and remove disjoint keys while readers scan; afterwards the index holds exactly
+     * the keys each writer left in it, and scans never see keys out of order or twice.
+     */
+    private static void concurrentInsertAndRemove(int fanout) throws Exception {
+        DatabaseIndex index = new DatabaseIndex(fanout);
+        index.setKeyType(TABLE, KeyType.LONG);
+        int writers = 4;
+        int keysPerWriter = 5_000;
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        ConcurrentHashMap<Long, Boolean> expected = new ConcurrentHashMap<>();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            threads.add(new Thread(() -> {
+                boolean[] present = new boolean[keysPerWriter];
+                for (int round = 0; round < 3; round++) {
+                    for (int i = 0; i < keysPerWriter; i++) {
+                        if (!present[i]) {
+                            long key = (long) i * writers + writer;
+                            index.insert(TABLE, Long.toString(key), entry(key));
+                            present[i] = true;
+                        }
+                    }
+                    // Removes runs of neighbouring keys so whole leaves go empty
+                    for (int i = 0; i < keysPerWriter; i++) {
+                        if ((i / 50 + round) % 3 != 0) {
+                            long key = (long) i * writers + writer;
+                            check(index.delete(TABLE, Long.toString(key), key * 10),
+                                    "delete of present key " + key + " failed");
+                            present[i] = false;
+                        }
+                    }
+                }
+                for (int i = 0; i < keysPerWriter; i++) {
+                    if (present[i]) {
+                        expected.put((long) i * writers + writer, true);
+                    }
+                }
+            }));
+        }
+        for (int r = 0; r < 2; r++) {
+            threads.add(new Thread(() -> {
+                while (writing.get()) {
+                    long previous = Long.MIN_VALUE;
+                    for (IndexEntry entry : index.getAllEntries(TABLE)) {
+                        long key = Long.parseLong(entry.getKey());
+                        check(key > previous, "scan went from " + previous + " to " + key);
+                        check(entry.getOffset() == key * 10, "key " + key + " has locator " + entry.getOffset());
+                        previous = key;
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler((t, e) -> failure.compareAndSet(null, e));
+            thread.start();
+        }
+        for (int w = 0; w < writers; w++) {
+            threads.get(w).join();
+        }
+        writing.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError("fanout " + fanout + ": " + failure.get().getMessage(), failure.get());
+        }
+
+        TreeSet<Long> found = new TreeSet<>();
+        for (IndexEntry entry : index.getAllEntries(TABLE)) {
+            check(found.add(Long.parseLong(entry.getKey())), "fanout " + fanout + ": key " + entry.getKey() + " listed twice");
+        }
+        check(found.equals(new TreeSet<>(expected.keySet())),
+                "fanout " + fanout + ": " + found.size() + " keys left, expected " + expected.size());
+        for (long key = 0; key < (long) keysPerWriter * writers; key++) {
+            IndexEntry entry = index.search(TABLE, Long.toString(key));
+            check((entry != null) == expected.containsKey(key), "fanout " + fanout + ": search of " + key + " returned " + entry);
+        }
+        check(index.rangeSearch(TABLE, "1000", "1999").size() == found.subSet(1000L, 2000L).size(),
+                "fanout " + fanout + ": range 1000..1999 does not match");
+    }
+
+    /**
+     * Removing every key leaves a tree that takes new keys and scans them in order.
+     */
+    private static void emptiedTreeIsReused() {
+        DatabaseIndex index = new DatabaseIndex(3);
+        index.setKeyType(TABLE, KeyType.LONG);
+        for (long key = 0; key < 2_000; key++) {
+            index.insert(TABLE, Long.toString(key), entry(key));
+        }
+        for (long key = 0; key < 2_000; key++) {
+            check(index.delete(TABLE, Long.toString(key)), "delete of " + key + " failed");
+        }
+        check(index.getAllEntries(TABLE).isEmpty(), "emptied tree still lists entries");
+        for (long key = 1_999; key >= 0; key -= 3) {
+            index.insert(TABLE, Long.toString(key), entry(key));
+        }
+        List<IndexEntry> entries = index.getAllEntries(TABLE);
+        check(entries.size() == 667, "refilled tree lists " + entries.size() + " entries");
+        for (int i = 1; i < entries.size(); i++) {
+            check(Long.parseLong(entries.get(i - 1).getKey()) < Long.parseLong(entries.get(i).getKey()),
+                    "refilled tree scans out of order at " + i);
+        }
+    }
+
+    private static IndexEntry entry(long key) {
+        return new IndexEntry(TABLE, Long.toString(key), key, "t.tbl", key * 10, 8);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
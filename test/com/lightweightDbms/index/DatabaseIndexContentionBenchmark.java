@@ -0,0 +1,220 @@
+package com.lightweightDbms.index;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the throughput of one shared index under a mix of lookups, inserts and deletes from a
+ * growing number of threads, once with optimistic lock coupling and once with every call under a
+ * single monitor, as the index was before.
+ * <p>
+ * Every measurement runs in forked JVMs of its own, so code compiled for one variant does not
+ * profile the other; each fork runs warm-up iterations before the measured ones. Results are the
+ * mean and standard deviation of the measured iterations of all forks.
+ * <p>
+ * Usage: {@code DatabaseIndexContentionBenchmark [keys] [seconds per iteration] [lookup percent] [forks]}
+ */
+public final class DatabaseIndexContentionBenchmark {
+    private static final String TABLE = "bench";
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final String FORK = "--fork";
+
+    private DatabaseIndexContentionBenchmark() {
+    }
+
+    /**
+     * Operations against the index under test.
+     */
+    private interface Target {
+        void insert(String key, IndexEntry entry);
+
+        void delete(String key);
+
+        IndexEntry search(String key);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals(FORK)) {
+            fork(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+                    Integer.parseInt(args[5]));
+            return;
+        }
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        int lookupPercent = args.length > 2 ? Integer.parseInt(args[2]) : 80;
+        int forks = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+        int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%d keys, %d%% lookups, %d fork(s) of %d warm-up and %d measured %d s iteration(s), %d processors%n",
+                keys, lookupPercent, forks, WARMUP_ITERATIONS, MEASURED_ITERATIONS, seconds,
+                Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double[] monitor = measure("monitor", threads, keys, seconds, lookupPercent, forks);
+            double[] olc = measure("optimistic", threads, keys, seconds, lookupPercent, forks);
+            System.out.printf("%2d threads: monitor %,12.0f +- %,10.0f ops/s   optimistic %,12.0f +- %,10.0f ops/s   x%.2f%n",
+                    threads, mean(monitor), deviation(monitor), mean(olc), deviation(olc), mean(olc) / mean(monitor));
+        }
+    }
+
+    /**
+     * Runs the forks of one measurement.
+     * @return operations per second of every measured iteration
+     */
+    private static double[] measure(String target, int threads, int keys, int seconds, int lookupPercent, int forks)
+            throws IOException, InterruptedException {
+        double[] results = new double[forks * MEASURED_ITERATIONS];
+        int count = 0;
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        for (int f = 0; f < forks; f++) {
+            Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    DatabaseIndexContentionBenchmark.class.getName(), FORK, target, Integer.toString(threads),
+                    Integer.toString(keys), Integer.toString(seconds), Integer.toString(lookupPercent))
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                for (String line = out.readLine(); line != null; line = out.readLine()) {
+                    results[count++] = Double.parseDouble(line);
+                }
+            }
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException("Benchmark fork failed with exit code " + process.exitValue());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Runs inside a fork: warms up, then prints the operations per second of each measured iteration.
+     */
+    private static void fork(String target, int threads, int keys, int seconds, int lookupPercent)
+            throws InterruptedException {
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+            DatabaseIndex index = filled(keys);
+            double result = run(target.equals("monitor") ? monitorTarget(index) : olcTarget(index),
+                    threads, keys, seconds, lookupPercent);
+            if (i >= WARMUP_ITERATIONS) {
+                System.out.println(result);
+            }
+        }
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    private static double deviation(double[] values) {
+        if (values.length < 2) return 0;
+        double mean = mean(values);
+        double squares = 0;
+        for (double value : values) {
+            squares += (value - mean) * (value - mean);
+        }
+        return Math.sqrt(squares / (values.length - 1));
+    }
+
+    private static DatabaseIndex filled(int keys) {
+        DatabaseIndex index = new DatabaseIndex();
+        index.setKeyType(TABLE, KeyType.LONG);
+        for (int i = 0; i < keys; i += 2) {
+            index.insert(TABLE, Integer.toString(i), entry(i));
+        }
+        return index;
+    }
+
+    private static IndexEntry entry(int key) {
+        return new IndexEntry(TABLE, Integer.toString(key), key, TABLE + ".tbl", key * 64L, 64);
+    }
+
+    private static Target olcTarget(DatabaseIndex index) {
+        return new Target() {
+            @Override
+            public void insert(String key, IndexEntry entry) { index.insert(TABLE, key, entry); }
+
+            @Override
+            public void delete(String key) { index.delete(TABLE, key); }
+
+            @Override
+            public IndexEntry search(String key) { return index.search(TABLE, key); }
+        };
+    }
+
+    private static Target monitorTarget(DatabaseIndex index) {
+        Object monitor = new Object();
+        return new Target() {
+            @Override
+            public void insert(String key, IndexEntry entry) {
+                synchronized (monitor) {
+                    index.insert(TABLE, key, entry);
+                }
+            }
+
+            @Override
+            public void delete(String key) {
+                synchronized (monitor) {
+                    index.delete(TABLE, key);
+                }
+            }
+
+            @Override
+            public IndexEntry search(String key) {
+                synchronized (monitor) {
+                    return index.search(TABLE, key);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return operations per second over all threads
+     */
+    private static double run(Target target, int threads, int keys, int seconds, int lookupPercent)
+            throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long done = 0;
+                while ((done & 1023) != 0 || System.nanoTime() < deadline) {
+                    int key = random.nextInt(keys);
+                    int kind = random.nextInt(100);
+                    if (kind < lookupPercent) {
+                        target.search(Integer.toString(key));
+                    } else if ((kind & 1) == 0) {
+                        target.insert(Integer.toString(key), entry(key));
+                    } else {
+                        target.delete(Integer.toString(key));
+                    }
+                    done++;
+                }
+                operations.add(done);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        long began = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.sum() * 1e9 / (System.nanoTime() - began);
+    }
+}
@@ -0,0 +1,210 @@
+package com.lightweightDbms.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Checks that rows sharing an index key are kept in one {@link PostingList} in file order: rows
+ * added out of order, deleting single rows of a key, deleting the whole key, and index files that
+ * are saved and loaded again. Run with {@code java com.lightweightDbms.index.PostingListTest}.
+ */
+public final class PostingListTest {
+    private static final String TABLE = "t";
+
+    private PostingListTest() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        encoding();
+        for (int fanout : new int[]{3, 16, DatabaseIndex.DEFAULT_FANOUT}) {
+            duplicateKeys(fanout);
+            deletesWithinPostingList(fanout);
+        }
+        savedAndLoaded();
+        System.out.println("PostingListTest OK");
+    }
+
+    /**
+     * Locators come back in file order whatever order they were added in, survive a round trip
+     * through their bytes, and removing one leaves the others intact.
+     */
+    private static void encoding() {
+        PostingList list = PostingList.of(5, 5_000, 50, 1, 1_000, 10);
+        // Offsets below the last one need the list to be re-encoded
+        list.add(9, 9_000, 90);
+        list.add(3, 3_000, 30);
+        list.add(7, 1L << 40, 70);
+        list.add(2, 2_000, 20);
+        check(locators(list).equals(List.of(1_000L, 2_000L, 3_000L, 5_000L, 9_000L, 1L << 40)),
+                "locators out of file order: " + locators(list));
+        check(list.size() == 6, "size " + list.size() + " after six adds");
+
+        byte[] bytes = new byte[list.byteLength() + 3];
+        list.copyBytes(bytes, 3);
+        PostingList copy = PostingList.fromBytes(bytes, 3, list.byteLength());
+        check(copy.size() == 6 && locators(copy).equals(locators(list)), "decoded list differs: " + locators(copy));
+        long[] rows = new long[1];
+        copy.forEach((rowNumber, offset, length) -> {
+            check(rowNumber * 1_000 == offset || offset == 1L << 40, "row " + rowNumber + " has offset " + offset);
+            check(length == rowNumber * 10, "row " + rowNumber + " has length " + length);
+            rows[0]++;
+        });
+        check(rows[0] == 6, rows[0] + " locators decoded");
+
+        check(copy.remove(3_000), "remove of a present locator failed");
+        check(!copy.remove(3_000), "locator removed twice");
+        check(!copy.remove(4_000), "remove of an absent locator succeeded");
+        check(locators(copy).equals(List.of(1_000L, 2_000L, 5_000L, 9_000L, 1L << 40)), "after remove: " + locators(copy));
+        // Appending after a remove continues from the re-encoded last locator
+        copy.add(11, 1L << 41, 110);
+        check(locators(copy).get(copy.size() - 1) == 1L << 41, "append after remove: " + locators(copy));
+    }
+
+    /**
+     * Many rows of a few keys, inserted in random order between other keys, are all found in file
+     * order by one probe, and the first of them by a point lookup.
+     */
+    private static void duplicateKeys(int fanout) {
+        DatabaseIndex index = new DatabaseIndex(fanout);
+        index.setKeyType(TABLE, KeyType.LONG);
+        List<Long> offsets = new ArrayList<>();
+        for (long row = 0; row < 600; row++) {
+            offsets.add(row);
+        }
+        Collections.shuffle(offsets, new Random(fanout));
+        for (long row : offsets) {
+            // Every third row has key 100, every third key 200, the rest a unique key
+            long key = row % 3 == 0 ? 100 : row % 3 == 1 ? 200 : 1_000 + row;
+            index.insert(TABLE, Long.toString(key), entry(key, row));
+        }
+
+        for (long key : new long[]{100, 200}) {
+            List<IndexEntry> rows = index.searchAll(TABLE, Long.toString(key));
+            check(rows.size() == 200, fanout + ": key " + key + " has " + rows.size() + " rows");
+            for (int i = 0; i < rows.size(); i++) {
+                long expected = i * 3L + (key == 100 ? 0 : 1);
+                check(rows.get(i).getOffset() == expected * 64 && rows.get(i).getRowNumber() == expected,
+                        fanout + ": row " + i + " of key " + key + " is " + rows.get(i));
+            }
+            check(index.search(TABLE, Long.toString(key)).getOffset() == rows.get(0).getOffset(),
+                    fanout + ": lookup of key " + key + " did not return its first row");
+        }
+        // A range over the duplicates expands every posting list, keys in order
+        List<IndexEntry> range = index.rangeSearch(TABLE, "100", "1010");
+        check(range.size() == 400 + 3, fanout + ": range has " + range.size() + " entries");
+        check(range.get(0).getKey().equals("100") && range.get(199).getKey().equals("100")
+                && range.get(200).getKey().equals("200") && range.get(402).getKey().equals("1008"),
+                fanout + ": range out of key order");
+        check(index.searchAll(TABLE, "300").isEmpty(), fanout + ": absent key found");
+    }
+
+    /**
+     * Deleting one row of a key leaves its other rows, moves a lookup of the key on to the next row
+     * once the first is gone, and removes the key with its last row.
+     */
+    private static void deletesWithinPostingList(int fanout) {
+        DatabaseIndex index = new DatabaseIndex(fanout);
+        index.setKeyType(TABLE, KeyType.LONG);
+        for (long row = 0; row < 50; row++) {
+            index.insert(TABLE, "7", entry(7, row));
+            index.insert(TABLE, Long.toString(row + 10), entry(row + 10, 1_000 + row));
+        }
+
+        check(!index.delete(TABLE, "7", 12_345), fanout + ": delete of an unindexed row succeeded");
+        check(!index.delete(TABLE, "8", 0), fanout + ": delete of an absent key succeeded");
+        check(index.delete(TABLE, "7", 20 * 64), fanout + ": delete of a middle row failed");
+        check(!index.delete(TABLE, "7", 20 * 64), fanout + ": middle row deleted twice");
+        check(index.delete(TABLE, "7", 0), fanout + ": delete of the first row failed");
+        check(index.search(TABLE, "7").getOffset() == 64, fanout + ": lookup still returns a deleted first row");
+        List<IndexEntry> rows = index.searchAll(TABLE, "7");
+        check(rows.size() == 48, fanout + ": " + rows.size() + " rows left of 50 after two deletes");
+        for (IndexEntry row : rows) {
+            check(row.getOffset() != 0 && row.getOffset() != 20 * 64, fanout + ": deleted row " + row + " is back");
+        }
+
+        // Down to one row the key keeps a plain locator, then goes with it
+        for (long row = 1; row < 49; row++) {
+            if (row != 20) {
+                check(index.delete(TABLE, "7", row * 64), fanout + ": delete of row " + row + " failed");
+            }
+        }
+        check(index.searchAll(TABLE, "7").size() == 1 && index.search(TABLE, "7").getOffset() == 49 * 64,
+                fanout + ": last row of key 7 is " + index.searchAll(TABLE, "7"));
+        check(index.delete(TABLE, "7", 49 * 64), fanout + ": delete of the last row failed");
+        check(index.search(TABLE, "7") == null, fanout + ": key 7 outlived its last row");
+        check(!index.delete(TABLE, "7", 49 * 64), fanout + ": last row deleted twice");
+
+        // Deleting a key removes all of its rows, the neighbours stay
+        for (long row = 0; row < 30; row++) {
+            index.insert(TABLE, "9", entry(9, row));
+        }
+        check(index.delete(TABLE, "9"), fanout + ": delete of key 9 failed");
+        check(index.searchAll(TABLE, "9").isEmpty(), fanout + ": rows of deleted key 9 are left");
+        check(index.getAllEntries(TABLE).size() == 50, fanout + ": neighbouring keys changed: "
+                + index.getAllEntries(TABLE).size());
+    }
+
+    /**
+     * Posting lists written to an index file are read back with all their rows and without a row
+     * deleted before saving, and rows can still be deleted from them.
+     */
+    private static void savedAndLoaded() throws IOException {
+        File dir = Files.createTempDirectory("posting").toFile();
+        try {
+            DatabaseIndex index = new DatabaseIndex(4);
+            index.setKeyType(TABLE, KeyType.LONG);
+            for (long row = 0; row < 300; row++) {
+                index.insert(TABLE, Long.toString(row % 7), entry(row % 7, row));
+            }
+            check(index.delete(TABLE, "3", 3 * 64), "delete before saving failed");
+            File file = new File(dir, "t.idx");
+            index.save(TABLE, file, "t.tbl", 1, 300);
+
+            DatabaseIndex loaded = new DatabaseIndex(4);
+            loaded.load(TABLE, file);
+            for (long key = 0; key < 7; key++) {
+                List<IndexEntry> rows = loaded.searchAll(TABLE, Long.toString(key));
+                check(rows.equals(index.searchAll(TABLE, Long.toString(key))),
+                        "key " + key + " reads " + rows.size() + " rows after loading");
+            }
+            check(loaded.searchAll(TABLE, "3").size() == 42, "deleted row of key 3 is back after loading");
+            check(loaded.delete(TABLE, "3", 10 * 64), "delete after loading failed");
+            check(loaded.searchAll(TABLE, "3").size() == 41, "delete after loading left " + loaded.searchAll(TABLE, "3").size() + " rows");
+            loaded.clearTable(TABLE);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static List<Long> locators(PostingList list) {
+        List<Long> offsets = new ArrayList<>();
+        list.forEach((rowNumber, offset, length) -> offsets.add(offset));
+        return offsets;
+    }
+
+    private static IndexEntry entry(long key, long row) {
+        return new IndexEntry(TABLE, Long.toString(key), row, TABLE + ".tbl", row * 64, 64);
+    }
+
+    private static void delete(File dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.lightweightDbms.index;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Checks that range scans walking the leaf chain of {@link DatabaseIndex} return exactly the keys
+ * in range after deletes have emptied and unlinked leaves, and that an iterator standing on a leaf
+ * carries on while its own leaf and the leaves ahead of it are emptied. Run with
+ * {@code java com.lightweightDbms.index.RangeScanTest}.
+ */
+public final class RangeScanTest {
+    private static final String TABLE = "t";
+    private static final int KEYS = 3_000;
+
+    private RangeScanTest() {
+    }
+
+    public static void main(String[] args) {
+        for (int fanout : new int[]{3, 4, 16, DatabaseIndex.DEFAULT_FANOUT}) {
+            scansAcrossEmptiedLeaves(fanout);
+            iteratorOutlivesDeletes(fanout);
+        }
+        System.out.println("RangeScanTest OK");
+    }
+
+    /**
+     * Deletes runs of neighbouring keys, so that whole leaves go empty, including the leftmost and
+     * rightmost ones, then compares ranges with bounds inside, on the edges of and across the
+     * emptied runs against the keys that are left.
+     */
+    private static void scansAcrossEmptiedLeaves(int fanout) {
+        DatabaseIndex index = filled(fanout);
+        TreeSet<Long> left = new TreeSet<>();
+        for (long key = 0; key < KEYS; key++) {
+            // Keeps keys 500..999, 1500..1999 and 2500..2999 except every seventh of them
+            if ((key / 500) % 2 == 1 && key % 7 != 0) {
+                left.add(key);
+            } else {
+                check(index.delete(TABLE, Long.toString(key)), fanout + ": delete of " + key + " failed");
+            }
+        }
+        scans(index, left, fanout);
+
+        // Refilling an emptied range puts the keys back into the chain in order
+        for (long key = 1_000; key < 1_500; key += 5) {
+            index.insert(TABLE, Long.toString(key), entry(key));
+            left.add(key);
+        }
+        scans(index, left, fanout);
+
+        // Emptying the rest, then refilling at the far end
+        for (long key : new ArrayList<>(left)) {
+            check(index.delete(TABLE, Long.toString(key)), fanout + ": delete of " + key + " failed");
+        }
+        left.clear();
+        scans(index, left, fanout);
+        index.insert(TABLE, "2999", entry(2_999));
+        left.add(2_999L);
+        scans(index, left, fanout);
+    }
+
+    private static void scans(DatabaseIndex index, NavigableSet<Long> left, int fanout) {
+        Random random = new Random(fanout);
+        check(keys(index.getAllEntries(TABLE)).equals(new ArrayList<>(left)), fanout + ": full scan differs");
+        long[][] bounds = {{0, 499}, {0, 500}, {499, 1_000}, {999, 1_500}, {1_001, 1_499}, {1_400, 2_600},
+                {2_999, 2_999}, {3_000, 4_000}, {-5, 0}, {700, 600}};
+        for (long[] bound : bounds) {
+            range(index, left, bound[0], bound[1], fanout);
+        }
+        for (int i = 0; i < 200; i++) {
+            long from = random.nextInt(KEYS + 100) - 50;
+            range(index, left, from, from + random.nextInt(800), fanout);
+        }
+        List<Long> from1000 = keys(index.rangeSearch(TABLE, "1000", null));
+        check(from1000.equals(new ArrayList<>(left.tailSet(1_000L, true))), fanout + ": open upper bound differs");
+        List<Long> to1000 = keys(index.rangeSearch(TABLE, null, "1000"));
+        check(to1000.equals(new ArrayList<>(left.headSet(1_000L, true))), fanout + ": open lower bound differs");
+    }
+
+    private static void range(DatabaseIndex index, NavigableSet<Long> left, long from, long to, int fanout) {
+        List<Long> found = keys(index.rangeSearch(TABLE, Long.toString(from), Long.toString(to)));
+        List<Long> expected = from > to ? List.of() : new ArrayList<>(left.subSet(from, true, to, true));
+        check(found.equals(expected), fanout + ": range " + from + ".." + to + " returned " + found.size()
+                + " keys, expected " + expected.size());
+    }
+
+    /**
+     * An iterator part way through a range keeps going after the leaves ahead of it are emptied and
+     * unlinked: it never repeats a key or goes backwards and still returns every key that was never
+     * deleted.
+     */
+    private static void iteratorOutlivesDeletes(int fanout) {
+        DatabaseIndex index = filled(fanout);
+        Iterator<IndexEntry> iterator = index.rangeIterator(TABLE, "100", "2100");
+        List<Long> seen = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            seen.add(Long.parseLong(iterator.next().getKey()));
+        }
+        // Empties the iterator's own leaf and everything up to key 1999 except every hundredth key
+        for (long key = 100; key < 2_000; key++) {
+            if (key % 100 != 0) {
+                check(index.delete(TABLE, Long.toString(key)), fanout + ": delete of " + key + " failed");
+            }
+        }
+        while (iterator.hasNext()) {
+            seen.add(Long.parseLong(iterator.next().getKey()));
+        }
+        for (int i = 1; i < seen.size(); i++) {
+            check(seen.get(i - 1) < seen.get(i), fanout + ": iterator went from " + seen.get(i - 1) + " to " + seen.get(i));
+        }
+        TreeSet<Long> kept = new TreeSet<>(seen);
+        for (long key = 100; key <= 2_100; key++) {
+            if (key % 100 == 0 || key >= 2_000) {
+                check(kept.contains(key), fanout + ": iterator skipped key " + key + " that was never deleted");
+            }
+        }
+        check(seen.get(seen.size() - 1) == 2_100, fanout + ": iterator ended at " + seen.get(seen.size() - 1));
+        try {
+            iterator.next();
+            throw new AssertionError(fanout + ": exhausted iterator returned an entry");
+        } catch (NoSuchElementException expected) {
+            // Past the end
+        }
+    }
+
+    private static DatabaseIndex filled(int fanout) {
+        DatabaseIndex index = new DatabaseIndex(fanout);
+        index.setKeyType(TABLE, KeyType.LONG);
+        for (long key = 0; key < KEYS; key++) {
+            index.insert(TABLE, Long.toString(key), entry(key));
+        }
+        return index;
+    }
+
+    private static List<Long> keys(List<IndexEntry> entries) {
+        List<Long> keys = new ArrayList<>();
+        for (IndexEntry entry : entries) {
+            keys.add(Long.parseLong(entry.getKey()));
+        }
+        return keys;
+    }
+
+    private static IndexEntry entry(long key) {
+        return new IndexEntry(TABLE, Long.toString(key), key, "t.tbl", key * 10, 8);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.lightweightDbms.sql;
+
+import com.lightweightDbms.db.InMemoryDatabaseEngine;
+import com.lightweightDbms.storage.StorageConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Checks COPY in every table format: the HEADER option, quoted fields and empty lines, and that a
+ * row with the wrong number of values or a value of the wrong type is reported by its line and
+ * rolls back its batch while earlier batches stay loaded. Indexes of the table find the copied
+ * rows. Run with {@code java com.lightweightDbms.sql.CopyTest}.
+ */
+public final class CopyTest {
+    private CopyTest() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        for (String format : new String[]{"PAGED", "LSM", "COLUMNAR"}) {
+            File root = Files.createTempDirectory("copy").toFile();
+            try {
+                StorageConfig storage = new StorageConfig(root.getPath(), '|', "\\");
+                storage.setCompactionIntervalMillis(0);
+                InMemoryDatabaseEngine engine = new InMemoryDatabaseEngine(storage);
+                try {
+                    engine.createDatabase("db");
+                    header(engine, root, format);
+                    badRows(engine, root, format);
+                    if (format.equals("PAGED")) {
+                        earlierBatchesStay(engine, root);
+                    }
+                } finally {
+                    engine.close();
+                }
+            } finally {
+                delete(root);
+            }
+        }
+        syntax();
+        System.out.println("CopyTest OK");
+    }
+
+    /**
+     * HEADER skips the first line and only that; without it, a header line is just a bad row.
+     */
+    private static void header(InMemoryDatabaseEngine engine, File root, String format) throws IOException {
+        run(engine, "CREATE TABLE items (id:int, name, price:double) USING " + format + ";");
+        run(engine, "CREATE INDEX by_price ON items(price);");
+        File file = csv(root, "items.csv", "id,name,price", "1,apple,1.5", "", "2,\"pear, green\",2", "3,\"say \"\"hi\"\"\",3");
+
+        rejected(engine, "COPY items FROM '" + file + "';", "Line 1: Column 'id': Not of type INT");
+        check(rows(run(engine, "SELECT * FROM items;")) == 0, format + ": failed COPY left rows");
+
+        String result = run(engine, "COPY items FROM '" + file + "' HEADER;");
+        check(result.startsWith("3 row(s) copied into 'items'"), format + ": COPY returned " + result);
+        String all = run(engine, "SELECT * FROM items;");
+        check(rows(all) == 3, format + ": " + rows(all) + " rows after COPY:\n" + all);
+        contains(all, "1 | apple | 1.5", format);
+        contains(all, "2 | pear, green | 2.0", format);
+        contains(all, "3 | say \"hi\" | 3.0", format);
+        check(rows(run(engine, "SELECT name FROM items WHERE price = 2;")) == 1, format + ": index misses a copied row");
+        check(rows(run(engine, "SELECT name FROM items WHERE price >= 1.5;")) == 3, format + ": index range misses copied rows");
+
+        // A second COPY appends, a file of just a header copies nothing
+        run(engine, "COPY items FROM '" + file + "' HEADER;");
+        check(rows(run(engine, "SELECT * FROM items WHERE id = 1;")) == 2, format + ": second COPY did not append");
+        File empty = csv(root, "empty.csv", "id,name,price");
+        check(run(engine, "COPY items FROM '" + empty + "' header;").startsWith("0 row(s) copied"), format + ": header only");
+    }
+
+    /**
+     * Rows with too few or too many values or a badly typed value are reported with their line,
+     * counting the header and empty lines, and nothing of their batch is kept.
+     */
+    private static void badRows(InMemoryDatabaseEngine engine, File root, String format) throws IOException {
+        run(engine, "CREATE TABLE pairs (a:int, b) USING " + format + ";");
+        String[][] cases = {
+                {"a,b", "1,x", "2", "Line 3: Expected 2 value(s), found 1."},
+                {"a,b", "1,x", "", "2,y,z", "Line 4: Expected 2 value(s), found 3."},
+                {"a,b", "1,x", "2,y", "x,3", "Line 4: Column 'a': Not of type INT"},
+                {"a,b", "\"1,2\",x", "Line 2: Column 'a': Not of type INT"},
+        };
+        for (String[] lines : cases) {
+            File file = csv(root, "pairs.csv", List.of(lines).subList(0, lines.length - 1).toArray(new String[0]));
+            rejected(engine, "COPY pairs FROM '" + file + "' HEADER;", lines[lines.length - 1]);
+            check(rows(run(engine, "SELECT * FROM pairs;")) == 0, format + ": rows kept from a failed batch");
+        }
+
+        rejected(engine, "COPY pairs FROM '" + new File(root, "missing.csv") + "';", "does not exist");
+        rejected(engine, "COPY nothing FROM '" + csv(root, "one.csv", "1,x") + "';", "Table 'nothing' does not exist");
+        run(engine, "BEGIN;");
+        rejected(engine, "COPY pairs FROM '" + csv(root, "one.csv", "1,x") + "';", "COPY cannot run inside a transaction");
+        run(engine, "COMMIT;");
+        run(engine, "COPY pairs FROM '" + csv(root, "one.csv", "1,x") + "';");
+        check(rows(run(engine, "SELECT * FROM pairs;")) == 1, format + ": COPY after the errors failed");
+    }
+
+    /**
+     * A bad row after the first batch keeps the batches before it and says so.
+     */
+    private static void earlierBatchesStay(InMemoryDatabaseEngine engine, File root) throws IOException {
+        run(engine, "CREATE TABLE big (id:int, v) USING PAGED;");
+        File file = new File(root, "big.csv");
+        int bad = Query.COPY_BATCH_ROWS + 10;
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 1; i <= bad + 5; i++) {
+                out.println((i == bad ? "bad" : Integer.toString(i)) + ",row-" + i);
+            }
+        }
+        rejected(engine, "COPY big FROM '" + file + "';",
+                "Line " + bad + ": Column 'id': Not of type INT: 'bad' (" + Query.COPY_BATCH_ROWS + " row(s) of earlier batches stay loaded)");
+        check(rows(run(engine, "SELECT * FROM big WHERE id > " + (Query.COPY_BATCH_ROWS - 5) + ";")) == 5,
+                "rows of the first batch are missing or rows of the failed batch were kept");
+    }
+
+    private static void syntax() {
+        for (String sql : new String[]{"COPY t 'f.csv';", "COPY t FROM f.csv;", "COPY t FROM 'f.csv' CSV;",
+                "COPY FROM 'f.csv';", "COPY t FROM '';"}) {
+            try {
+                new SqlParser().parse(sql);
+                throw new AssertionError(sql + " was parsed");
+            } catch (IllegalArgumentException expected) {
+                // Rejected
+            }
+        }
+    }
+
+    private static File csv(File root, String name, String... lines) throws IOException {
+        File file = new File(root, name);
+        Files.write(file.toPath(), List.of(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private static String run(InMemoryDatabaseEngine engine, String sql) {
+        return engine.execute(new SqlParser().parse(sql));
+    }
+
+    private static void rejected(InMemoryDatabaseEngine engine, String sql, String message) {
+        String result;
+        try {
+            result = run(engine, sql);
+        } catch (RuntimeException e) {
+            check(e.getMessage() != null && e.getMessage().contains(message),
+                    sql + " failed with '" + e.getMessage() + "', expected '" + message + "'");
+            return;
+        }
+        throw new AssertionError(sql + " was accepted: " + result);
+    }
+
+    /**
+     * @return number of result rows below the header and its rule
+     */
+    private static int rows(String result) {
+        return result.split("\n").length - 2;
+    }
+
+    private static void contains(String result, String row, String format) {
+        check(result.contains(row), format + ": missing row '" + row + "' in\n" + result);
+    }
+
+    private static void delete(File dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.lightweightDbms.sql;
+
+import com.lightweightDbms.db.InMemoryDatabaseEngine;
+import com.lightweightDbms.storage.StorageConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Checks that WHERE clauses answered through an index match the same rows as a scan. Untyped
+ * columns are indexed by their text, while numbers in a WHERE clause are compared numerically, so
+ * {@code code = 10} has to find both {@code 010} and {@code 10}. Run with
+ * {@code java com.lightweightDbms.sql.IndexedWhereTest}.
+ */
+public final class IndexedWhereTest {
+    private IndexedWhereTest() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        for (String format : new String[]{"PAGED", "LSM", "COLUMNAR"}) {
+            File root = Files.createTempDirectory("indexed").toFile();
+            try {
+                StorageConfig storage = new StorageConfig(root.getPath(), '|', "\\");
+                storage.setCompactionIntervalMillis(0);
+                InMemoryDatabaseEngine engine = new InMemoryDatabaseEngine(storage);
+                try {
+                    engine.createDatabase("db");
+                    numbersInTextColumns(engine, format);
+                } finally {
+                    engine.close();
+                }
+            } finally {
+                delete(root);
+            }
+        }
+        System.out.println("IndexedWhereTest OK");
+    }
+
+    private static void numbersInTextColumns(InMemoryDatabaseEngine engine, String format) {
+        run(engine, "CREATE TABLE codes (code, name, zone) USING " + format + ";");
+        run(engine, "INSERT INTO codes VALUES (010, padded, 007);");
+        run(engine, "INSERT INTO codes VALUES (10, plain, 7);");
+        run(engine, "INSERT INTO codes VALUES (abc, text, x);");
+        run(engine, "CREATE INDEX by_zone ON codes(zone);");
+
+        for (String where : new String[]{"code = 10", "code BETWEEN 10 AND 10", "code < 11", "zone = 7", "zone = 07.0"}) {
+            check(rows(run(engine, "SELECT name FROM codes WHERE " + where + ";")) == 2,
+                    format + ": WHERE " + where + " does not match both rows:\n"
+                            + run(engine, "SELECT name FROM codes WHERE " + where + ";"));
+        }
+        check(rows(run(engine, "SELECT name FROM codes WHERE code = abc;")) == 1, format + ": code = abc missed");
+        check(rows(run(engine, "SELECT name FROM codes WHERE zone = x;")) == 1, format + ": zone = x missed");
+
+        run(engine, "UPDATE codes SET name = ten WHERE zone = 7;");
+        check(rows(run(engine, "SELECT * FROM codes WHERE name = ten;")) == 2, format + ": UPDATE by zone = 7 missed a row");
+        run(engine, "DELETE FROM codes WHERE code = 10;");
+        String left = run(engine, "SELECT * FROM codes;");
+        check(rows(left) == 1 && left.contains("abc"), format + ": DELETE by code = 10 left\n" + left);
+    }
+
+    private static String run(InMemoryDatabaseEngine engine, String sql) {
+        return engine.execute(new SqlParser().parse(sql));
+    }
+
+    /**
+     * @return number of result rows below the header and its rule
+     */
+    private static int rows(String result) {
+        return result.split("\n").length - 2;
+    }
+
+    private static void delete(File dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.lightweightDbms.sql;
+
+import com.lightweightDbms.db.InMemoryDatabaseEngine;
+import com.lightweightDbms.storage.StorageConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Checks that typed columns are enforced through SQL in every table format: values of the wrong
+ * type are rejected by inserts and updates without changing the table, values are stored in
+ * canonical form and WHERE clauses compare them by type. Run with
+ * {@code java com.lightweightDbms.sql.TypedColumnTest}.
+ */
+public final class TypedColumnTest {
+    private TypedColumnTest() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        for (String format : new String[]{"PAGED", "LSM", "COLUMNAR"}) {
+            File root = Files.createTempDirectory("typed").toFile();
+            try {
+                StorageConfig storage = new StorageConfig(root.getPath(), '|', "\\");
+                storage.setCompactionIntervalMillis(0);
+                InMemoryDatabaseEngine engine = new InMemoryDatabaseEngine(storage);
+                try {
+                    engine.createDatabase("db");
+                    typedTable(engine, format);
+                } finally {
+                    engine.close();
+                }
+            } finally {
+                delete(root);
+            }
+        }
+        System.out.println("TypedColumnTest OK");
+    }
+
+    private static void typedTable(InMemoryDatabaseEngine engine, String format) {
+        rejected(engine, "CREATE TABLE bad (id:varchar(x)) USING " + format + ";", "Invalid VARCHAR length");
+        run(engine, "CREATE TABLE ty (id:int, big:bigint, price:double, ok:boolean, at:timestamp, name:varchar(8)) USING " + format + ";");
+        run(engine, "INSERT INTO ty VALUES (007, 9007199254740993, 3, TRUE, 2024-03-01T12:30, bob);");
+        run(engine, "INSERT INTO ty VALUES (8, NULL, 2.5, no, 2024-03-01 00:00:00.250, al);");
+
+        rejected(engine, "INSERT INTO ty VALUES (x, 1, 1, true, 2024-03-01, bob);", "Column 'id': Not of type INT");
+        rejected(engine, "INSERT INTO ty VALUES (1, 1, 1, maybe, 2024-03-01, bob);", "Column 'ok': Not of type BOOLEAN");
+        rejected(engine, "INSERT INTO ty VALUES (1, 1, 1, true, 2024-13-01, bob);", "Column 'at': Not of type TIMESTAMP");
+        rejected(engine, "INSERT INTO ty VALUES (1, 1, 1, true, 2024-03-01, waytoolongname);", "Column 'name': Value longer than VARCHAR(8)");
+        rejected(engine, "UPDATE ty SET ok = nope WHERE id = 7;", "Not of type BOOLEAN");
+        rejected(engine, "INSERT INTO ty VALUES (1, 1);", "Expected 6 value(s), found 2");
+        rejected(engine, "INSERT INTO ty VALUES (1, 1, 1, true, 2024-03-01, bob, extra);", "Expected 6 value(s), found 7");
+        run(engine, "BEGIN;");
+        rejected(engine, "UPDATE ty SET ok = nope WHERE id = 7;", "Not of type BOOLEAN");
+        rejected(engine, "INSERT INTO ty VALUES (1, 1);", "Expected 6 value(s), found 2");
+        run(engine, "COMMIT;");
+        rejected(engine, "SELECT name FROM ty WHERE missing = 1;", "Unknown column 'missing'");
+
+        String all = run(engine, "SELECT * FROM ty;");
+        contains(all, "7 | 9007199254740993 | 3.0 | true | 2024-03-01 12:30:00 | bob", format);
+        contains(all, "8 |  | 2.5 | false | 2024-03-01 00:00:00.25 | al", format);
+        check(rows(all) == 2, format + ": rejected statements changed the table:\n" + all);
+
+        check(rows(run(engine, "SELECT name FROM ty WHERE price = 3;")) == 1, format + ": price = 3 does not match 3.0");
+        check(rows(run(engine, "SELECT name FROM ty WHERE id = 07;")) == 1, format + ": id = 07 does not match 7");
+        check(rows(run(engine, "SELECT name FROM ty WHERE ok = TRUE;")) == 1, format + ": ok = TRUE does not match");
+        check(rows(run(engine, "SELECT name FROM ty WHERE at > 2024-03-01;")) == 2, format + ": timestamps do not compare as times");
+        check(rows(run(engine, "SELECT name FROM ty WHERE big = 9007199254740993;")) == 1, format + ": BIGINT compared as double");
+
+        run(engine, "CREATE INDEX by_price ON ty(price);");
+        run(engine, "UPDATE ty SET price = 4 WHERE id = 007;");
+        check(rows(run(engine, "SELECT * FROM ty WHERE price >= 4;")) == 1, format + ": indexed price range misses the update");
+        run(engine, "DELETE FROM ty WHERE id = 08;");
+        check(rows(run(engine, "SELECT * FROM ty;")) == 1, format + ": id = 08 did not delete row 8");
+    }
+
+    private static String run(InMemoryDatabaseEngine engine, String sql) {
+        return engine.execute(new SqlParser().parse(sql));
+    }
+
+    private static void rejected(InMemoryDatabaseEngine engine, String sql, String message) {
+        String result;
+        try {
+            result = run(engine, sql);
+        } catch (RuntimeException e) {
+            check(e.getMessage() != null && e.getMessage().contains(message),
+                    sql + " failed with '" + e.getMessage() + "', expected '" + message + "'");
+            return;
+        }
+        throw new AssertionError(sql + " was accepted: " + result);
+    }
+
+    /**
+     * @return number of result rows below the header and its rule
+     */
+    private static int rows(String result) {
+        return result.split("\n").length - 2;
+    }
+
+    private static void contains(String result, String row, String format) {
+        check(result.contains(row), format + ": missing row '" + row + "' in\n" + result);
+    }
+
+    private static void delete(File dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.lightweightDbms.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Checks that every {@link BlockCodec} gives back exactly the bytes it compressed, that corrupt
+ * blocks are reported rather than decoded, and that tables written with each codec read back the
+ * same after being reopened. Run with {@code java com.lightweightDbms.storage.BlockCodecTest}.
+ */
+public final class BlockCodecTest {
+    private BlockCodecTest() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        for (BlockCodec codec : BlockCodec.values()) {
+            for (byte[] data : samples()) {
+                roundTrip(codec, data);
+            }
+            corruptBlockIsRejected(codec);
+            check(BlockCodec.forName(codec.name().toLowerCase()) == codec, "forName(" + codec + ") failed");
+            check(BlockCodec.forId(codec.id()) == codec, "forId(" + codec.id() + ") failed");
+        }
+        // Ids are stored in table files and must never change
+        check(BlockCodec.NONE.id() == 0 && BlockCodec.DEFLATE.id() == 1 && BlockCodec.LZ.id() == 2, "codec ids changed");
+        try {
+            BlockCodec.forId(99);
+            throw new AssertionError("unknown codec id was accepted");
+        } catch (IOException expected) {
+            // Reported as corrupt
+        }
+        for (TableStore.Format format : List.of(LsmTableStore.FORMAT, ColumnarTableStore.FORMAT)) {
+            for (BlockCodec codec : BlockCodec.values()) {
+                tableRoundTrip(format, codec);
+            }
+        }
+        System.out.println("BlockCodecTest OK");
+    }
+
+    private static List<byte[]> samples() {
+        Random random = new Random(42);
+        List<byte[]> samples = new ArrayList<>();
+        samples.add(new byte[0]);
+        samples.add(new byte[]{7});
+        samples.add("abc".getBytes(StandardCharsets.UTF_8));
+        // Long runs need the extra length bytes of both literals and matches
+        byte[] run = new byte[100_000];
+        Arrays.fill(run, (byte) 'x');
+        samples.add(run);
+        byte[] noise = new byte[70_000];
+        random.nextBytes(noise);
+        samples.add(noise);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 200_000; i++) {
+            text.append(i).append("|region-").append(i % 12).append("|customer order ").append(i / 10).append('\n');
+        }
+        samples.add(text.toString().getBytes(StandardCharsets.UTF_8));
+        // Repeats just within and just beyond the largest match offset
+        byte[] far = new byte[3 * 0x10000];
+        random.nextBytes(far);
+        System.arraycopy(far, 0, far, 0xFFFF, 1000);
+        System.arraycopy(far, 0, far, 0x10000 + 0xFFFF, 1000);
+        samples.add(far);
+        return samples;
+    }
+
+    private static void roundTrip(BlockCodec codec, byte[] data) throws IOException {
+        // Compresses a prefix of a larger array and decompresses from an offset, as SSTable blocks are read
+        byte[] input = Arrays.copyOf(data, data.length + 17);
+        byte[] compressed = codec.compress(input, data.length);
+        byte[] block = new byte[compressed.length + 5];
+        System.arraycopy(compressed, 0, block, 5, compressed.length);
+        byte[] restored = codec.decompress(block, 5, compressed.length, data.length);
+        check(Arrays.equals(restored, data), codec + ": " + data.length + " bytes did not round trip");
+    }
+
+    private static void corruptBlockIsRejected(BlockCodec codec) {
+        byte[] data = "a block that repeats, a block that repeats, a block that repeats".getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = codec.compress(data, data.length);
+        try {
+            codec.decompress(compressed, 0, compressed.length, data.length + 1);
+            throw new AssertionError(codec + ": wrong raw length was not reported");
+        } catch (IOException expected) {
+            // Reported as corrupt
+        }
+        if (codec == BlockCodec.NONE) return;
+        try {
+            codec.decompress(compressed, 0, compressed.length / 2, data.length);
+            throw new AssertionError(codec + ": truncated block was not reported");
+        } catch (IOException expected) {
+            // Reported as corrupt
+        }
+    }
+
+    private static void tableRoundTrip(TableStore.Format format, BlockCodec codec) throws IOException {
+        File dir = Files.createTempDirectory("codec").toFile();
+        try {
+            File file = new File(dir, "t" + format.extension());
+            TableStore store = format.create(file, List.of("id:int", "region", "note"), new BufferPool(1 << 20));
+            store.setBlockCodec(codec);
+            int rows = 80_000;
+            long[] locators = new long[rows];
+            for (int i = 0; i < rows; i++) {
+                locators[i] = store.insert(row(i));
+            }
+            check(store.delete(locators[3]), format.name() + "/" + codec + ": delete failed");
+            store.compact();
+            store.close();
+
+            store = format.open(file, new BufferPool(1 << 20));
+            long[] seen = {0};
+            boolean[] mismatch = {false};
+            store.scan((locator, values) -> {
+                int id = Integer.parseInt(values[0]);
+                mismatch[0] |= id == 3 || !Arrays.equals(values, row(id));
+                seen[0]++;
+            });
+            check(seen[0] == rows - 1, format.name() + "/" + codec + ": " + seen[0] + " rows after reopening");
+            check(!mismatch[0], format.name() + "/" + codec + ": rows changed after reopening");
+            // Views expose the stored bytes of a value; compressed columns are decompressed for them
+            long[] views = {0};
+            store.scanViews((locator, view) -> {
+                byte[] region = new byte[view.length(1)];
+                view.buffer().get(view.offset(1), region);
+                mismatch[0] |= !new String(region, StandardCharsets.UTF_8).equals(view.get(1))
+                        || !view.get(1).equals(row(Integer.parseInt(view.get(0)))[1]);
+                views[0]++;
+            });
+            check(views[0] == rows - 1 && !mismatch[0], format.name() + "/" + codec + ": views do not match the rows");
+            store.close();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static String[] row(int i) {
+        return new String[]{Integer.toString(i), "region-" + (i % 12), "customer order " + (i / 10) + " processed"};
+    }
+
+    private static void delete(File dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.lightweightDbms.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that {@link ColumnType} resolves declared types, accepts values of its type in canonical
+ * form and rejects all others. Run with {@code java com.lightweightDbms.storage.ColumnTypeTest}.
+ */
+public final class ColumnTypeTest {
+    private ColumnTypeTest() {
+    }
+
+    public static void main(String[] args) {
+        declaredTypes();
+        validValuesAreNormalized();
+        invalidValuesAreRejected();
+        binaryFormRoundTrips();
+        System.out.println("ColumnTypeTest OK");
+    }
+
+    private static void declaredTypes() {
+        check(ColumnType.forColumn("id") == ColumnType.TEXT, "untyped column is not TEXT");
+        check(ColumnType.forColumn("id:INTEGER") == ColumnType.INT, "INTEGER is not INT");
+        check(ColumnType.forColumn("n: bigint") == ColumnType.BIGINT, "bigint is not BIGINT");
+        check(ColumnType.forColumn("p:real") == ColumnType.DOUBLE, "real is not DOUBLE");
+        check(ColumnType.forColumn("b:bool") == ColumnType.BOOLEAN, "bool is not BOOLEAN");
+        check(ColumnType.forColumn("t:datetime") == ColumnType.TIMESTAMP, "datetime is not TIMESTAMP");
+        check(ColumnType.forColumn("x:blob") == ColumnType.TEXT, "unknown type is not TEXT");
+        ColumnType name = ColumnType.forColumn("name:VARCHAR(8)");
+        check(name.getKind() == ColumnType.Kind.VARCHAR && name.getMaxLength() == 8, "VARCHAR(8) resolved to " + name);
+        rejected(() -> ColumnType.forColumn("name:varchar(x)"), "varchar(x)");
+        rejected(() -> ColumnType.forColumn("name:varchar(0)"), "varchar(0)");
+    }
+
+    private static void validValuesAreNormalized() {
+        equal(ColumnType.INT.normalize(" 007"), "7");
+        equal(ColumnType.INT.normalize("-2147483648"), "-2147483648");
+        equal(ColumnType.BIGINT.normalize("9007199254740993"), "9007199254740993");
+        equal(ColumnType.DOUBLE.normalize("3"), "3.0");
+        equal(ColumnType.BOOLEAN.normalize("TRUE"), "true");
+        equal(ColumnType.BOOLEAN.normalize("no"), "false");
+        equal(ColumnType.TIMESTAMP.normalize("2024-03-01T12:30"), "2024-03-01 12:30:00");
+        equal(ColumnType.TIMESTAMP.normalize("2024-03-01 00:00:00.250"), "2024-03-01 00:00:00.25");
+        equal(ColumnType.varchar(3).normalize("äöü"), "äöü");
+        equal(ColumnType.INT.normalize("NULL"), "");
+        equal(ColumnType.DOUBLE.normalize(""), "");
+        equal(ColumnType.TEXT.normalize("NULL"), "NULL");
+    }
+
+    private static void invalidValuesAreRejected() {
+        rejected(() -> ColumnType.INT.normalize("x"), "INT x");
+        rejected(() -> ColumnType.INT.normalize("2147483648"), "INT overflow");
+        rejected(() -> ColumnType.INT.normalize("1.5"), "INT 1.5");
+        rejected(() -> ColumnType.BIGINT.normalize("9223372036854775808"), "BIGINT overflow");
+        rejected(() -> ColumnType.DOUBLE.normalize("three"), "DOUBLE three");
+        rejected(() -> ColumnType.BOOLEAN.normalize("maybe"), "BOOLEAN maybe");
+        rejected(() -> ColumnType.TIMESTAMP.normalize("2024-13-01"), "TIMESTAMP month 13");
+        rejected(() -> ColumnType.TIMESTAMP.normalize("2024-02-30"), "TIMESTAMP February 30");
+        rejected(() -> ColumnType.varchar(8).normalize("waytoolongname"), "VARCHAR(8) overflow");
+    }
+
+    private static void binaryFormRoundTrips() {
+        ColumnType[] types = {ColumnType.INT, ColumnType.BIGINT, ColumnType.DOUBLE, ColumnType.BOOLEAN, ColumnType.TIMESTAMP};
+        String[] values = {"-42", "1700000000000", "2.5", "true", "1999-12-31 23:59:59.999999"};
+        for (int i = 0; i < types.length; i++) {
+            ColumnType type = types[i];
+            check(type.isFixedWidth(), type + " is not fixed width");
+            String value = type.normalize(values[i]);
+            ByteBuffer buffer = ByteBuffer.wrap(type.encode(value));
+            check(buffer.remaining() == type.width(), type + " stores " + buffer.remaining() + " bytes");
+            equal(type.decode(buffer, 0, buffer.remaining()), value);
+        }
+    }
+
+    private static void rejected(Runnable action, String what) {
+        try {
+            action.run();
+        } catch (IllegalArgumentException expected) {
+            return;
+        }
+        throw new AssertionError(what + " was accepted");
+    }
+
+    private static void equal(String actual, String expected) {
+        check(expected.equals(actual), "expected '" + expected + "' but got '" + actual + "'");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
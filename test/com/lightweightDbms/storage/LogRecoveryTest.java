@@ -0,0 +1,141 @@
+package com.lightweightDbms.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Checks that {@link LogRecovery} brings tables that were never flushed back to their committed
+ * state: committed transactions are replayed and a transaction cut off before its commit is rolled
+ * back. A crash is simulated by abandoning the open log and stores and opening the files again.
+ * Run with {@code java com.lightweightDbms.storage.LogRecoveryTest}.
+ */
+public final class LogRecoveryTest {
+    private static final String TABLE = "t";
+    private static final int ROWS = 2_000;
+
+    private LogRecoveryTest() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        for (TableStore.Format format : List.of(PagedTableStore.FORMAT, ColumnarTableStore.FORMAT)) {
+            File dir = Files.createTempDirectory("recovery").toFile();
+            try {
+                committedChangesAreReplayed(dir, format);
+                unfinishedTransactionIsRolledBack(dir, format);
+            } finally {
+                delete(dir);
+            }
+        }
+        System.out.println("LogRecoveryTest OK");
+    }
+
+    /**
+     * Inserts, updates and deletes committed in the log but never flushed to the table are replayed.
+     */
+    private static void committedChangesAreReplayed(File dir, TableStore.Format format) throws IOException {
+        WriteAheadLog log = WriteAheadLog.open(new File(dir, "wal"), 0);
+        File file = new File(dir, TABLE + format.extension());
+        TableStore store = format.create(file, List.of("id:int", "v"), new BufferPool(64 << 10));
+        store.setLog(log, TABLE);
+        store.flush();
+
+        log.begin();
+        long[] locators = new long[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            locators[i] = store.insert(new String[]{Integer.toString(i), "value-" + i});
+        }
+        log.flush(log.commit());
+        log.begin();
+        locators[7] = store.update(locators[7], new String[]{"7", "updated"});
+        check(store.delete(locators[8]), format.name() + ": delete of row 8 failed");
+        log.flush(log.commit());
+        // Crash: neither the store nor the log is closed
+
+        log = WriteAheadLog.open(new File(dir, "wal"), 0);
+        store = format.open(file, new BufferPool(64 << 10));
+        store.setLog(log, TABLE);
+        LogRecovery.Report report = new LogRecovery(log).recover(Map.of(TABLE, store));
+        check(report.getRecords() > 0, format.name() + ": nothing was replayed");
+        check(report.getRolledBack() == 0, format.name() + ": rolled back " + report.getRolledBack() + " transactions");
+
+        check(count(store) == ROWS - 1, format.name() + ": " + count(store) + " rows after replay");
+        check(Arrays.equals(store.read(locators[7]), new String[]{"7", "updated"}),
+                format.name() + ": row 7 reads " + Arrays.toString(store.read(locators[7])));
+        check(store.read(locators[8]) == null, format.name() + ": deleted row 8 is back");
+        check(Arrays.equals(store.read(locators[ROWS - 1]), new String[]{Integer.toString(ROWS - 1), "value-" + (ROWS - 1)}),
+                format.name() + ": last row reads " + Arrays.toString(store.read(locators[ROWS - 1])));
+        store.close();
+        log.close();
+    }
+
+    /**
+     * Changes of a transaction whose commit never reached the log are undone, including changes to
+     * rows committed before it, and replaying the log again changes nothing.
+     */
+    private static void unfinishedTransactionIsRolledBack(File dir, TableStore.Format format) throws IOException {
+        WriteAheadLog log = WriteAheadLog.open(new File(dir, "wal"), 0);
+        File file = new File(dir, TABLE + format.extension());
+        TableStore store = format.open(file, new BufferPool(64 << 10));
+        store.setLog(log, TABLE);
+        long[] locators = new long[ROWS];
+        int[] next = {0};
+        store.scan((locator, values) -> locators[next[0]++] = locator);
+        store.flush();
+        int committed = next[0];
+
+        log.begin();
+        for (int i = 0; i < 500; i++) {
+            store.insert(new String[]{Integer.toString(ROWS + i), "uncommitted"});
+        }
+        String[] before = store.read(locators[0]);
+        store.update(locators[0], new String[]{before[0], "uncommitted"});
+        check(store.delete(locators[1]), format.name() + ": delete of a committed row failed");
+        log.flush(log.getEndLsn());
+        // Crash before the commit record is written
+
+        log = WriteAheadLog.open(new File(dir, "wal"), 0);
+        store = format.open(file, new BufferPool(64 << 10));
+        store.setLog(log, TABLE);
+        LogRecovery.Report report = new LogRecovery(log).recover(Map.of(TABLE, store));
+        check(report.getRolledBack() == 1, format.name() + ": rolled back " + report.getRolledBack() + " transactions");
+        check(count(store) == committed, format.name() + ": " + count(store) + " rows after rollback, expected " + committed);
+        String[][] rows = new String[1][];
+        store.scan((locator, values) -> {
+            if (values[1].equals("uncommitted")) rows[0] = values;
+        });
+        check(rows[0] == null, format.name() + ": uncommitted row " + Arrays.toString(rows[0]) + " survived");
+
+        report = new LogRecovery(log).recover(Map.of(TABLE, store));
+        check(report.getRolledBack() == 0, format.name() + ": second recovery rolled back again");
+        check(count(store) == committed, format.name() + ": second recovery changed the table");
+        store.close();
+        log.close();
+    }
+
+    private static long count(TableStore store) throws IOException {
+        long[] rows = {0};
+        store.scan((locator, values) -> rows[0]++);
+        return rows[0];
+    }
+
+    private static void delete(File dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
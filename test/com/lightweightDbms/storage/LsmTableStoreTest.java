@@ -0,0 +1,211 @@
+package com.lightweightDbms.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Checks that an {@link LsmTableStore} reads back the newest version of every row wherever it is
+ * kept: in the memtable, in level-0 tables written by flushes, or in deeper levels after merges.
+ * Deletes are shadowed by tombstones until a full compaction drops them, and everything written
+ * survives reopening the directory, with locators never handed out twice. Run with
+ * {@code java com.lightweightDbms.storage.LsmTableStoreTest}.
+ */
+public final class LsmTableStoreTest {
+    private static final List<String> COLUMNS = List.of("id:int", "v");
+    private static final int ROWS_PER_FLUSH = 500;
+    private static final int FLUSHES = 2 * LsmTableStore.L0_TRIGGER;
+    /** Rows inserted by the flushes, so the locator of the next insert. */
+    private static final long INSERTED = (long) FLUSHES * ROWS_PER_FLUSH;
+
+    private LsmTableStoreTest() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        File dir = Files.createTempDirectory("lsm").toFile();
+        try {
+            File table = new File(dir, "t.lsm");
+            TreeMap<Long, String[]> expected = new TreeMap<>();
+            flushesAndMerges(table, expected);
+            tombstones(table, expected);
+            reopened(table, expected);
+            unflushedChangesAreLost(table, expected);
+        } finally {
+            delete(dir);
+        }
+        System.out.println("LsmTableStoreTest OK");
+    }
+
+    /**
+     * Each flush writes a level-0 table; enough of them are merged into level 1. Updates and
+     * deletes between flushes must win over the older records of the same rows in every case.
+     */
+    private static void flushesAndMerges(File table, TreeMap<Long, String[]> expected) throws IOException {
+        LsmTableStore store = LsmTableStore.create(table, COLUMNS, new BufferPool(1 << 20));
+        for (int flush = 0; flush < FLUSHES; flush++) {
+            for (int i = 0; i < ROWS_PER_FLUSH; i++) {
+                String[] row = row(expected.size(), "v" + flush);
+                expected.put(store.insert(row), row);
+            }
+            // Rewrites rows that earlier flushes already put in tables
+            for (long locator = flush; locator < expected.lastKey(); locator += 37) {
+                if (!expected.containsKey(locator)) continue;
+                String[] row = row(locator, "updated-" + flush);
+                check(store.update(locator, row) == locator, "update moved row " + locator);
+                expected.put(locator, row);
+            }
+            for (long locator = flush * 3L + 1; locator < expected.lastKey(); locator += 101) {
+                if (expected.remove(locator) != null) {
+                    check(store.delete(locator), "delete of row " + locator + " failed");
+                }
+            }
+            store.flush();
+            check(tables(table) > 0, "flush " + flush + " wrote no table");
+            same(store, expected, "after flush " + flush);
+        }
+        check(store.getRecordCount() == expected.size(),
+                store.getRecordCount() + " rows counted, " + expected.size() + " expected");
+
+        // Changes still in the memtable shadow the tables
+        long first = expected.firstKey();
+        String[] row = row(first, "memtable");
+        store.update(first, row);
+        expected.put(first, row);
+        long last = expected.lastKey();
+        check(store.delete(last), "delete of the last row failed");
+        expected.remove(last);
+        same(store, expected, "with changes in the memtable");
+        store.close();
+    }
+
+    /**
+     * A deleted row stays deleted through flushes and merges, while its tombstone is all that keeps
+     * the older record hidden, and a full compaction removes both, shrinking the tables.
+     */
+    private static void tombstones(File table, TreeMap<Long, String[]> expected) throws IOException {
+        LsmTableStore store = LsmTableStore.open(table, new BufferPool(1 << 20));
+        check(!store.delete(-1) && !store.delete(1L << 40), "delete of an absent row succeeded");
+        for (Long locator : expected.keySet().toArray(new Long[0])) {
+            if (locator % 4 != 0) {
+                check(store.delete(locator), "delete of row " + locator + " failed");
+                expected.remove(locator);
+            }
+        }
+        check(!store.delete(1), "row 1 deleted twice");
+        store.flush();
+        same(store, expected, "with tombstones in level 0");
+        long before = tableBytes(table);
+
+        store.compact();
+        same(store, expected, "after compaction");
+        check(tableBytes(table) < before / 2, "compaction kept " + tableBytes(table) + " of " + before + " bytes");
+        for (long locator = 1; locator < 40; locator += 4) {
+            check(store.read(locator) == null, "row " + locator + " is back after compaction");
+        }
+        // Deleting and reinserting is a new row, never the old locator
+        long reinserted = store.insert(row(1, "again"));
+        check(reinserted == INSERTED, "insert after compaction got locator " + reinserted + ", expected " + INSERTED);
+        expected.put(reinserted, row(1, "again"));
+        store.close();
+    }
+
+    /**
+     * Reopening finds the rows, counters and version as they were at close.
+     */
+    private static void reopened(File table, TreeMap<Long, String[]> expected) throws IOException {
+        LsmTableStore store = LsmTableStore.open(table, new BufferPool(1 << 20));
+        long version = store.getVersion();
+        store.close();
+
+        // A file the manifest does not list was left by a cut-off flush and goes on open
+        File stray = new File(table, "999999.sst");
+        Files.write(stray.toPath(), new byte[]{1, 2, 3});
+        store = LsmTableStore.open(table, new BufferPool(1 << 20));
+        check(!stray.exists(), "unlisted table file survived opening");
+        check(store.getVersion() == version, "version changed from " + version + " to " + store.getVersion());
+        check(store.getRecordCount() == expected.size(), store.getRecordCount() + " rows after reopening");
+        same(store, expected, "after reopening");
+
+        long locator = store.insert(row(0, "after reopening"));
+        check(locator == expected.lastKey() + 1, "first insert after reopening got locator " + locator);
+        expected.put(locator, row(0, "after reopening"));
+        store.close();
+    }
+
+    /**
+     * Without a log, a store dropped without closing keeps what was flushed and nothing after it.
+     */
+    private static void unflushedChangesAreLost(File table, TreeMap<Long, String[]> expected) throws IOException {
+        LsmTableStore store = LsmTableStore.open(table, new BufferPool(1 << 20));
+        same(store, expected, "before the crash");
+        store.flush();
+        store.insert(row(0, "never flushed"));
+        store.delete(expected.firstKey());
+        // Crash: the store is not closed
+
+        store = LsmTableStore.open(table, new BufferPool(1 << 20));
+        same(store, expected, "after the crash");
+        store.close();
+    }
+
+    /**
+     * Compares point reads, a full scan and a scan of some segments against the expected rows.
+     */
+    private static void same(LsmTableStore store, TreeMap<Long, String[]> expected, String when) throws IOException {
+        for (long locator = 0; locator <= expected.lastKey() + 1; locator += 7) {
+            String[] read = store.read(locator);
+            check(Arrays.equals(read, expected.get(locator)),
+                    when + ": row " + locator + " reads " + Arrays.toString(read));
+        }
+        TreeMap<Long, String[]> scanned = new TreeMap<>();
+        store.scan((locator, values) -> check(scanned.put(locator, values) == null && scanned.lastKey() == locator,
+                when + ": scan returned row " + locator + " out of order"));
+        check(scanned.size() == expected.size(), when + ": scan returned " + scanned.size() + " of " + expected.size() + " rows");
+        for (Long locator : expected.keySet()) {
+            check(Arrays.equals(scanned.get(locator), expected.get(locator)), when + ": scan of row " + locator + " differs");
+        }
+        long[] inSegment = {0};
+        store.scan(1, 2, (locator, values) -> {
+            check(locator >= 1024 && locator < 2048, when + ": segment 1 returned row " + locator);
+            inSegment[0]++;
+        });
+        check(inSegment[0] == expected.subMap(1024L, 2048L).size(), when + ": segment 1 returned " + inSegment[0] + " rows");
+    }
+
+    private static int tables(File table) {
+        File[] files = table.listFiles((d, name) -> name.endsWith(".sst"));
+        return files == null ? 0 : files.length;
+    }
+
+    private static long tableBytes(File table) {
+        long bytes = 0;
+        for (File file : table.listFiles((d, name) -> name.endsWith(".sst"))) {
+            bytes += file.length();
+        }
+        return bytes;
+    }
+
+    private static String[] row(long id, String value) {
+        return new String[]{Long.toString(id), value + "-" + id};
+    }
+
+    private static void delete(File dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.lightweightDbms.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Checks that {@link PagedTableStore#scanViews} sees the same rows as a decoding scan when the pool
+ * holds pages that are newer than the file: rows changed or deleted since the last flush, and
+ * pages appended past the end of the file. Pages the pool does not hold are read from the mapping
+ * of the file without going through the pool. Run with
+ * {@code java com.lightweightDbms.storage.MappedScanTest}.
+ */
+public final class MappedScanTest {
+    private static final List<String> COLUMNS = List.of("id:int", "name", "score:double");
+    private static final int ROWS = 20_000;
+
+    private MappedScanTest() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        File dir = Files.createTempDirectory("mapped").toFile();
+        try {
+            File file = new File(dir, "t.tbl");
+            TreeMap<Long, String[]> expected = new TreeMap<>();
+            dirtyPagesInPool(file, expected, new BufferPool(64L << 20));
+            // A pool of a few frames writes most modified pages back while they are changed
+            dirtyPagesInPool(file, expected, new BufferPool(1));
+            coldPoolIsNotFilled(file, expected);
+        } finally {
+            delete(dir);
+        }
+        System.out.println("MappedScanTest OK");
+    }
+
+    /**
+     * Flushes a table, then changes rows, deletes rows and appends rows only in the pool: the view
+     * scan has to read the pool's copy of those pages rather than the stale mapped file.
+     */
+    private static void dirtyPagesInPool(File file, TreeMap<Long, String[]> expected, BufferPool pool) throws IOException {
+        PagedTableStore store = file.exists() ? PagedTableStore.open(file, pool) : PagedTableStore.create(file, COLUMNS, pool);
+        long base = expected.values().stream().mapToLong(row -> Long.parseLong(row[0]) + 1).max().orElse(0);
+        for (long i = base; i < base + ROWS; i++) {
+            String[] row = row(i, "row");
+            expected.put(store.insert(row), row);
+        }
+        store.flush();
+        same(store, expected, pool, "after flush");
+
+        Long[] locators = expected.keySet().toArray(new Long[0]);
+        for (int i = 0; i < locators.length; i += 13) {
+            String[] row = row(Long.parseLong(expected.get(locators[i])[0]), "changed in the pool");
+            long locator = store.update(locators[i], row);
+            expected.remove(locators[i]);
+            expected.put(locator, row);
+        }
+        for (int i = 5; i < locators.length; i += 17) {
+            if (expected.containsKey(locators[i])) {
+                check(store.delete(locators[i]), "delete of " + locators[i] + " failed");
+                expected.remove(locators[i]);
+            }
+        }
+        // Appended pages lie past the end of the file until they are written
+        for (long i = base + ROWS; i < base + ROWS + 2_000; i++) {
+            String[] row = row(i, "appended");
+            expected.put(store.insert(row), row);
+        }
+        long hits = pool.getHits();
+        same(store, expected, pool, "with unflushed changes");
+        check(pool.getHits() > hits, "view scan read no page from the pool");
+        store.close();
+    }
+
+    /**
+     * Scanning a flushed table with a cold pool reads every page from the mapping: the pool takes
+     * no misses and holds no more pages afterwards.
+     */
+    private static void coldPoolIsNotFilled(File file, TreeMap<Long, String[]> expected) throws IOException {
+        BufferPool pool = new BufferPool(64L << 20);
+        PagedTableStore store = PagedTableStore.open(file, pool);
+        long misses = pool.getMisses();
+        int pages = pool.getPageCount();
+        long[] rows = {0};
+        store.scanViews((locator, view) -> {
+            check(Arrays.equals(values(view), expected.get(locator)), "view of row " + locator + " differs");
+            rows[0]++;
+        });
+        check(rows[0] == expected.size(), "view scan returned " + rows[0] + " of " + expected.size() + " rows");
+        check(pool.getMisses() == misses, "view scan read " + (pool.getMisses() - misses) + " pages into the pool");
+        check(pool.getPageCount() == pages, "view scan left " + (pool.getPageCount() - pages) + " more pages in the pool");
+        store.close();
+    }
+
+    /**
+     * Compares a view scan with a decoding scan and the expected rows. A view scan has to see
+     * pool pages as they are now, not as they were flushed.
+     */
+    private static void same(PagedTableStore store, TreeMap<Long, String[]> expected, BufferPool pool, String when)
+            throws IOException {
+        TreeMap<Long, String[]> scanned = new TreeMap<>();
+        store.scan((locator, values) -> scanned.put(locator, values));
+        TreeMap<Long, String[]> viewed = new TreeMap<>();
+        store.scanViews((locator, view) -> check(viewed.put(locator, values(view)) == null,
+                when + ": view scan returned row " + locator + " twice"));
+        check(scanned.size() == expected.size() && viewed.size() == expected.size(),
+                when + ": scan returned " + scanned.size() + " and view scan " + viewed.size() + " of " + expected.size()
+                        + " rows (pool of " + pool.getCapacity() + " pages)");
+        for (Long locator : expected.keySet()) {
+            check(Arrays.equals(scanned.get(locator), expected.get(locator)),
+                    when + ": scan of row " + locator + " reads " + Arrays.toString(scanned.get(locator)));
+            check(Arrays.equals(viewed.get(locator), expected.get(locator)),
+                    when + ": view of row " + locator + " reads " + Arrays.toString(viewed.get(locator))
+                            + " (pool of " + pool.getCapacity() + " pages)");
+        }
+    }
+
+    private static String[] values(TableStore.RecordView view) {
+        String[] values = new String[view.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = view.get(i);
+        }
+        return values;
+    }
+
+    private static String[] row(long id, String name) {
+        return new String[]{Long.toString(id), name + " " + id, Double.toString(id / 4.0)};
+    }
+
+    private static void delete(File dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}